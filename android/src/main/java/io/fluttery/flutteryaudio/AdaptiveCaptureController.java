@@ -0,0 +1,142 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Lowers the capture rate and capture size of a visualizer when nobody
+ * benefits from full fidelity, and raises them again when conditions improve.
+ *
+ * Fidelity is reduced one level at a time when Flutter falls behind, i.e.,
+ * when frames keep being dropped because Flutter is still handling an
+ * earlier frame. It is restored one level at a time after a long run of
+ * frames that were not dropped. While the app is in the background the
+ * lowest level is used.
+ *
+ * <pre>
+ * level  capture rate  capture size
+ *     0  full          full
+ *     1  1/2           full
+ *     2  1/2           1/2
+ *     3  1/4           1/2
+ * </pre>
+ *
+ * Methods may be called from any thread. The {@link Callback} is invoked on
+ * the calling thread while the controller's lock is held, so it should only
+ * schedule the actual reconfiguration.
+ */
+public class AdaptiveCaptureController {
+
+    public static final int MAX_LEVEL = 3;
+
+    private static final int DROPPED_FRAMES_BEFORE_DOWNGRADE = 4;
+    private static final int FRAMES_BEFORE_UPGRADE = 120;
+
+    private final int fullCaptureSize;
+    private final int fullCaptureRate;
+    private final int minCaptureSize;
+    private final Callback callback;
+
+    private int level = 0;
+    private boolean isBackgrounded = false;
+    private int droppedFrameCount = 0;
+    private int healthyFrameRun = 0;
+
+    /**
+     * @param fullCaptureSize capture size at level 0
+     * @param fullCaptureRate capture rate, in milliHertz, at level 0
+     * @param minCaptureSize smallest capture size that the Visualizer supports
+     */
+    public AdaptiveCaptureController(int fullCaptureSize, int fullCaptureRate, int minCaptureSize, @NonNull Callback callback) {
+        this.fullCaptureSize = fullCaptureSize;
+        this.fullCaptureRate = fullCaptureRate;
+        this.minCaptureSize = minCaptureSize;
+        this.callback = callback;
+    }
+
+    public synchronized int level() {
+        return level;
+    }
+
+    public synchronized int captureSize() {
+        return captureSizeFor(effectiveLevel());
+    }
+
+    public synchronized int captureRate() {
+        return captureRateFor(effectiveLevel());
+    }
+
+    /**
+     * To be called whenever a frame is produced.
+     *
+     * @param wasCoalesced true if the frame replaced an earlier frame that
+     *                     never reached Flutter because Flutter was still
+     *                     busy with the frame before it
+     */
+    public synchronized void onFrameProduced(boolean wasCoalesced) {
+        if (wasCoalesced) {
+            healthyFrameRun = 0;
+            if (++droppedFrameCount >= DROPPED_FRAMES_BEFORE_DOWNGRADE && level < MAX_LEVEL) {
+                droppedFrameCount = 0;
+                setLevel(level + 1);
+            }
+        } else {
+            if (++healthyFrameRun >= FRAMES_BEFORE_UPGRADE && level > 0) {
+                healthyFrameRun = 0;
+                droppedFrameCount = 0;
+                setLevel(level - 1);
+            }
+        }
+    }
+
+    public synchronized void setBackgrounded(boolean isBackgrounded) {
+        if (isBackgrounded == this.isBackgrounded) {
+            return;
+        }
+
+        int previousLevel = effectiveLevel();
+        this.isBackgrounded = isBackgrounded;
+        if (effectiveLevel() != previousLevel) {
+            notifyCaptureChanged();
+        }
+    }
+
+    private void setLevel(int newLevel) {
+        int previousLevel = effectiveLevel();
+        level = newLevel;
+        if (effectiveLevel() != previousLevel) {
+            notifyCaptureChanged();
+        }
+    }
+
+    private int effectiveLevel() {
+        return isBackgrounded ? MAX_LEVEL : level;
+    }
+
+    private void notifyCaptureChanged() {
+        int effectiveLevel = effectiveLevel();
+        callback.onCaptureChanged(captureSizeFor(effectiveLevel), captureRateFor(effectiveLevel));
+    }
+
+    private int captureSizeFor(int level) {
+        int size = level >= 2 ? fullCaptureSize / 2 : fullCaptureSize;
+        return Math.max(minCaptureSize, size);
+    }
+
+    private int captureRateFor(int level) {
+        if (level >= 3) {
+            return fullCaptureRate / 4;
+        } else if (level >= 1) {
+            return fullCaptureRate / 2;
+        } else {
+            return fullCaptureRate;
+        }
+    }
+
+    public interface Callback {
+        /**
+         * The visualizer should now capture {@code captureSize} samples at
+         * {@code captureRate} milliHertz.
+         */
+        void onCaptureChanged(int captureSize, int captureRate);
+    }
+}
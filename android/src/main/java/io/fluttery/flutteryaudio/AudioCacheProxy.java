@@ -0,0 +1,531 @@
+package io.fluttery.flutteryaudio;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback HTTP server that sits between {@code MediaPlayer} and the network
+ * and caches what it streams in an {@link AudioFileCache}.
+ *
+ * A remote url is handed to the player as a {@link #proxyUrl(String)} that
+ * points at this server. For every request the server:
+ *
+ * <ul>
+ *   <li>serves complete entries straight from disk,</li>
+ *   <li>serves the cached prefix of partial entries from disk and fetches the
+ *   rest from the upstream server with a range request, writing it to the
+ *   cache as it streams it to the player,</li>
+ *   <li>passes the request through without caching when the requested range
+ *   starts beyond the cached prefix, or when another request is already
+ *   writing the same entry. A prefetch of the entry is asked to hand it
+ *   over instead.</li>
+ * </ul>
+ *
+ * Single range requests of the form {@code bytes=start-} and
+ * {@code bytes=start-end} are supported, which is what {@code MediaPlayer}
+ * sends when it seeks.
+ *
+ * Any app on the device can connect to a loopback port, so proxy urls carry
+ * a random token that is created with the proxy, and requests without it
+ * are refused.
+ */
+public class AudioCacheProxy {
+
+    private static final String TAG = "AudioCacheProxy";
+
+    private static final String PATH = "/audio?url=";
+    private static final int TOKEN_SIZE_IN_BYTES = 16;
+    private static final int MAX_CONNECTIONS = 4;
+    private static final int BUFFER_SIZE_IN_BYTES = 16 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = 20_000;
+    // How long a request waits for a prefetch of the same entry to stop.
+    private static final int WRITER_HANDOVER_TIMEOUT_MILLIS = 500;
+
+    private final AudioFileCache cache;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connectionExecutor;
+    // Path prefix of all proxy urls: the token followed by PATH.
+    private final String pathPrefix;
+
+    /**
+     * Starts a server on an ephemeral loopback port.
+     */
+    public AudioCacheProxy(@NonNull AudioFileCache cache) throws IOException {
+        this.cache = cache;
+        pathPrefix = "/" + newToken() + PATH;
+        serverSocket = new ServerSocket(0, MAX_CONNECTIONS, InetAddress.getByName("127.0.0.1"));
+        connectionExecutor = new ThreadPoolExecutor(
+                MAX_CONNECTIONS,
+                MAX_CONNECTIONS,
+                30,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>()
+        );
+        ((ThreadPoolExecutor) connectionExecutor).allowCoreThreadTimeOut(true);
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "AudioCacheProxy");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    @NonNull
+    public AudioFileCache cache() {
+        return cache;
+    }
+
+    /**
+     * Returns the url that the player should use to play {@code url} through
+     * this proxy. Urls that aren't http(s), and HLS and DASH manifests, are
+     * returned unchanged. Manifests refer to their segments with relative
+     * urls, which can't be resolved against a proxy url.
+     */
+    @NonNull
+    public String proxyUrl(@NonNull String url) {
+        if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            return url;
+        }
+        String path = Uri.parse(url).getPath();
+        if (path != null && (path.endsWith(".m3u8") || path.endsWith(".mpd"))) {
+            return url;
+        }
+
+        try {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + pathPrefix + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the server socket. Requests in
+     * flight are abandoned.
+     */
+    public void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close server socket", e);
+        }
+        connectionExecutor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.w(TAG, "Failed to accept connection", e);
+                }
+            }
+        }
+    }
+
+    private void handleConnection(@NonNull Socket socket) {
+        try {
+            Request request = Request.read(new BufferedInputStream(socket.getInputStream()), pathPrefix);
+            OutputStream out = socket.getOutputStream();
+            if (request == null) {
+                Log.w(TAG, "Refused a request that is not for a proxy url");
+                writeStatus(out, 403, "Forbidden");
+                return;
+            }
+
+            serve(request, out);
+        } catch (IOException e) {
+            // Usually the player closing the connection after a seek.
+            AudioLog.d(TAG, "Connection ended: ", e.getMessage());
+        } finally {
+            closeSocketQuietly(socket);
+        }
+    }
+
+    private void serve(@NonNull Request request, @NonNull OutputStream out) throws IOException {
+        AudioFileCache.Entry entry = cache.entryFor(request.url);
+        entry.touch();
+
+        if (entry.isComplete()) {
+            serveFromCache(entry, request, out);
+            return;
+        }
+
+        if (request.rangeStart <= entry.cachedLength() && cache.acquireWriter(entry, WRITER_HANDOVER_TIMEOUT_MILLIS)) {
+            try {
+                if (entry.isComplete()) {
+                    // A prefetch that handed the entry over finished it.
+                    serveFromCache(entry, request, out);
+                } else {
+                    serveAndCache(entry, request, out);
+                }
+            } finally {
+                cache.releaseWriter(entry);
+            }
+        } else {
+            servePassThrough(request, out);
+        }
+    }
+
+    private void serveFromCache(@NonNull AudioFileCache.Entry entry, @NonNull Request request, @NonNull OutputStream out) throws IOException {
+        long totalLength = entry.totalLength();
+        if (request.rangeStart >= totalLength && totalLength > 0) {
+            writeStatus(out, 416, "Range Not Satisfiable");
+            return;
+        }
+
+        long end = request.rangeEndFor(totalLength);
+        writeHeaders(out, request, request.rangeStart, end, totalLength, entry.contentType());
+
+        InputStream in = entry.openRead(request.rangeStart);
+        try {
+            copy(in, out, end - request.rangeStart + 1);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void serveAndCache(@NonNull AudioFileCache.Entry entry, @NonNull Request request, @NonNull OutputStream out) throws IOException {
+        long cachedLength = entry.cachedLength();
+        HttpURLConnection connection = openUpstream(request.url, cachedLength, -1);
+        try {
+            int status = connection.getResponseCode();
+            boolean isResumed = status == HttpURLConnection.HTTP_PARTIAL;
+            if (status != HttpURLConnection.HTTP_OK && !isResumed) {
+                writeStatus(out, 502, "Bad Gateway");
+                return;
+            }
+
+            // A server that ignores the range request sends everything again.
+            long upstreamStart = isResumed ? cachedLength : 0;
+            long totalLength = totalLengthOf(connection, upstreamStart);
+            String contentType = connection.getContentType();
+            if (totalLength >= 0) {
+                entry.writeMeta(totalLength, contentType);
+            }
+
+            long end = request.rangeEndFor(totalLength);
+            writeHeaders(out, request, request.rangeStart, end, totalLength, contentType);
+            long remaining = end >= 0 ? end - request.rangeStart + 1 : Long.MAX_VALUE;
+
+            // Serve the part of the range that is already on disk.
+            if (isResumed && request.rangeStart < cachedLength) {
+                InputStream cached = entry.openRead(request.rangeStart);
+                try {
+                    long fromCache = Math.min(remaining, cachedLength - request.rangeStart);
+                    copy(cached, out, fromCache);
+                    remaining -= fromCache;
+                } finally {
+                    closeQuietly(cached);
+                }
+            }
+
+            // Stream the rest from upstream, appending it to the cache and
+            // sending the bytes that fall into the requested range.
+            long skip = Math.max(0, request.rangeStart - upstreamStart);
+            InputStream upstream = connection.getInputStream();
+            OutputStream cacheOut = entry.openAppend(!isResumed);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE_IN_BYTES];
+                int read;
+                while (remaining > 0 && (read = upstream.read(buffer)) >= 0) {
+                    cacheOut.write(buffer, 0, read);
+
+                    int offset = (int) Math.min(skip, read);
+                    skip -= offset;
+                    int toSend = (int) Math.min(remaining, read - offset);
+                    if (toSend > 0) {
+                        out.write(buffer, offset, toSend);
+                        remaining -= toSend;
+                    }
+                }
+                out.flush();
+            } finally {
+                closeQuietly(cacheOut);
+                closeQuietly(upstream);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void servePassThrough(@NonNull Request request, @NonNull OutputStream out) throws IOException {
+        HttpURLConnection connection = openUpstream(request.url, request.rangeStart, request.rangeEnd);
+        try {
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+                writeStatus(out, 502, "Bad Gateway");
+                return;
+            }
+
+            StringBuilder headers = new StringBuilder();
+            headers.append("HTTP/1.1 ").append(status).append(status == HttpURLConnection.HTTP_PARTIAL ? " Partial Content" : " OK").append("\r\n");
+            appendHeader(headers, "Content-Type", connection.getContentType());
+            appendHeader(headers, "Content-Length", connection.getHeaderField("Content-Length"));
+            appendHeader(headers, "Content-Range", connection.getHeaderField("Content-Range"));
+            headers.append("Accept-Ranges: bytes\r\nConnection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("UTF-8"));
+
+            InputStream upstream = connection.getInputStream();
+            try {
+                copy(upstream, out, Long.MAX_VALUE);
+            } finally {
+                closeQuietly(upstream);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Opens a connection to the upstream server that asks for the given
+     * range, where an {@code rangeEnd} of -1 means until the end.
+     */
+    @NonNull
+    static HttpURLConnection openUpstream(@NonNull String url, long rangeStart, long rangeEnd) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        // Byte offsets must refer to the stored representation.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (rangeStart > 0 || rangeEnd >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + rangeStart + "-" + (rangeEnd >= 0 ? rangeEnd : ""));
+        }
+        return connection;
+    }
+
+    /**
+     * Total length of the upstream resource, taken from {@code Content-Range}
+     * for partial responses and from {@code Content-Length} otherwise, or -1
+     * if the server doesn't say.
+     */
+    static long totalLengthOf(@NonNull HttpURLConnection connection, long responseStart) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange != null) {
+            int totalStart = contentRange.lastIndexOf('/');
+            if (totalStart >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(totalStart + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength != null) {
+            try {
+                return responseStart + Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeHeaders(@NonNull OutputStream out, @NonNull Request request, long start, long end, long totalLength, @Nullable String contentType) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        if (request.hasRange) {
+            headers.append("HTTP/1.1 206 Partial Content\r\n");
+            if (end >= 0) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/')
+                        .append(totalLength >= 0 ? String.valueOf(totalLength) : "*").append("\r\n");
+            }
+        } else {
+            headers.append("HTTP/1.1 200 OK\r\n");
+        }
+        if (end >= 0) {
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        }
+        appendHeader(headers, "Content-Type", contentType);
+        headers.append("Accept-Ranges: bytes\r\nConnection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("UTF-8"));
+    }
+
+    private static void appendHeader(@NonNull StringBuilder headers, @NonNull String name, @Nullable String value) {
+        if (value != null) {
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+    }
+
+    private static void writeStatus(@NonNull OutputStream out, int status, @NonNull String reason) throws IOException {
+        out.write(("HTTP/1.1 " + status + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private static void copy(@NonNull InputStream in, @NonNull OutputStream out, long maxBytes) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE_IN_BYTES];
+        long remaining = maxBytes;
+        int read;
+        while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) >= 0) {
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+        out.flush();
+    }
+
+    @NonNull
+    private static String newToken() {
+        byte[] token = new byte[TOKEN_SIZE_IN_BYTES];
+        new SecureRandom().nextBytes(token);
+        StringBuilder hex = new StringBuilder(2 * token.length);
+        for (byte b : token) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+    }
+
+    // Socket only implements Closeable from API 19.
+    private static void closeSocketQuietly(@NonNull Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+    }
+
+    /**
+     * The parts of an HTTP request from the player that the proxy cares about.
+     */
+    private static class Request {
+
+        /**
+         * Reads a request for a path that starts with {@code pathPrefix}.
+         *
+         * @return the request, or null if it's malformed or for another path
+         */
+        @Nullable
+        static Request read(@NonNull InputStream in, @NonNull String pathPrefix) throws IOException {
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return null;
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2 || !hasPrefix(parts[1], pathPrefix)) {
+                return null;
+            }
+            String url = URLDecoder.decode(parts[1].substring(pathPrefix.length()), "UTF-8");
+
+            long rangeStart = 0;
+            long rangeEnd = -1;
+            boolean hasRange = false;
+            String header;
+            while ((header = readLine(in)) != null && !header.isEmpty()) {
+                int separator = header.indexOf(':');
+                if (separator < 0 || !"range".equalsIgnoreCase(header.substring(0, separator).trim())) {
+                    continue;
+                }
+
+                String value = header.substring(separator + 1).trim();
+                if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+                    continue;
+                }
+                String[] bounds = value.substring("bytes=".length()).split("-", -1);
+                try {
+                    rangeStart = bounds[0].isEmpty() ? 0 : Long.parseLong(bounds[0]);
+                    rangeEnd = bounds.length > 1 && !bounds[1].isEmpty() ? Long.parseLong(bounds[1]) : -1;
+                    hasRange = true;
+                } catch (NumberFormatException e) {
+                    // Ignore a malformed range and serve everything.
+                }
+            }
+
+            return new Request(url, rangeStart, rangeEnd, hasRange);
+        }
+
+        // Compares in constant time so that the token can't be guessed
+        // byte by byte from response times.
+        private static boolean hasPrefix(@NonNull String path, @NonNull String prefix) throws UnsupportedEncodingException {
+            if (path.length() < prefix.length()) {
+                return false;
+            }
+            return MessageDigest.isEqual(
+                    path.substring(0, prefix.length()).getBytes("UTF-8"),
+                    prefix.getBytes("UTF-8")
+            );
+        }
+
+        @Nullable
+        private static String readLine(@NonNull InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+
+        final String url;
+        final long rangeStart;
+        final long rangeEnd;
+        final boolean hasRange;
+
+        private Request(@NonNull String url, long rangeStart, long rangeEnd, boolean hasRange) {
+            this.url = url;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            this.hasRange = hasRange;
+        }
+
+        /**
+         * Last byte to serve given the total length, or -1 if it isn't known.
+         */
+        long rangeEndFor(long totalLength) {
+            if (totalLength < 0) {
+                return rangeEnd;
+            }
+            return rangeEnd >= 0 ? Math.min(rangeEnd, totalLength - 1) : totalLength - 1;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.audiofx.BassBoost;
+import android.media.audiofx.Equalizer;
+import android.media.audiofx.LoudnessEnhancer;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The audio effects of one {@link AudioPlayer}: an equalizer, a bass boost
+ * and, from Android 4.4, a loudness enhancer, in the player's audio session.
+ *
+ * Effect engines are a scarce resource of the media server, so each effect
+ * is only created when it's first enabled, and then reused, i.e., turning it
+ * off only disables it. The effects are released when the player's audio
+ * session changes, e.g., because the next audio plays with ExoPlayer, and
+ * when the player is released.
+ *
+ * Settings are kept here rather than read back from the effects, so that
+ * they carry over to the effects of a new audio session. They're applied as
+ * a whole with {@link #apply(Settings)}, where only the effects whose
+ * settings changed are touched, and the equalizer's preset and band levels
+ * are set in a single call.
+ *
+ * Effects that the device doesn't support are left out. Must be used on the
+ * main thread.
+ */
+public class AudioEffects {
+
+    private static final String TAG = "AudioEffects";
+
+    // Apps' own effects use the default priority, so that effects of the
+    // system, e.g., a global equalizer app, can take over.
+    private static final int PRIORITY = 0;
+
+    private Settings settings = Settings.DEFAULT;
+    // The audio session of the effects, or 0 if not attached.
+    private int audioSessionId = 0;
+    private Equalizer equalizer;
+    private BassBoost bassBoost;
+    private LoudnessEnhancer loudnessEnhancer;
+    // Settings of the existing effects, or null if none were applied yet.
+    private Settings applied;
+    // Effects that failed to be created aren't tried again in the same audio session.
+    private boolean isEqualizerUnavailable = false;
+    private boolean isBassBoostUnavailable = false;
+    private boolean isLoudnessEnhancerUnavailable = false;
+
+    @NonNull
+    public Settings settings() {
+        return settings;
+    }
+
+    /**
+     * Moves the effects to the given audio session, creating those that are
+     * enabled. Does nothing if they're already in that session.
+     *
+     * @param audioSessionId the player's audio session, or 0 if it doesn't
+     *                       have one yet, in which case the effects stay
+     *                       where they are. Effects are never attached to
+     *                       session 0, the global output mix.
+     */
+    public void attach(int audioSessionId) {
+        if (audioSessionId == 0 || audioSessionId == this.audioSessionId) {
+            return;
+        }
+        AudioLog.d(TAG, "Attaching effects to audio session ", audioSessionId);
+        release();
+        this.audioSessionId = audioSessionId;
+        applyToEffects();
+    }
+
+    /**
+     * Replaces all settings, applying them to the effects right away if
+     * they're attached.
+     */
+    public void apply(@NonNull Settings settings) {
+        this.settings = settings;
+        if (audioSessionId != 0) {
+            applyToEffects();
+        }
+    }
+
+    /**
+     * Turns all effects off and releases their engines.
+     */
+    public void reset() {
+        settings = Settings.DEFAULT;
+        int audioSessionId = this.audioSessionId;
+        release();
+        this.audioSessionId = audioSessionId;
+    }
+
+    /**
+     * Releases all effects. The settings are kept, and applied again with
+     * the next {@link #attach(int)}.
+     */
+    public void release() {
+        if (equalizer != null) {
+            equalizer.release();
+            equalizer = null;
+        }
+        if (bassBoost != null) {
+            bassBoost.release();
+            bassBoost = null;
+        }
+        if (loudnessEnhancer != null) {
+            loudnessEnhancer.release();
+            loudnessEnhancer = null;
+        }
+        applied = null;
+        audioSessionId = 0;
+        isEqualizerUnavailable = false;
+        isBassBoostUnavailable = false;
+        isLoudnessEnhancerUnavailable = false;
+    }
+
+    private void applyToEffects() {
+        Settings previous = applied;
+        applied = settings;
+
+        boolean isEqualizerChanged = previous == null
+                || previous.isEqualizerEnabled != settings.isEqualizerEnabled
+                || previous.equalizerPreset != settings.equalizerPreset
+                || !Arrays.equals(previous.bandLevels, settings.bandLevels);
+        if (settings.isEqualizerEnabled && equalizer == null) {
+            isEqualizerChanged |= obtainEqualizer() != null;
+        }
+        if (equalizer != null && isEqualizerChanged) {
+            try {
+                equalizer.setProperties(equalizerSettingsFor(equalizer, settings));
+                equalizer.setEnabled(settings.isEqualizerEnabled);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to apply equalizer settings", e);
+            }
+        }
+
+        boolean isBassBoostChanged = previous == null
+                || previous.isBassBoostEnabled != settings.isBassBoostEnabled
+                || previous.bassBoostStrength != settings.bassBoostStrength;
+        if (settings.isBassBoostEnabled && bassBoost == null && !isBassBoostUnavailable) {
+            try {
+                bassBoost = new BassBoost(PRIORITY, audioSessionId);
+                isBassBoostChanged = true;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Bass boost is unavailable", e);
+                isBassBoostUnavailable = true;
+            }
+        }
+        if (bassBoost != null && isBassBoostChanged) {
+            try {
+                bassBoost.setStrength(settings.bassBoostStrength);
+                bassBoost.setEnabled(settings.isBassBoostEnabled);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to apply bass boost settings", e);
+            }
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            boolean isLoudnessChanged = previous == null
+                    || previous.isLoudnessEnhancerEnabled != settings.isLoudnessEnhancerEnabled
+                    || previous.loudnessGain != settings.loudnessGain;
+            if (settings.isLoudnessEnhancerEnabled && loudnessEnhancer == null && !isLoudnessEnhancerUnavailable) {
+                try {
+                    loudnessEnhancer = new LoudnessEnhancer(audioSessionId);
+                    isLoudnessChanged = true;
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Loudness enhancer is unavailable", e);
+                    isLoudnessEnhancerUnavailable = true;
+                }
+            }
+            if (loudnessEnhancer != null && isLoudnessChanged) {
+                try {
+                    loudnessEnhancer.setTargetGain(settings.loudnessGain);
+                    loudnessEnhancer.setEnabled(settings.isLoudnessEnhancerEnabled);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to apply loudness enhancer settings", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the equalizer, creating it if it doesn't exist yet, or null if
+     * it isn't available.
+     */
+    @Nullable
+    private Equalizer obtainEqualizer() {
+        if (equalizer == null && !isEqualizerUnavailable && audioSessionId != 0) {
+            try {
+                equalizer = new Equalizer(PRIORITY, audioSessionId);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Equalizer is unavailable", e);
+                isEqualizerUnavailable = true;
+            }
+        }
+        return equalizer;
+    }
+
+    @NonNull
+    private static Equalizer.Settings equalizerSettingsFor(@NonNull Equalizer equalizer, @NonNull Settings settings) {
+        short bandCount = equalizer.getNumberOfBands();
+        short[] range = equalizer.getBandLevelRange();
+
+        Equalizer.Settings equalizerSettings = new Equalizer.Settings();
+        if (settings.equalizerPreset < equalizer.getNumberOfPresets()) {
+            equalizerSettings.curPreset = (short) settings.equalizerPreset;
+        } else {
+            Log.w(TAG, "No such equalizer preset: " + settings.equalizerPreset + ". Using band levels instead.");
+            equalizerSettings.curPreset = Settings.NO_PRESET;
+        }
+        equalizerSettings.numBands = bandCount;
+        equalizerSettings.bandLevels = new short[bandCount];
+        for (int band = 0; band < bandCount; ++band) {
+            int level = settings.bandLevels != null && band < settings.bandLevels.length ? settings.bandLevels[band] : 0;
+            equalizerSettings.bandLevels[band] = (short) Math.max(range[0], Math.min(range[1], level));
+        }
+        return equalizerSettings;
+    }
+
+    /**
+     * What the effects of the player's current audio session can do, and
+     * their settings:
+     *
+     * <ul>
+     *   <li>'settings', see {@link Settings#toMap()}</li>
+     *   <li>'equalizer', if available: 'bandCount', 'minBandLevel' and
+     *       'maxBandLevel' in millibels, 'centerFrequencies' of the bands in
+     *       milliHertz, and the names of the 'presets'</li>
+     *   <li>'bassBoost' and 'loudnessEnhancer', true if available</li>
+     * </ul>
+     *
+     * Creates the equalizer, disabled, if it doesn't exist yet. Nothing is
+     * available until the player has an audio session.
+     */
+    @NonNull
+    public Map<String, Object> describe() {
+        Map<String, Object> description = new HashMap<>();
+        description.put("settings", settings.toMap());
+
+        Equalizer equalizer = obtainEqualizer();
+        if (equalizer != null) {
+            try {
+                Map<String, Object> equalizerDescription = new HashMap<>();
+                short bandCount = equalizer.getNumberOfBands();
+                short[] range = equalizer.getBandLevelRange();
+                List<Integer> centerFrequencies = new ArrayList<>();
+                for (short band = 0; band < bandCount; ++band) {
+                    centerFrequencies.add(equalizer.getCenterFreq(band));
+                }
+                List<String> presets = new ArrayList<>();
+                for (short preset = 0; preset < equalizer.getNumberOfPresets(); ++preset) {
+                    presets.add(equalizer.getPresetName(preset));
+                }
+                equalizerDescription.put("bandCount", (int) bandCount);
+                equalizerDescription.put("minBandLevel", (int) range[0]);
+                equalizerDescription.put("maxBandLevel", (int) range[1]);
+                equalizerDescription.put("centerFrequencies", centerFrequencies);
+                equalizerDescription.put("presets", presets);
+                description.put("equalizer", equalizerDescription);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to describe equalizer", e);
+            }
+        }
+
+        boolean isAttached = audioSessionId != 0;
+        description.put("bassBoost", isAttached && !isBassBoostUnavailable);
+        description.put("loudnessEnhancer", isAttached
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && !isLoudnessEnhancerUnavailable);
+        return description;
+    }
+
+    /**
+     * Settings of all effects.
+     */
+    public static class Settings {
+
+        /** Equalizer preset that means that the band levels are used. */
+        public static final short NO_PRESET = -1;
+
+        public static final Settings DEFAULT = new Settings(false, NO_PRESET, null, false, (short) 0, false, 0);
+
+        public final boolean isEqualizerEnabled;
+        /** Index of the equalizer preset, or {@link #NO_PRESET}. */
+        public final int equalizerPreset;
+        /**
+         * Equalizer band levels in millibels, lowest band first, if there's
+         * no preset. Missing bands are flat, and levels are clamped to the
+         * equalizer's range.
+         */
+        @Nullable
+        public final short[] bandLevels;
+        public final boolean isBassBoostEnabled;
+        /** From 0 to 1000. */
+        public final short bassBoostStrength;
+        public final boolean isLoudnessEnhancerEnabled;
+        /** Gain in millibels. */
+        public final int loudnessGain;
+
+        public Settings(
+                boolean isEqualizerEnabled,
+                int equalizerPreset,
+                @Nullable short[] bandLevels,
+                boolean isBassBoostEnabled,
+                short bassBoostStrength,
+                boolean isLoudnessEnhancerEnabled,
+                int loudnessGain
+        ) {
+            this.isEqualizerEnabled = isEqualizerEnabled;
+            this.equalizerPreset = equalizerPreset;
+            this.bandLevels = bandLevels;
+            this.isBassBoostEnabled = isBassBoostEnabled;
+            this.bassBoostStrength = bassBoostStrength;
+            this.isLoudnessEnhancerEnabled = isLoudnessEnhancerEnabled;
+            this.loudnessGain = loudnessGain;
+        }
+
+        @NonNull
+        public Map<String, Object> toMap() {
+            List<Integer> levels = new ArrayList<>();
+            if (bandLevels != null) {
+                for (short level : bandLevels) {
+                    levels.add((int) level);
+                }
+            }
+
+            Map<String, Object> map = new HashMap<>();
+            map.put("equalizerEnabled", isEqualizerEnabled);
+            map.put("equalizerPreset", equalizerPreset);
+            map.put("bandLevels", levels);
+            map.put("bassBoostEnabled", isBassBoostEnabled);
+            map.put("bassBoostStrength", (int) bassBoostStrength);
+            map.put("loudnessEnhancerEnabled", isLoudnessEnhancerEnabled);
+            map.put("loudnessGain", loudnessGain);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Plays the audio of an {@link AudioPlayer}.
+ *
+ * The {@link AudioPlayer} owns the state machine, audio focus, seek
+ * coalescing and position reporting, and only asks its engine to do what
+ * the state machine allows. An engine therefore doesn't have to guard
+ * against calls in the wrong state, except where noted.
+ *
+ * Engines report asynchronous events to the {@link Callback} that they were
+ * created with, on the main thread. After {@link #reset()} or
+ * {@link #release()}, no events of earlier audio may be reported.
+ *
+ * Engines are used on the main thread, except for {@link #currentPosition()},
+ * {@link #duration()} and {@link #playbackSpeed()}, which the position
+ * reporter also calls on its own thread.
+ */
+public interface AudioEngine {
+
+    /**
+     * Starts loading the given data source, which replaces any current
+     * audio. Completion is reported with {@link Callback#onPrepared()}, or
+     * failure with {@link Callback#onError(int, int)}.
+     */
+    void load(@NonNull String dataSource) throws IOException;
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    /**
+     * Starts a seek. Completion is reported with {@link Callback#onSeekComplete()}.
+     *
+     * @param isPrecise false to allow a faster seek to a nearby position,
+     *                  only used if {@link #supportsFastSeek()}
+     */
+    void seekTo(int positionInMillis, boolean isPrecise);
+
+    boolean supportsFastSeek();
+
+    /** Current playhead position. Only called while audio is ready. */
+    int currentPosition();
+
+    /** Length of the audio. Only called while audio is ready. */
+    int duration();
+
+    /** Playback speed, where 1 is normal speed. Only called while audio is ready. */
+    float playbackSpeed();
+
+    /** The audio session that effects and visualizers attach to. */
+    int audioSessionId();
+
+    void setVolume(float volume);
+
+    /**
+     * Estimated download bitrate in bits per second, or -1 if the engine
+     * doesn't measure it.
+     */
+    long bitrateEstimate();
+
+    /**
+     * Drops the current audio, but keeps the engine ready to load more.
+     * May be called in any state.
+     */
+    void reset();
+
+    /**
+     * Frees all resources. The engine can't be used afterwards.
+     */
+    void release();
+
+    /**
+     * Creates engines for {@link AudioPlayer}s, one per player.
+     */
+    interface Factory {
+        @NonNull
+        AudioEngine create(@NonNull Callback callback);
+    }
+
+    /**
+     * Events of the audio that an engine plays. Codes in
+     * {@link #onError(int, int)} are those of {@code MediaPlayer.OnErrorListener}.
+     */
+    interface Callback {
+        void onPrepared();
+
+        void onBufferingUpdate(int percent);
+
+        /**
+         * The engine ran out of buffered audio and waits for more, or has
+         * enough again. Reported whether or not audio is playing.
+         */
+        void onBufferingChanged(boolean isBuffering);
+
+        void onSeekComplete();
+
+        void onCompletion();
+
+        void onError(int what, int extra);
+    }
+}
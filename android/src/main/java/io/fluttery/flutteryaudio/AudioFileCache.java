@@ -0,0 +1,350 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size-bounded, least recently used cache of audio files on disk.
+ *
+ * Every url maps to an entry made of a data file and a small metadata file.
+ * The data file holds a contiguous prefix of the audio, starting at byte 0,
+ * so an entry can be partially cached and completed later. The metadata
+ * file holds the total length of the audio once it is known. An entry is
+ * complete when its data file is as long as the total length.
+ *
+ * Only one writer may append to an entry at a time. A writer that only
+ * works ahead, like a prefetch, checks {@link #isWriterWanted(Entry)} and
+ * gives the entry up when the player asks for it with
+ * {@link #acquireWriter(Entry, long)}. When the cache grows beyond its size
+ * limit, the least recently used entries that are not being written are
+ * deleted.
+ */
+public class AudioFileCache {
+
+    private static final String TAG = "AudioFileCache";
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+
+    private final File directory;
+    private final long maxSizeInBytes;
+    // Guarded by keysBeingWritten.
+    private final Set<String> keysBeingWritten = new HashSet<>();
+    private final Set<String> keysWanted = new HashSet<>();
+
+    public AudioFileCache(@NonNull File directory, long maxSizeInBytes) {
+        this.directory = directory;
+        this.maxSizeInBytes = maxSizeInBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Failed to create cache directory: " + directory);
+        }
+    }
+
+    public long maxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    @NonNull
+    public Entry entryFor(@NonNull String url) {
+        String key = keyFor(url);
+        return new Entry(key, new File(directory, key + DATA_SUFFIX), new File(directory, key + META_SUFFIX));
+    }
+
+    /**
+     * Claims the right to append to the given entry.
+     *
+     * @return false if another writer already holds the entry
+     */
+    public boolean tryAcquireWriter(@NonNull Entry entry) {
+        synchronized (keysBeingWritten) {
+            return keysBeingWritten.add(entry.key);
+        }
+    }
+
+    /**
+     * Claims the right to append to the given entry, asking its current
+     * writer to give it up, and waits up to {@code timeoutMillis} for that.
+     *
+     * @return false if the entry is still held after the timeout
+     */
+    public boolean acquireWriter(@NonNull Entry entry, long timeoutMillis) {
+        synchronized (keysBeingWritten) {
+            if (keysBeingWritten.add(entry.key)) {
+                return true;
+            }
+
+            keysWanted.add(entry.key);
+            try {
+                long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                long remainingMillis = timeoutMillis;
+                while (remainingMillis > 0) {
+                    keysBeingWritten.wait(remainingMillis);
+                    if (keysBeingWritten.add(entry.key)) {
+                        return true;
+                    }
+                    remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                keysWanted.remove(entry.key);
+            }
+        }
+    }
+
+    /**
+     * True if someone waits in {@link #acquireWriter(Entry, long)} for the
+     * writer of the given entry to release it.
+     */
+    public boolean isWriterWanted(@NonNull Entry entry) {
+        synchronized (keysBeingWritten) {
+            return keysWanted.contains(entry.key);
+        }
+    }
+
+    public void releaseWriter(@NonNull Entry entry) {
+        synchronized (keysBeingWritten) {
+            keysBeingWritten.remove(entry.key);
+            keysBeingWritten.notifyAll();
+        }
+        trim();
+    }
+
+    /**
+     * Deletes least recently used entries until the cache fits within its
+     * size limit.
+     */
+    public void trim() {
+        File[] dataFiles = directory.listFiles();
+        if (dataFiles == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        for (File file : dataFiles) {
+            totalSize += file.length();
+        }
+        if (totalSize <= maxSizeInBytes) {
+            return;
+        }
+
+        Arrays.sort(dataFiles, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        synchronized (keysBeingWritten) {
+            for (File file : dataFiles) {
+                if (totalSize <= maxSizeInBytes) {
+                    break;
+                }
+
+                String name = file.getName();
+                if (!name.endsWith(DATA_SUFFIX)) {
+                    continue;
+                }
+                String key = name.substring(0, name.length() - DATA_SUFFIX.length());
+                if (keysBeingWritten.contains(key)) {
+                    continue;
+                }
+
+                File metaFile = new File(directory, key + META_SUFFIX);
+                long entrySize = file.length() + metaFile.length();
+                if (file.delete()) {
+                    metaFile.delete();
+                    totalSize -= entrySize;
+                    AudioLog.d(TAG, "Evicted cache entry: ", key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes every entry that isn't being written.
+     */
+    public void clear() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        synchronized (keysBeingWritten) {
+            for (File file : files) {
+                String name = file.getName();
+                int suffixStart = name.lastIndexOf('.');
+                String key = suffixStart > 0 ? name.substring(0, suffixStart) : name;
+                if (!keysBeingWritten.contains(key)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hash of {@code url} that is safe to use as a file name.
+     */
+    @NonNull
+    static String keyFor(@NonNull String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16));
+                key.append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both are guaranteed to be available on Android.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The cached bytes and metadata of a single url.
+     */
+    public static class Entry {
+
+        private final String key;
+        private final File dataFile;
+        private final File metaFile;
+
+        private Entry(@NonNull String key, @NonNull File dataFile, @NonNull File metaFile) {
+            this.key = key;
+            this.dataFile = dataFile;
+            this.metaFile = metaFile;
+        }
+
+        /**
+         * Number of bytes, from the start of the audio, that are cached.
+         */
+        public long cachedLength() {
+            return dataFile.length();
+        }
+
+        /**
+         * Total length of the audio, or -1 if it isn't known yet.
+         */
+        public long totalLength() {
+            String meta = readMeta();
+            if (meta == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(meta.split("\n", 2)[0]);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Content type reported by the server, or null if it isn't known.
+         */
+        @Nullable
+        public String contentType() {
+            String meta = readMeta();
+            if (meta == null) {
+                return null;
+            }
+            String[] lines = meta.split("\n", 2);
+            return lines.length > 1 && !lines[1].isEmpty() ? lines[1] : null;
+        }
+
+        public boolean isComplete() {
+            long totalLength = totalLength();
+            return totalLength >= 0 && cachedLength() >= totalLength;
+        }
+
+        /**
+         * Marks the entry as used so that it's evicted last.
+         */
+        public void touch() {
+            dataFile.setLastModified(System.currentTimeMillis());
+        }
+
+        public void writeMeta(long totalLength, @Nullable String contentType) throws IOException {
+            FileOutputStream out = new FileOutputStream(metaFile);
+            try {
+                out.write((totalLength + "\n" + (contentType != null ? contentType : "")).getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Opens the cached bytes for reading, starting at {@code offset}.
+         */
+        @NonNull
+        public InputStream openRead(long offset) throws IOException {
+            FileInputStream in = new FileInputStream(dataFile);
+            long skipped = 0;
+            while (skipped < offset) {
+                long skippedNow = in.skip(offset - skipped);
+                if (skippedNow <= 0) {
+                    in.close();
+                    throw new IOException("Failed to skip to offset " + offset + " in " + dataFile);
+                }
+                skipped += skippedNow;
+            }
+            return in;
+        }
+
+        /**
+         * Opens the entry for appending. Requires holding the writer, see
+         * {@link AudioFileCache#tryAcquireWriter(Entry)}.
+         *
+         * @param truncate true to discard the cached bytes and start over
+         */
+        @NonNull
+        public OutputStream openAppend(boolean truncate) throws IOException {
+            return new FileOutputStream(dataFile, !truncate);
+        }
+
+        @Nullable
+        private String readMeta() {
+            if (!metaFile.isFile()) {
+                return null;
+            }
+            try {
+                FileInputStream in = new FileInputStream(metaFile);
+                try {
+                    byte[] bytes = new byte[(int) metaFile.length()];
+                    int read = 0;
+                    while (read < bytes.length) {
+                        int readNow = in.read(bytes, read, bytes.length - read);
+                        if (readNow < 0) {
+                            break;
+                        }
+                        read += readNow;
+                    }
+                    return new String(bytes, 0, read, "UTF-8");
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
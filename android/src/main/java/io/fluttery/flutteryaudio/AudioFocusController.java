@@ -0,0 +1,277 @@
+package io.fluttery.flutteryaudio;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AudioAttributes;
+import android.media.AudioFocusRequest;
+import android.media.AudioManager;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Holds audio focus on behalf of all players that manage focus, and reacts
+ * when other apps take it, or when the audio output becomes noisy.
+ *
+ * Focus belongs to the app, not to a single player, so there is one shared
+ * controller. It requests focus when the first player wants to play and
+ * abandons it when the last one lets go. Players of the same app never
+ * take focus from each other.
+ *
+ * <ul>
+ *   <li>Focus is requested before playback starts. If it's denied, playback
+ *   doesn't start.</li>
+ *   <li>On a transient loss, e.g., a notification sound or a navigation
+ *   prompt, playing players pause, or are ducked if the other app allows
+ *   it. When focus returns, the volume is restored and the paused players
+ *   resume if their clients still want it.</li>
+ *   <li>On a permanent loss, e.g., another music app started, the players
+ *   are suspended, which releases their decoder and network resources. They
+ *   resume from the same position when their clients play again.</li>
+ *   <li>When headphones are unplugged, playback pauses.</li>
+ * </ul>
+ *
+ * All methods must be called on the main thread, which is also where the
+ * focus and noisy callbacks arrive.
+ */
+public class AudioFocusController implements AudioManager.OnAudioFocusChangeListener {
+
+    private static final String TAG = "AudioFocusController";
+
+    private static AudioFocusController shared;
+
+    /**
+     * The controller that all players of the app share.
+     */
+    @NonNull
+    public static AudioFocusController shared(@NonNull Context context) {
+        if (shared == null) {
+            shared = new AudioFocusController(context);
+        }
+        return shared;
+    }
+
+    private final Context context;
+    private final AudioManager audioManager;
+    private AudioFocusRequest focusRequest;
+
+    // Players that requested focus and haven't given it back, in the order
+    // in which they requested it.
+    private final Set<Target> holders = new LinkedHashSet<>();
+    private final Set<Target> pausedByTransientLoss = new LinkedHashSet<>();
+    private boolean hasFocus = false;
+    private boolean isNoisyReceiverRegistered = false;
+
+    private final BroadcastReceiver noisyReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(intent.getAction())) {
+                AudioLog.d(TAG, "Audio is becoming noisy. Pausing.");
+                for (Target holder : snapshotOf(holders)) {
+                    if (holder.isPlaying()) {
+                        holder.pause();
+                    }
+                }
+            }
+        }
+    };
+
+    AudioFocusController(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        this.audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+    }
+
+    /**
+     * True while the app holds focus for at least one player.
+     */
+    public boolean hasFocus() {
+        return hasFocus;
+    }
+
+    /**
+     * Stops managing focus for the given player, giving focus back if it
+     * was the last player that held it.
+     */
+    void detach(@NonNull Target target) {
+        abandonFocus(target);
+    }
+
+    /**
+     * Requests focus for the given player, unless the app already holds it.
+     *
+     * @return true if playback may start
+     */
+    boolean requestFocus(@NonNull Target target) {
+        pausedByTransientLoss.remove(target);
+        if (hasFocus) {
+            holders.add(target);
+            return true;
+        }
+
+        int result;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            result = audioManager.requestAudioFocus(focusRequest());
+        } else {
+            result = requestStreamFocus();
+        }
+
+        hasFocus = result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+        if (hasFocus) {
+            holders.add(target);
+            registerNoisyReceiver();
+        } else {
+            Log.w(TAG, "Audio focus was denied.");
+        }
+        return hasFocus;
+    }
+
+    /**
+     * Gives the given player's share of focus back, e.g., because its
+     * playback stopped. Focus is abandoned once no player holds it.
+     */
+    void abandonFocus(@NonNull Target target) {
+        holders.remove(target);
+        pausedByTransientLoss.remove(target);
+        if (holders.isEmpty()) {
+            abandonFocus();
+        }
+    }
+
+    private void abandonFocus() {
+        unregisterNoisyReceiver();
+        if (!hasFocus) {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            audioManager.abandonAudioFocusRequest(focusRequest());
+        } else {
+            abandonStreamFocus();
+        }
+        hasFocus = false;
+    }
+
+    // Focus requests only exist since Oreo. Before that, focus is requested
+    // and abandoned for the listener and a stream type.
+    @SuppressWarnings("deprecation")
+    private int requestStreamFocus() {
+        return audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void abandonStreamFocus() {
+        audioManager.abandonAudioFocus(this);
+    }
+
+    @Override
+    public void onAudioFocusChange(int focusChange) {
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                AudioLog.d(TAG, "Gained audio focus.");
+                hasFocus = true;
+                for (Target holder : snapshotOf(holders)) {
+                    holder.setDucked(false);
+                }
+                for (Target paused : snapshotOf(pausedByTransientLoss)) {
+                    pausedByTransientLoss.remove(paused);
+                    if (paused.isPlaybackDesired()) {
+                        paused.resume();
+                    }
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                AudioLog.d(TAG, "Transient loss of audio focus. Ducking.");
+                for (Target holder : snapshotOf(holders)) {
+                    holder.setDucked(true);
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                AudioLog.d(TAG, "Transient loss of audio focus. Pausing.");
+                for (Target holder : snapshotOf(holders)) {
+                    if (holder.isPlaying()) {
+                        pausedByTransientLoss.add(holder);
+                        holder.pauseTransiently();
+                    }
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS:
+                AudioLog.d(TAG, "Permanent loss of audio focus. Suspending.");
+                // Focus won't come back on its own, so stop listening for it.
+                List<Target> lostHolders = snapshotOf(holders);
+                holders.clear();
+                pausedByTransientLoss.clear();
+                abandonFocus();
+                for (Target holder : lostHolders) {
+                    holder.suspend();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Targets react by calling back into this controller, so they're
+    // notified from a copy.
+    @NonNull
+    private static List<Target> snapshotOf(@NonNull Set<Target> targets) {
+        return new ArrayList<>(targets);
+    }
+
+    private void registerNoisyReceiver() {
+        if (!isNoisyReceiverRegistered) {
+            context.registerReceiver(noisyReceiver, new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY));
+            isNoisyReceiverRegistered = true;
+        }
+    }
+
+    private void unregisterNoisyReceiver() {
+        if (isNoisyReceiverRegistered) {
+            context.unregisterReceiver(noisyReceiver);
+            isNoisyReceiverRegistered = false;
+        }
+    }
+
+    @NonNull
+    private AudioFocusRequest focusRequest() {
+        if (focusRequest == null) {
+            focusRequest = new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                            .build())
+                    .setOnAudioFocusChangeListener(this)
+                    .build();
+        }
+        return focusRequest;
+    }
+
+    /**
+     * A player whose focus is managed.
+     */
+    interface Target {
+        boolean isPlaying();
+
+        boolean isPlaybackDesired();
+
+        /** Pauses because the user wants it. */
+        void pause();
+
+        /** Pauses without changing whether the client wants playback. */
+        void pauseTransiently();
+
+        /** Plays again after {@link #pauseTransiently()}. */
+        void resume();
+
+        /** Releases decoder and network resources, remembering the position. */
+        void suspend();
+
+        void setDucked(boolean isDucked);
+    }
+}
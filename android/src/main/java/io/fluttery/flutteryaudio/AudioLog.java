@@ -0,0 +1,140 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Debug logging and event tracing for the plugin.
+ *
+ * Debug logging is off unless the {@link #TAG} tag is loggable at debug
+ * level when the plugin is loaded, e.g., after
+ * {@code adb shell setprop log.tag.FlutteryAudio DEBUG} and an app restart.
+ * The level is resolved once, into {@link #DEBUG}, and every debug method
+ * checks it before it builds a message. Values are passed separately from
+ * the message, with overloads for primitives, so that a disabled call
+ * doesn't concatenate, box or otherwise allocate. Messages that are costly
+ * to build go through a {@link MessageSupplier}, or behind an explicit
+ * {@code if (AudioLog.DEBUG)}.
+ *
+ * Warnings and errors aren't gated and go straight to {@code Log}.
+ *
+ * Independently of the log level, {@link #trace(String, String, long)}
+ * records structured events into a fixed-size ring buffer, without
+ * allocating, so that the most recent events can be dumped with
+ * {@link #dumpTrace()} when something went wrong, even in release builds.
+ */
+public final class AudioLog {
+
+    public static final String TAG = "FlutteryAudio";
+
+    /** True if debug messages are logged. Resolved once, when this class loads. */
+    public static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    public static final int TRACE_CAPACITY = 256;
+
+    // Ring buffer of trace events, guarded by TRACE_LOCK. Slots are reused,
+    // so recording an event only writes primitives and references.
+    private static final Object TRACE_LOCK = new Object();
+    private static final long[] traceTimes = new long[TRACE_CAPACITY];
+    private static final String[] traceTags = new String[TRACE_CAPACITY];
+    private static final String[] traceEvents = new String[TRACE_CAPACITY];
+    private static final long[] traceValues = new long[TRACE_CAPACITY];
+    private static long traceCount = 0;
+
+    private AudioLog() {}
+
+    public static void d(@NonNull String tag, @NonNull String message) {
+        if (DEBUG) {
+            Log.d(tag, message);
+        }
+    }
+
+    /** Logs {@code message} followed by {@code value}. */
+    public static void d(@NonNull String tag, @NonNull String message, long value) {
+        if (DEBUG) {
+            Log.d(tag, message + value);
+        }
+    }
+
+    /** Logs {@code message} followed by {@code value}. */
+    public static void d(@NonNull String tag, @NonNull String message, Object value) {
+        if (DEBUG) {
+            Log.d(tag, message + value);
+        }
+    }
+
+    /**
+     * Logs the message of {@code supplier}, which is only built if debug
+     * logging is on. Pass a supplier that is allocated once, or check
+     * {@link #DEBUG} before allocating one.
+     */
+    public static void d(@NonNull String tag, @NonNull MessageSupplier supplier) {
+        if (DEBUG) {
+            Log.d(tag, supplier.message());
+        }
+    }
+
+    /**
+     * Records an event in the trace ring buffer, replacing the oldest event
+     * once the buffer is full.
+     *
+     * @param event a constant, or a string that exists anyway, so that
+     *              recording doesn't allocate
+     */
+    public static void trace(@NonNull String tag, @NonNull String event, long value) {
+        long now = System.nanoTime();
+        synchronized (TRACE_LOCK) {
+            int slot = (int) (traceCount % TRACE_CAPACITY);
+            traceTimes[slot] = now;
+            traceTags[slot] = tag;
+            traceEvents[slot] = event;
+            traceValues[slot] = value;
+            ++traceCount;
+        }
+    }
+
+    /**
+     * The traced events, oldest first. Each is a map with the
+     * {@code System.nanoTime()} of the event as {@code nanoTime}, and its
+     * {@code tag}, {@code event} and {@code value}.
+     */
+    @NonNull
+    public static List<Map<String, Object>> dumpTrace() {
+        synchronized (TRACE_LOCK) {
+            int size = (int) Math.min(traceCount, TRACE_CAPACITY);
+            List<Map<String, Object>> events = new ArrayList<>(size);
+            for (long i = traceCount - size; i < traceCount; ++i) {
+                int slot = (int) (i % TRACE_CAPACITY);
+                Map<String, Object> event = new HashMap<>();
+                event.put("nanoTime", traceTimes[slot]);
+                event.put("tag", traceTags[slot]);
+                event.put("event", traceEvents[slot]);
+                event.put("value", traceValues[slot]);
+                events.add(event);
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Writes the traced events to the log, whatever the log level.
+     */
+    public static void logTrace() {
+        for (Map<String, Object> event : dumpTrace()) {
+            Log.i(TAG, event.get("nanoTime") + " " + event.get("tag") + " " + event.get("event") + " " + event.get("value"));
+        }
+    }
+
+    /**
+     * Builds a log message on demand.
+     */
+    public interface MessageSupplier {
+        @NonNull
+        String message();
+    }
+}
@@ -1,56 +1,200 @@
 package io.fluttery.flutteryaudio;
 
 import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
+import io.fluttery.flutteryaudio.AudioPlayerStateMachine.Command;
+import io.fluttery.flutteryaudio.AudioPlayerStateMachine.State;
+
 /**
  * Android side of AudioPlayer for the fluttery_audio plugin.
  *
+ * Commands and engine callbacks run on the main thread. A command checks
+ * and applies its state transition, then runs its side effects, without
+ * another command or callback running in between.
+ *
  * Android docs for the MediaPlayer state machine:
  * https://developer.android.com/reference/android/media/MediaPlayer.html
  */
 public class AudioPlayer {
 
-    public static int playerId = -1;
-
     private static final String TAG = "AudioPlayer";
 
+    private static final float DUCKED_VOLUME = 0.2f;
+
+    // States in which the audio won't play on without another command.
+    private static final int RESTING_STATES = AudioPlayerStateMachine.mask(
+            State.idle, State.stopped, State.completed, State.error);
+
+    private final MediaPlayerPool mediaPlayerPool;
     private final Set<Listener> listeners = new CopyOnWriteArraySet<>();
+    private final MediaPlayerCallbacks mediaPlayerCallbacks = new MediaPlayerCallbacks();
+    private final NextTrackPipeline<MediaPlayer> nextTrackPipeline;
     private MediaPlayer mediaPlayer;
-    private State state;
-    private boolean isPlaybackDesired = false;
-    private Handler playbackPollHandler;
-    private boolean isPollingPlayback = false;
+    private final EngineCallbacks engineCallbacks = new EngineCallbacks();
+    // Plays through mediaPlayer, with gapless handoff to the next track.
+    private final MediaPlayerEngine mediaPlayerEngine = new MediaPlayerEngine();
+    // Created on the first low latency load.
+    private ClipEngine clipEngine;
+    // Plays standard loads instead of the MediaPlayer engine, if set.
+    private AudioEngine.Factory streamingEngineFactory;
+    private AudioEngine streamingEngine;
+    private AudioEngine.Factory streamingEngineOrigin;
+    // The engine of the current audio. Read by the position reporting thread.
+    private volatile AudioEngine engine = mediaPlayerEngine;
+    private LoadHint loadHint = LoadHint.standard;
+    private final AudioPlayerStateMachine stateMachine = new AudioPlayerStateMachine();
+    private volatile boolean isPlaybackDesired = false;
+    private String currentUrl;
+    // Position to seek to once the current audio is prepared, or 0.
+    private int positionToRestore = 0;
+    private boolean isDucked = false;
+    private AudioFocusController audioFocus;
+    private final FocusTarget focusTarget = new FocusTarget();
+    private final PlaybackPositionReporter positionReporter;
+    private final SeekCoalescer seekCoalescer = new SeekCoalescer(new EngineSeekBackend(), new SeekCallback());
+    private final BufferingTelemetry telemetry = new BufferingTelemetry(new TelemetryCallback());
+    private final ErrorRecovery recovery = new ErrorRecovery(new RecoveryCallback());
+    // Created when effects are first used.
+    private AudioEffects effects;
+    // Position at which the current stall started, or -1 if not stalled.
+    private int stallPosition = -1;
+    private final PlaybackMetrics metrics = PlaybackMetrics.shared();
+    // System.nanoTime() of the current load, of a pending play request or -1, and of the current seek session.
+    private long loadStartedNanos = 0;
+    private long playRequestedNanos = -1;
+    private long seekStartedNanos = 0;
+    private DataSourceResolver dataSourceResolver;
+
+    /**
+     * Creates a player that takes its {@code MediaPlayer}s from the
+     * {@link MediaPlayerPool#shared() shared pool}.
+     */
+    public AudioPlayer() {
+        this(MediaPlayerPool.shared());
+    }
+
+    public AudioPlayer(@NonNull MediaPlayerPool mediaPlayerPool) {
+        this(mediaPlayerPool.obtain(), mediaPlayerPool);
+    }
 
+    /**
+     * Creates a player that starts with the given {@code MediaPlayer}. It's
+     * recycled into the shared pool when it's no longer needed.
+     */
     public AudioPlayer(@NonNull MediaPlayer mediaPlayer) {
-        AudioPlayer.playerId = mediaPlayer.getAudioSessionId();
-        this.mediaPlayer = mediaPlayer;
-        this.state = State.idle;
+        this(mediaPlayer, MediaPlayerPool.shared());
+    }
 
-        HandlerThread handlerThread = new HandlerThread("AudioPlayer");
-        handlerThread.start();
-        playbackPollHandler = new Handler(handlerThread.getLooper());
+    private AudioPlayer(@NonNull MediaPlayer mediaPlayer, @NonNull MediaPlayerPool mediaPlayerPool) {
+        this.mediaPlayer = mediaPlayer;
+        this.mediaPlayerPool = mediaPlayerPool;
+
+        // All players share the pool's thread, but each one posts through its
+        // own Handler so that releasing this player only cancels its own work.
+        mediaPlayerPool.retain();
+        positionReporter = new PlaybackPositionReporter(
+                new Handler(mediaPlayerPool.looper()),
+                new EnginePositionSource(),
+                new PositionReporterCallback()
+        );
+
+        nextTrackPipeline = new NextTrackPipeline<>(new NextMediaPlayerBackend());
+        setCallbacks(mediaPlayer);
+    }
 
-        MediaPlayerCallbacks mediaPlayerCallbacks = new MediaPlayerCallbacks();
+    private void setCallbacks(@NonNull MediaPlayer mediaPlayer) {
         mediaPlayer.setOnPreparedListener(mediaPlayerCallbacks);
         mediaPlayer.setOnBufferingUpdateListener(mediaPlayerCallbacks);
         mediaPlayer.setOnSeekCompleteListener(mediaPlayerCallbacks);
         mediaPlayer.setOnCompletionListener(mediaPlayerCallbacks);
         mediaPlayer.setOnErrorListener(mediaPlayerCallbacks);
+        mediaPlayer.setOnInfoListener(mediaPlayerCallbacks);
     }
 
+    /**
+     * Releases the player. Its {@code MediaPlayer}s go back to the pool, and
+     * the pool's thread is quit if this was its last player.
+     */
     public void release() {
-        this.mediaPlayer.release();
+        setAudioFocusController(null);
+        recovery.cancel();
+        if (this.effects != null) {
+            this.effects.release();
+        }
+        telemetry.endSession();
+        this.nextTrackPipeline.clear();
+        if (this.clipEngine != null) {
+            this.clipEngine.release();
+        }
+        if (this.streamingEngine != null) {
+            this.streamingEngine.release();
+        }
+        // Stop position reporting before the MediaPlayer goes back to the
+        // pool, so that a tick that is already queued on the pool's thread
+        // doesn't read a player that is being reset or belongs to another
+        // AudioPlayer.
+        this.positionReporter.release();
         this.listeners.clear();
-        this.playbackPollHandler.removeCallbacks(null);
+        this.mediaPlayerPool.recycle(this.mediaPlayer);
+        this.mediaPlayerPool.release();
+    }
+
+    /**
+     * Sets where urls are translated into the data source that is actually
+     * handed to the {@code MediaPlayer}, e.g., a caching proxy. Urls reported
+     * to listeners are never translated.
+     */
+    public void setDataSourceResolver(@Nullable DataSourceResolver dataSourceResolver) {
+        this.dataSourceResolver = dataSourceResolver;
+    }
+
+    @NonNull
+    private String dataSourceFor(@NonNull String url) {
+        return dataSourceResolver != null ? dataSourceResolver.resolve(url) : url;
+    }
+
+    /**
+     * Sets the factory of the engine that plays {@link LoadHint#standard}
+     * loads, e.g., {@link ExoPlayerEngine.Factory}, or goes back to
+     * {@code MediaPlayer} if {@code factory} is null. Takes effect with the
+     * next load.
+     *
+     * Gapless playback with {@link #enqueueNext(String)} is only available
+     * with {@code MediaPlayer}.
+     */
+    public void setStreamingEngineFactory(@Nullable AudioEngine.Factory factory) {
+        streamingEngineFactory = factory;
+    }
+
+    /**
+     * Manages audio focus for this player with the given controller, or stops
+     * managing it if {@code controller} is null. Players share
+     * {@link AudioFocusController#shared}, so they don't take focus
+     * from each other. See {@link AudioFocusController} for how the player
+     * reacts to focus changes.
+     */
+    public void setAudioFocusController(@Nullable AudioFocusController controller) {
+        if (audioFocus != null) {
+            audioFocus.detach(focusTarget);
+        }
+        audioFocus = controller;
+        if (audioFocus != null) {
+            if (isPlaying() && !audioFocus.requestFocus(focusTarget)) {
+                pause();
+            }
+        }
     }
 
     public void addListener(@NonNull Listener listener) {
@@ -62,192 +206,977 @@ public class AudioPlayer {
     }
 
     public void load(String url) {
-        Log.d(TAG, "load()");
+        load(url, LoadHint.standard);
+    }
+
+    /**
+     * Loads the given url with the engine that suits the hint. Urls that the
+     * hinted engine can't play are loaded with the standard engine.
+     */
+    public void load(String url, @NonNull LoadHint hint) {
+        AudioLog.d(TAG, "load() - hint: ", hint);
+        AudioLog.trace(TAG, "load", hint.ordinal());
+        recovery.cancel();
+        positionToRestore = 0;
+        loadHint = hint;
+        loadUrl(url);
+    }
+
+    private void loadUrl(String url) {
+        currentUrl = url;
         try {
             // Stop polling the playhead position in case we were already
             // playing some audio.
             stopPlaybackPolling();
+            seekCoalescer.reset();
+            telemetry.onLoadStarted(url);
+            loadStartedNanos = System.nanoTime();
+            switchEngine(engineFor(url, loadHint));
+            // Before loading, so that a failed load fails from the loading
+            // state, the same way as a failed retry.
+            stateMachine.apply(Command.load);
+
+            // If the requested audio is the queued next track then it's
+            // already loading, or even ready, in the look-ahead player.
+            boolean isQueuedTrackPrepared = nextTrackPipeline.state() != NextTrackPipeline.State.preparing;
+            MediaPlayer queuedPlayer = engine == mediaPlayerEngine ? nextTrackPipeline.takeIfQueued(url) : null;
+            if (queuedPlayer != null) {
+                AudioLog.d(TAG, "Using the queued next track.");
+                MediaPlayer previousPlayer = mediaPlayer;
+                mediaPlayer = queuedPlayer;
+                mediaPlayerPool.recycle(previousPlayer);
+            } else {
+                loadWithCurrentEngine();
+            }
 
-            mediaPlayer.reset();
-            mediaPlayer.setDataSource(url);
-            mediaPlayer.prepareAsync();
-
-            state = State.loading;
             for (Listener listener : listeners) {
                 listener.onAudioLoading();
             }
+
+            if (queuedPlayer != null && isQueuedTrackPrepared) {
+                mediaPlayerCallbacks.onPrepared(mediaPlayer);
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            // E.g., a file that doesn't exist. Classified, reported and
+            // retried like an error of the MediaPlayer.
+            Log.w(TAG, "Failed to load: " + e.getMessage());
+            engineCallbacks.onError(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+        }
+    }
+
+    /**
+     * Loads the current url, falling back to the {@code MediaPlayer} engine
+     * if another engine can't load it.
+     */
+    private void loadWithCurrentEngine() throws IOException {
+        try {
+            engine.load(dataSourceFor(currentUrl));
+        } catch (IOException e) {
+            if (engine == mediaPlayerEngine) {
+                throw e;
+            }
+            Log.w(TAG, "Failed to load with " + engine.getClass().getSimpleName() + ": " + e.getMessage());
+            switchEngine(mediaPlayerEngine);
+            engine.load(dataSourceFor(currentUrl));
+        }
+    }
+
+    @NonNull
+    private AudioEngine engineFor(@NonNull String url, @NonNull LoadHint hint) {
+        if (hint == LoadHint.lowLatency && ClipEngine.canPlay(url)) {
+            if (clipEngine == null) {
+                clipEngine = new ClipEngine(DecodedClipCache.shared(), mediaPlayer.getAudioSessionId(), engineCallbacks);
+            }
+            return clipEngine;
+        }
+
+        if (streamingEngine != null && streamingEngineOrigin != streamingEngineFactory) {
+            // The factory changed since the streaming engine was created.
+            if (engine == streamingEngine) {
+                switchEngine(mediaPlayerEngine);
+            }
+            streamingEngine.release();
+            streamingEngine = null;
+        }
+        if (streamingEngineFactory != null) {
+            if (streamingEngine == null) {
+                streamingEngine = streamingEngineFactory.create(engineCallbacks);
+                streamingEngineOrigin = streamingEngineFactory;
+            }
+            return streamingEngine;
         }
+        return mediaPlayerEngine;
+    }
+
+    private void switchEngine(@NonNull AudioEngine newEngine) {
+        if (newEngine != engine) {
+            if (AudioLog.DEBUG) {
+                AudioLog.d(TAG, "Switching to " + newEngine.getClass().getSimpleName());
+            }
+            engine.reset();
+            engine = newEngine;
+        }
+    }
+
+    /**
+     * Prepares the given url in a second {@code MediaPlayer} while the current
+     * audio plays so that playback continues with it, without a gap, when the
+     * current audio completes.
+     *
+     * Only one track is queued at a time. Enqueuing a url replaces the
+     * previously queued one. Loading the queued url with {@link #load(String)}
+     * uses the prepared player instead of starting from scratch.
+     */
+    public void enqueueNext(@NonNull String url) {
+        AudioLog.d(TAG, "enqueueNext(): ", url);
+        if (engine != mediaPlayerEngine) {
+            AudioLog.d(TAG, "The current engine can't queue a next track. It will be loaded on demand.");
+            return;
+        }
+        nextTrackPipeline.enqueue(url);
+    }
+
+    public void clearNext() {
+        AudioLog.d(TAG, "clearNext()");
+        nextTrackPipeline.clear();
+    }
+
+    /**
+     * The audio session ID of the underlying {@code MediaPlayer}, which is
+     * needed to attach audio effects and visualizers to this player.
+     */
+    public int audioSessionId() {
+        return engine.audioSessionId();
+    }
+
+    /**
+     * The audio effects of this player, which follow it into whichever audio
+     * session it plays in, and are released with it.
+     */
+    @NonNull
+    public AudioEffects effects() {
+        if (effects == null) {
+            effects = new AudioEffects();
+            effects.attach(audioSessionId());
+        }
+        return effects;
+    }
+
+    /**
+     * The url that was loaded last, or that playback advanced to, as given by
+     * the client, i.e., before it was resolved to a data source.
+     */
+    @Nullable
+    public String currentUrl() {
+        return currentUrl;
     }
 
     public boolean isAudioReady() {
-        return Arrays.asList(
-                State.paused,
-                State.playing,
-                State.completed
-        ).indexOf(state) >= 0;
+        return stateMachine.isIn(AudioPlayerStateMachine.READY_STATES);
     }
 
     public int audioLength() {
-        return mediaPlayer.getDuration();
+        return engine.duration();
     }
 
-    public void play() {
-        Log.d(TAG, "play()");
+    /**
+     * Starts playing. While audio is loading, playback starts as soon as the
+     * audio is ready.
+     *
+     * @return null if the command was accepted, or the reason why it was
+     *         rejected in the current state
+     */
+    @Nullable
+    public String play() {
+        AudioLog.d(TAG, "play()");
+        AudioLog.trace(TAG, "play", 0);
         isPlaybackDesired = true;
+        telemetry.onPlayRequested();
+        if (playRequestedNanos < 0) {
+            playRequestedNanos = System.nanoTime();
+        }
+        State state = stateMachine.state();
+        if (state == State.loading || recovery.isRecovering()) {
+            // Plays as soon as the audio is ready.
+            return null;
+        }
+        if (state == State.suspended) {
+            resumeFromSuspension();
+            return null;
+        }
 
-        if (canPlay()) {
-            mediaPlayer.start();
-            state = State.playing;
+        if (audioFocus != null && AudioPlayerStateMachine.isAllowed(Command.play, state) && !audioFocus.requestFocus(focusTarget)) {
+            isPlaybackDesired = false;
+            playRequestedNanos = -1;
+            return "Audio focus was denied";
+        }
 
-            for (Listener listener : listeners) {
-                listener.onPlayerPlaying();
-            }
+        String rejection = stateMachine.apply(Command.play);
+        if (rejection != null) {
+            Log.w(TAG, rejection);
+            playRequestedNanos = -1;
+            return rejection;
+        }
 
-            startPlaybackPolling();
-        } else {
-            Log.w(TAG, "Can't play in current MediaPlayer state: " + state);
+        if (state == State.completed) {
+            // Playing completed audio again is a session of its own.
+            telemetry.onLoadStarted(currentUrl);
+            telemetry.onReady();
+        }
+        engine.start();
+        telemetry.onPlaybackStarted();
+        if (playRequestedNanos >= 0) {
+            metrics.recordSince(PlaybackMetrics.Timer.playToPlaying, playRequestedNanos);
+            playRequestedNanos = -1;
+        }
+
+        for (Listener listener : listeners) {
+            listener.onPlayerPlaying();
         }
-    }
 
-    private boolean canPlay() {
-        return Arrays.asList(
-                State.paused,
-                State.completed
-        ).indexOf(state) >= 0;
+        startPlaybackPolling();
+        return null;
     }
 
     public boolean isPlaying() {
-        return state == State.playing;
+        return stateMachine.state() == State.playing;
     }
 
     public int playbackPosition() {
-        return mediaPlayer.getCurrentPosition();
+        return engine.currentPosition();
     }
 
-    public void pause() {
-        Log.d(TAG, "pause()");
+    /**
+     * Pauses playback. While audio is loading, this cancels a pending
+     * {@link #play()}.
+     *
+     * @return null if the command was accepted, or the reason why it was
+     *         rejected in the current state
+     */
+    @Nullable
+    public String pause() {
+        AudioLog.d(TAG, "pause()");
+        AudioLog.trace(TAG, "pause", 0);
         isPlaybackDesired = false;
+        playRequestedNanos = -1;
+        if (recovery.isRecovering()) {
+            // The recovered audio stays paused.
+            telemetry.onPlaybackStopped();
+            return null;
+        }
+        if (stateMachine.state() == State.loading || stateMachine.state() == State.suspended) {
+            return null;
+        }
+        return pauseKeepingIntent();
+    }
 
-        if (state == State.playing) {
-            mediaPlayer.pause();
-            state = State.paused;
+    /**
+     * Pauses without changing whether playback is desired, so that playback
+     * can resume once the reason for the pause goes away.
+     */
+    @Nullable
+    private String pauseKeepingIntent() {
+        String rejection = stateMachine.apply(Command.pause);
+        if (rejection != null) {
+            Log.w(TAG, rejection);
+            return rejection;
+        }
+
+        engine.pause();
+        telemetry.onPlaybackStopped();
+
+        for (Listener listener : listeners) {
+            listener.onPlayerPaused();
+        }
+
+        stopPlaybackPolling();
+        return null;
+    }
+
+    public boolean isPaused() {
+        return stateMachine.state() == State.paused;
+    }
+
+    /**
+     * @return null if the command was accepted, or the reason why it was
+     *         rejected in the current state
+     */
+    @Nullable
+    public String stop() {
+        AudioLog.d(TAG, "stop()");
+        AudioLog.trace(TAG, "stop", 0);
+        isPlaybackDesired = false;
+        playRequestedNanos = -1;
+        // Stopped audio must not come back with a retry, even if the stop is
+        // rejected because the audio failed.
+        recovery.cancel();
+
+        // A suspended engine was reset and has nothing to stop.
+        boolean wasSuspended = stateMachine.state() == State.suspended;
+        String rejection = stateMachine.apply(Command.stop);
+        if (rejection != null) {
+            Log.w(TAG, rejection);
+            return rejection;
+        }
+
+        if (!wasSuspended) {
+            engine.stop();
+        }
+        seekCoalescer.reset();
+        telemetry.endSession();
+        if (audioFocus != null) {
+            audioFocus.abandonFocus(focusTarget);
+        }
+
+        for (Listener listener : listeners) {
+            listener.onPlayerStopped();
+        }
 
+        stopPlaybackPolling();
+        return null;
+    }
+
+    public boolean isStopped() {
+        return stateMachine.state() == State.stopped;
+    }
+
+    /**
+     * True if releasing the player wouldn't cut off audio that the client
+     * still expects, i.e., if nothing listens to the player anymore, or if
+     * it rests in a state from which only a new command brings it back.
+     *
+     * Loading, recovering and suspended players play on by themselves, so
+     * they aren't idle, and neither are paused ones.
+     */
+    public boolean isIdle() {
+        if (listeners.isEmpty()) {
+            return true;
+        }
+        return stateMachine.isIn(RESTING_STATES) && !recovery.isRecovering();
+    }
+
+    /**
+     * @return null if the command was accepted, or the reason why it was
+     *         rejected in the current state
+     */
+    @Nullable
+    public String seek(int seekPositionInMillis) {
+        AudioLog.d(TAG, "seek() - position in ms: ", seekPositionInMillis);
+        AudioLog.trace(TAG, "seek", seekPositionInMillis);
+
+        if (recovery.isRecovering()
+                || stateMachine.state() == State.loading
+                || stateMachine.state() == State.suspended) {
+            // Recovered, loading and suspended audio starts where it was
+            // last asked to be once it's prepared, e.g., when Flutter
+            // restores a player with a [load, seek, play] batch.
+            positionToRestore = seekPositionInMillis;
+            return null;
+        }
+
+        String rejection = stateMachine.apply(Command.seek);
+        if (rejection != null) {
+            Log.w(TAG, rejection);
+            return rejection;
+        }
+
+        // Seek doesn't have its own dedicated state so when exactly
+        // it starts and completes is variable. The coalescer notifies our
+        // listeners before it makes the call to seekTo() so that we don't
+        // risk sending onSeekStarted() AFTER onSeekCompleted().
+        seekCoalescer.seek(seekPositionInMillis);
+        return null;
+    }
+
+    /**
+     * Releases the decoder and network resources of the current audio while
+     * remembering where it was, so that {@link #play()} can restore it.
+     */
+    private void suspend() {
+        if (!isAudioReady() || currentUrl == null) {
+            return;
+        }
+
+        boolean wasPlaying = isPlaying();
+        int position = engine.currentPosition();
+        if (stateMachine.apply(Command.suspend) != null) {
+            return;
+        }
+
+        AudioLog.d(TAG, "suspend() - position in ms: ", position);
+        AudioLog.trace(TAG, "suspend", position);
+        positionToRestore = position;
+        stopPlaybackPolling();
+        seekCoalescer.reset();
+        telemetry.onPlaybackStopped();
+        engine.reset();
+
+        if (wasPlaying) {
             for (Listener listener : listeners) {
                 listener.onPlayerPaused();
             }
+        }
+    }
 
-            stopPlaybackPolling();
-        } else {
-            Log.w(TAG, "Can't pause in current MediaPlayer state: " + state);
+    private void resumeFromSuspension() {
+        AudioLog.d(TAG, "Resuming suspended audio at position in ms: ", positionToRestore);
+        loadUrl(currentUrl);
+    }
+
+    /**
+     * Lowers the volume while another app plays something short that allows
+     * it, e.g., a navigation prompt.
+     */
+    private void setDucked(boolean isDucked) {
+        this.isDucked = isDucked;
+        engine.setVolume(volume());
+    }
+
+    private float volume() {
+        return isDucked ? DUCKED_VOLUME : 1f;
+    }
+
+    /**
+     * Enters scrubbing mode, e.g., while the user drags a seek bar. Seeks
+     * only preview the position, as fast as the player allows, until
+     * {@link #endScrubbing()}.
+     */
+    public void startScrubbing() {
+        AudioLog.d(TAG, "startScrubbing()");
+        seekCoalescer.startScrubbing();
+    }
+
+    /**
+     * Leaves scrubbing mode and seeks precisely to the last requested
+     * position.
+     */
+    public void endScrubbing() {
+        AudioLog.d(TAG, "endScrubbing()");
+        seekCoalescer.endScrubbing();
+    }
+
+    private static boolean isOnMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    private void startPlaybackPolling() {
+        positionReporter.onPlaybackStarted();
+    }
+
+    private void stopPlaybackPolling() {
+        positionReporter.onPlaybackStopped();
+    }
+
+    /**
+     * Requests {@link Listener#onPlayerPlaybackUpdate(int, int)} calls at least
+     * every {@code intervalMillis} while audio plays. Playback updates are only
+     * produced while there is at least one subscription.
+     *
+     * Subscribing again with the same {@code subscriberId} changes its interval.
+     */
+    public void subscribeToPosition(@NonNull String subscriberId, int intervalMillis) {
+        positionReporter.subscribe(subscriberId, intervalMillis);
+    }
+
+    public void unsubscribeFromPosition(@NonNull String subscriberId) {
+        positionReporter.unsubscribe(subscriberId);
+    }
+
+    /**
+     * The latest playhead observation, from which the current position can
+     * be extrapolated without querying the {@code MediaPlayer}.
+     */
+    @NonNull
+    public PlaybackPositionReporter.PlaybackAnchor playbackAnchor() {
+        return positionReporter.anchor();
+    }
+
+    /**
+     * Quality of experience of the current audio so far. See
+     * {@link BufferingTelemetry} for what is measured.
+     */
+    @NonNull
+    public BufferingTelemetry.SessionStats sessionStats() {
+        return telemetry.sessionStats();
+    }
+
+    /**
+     * Reads the playhead from the current engine while it has audio. Called
+     * on the position reporter's thread, so the state can change right after
+     * the check. That's safe because engines whose players must not be used
+     * off the main thread answer from a {@link PlaybackSnapshot}.
+     */
+    private class EnginePositionSource implements PlaybackPositionReporter.PositionSource {
+        @Override
+        public int currentPosition() {
+            return isAudioReady() ? engine.currentPosition() : 0;
+        }
+
+        @Override
+        public int duration() {
+            return isAudioReady() ? engine.duration() : 0;
+        }
+
+        @Override
+        public float playbackSpeed() {
+            return isAudioReady() ? engine.playbackSpeed() : 1f;
         }
     }
 
-    public boolean isPaused() {
-        return state == State.paused;
+    /**
+     * Issues coalesced seeks to the current engine.
+     */
+    private class EngineSeekBackend implements SeekCoalescer.Backend {
+        @Override
+        public void seekTo(int positionInMillis, boolean isPrecise) {
+            engine.seekTo(positionInMillis, isPrecise);
+        }
+
+        @Override
+        public boolean supportsFastSeek() {
+            return engine.supportsFastSeek();
+        }
+
+        @Override
+        public int currentPosition() {
+            return isAudioReady() ? engine.currentPosition() : 0;
+        }
     }
 
-    public void stop() {
-        Log.d(TAG, "stop()");
-        isPlaybackDesired = false;
+    /**
+     * Lets the {@link AudioFocusController} pause, duck, suspend and resume
+     * this player.
+     */
+    private class FocusTarget implements AudioFocusController.Target {
+        @Override
+        public boolean isPlaying() {
+            return AudioPlayer.this.isPlaying();
+        }
 
-        if (canStop()) {
-            mediaPlayer.stop();
-            state = State.stopped;
+        @Override
+        public boolean isPlaybackDesired() {
+            return isPlaybackDesired;
+        }
+
+        @Override
+        public void pause() {
+            AudioPlayer.this.pause();
+        }
+
+        @Override
+        public void pauseTransiently() {
+            pauseKeepingIntent();
+        }
+
+        @Override
+        public void resume() {
+            play();
+        }
+
+        @Override
+        public void suspend() {
+            AudioPlayer.this.suspend();
+        }
+
+        @Override
+        public void setDucked(boolean isDucked) {
+            AudioPlayer.this.setDucked(isDucked);
+        }
+    }
 
+    private class SeekCallback implements SeekCoalescer.Callback {
+        @Override
+        public void onSeekStarted(int requestedPosition, int fromPosition) {
+            telemetry.onSeekStarted();
+            seekStartedNanos = System.nanoTime();
             for (Listener listener : listeners) {
-                listener.onPlayerStopped();
+                listener.onSeekStarted(requestedPosition, fromPosition);
             }
+        }
 
-            stopPlaybackPolling();
-        } else {
-            Log.w(TAG, "Can't stop in current MediaPlayer state: " + state);
+        @Override
+        public void onSeekCompleted(int requestedPosition, int actualPosition) {
+            telemetry.onSeekCompleted();
+            metrics.recordSince(PlaybackMetrics.Timer.seekToComplete, seekStartedNanos);
+            for (Listener listener : listeners) {
+                listener.onSeekCompleted(requestedPosition, actualPosition);
+            }
         }
     }
 
-    private boolean canStop() {
-        return Arrays.asList(
-                State.playing,
-                State.paused,
-                State.completed
-        ).indexOf(state) >= 0;
+    private class PositionReporterCallback implements PlaybackPositionReporter.Callback {
+        @Override
+        public void onPositionUpdate(int position, int audioLength) {
+            for (Listener listener : listeners) {
+                listener.onPlayerPlaybackUpdate(position, audioLength);
+            }
+        }
+
+        @Override
+        public void onAnchorChanged(@NonNull PlaybackPositionReporter.PlaybackAnchor anchor) {
+            for (Listener listener : listeners) {
+                listener.onPlaybackAnchorChanged(anchor);
+            }
+        }
     }
 
-    public boolean isStopped() {
-        return state == State.stopped;
-    }
-
-    public void seek(int seekPositionInMillis) {
-        Log.d(TAG, "seek() - Current playhead: "
-                + mediaPlayer.getCurrentPosition()
-                + ", Seek position: " + seekPositionInMillis + "ms");
-        if (canSeek()) {
-            // Seek doesn't have its own dedicated state so when exactly
-            // it starts and completes is variable. Therefore, we notify
-            // our listeners before we even make the call to seek() so
-            // that we don't risk sending onSeekStarted() AFTER
-            // onSeekCompleted().
+    private class TelemetryCallback implements BufferingTelemetry.Callback {
+        @Override
+        public void onBufferingUpdate(int percent, int bufferedPositionMillis, long bitrateEstimate) {
+            for (Listener listener : listeners) {
+                listener.onBufferingUpdate(percent, bufferedPositionMillis, bitrateEstimate);
+            }
+        }
+
+        @Override
+        public void onStallStarted() {
+            int position = isAudioReady() ? engine.currentPosition() : positionToRestore;
+            stallPosition = position;
             for (Listener listener : listeners) {
-                listener.onSeekStarted();
+                listener.onStallStarted(position);
             }
+        }
 
-            mediaPlayer.seekTo(seekPositionInMillis);
-        } else {
-            Log.w(TAG, "Can't seek in current MediaPlayer state.");
+        @Override
+        public void onStallEnded(int stallMillis, int rebufferCount) {
+            stallPosition = -1;
+            for (Listener listener : listeners) {
+                listener.onStallEnded(stallMillis, rebufferCount);
+            }
+        }
+
+        @Override
+        public void onSessionEnded(@NonNull BufferingTelemetry.SessionStats stats) {
+            for (Listener listener : listeners) {
+                listener.onPlaybackSessionEnded(stats);
+            }
         }
     }
 
-    private boolean canSeek() {
-        return Arrays.asList(
-                State.playing,
-                State.paused,
-                State.completed
-        ).indexOf(state) >= 0;
+    private class RecoveryCallback implements ErrorRecovery.Callback {
+        @Override
+        public void retry(int attempt) {
+            AudioLog.d(TAG, "Retrying failed audio, attempt: ", attempt);
+            AudioLog.trace(TAG, "retry", attempt);
+            if (currentUrl == null) {
+                recovery.cancel();
+                return;
+            }
+
+            loadStartedNanos = System.nanoTime();
+            stateMachine.apply(Command.load);
+            try {
+                loadWithCurrentEngine();
+            } catch (IOException e) {
+                Log.w(TAG, "Retry failed: " + e.getMessage());
+                engineCallbacks.onError(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+            }
+        }
+
+        @Override
+        public void onRecovered(int attempts, int recoveryMillis) {
+            AudioLog.d(TAG, "Recovered after retries: ", attempts);
+            AudioLog.trace(TAG, "recovered", recoveryMillis);
+            for (Listener listener : listeners) {
+                listener.onRecovered(attempts, recoveryMillis);
+            }
+        }
     }
 
-    private void startPlaybackPolling() {
-        if (!isPollingPlayback) {
-            isPollingPlayback = true;
-            playbackPollHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (isPollingPlayback) {
-//                        Log.d(TAG, "Notifying playback listeners of playhead change.");
-                        for (Listener listener : listeners) {
-                            listener.onPlayerPlaybackUpdate(
-                                playbackPosition(),
-                                audioLength()
-                            );
-                        }
-
-                        playbackPollHandler.postDelayed(this, 500);
-                    }
-                }
-            }, 500);
+    /**
+     * Where playback was when the engine failed. Asks the reporter rather
+     * than the engine, which can't be queried in its error state.
+     */
+    private int lastKnownPosition() {
+        if (stallPosition >= 0) {
+            return stallPosition;
         }
+        PlaybackPositionReporter.PlaybackAnchor anchor = positionReporter.anchor();
+        return Math.max(anchor.position + (int) (anchor.ageNanos() * anchor.speed / 1000_000L), 0);
     }
 
-    private void stopPlaybackPolling() {
-        isPollingPlayback = false;
-        playbackPollHandler.removeCallbacks(null);
+    private void advanceToNextTrack(@NonNull MediaPlayer nextPlayer, @NonNull String nextUrl, boolean isAlreadyStarted) {
+        AudioLog.d(TAG, "Advancing to next track: ", nextUrl);
+        AudioLog.trace(TAG, "advance", 0);
+        MediaPlayer previousPlayer = mediaPlayer;
+        mediaPlayer = nextPlayer;
+        currentUrl = nextUrl;
+        mediaPlayerPool.recycle(previousPlayer);
+
+        if (!isAlreadyStarted) {
+            mediaPlayer.start();
+        }
+        mediaPlayerEngine.onAudioReady();
+        stateMachine.apply(Command.advance);
+        telemetry.onLoadStarted(nextUrl);
+        telemetry.onReady();
+        telemetry.onPlaybackStarted();
+        nextTrackPipeline.onCurrentReady(mediaPlayer);
+        positionReporter.onPositionDiscontinuity();
+
+        for (Listener listener : listeners) {
+            listener.onNextAudioStarted(nextUrl);
+        }
     }
 
-    private class MediaPlayerCallbacks implements MediaPlayer.OnPreparedListener,
-            MediaPlayer.OnBufferingUpdateListener,
-            MediaPlayer.OnErrorListener,
-            MediaPlayer.OnSeekCompleteListener,
-            MediaPlayer.OnCompletionListener {
+    /**
+     * Prepares look-ahead {@code MediaPlayer}s for the {@link NextTrackPipeline}.
+     */
+    private class NextMediaPlayerBackend implements NextTrackPipeline.Backend<MediaPlayer> {
 
+        @Nullable
         @Override
-        public void onPrepared(MediaPlayer mp) {
-            Log.d(TAG, "onPrepared()");
+        public MediaPlayer prepare(@NonNull String url) {
+            // Share the audio session so that visualizers and effects that are
+            // attached to this AudioPlayer keep working after the handoff.
+            MediaPlayer nextPlayer = mediaPlayerPool.obtainSharingSession(mediaPlayer.getAudioSessionId());
+            nextPlayer.setVolume(volume(), volume());
+            setCallbacks(nextPlayer);
+            try {
+                nextPlayer.setDataSource(dataSourceFor(url));
+                nextPlayer.prepareAsync();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to prepare next track: " + e.getMessage());
+                mediaPlayerPool.recycle(nextPlayer);
+                return null;
+            }
+            return nextPlayer;
+        }
+
+        @Override
+        public boolean link(@NonNull MediaPlayer current, @NonNull MediaPlayer next) {
+            try {
+                current.setNextMediaPlayer(next);
+                return true;
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                Log.w(TAG, "Failed to link next MediaPlayer. It will be started on completion instead.");
+                return false;
+            }
+        }
+
+        @Override
+        public void unlink(@NonNull MediaPlayer current) {
+            try {
+                current.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+                // The current player was already reset or released.
+            }
+        }
+
+        @Override
+        public void release(@NonNull MediaPlayer player) {
+            mediaPlayerPool.recycle(player);
+        }
+    }
+
+    /**
+     * Plays through the current {@code MediaPlayer}. Its events arrive through
+     * {@link MediaPlayerCallbacks}, which also handles the look-ahead players
+     * of the {@link NextTrackPipeline}.
+     */
+    /**
+     * Plays through {@link #mediaPlayer}.
+     *
+     * The position reporter reads the position, duration and speed on its
+     * own thread. A {@code MediaPlayer} that is reset on the main thread in
+     * the meantime would go into its error state, so the reporter reads a
+     * {@link PlaybackSnapshot} instead, which is updated on the main thread
+     * while the player has audio.
+     */
+    private class MediaPlayerEngine implements AudioEngine {
+        private final PlaybackSnapshot snapshot = new PlaybackSnapshot();
+        // Main thread only.
+        private boolean hasAudio = false;
+        private boolean isBuffering = false;
+
+        @Override
+        public void load(@NonNull String dataSource) throws IOException {
+            nextTrackPipeline.onCurrentInvalidated();
+            onAudioGone(true);
+            mediaPlayer.reset();
+            mediaPlayer.setDataSource(dataSource);
+            mediaPlayer.prepareAsync();
+        }
+
+        @Override
+        public void start() {
+            mediaPlayer.start();
+            updateSnapshot();
+        }
+
+        @Override
+        public void pause() {
+            mediaPlayer.pause();
+            updateSnapshot();
+        }
+
+        @Override
+        public void stop() {
+            onAudioGone(false);
+            mediaPlayer.stop();
+        }
+
+        @Override
+        public void seekTo(int positionInMillis, boolean isPrecise) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                mediaPlayer.seekTo(positionInMillis, isPrecise ? MediaPlayer.SEEK_CLOSEST : MediaPlayer.SEEK_CLOSEST_SYNC);
+            } else {
+                mediaPlayer.seekTo(positionInMillis);
+            }
+            updateSnapshot();
+        }
+
+        @Override
+        public boolean supportsFastSeek() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+        }
+
+        @Override
+        public int currentPosition() {
+            if (isOnMainThread()) {
+                updateSnapshot();
+            }
+            return snapshot.position(SystemClock.elapsedRealtime());
+        }
+
+        @Override
+        public int duration() {
+            if (isOnMainThread()) {
+                updateSnapshot();
+            }
+            return snapshot.duration();
+        }
+
+        @Override
+        public float playbackSpeed() {
+            if (isOnMainThread()) {
+                updateSnapshot();
+            }
+            return snapshot.speed();
+        }
+
+        /**
+         * The current {@code MediaPlayer} has audio, after it was prepared
+         * or took over as the next track.
+         */
+        void onAudioReady() {
+            hasAudio = true;
+            isBuffering = false;
+            updateSnapshot();
+        }
+
+        /**
+         * The position jumped, or stopped or started advancing.
+         */
+        void onPositionChanged() {
+            updateSnapshot();
+        }
+
+        void onBufferingChanged(boolean isBuffering) {
+            this.isBuffering = isBuffering;
+            updateSnapshot();
+        }
+
+        /**
+         * The current {@code MediaPlayer} is about to lose its audio, or has
+         * failed, so it must no longer be queried.
+         *
+         * @param isRewound true if the position goes back to the start
+         */
+        void onAudioGone(boolean isRewound) {
+            hasAudio = false;
+            isBuffering = false;
+            long now = SystemClock.elapsedRealtime();
+            snapshot.update(isRewound ? 0 : snapshot.position(now), snapshot.duration(), snapshot.speed(), false, now);
+        }
+
+        private void updateSnapshot() {
+            if (!hasAudio) {
+                return;
+            }
+            snapshot.update(
+                    mediaPlayer.getCurrentPosition(),
+                    mediaPlayer.getDuration(),
+                    querySpeed(),
+                    mediaPlayer.isPlaying() && !isBuffering,
+                    SystemClock.elapsedRealtime()
+            );
+        }
+
+        private float querySpeed() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                try {
+                    PlaybackParams params = mediaPlayer.getPlaybackParams();
+                    if (params != null) {
+                        return params.getSpeed();
+                    }
+                } catch (IllegalStateException e) {
+                    // Fall through to the default speed.
+                }
+            }
+            return 1f;
+        }
+
+        @Override
+        public int audioSessionId() {
+            return mediaPlayer.getAudioSessionId();
+        }
+
+        @Override
+        public void setVolume(float volume) {
+            mediaPlayer.setVolume(volume, volume);
+        }
+
+        @Override
+        public long bitrateEstimate() {
+            // MediaPlayer doesn't expose its download rate.
+            return -1;
+        }
+
+        @Override
+        public void reset() {
+            nextTrackPipeline.onCurrentInvalidated();
+            onAudioGone(true);
+            mediaPlayer.reset();
+        }
+
+        @Override
+        public void release() {
+            // The MediaPlayer goes back to the pool when the AudioPlayer is released.
+            reset();
+        }
+    }
+
+    /**
+     * Events of the current engine, whichever it is.
+     */
+    private class EngineCallbacks implements AudioEngine.Callback {
+        @Override
+        public void onPrepared() {
+            AudioLog.d(TAG, "onPrepared()");
+            AudioLog.trace(TAG, "prepared", 0);
+            telemetry.onReady();
+            metrics.recordSince(PlaybackMetrics.Timer.loadToPrepared, loadStartedNanos);
+            engine.setVolume(volume());
+            if (effects != null) {
+                // Another engine may play in another audio session.
+                effects.attach(audioSessionId());
+            }
+            if (positionToRestore > 0) {
+                engine.seekTo(positionToRestore, true);
+                positionToRestore = 0;
+            }
+            positionReporter.onPositionDiscontinuity();
 
             for (Listener listener : listeners) {
                 listener.onAudioReady();
             }
 
-            state = State.paused;
+            stateMachine.apply(Command.prepared);
+            if (recovery.isRecovering()) {
+                telemetry.onBufferingChanged(false);
+                recovery.onReady();
+            }
             if (isPlaybackDesired) {
                 play();
             } else {
@@ -258,66 +1187,321 @@ public class AudioPlayer {
         }
 
         @Override
-        public void onBufferingUpdate(MediaPlayer mp, int percent) {
-            Log.d(TAG, "onBufferingUpdate(): " + percent + "%");
+        public void onBufferingUpdate(int percent) {
+            // Reading the duration of a MediaPlayer that isn't prepared yet
+            // puts it into its error state.
+            int duration = isAudioReady() ? engine.duration() : 0;
+            telemetry.onBufferingProgress(percent, duration, engine.bitrateEstimate());
+        }
+
+        @Override
+        public void onBufferingChanged(boolean isBuffering) {
+            AudioLog.d(TAG, "onBufferingChanged(): ", isBuffering);
+            AudioLog.trace(TAG, "buffering", isBuffering ? 1 : 0);
+            telemetry.onBufferingChanged(isBuffering);
+        }
+
+        @Override
+        public void onSeekComplete() {
+            AudioLog.d(TAG, "onSeekComplete()");
+            AudioLog.trace(TAG, "seekComplete", 0);
+            positionReporter.onPositionDiscontinuity();
+            seekCoalescer.onSeekComplete();
+        }
+
+        @Override
+        public void onCompletion() {
+            AudioLog.d(TAG, "onCompletion()");
+            AudioLog.trace(TAG, "completion", 0);
+            stateMachine.apply(Command.complete);
+            telemetry.endSession();
+            if (audioFocus != null) {
+                audioFocus.abandonFocus(focusTarget);
+            }
+
             for (Listener listener : listeners) {
-                listener.onBufferingUpdate(percent);
+                listener.onPlayerCompleted();
             }
+
+            stopPlaybackPolling();
         }
 
         @Override
-        public void onSeekComplete(MediaPlayer mp) {
-            Log.d(TAG, "onSeekComplete() - playhead: " + mp.getCurrentPosition());
+        public void onError(int what, int extra) {
+            if (engine != mediaPlayerEngine && stateMachine.state() == State.loading) {
+                // E.g., a clip that is too long for the clip engine, or a
+                // format that the streaming engine doesn't support.
+                Log.w(TAG, "onError() - falling back to the standard engine");
+                switchEngine(mediaPlayerEngine);
+                try {
+                    loadWithCurrentEngine();
+                    return;
+                } catch (IOException e) {
+                    // The original error belongs to an engine that is gone.
+                    // Report why the fallback failed instead, the same way
+                    // as a failed retry.
+                    Log.w(TAG, "Fallback to the standard engine failed: " + e.getMessage());
+                    what = MediaPlayer.MEDIA_ERROR_UNKNOWN;
+                    extra = MediaPlayer.MEDIA_ERROR_IO;
+                }
+            }
+
+            boolean isRemote = currentUrl != null && !DecodedClipCache.isLocalFile(currentUrl);
+            ErrorRecovery.PlaybackError error = ErrorRecovery.classify(what, extra, isRemote);
+            Log.w(TAG, "onError() - " + error);
+            AudioLog.trace(TAG, "error", what);
+            if (isAudioReady()) {
+                // A failed retry still knows where to restore.
+                positionToRestore = lastKnownPosition();
+            }
+            stateMachine.apply(Command.fail);
+            seekCoalescer.reset();
+            stopPlaybackPolling();
+            if (effects != null && error.kind == ErrorRecovery.Kind.serverDied) {
+                // The effects died with the media server. They're created
+                // again once the audio is prepared.
+                effects.release();
+            }
+
+            int retryAttempt = recovery.onError(error);
+            int retryDelayMillis = 0;
+            if (retryAttempt > 0) {
+                retryDelayMillis = ErrorRecovery.backoffMillis(retryAttempt);
+                // Counts as a stall if the audio was playing.
+                telemetry.onBufferingChanged(true);
+            } else {
+                positionToRestore = 0;
+                telemetry.endSession();
+            }
+
             for (Listener listener : listeners) {
-                listener.onSeekCompleted();
+                listener.onError(error, retryAttempt, retryDelayMillis);
+            }
+        }
+    }
+
+    private class MediaPlayerCallbacks implements MediaPlayer.OnPreparedListener,
+            MediaPlayer.OnBufferingUpdateListener,
+            MediaPlayer.OnErrorListener,
+            MediaPlayer.OnSeekCompleteListener,
+            MediaPlayer.OnCompletionListener,
+            MediaPlayer.OnInfoListener {
+
+        private boolean isCurrent(@NonNull MediaPlayer mp) {
+            return mp == mediaPlayer && engine == mediaPlayerEngine;
+        }
+
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            if (mp != mediaPlayer) {
+                AudioLog.d(TAG, "onPrepared() - next track");
+                nextTrackPipeline.onNextPrepared(mp);
+                return;
+            }
+            if (!isCurrent(mp)) {
+                return;
+            }
+
+            nextTrackPipeline.onCurrentReady(mp);
+            mediaPlayerEngine.onAudioReady();
+            engineCallbacks.onPrepared();
+        }
+
+        @Override
+        public void onBufferingUpdate(MediaPlayer mp, int percent) {
+            if (isCurrent(mp)) {
+                engineCallbacks.onBufferingUpdate(percent);
+            }
+        }
+
+        @Override
+        public void onSeekComplete(MediaPlayer mp) {
+            if (isCurrent(mp)) {
+                mediaPlayerEngine.onPositionChanged();
+                engineCallbacks.onSeekComplete();
             }
         }
 
         @Override
         public void onCompletion(MediaPlayer mp) {
-            Log.d(TAG, "onCompletion()");
-            state = State.completed;
+            if (!isCurrent(mp)) {
+                return;
+            }
+            if (stateMachine.state() == State.error) {
+                // The audio failed rather than ended. Don't complete, and
+                // don't advance to the next track.
+                Log.w(TAG, "onCompletion() - ignored after an error");
+                return;
+            }
 
-            for (Listener listener : listeners) {
-                listener.onPlayerCompleted();
+            boolean isNextTrackLinked = nextTrackPipeline.state() == NextTrackPipeline.State.linked;
+            String nextUrl = nextTrackPipeline.nextUrl();
+            MediaPlayer nextPlayer = nextTrackPipeline.onCurrentCompleted();
+            if (nextPlayer != null) {
+                advanceToNextTrack(nextPlayer, nextUrl, isNextTrackLinked);
+                return;
             }
 
-            stopPlaybackPolling();
+            mediaPlayerEngine.onPositionChanged();
+            engineCallbacks.onCompletion();
         }
 
         @Override
         public boolean onError(MediaPlayer mp, int what, int extra) {
-            Log.w(TAG, "onError()");
-            state = State.error;
-            stopPlaybackPolling();
+            if (mp != mediaPlayer) {
+                Log.w(TAG, "onError() - next track");
+                nextTrackPipeline.onNextFailed(mp);
+                return true;
+            }
 
-            return false;
+            if (isCurrent(mp)) {
+                mediaPlayerEngine.onAudioGone(false);
+                engineCallbacks.onError(what, extra);
+            }
+            // Handled, so MediaPlayer doesn't call onCompletion() as well.
+            return true;
+        }
+
+        @Override
+        public boolean onInfo(MediaPlayer mp, int what, int extra) {
+            if (!isCurrent(mp)) {
+                return false;
+            }
+
+            switch (what) {
+                case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+                    mediaPlayerEngine.onBufferingChanged(true);
+                    engineCallbacks.onBufferingChanged(true);
+                    return true;
+                case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+                    mediaPlayerEngine.onBufferingChanged(false);
+                    engineCallbacks.onBufferingChanged(false);
+                    return true;
+                default:
+                    return false;
+            }
         }
     }
 
+    /**
+     * How audio is going to be used, which decides the engine that plays it.
+     */
+    public enum LoadHint {
+        /** Streams or long-form audio, played by a {@code MediaPlayer}. */
+        standard,
+        /**
+         * Short local clips, e.g., UI sounds, that must start within a few
+         * milliseconds. Decoded into memory and played by a {@link ClipEngine}.
+         */
+        lowLatency
+    }
+
+    /**
+     * Translates a url into the data source that a {@code MediaPlayer} reads.
+     */
+    public interface DataSourceResolver {
+        @NonNull
+        String resolve(@NonNull String url);
+    }
+
     /**
      * Listener that receives all possible audio player updates over time.
      */
     public interface Listener {
         void onAudioLoading();
 
-        void onBufferingUpdate(int percent);
+        /**
+         * More audio was buffered. Updates are only sent when the percentage
+         * changes, and at most about once per second.
+         *
+         * @param bufferedPositionMillis how far the audio is buffered, or -1
+         *                               if its length isn't known yet
+         * @param bitrateEstimate        download bitrate in bits per second,
+         *                               or -1 if the engine doesn't measure it
+         */
+        void onBufferingUpdate(int percent, int bufferedPositionMillis, long bitrateEstimate);
+
+        /**
+         * Playback ran out of buffered audio at {@code position} and waits
+         * for more.
+         */
+        void onStallStarted(int position);
+
+        /**
+         * Playback continued after a stall, or was paused or stopped during
+         * it.
+         *
+         * @param rebufferCount stalls of the current audio so far
+         */
+        void onStallEnded(int stallMillis, int rebufferCount);
+
+        /**
+         * The audio that was loaded, or that playback advanced to, is done
+         * with, because other audio was loaded, or because it was stopped,
+         * completed, failed or released.
+         */
+        void onPlaybackSessionEnded(@NonNull BufferingTelemetry.SessionStats stats);
 
         void onAudioReady();
 
         void onPlayerPlaying();
 
+        /**
+         * Called on the thread of the position reporter, not the main thread.
+         */
         void onPlayerPlaybackUpdate(int position, int audioLength);
 
+        /**
+         * The playhead was observed at a new position, or the playback speed
+         * changed. The position at any later time can be extrapolated from
+         * the anchor.
+         *
+         * Called on the thread of the position reporter, not the main thread.
+         */
+        void onPlaybackAnchorChanged(@NonNull PlaybackPositionReporter.PlaybackAnchor anchor);
+
         void onPlayerPaused();
 
         void onPlayerStopped();
 
         void onPlayerCompleted();
 
-        void onSeekStarted(); // TODO: should we pass current and desired times?
-
-        void onSeekCompleted(); // TODO: should we pass current time?
+        /**
+         * Playback continued with the track that was queued with
+         * {@link AudioPlayer#enqueueNext(String)} because the previous track completed.
+         */
+        void onNextAudioStarted(@NonNull String url);
+
+        /**
+         * A seek session started. Seeks that are requested before it
+         * completes join the session instead of starting a new one.
+         */
+        void onSeekStarted(int requestedPosition, int fromPosition);
+
+        /**
+         * The last seek of a session completed. {@code actualPosition} can
+         * differ from {@code requestedPosition} when the audio can't be
+         * positioned that precisely.
+         */
+        void onSeekCompleted(int requestedPosition, int actualPosition);
+
+        /**
+         * Loading or playing the audio failed.
+         *
+         * @param retryAttempt     number of the retry that is scheduled, starting
+         *                         at 1, or 0 if the error is final and the player
+         *                         stays failed until other audio is loaded
+         * @param retryDelayMillis time until the retry
+         */
+        void onError(@NonNull ErrorRecovery.PlaybackError error, int retryAttempt, int retryDelayMillis);
+
+        /**
+         * The audio is ready again after errors, at the position where it
+         * failed, and plays on if it was playing.
+         *
+         * @param recoveryMillis time since the first of the errors
+         */
+        void onRecovered(int attempts, int recoveryMillis);
     }
 
     /**
@@ -330,7 +1514,16 @@ public class AudioPlayer {
         public void onAudioLoading() {}
 
         @Override
-        public void onBufferingUpdate(int percent) {}
+        public void onBufferingUpdate(int percent, int bufferedPositionMillis, long bitrateEstimate) {}
+
+        @Override
+        public void onStallStarted(int position) {}
+
+        @Override
+        public void onStallEnded(int stallMillis, int rebufferCount) {}
+
+        @Override
+        public void onPlaybackSessionEnded(@NonNull BufferingTelemetry.SessionStats stats) {}
 
         @Override
         public void onAudioReady() {}
@@ -341,6 +1534,9 @@ public class AudioPlayer {
         @Override
         public void onPlayerPlaybackUpdate(int position, int audioLength) {}
 
+        @Override
+        public void onPlaybackAnchorChanged(@NonNull PlaybackPositionReporter.PlaybackAnchor anchor) {}
+
         @Override
         public void onPlayerPaused() {}
 
@@ -351,19 +1547,19 @@ public class AudioPlayer {
         public void onPlayerCompleted() {}
 
         @Override
-        public void onSeekStarted() {}
+        public void onNextAudioStarted(@NonNull String url) {}
 
         @Override
-        public void onSeekCompleted() {}
-    }
+        public void onSeekStarted(int requestedPosition, int fromPosition) {}
+
+        @Override
+        public void onSeekCompleted(int requestedPosition, int actualPosition) {}
 
-    private enum State {
-        idle,
-        loading,
-        paused,
-        playing,
-        stopped,
-        completed,
-        error;
+        @Override
+        public void onError(@NonNull ErrorRecovery.PlaybackError error, int retryAttempt, int retryDelayMillis) {}
+
+        @Override
+        public void onRecovered(int attempts, int recoveryMillis) {}
     }
+
 }
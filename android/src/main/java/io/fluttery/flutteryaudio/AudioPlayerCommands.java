@@ -0,0 +1,393 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dispatch table for the commands that Flutter sends to an {@link AudioPlayer}
+ * as {@code audioplayer/<playerId>/<command>}.
+ *
+ * The table is built once. Looking up a command is a single hash lookup, and
+ * splitting a method name into player ID and command doesn't use a regex.
+ */
+public class AudioPlayerCommands {
+
+    public static final String METHOD_PREFIX = "audioplayer/";
+
+    /** Runs a list of operations against a player. See {@link #executeBatch(AudioPlayer, List)}. */
+    public static final String BATCH = "batch";
+    /** Releases a player. Handled by the plugin because it doesn't operate on a live player. */
+    public static final String RELEASE = "release";
+    /** Turns audio focus management on or off. Handled by the plugin because it needs a {@code Context}. */
+    public static final String SET_AUDIO_FOCUS = "set_audio_focus";
+
+    private static final Map<String, Command> COMMANDS;
+
+    static {
+        Map<String, Command> commands = new HashMap<>();
+
+        commands.put("load", new Command(required("audioUrl", String.class), optional("hint", String.class)) {
+            @Nullable
+            @Override
+            String validate(@NonNull Map<String, Object> args) {
+                String error = super.validate(args);
+                String hint = (String) args.get("hint");
+                if (error == null && hint != null) {
+                    try {
+                        AudioPlayer.LoadHint.valueOf(hint);
+                    } catch (IllegalArgumentException e) {
+                        error = "Unknown load hint: " + hint;
+                    }
+                }
+                return error;
+            }
+
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                String hint = (String) args.get("hint");
+                player.load(
+                        (String) args.get("audioUrl"),
+                        hint != null ? AudioPlayer.LoadHint.valueOf(hint) : AudioPlayer.LoadHint.standard
+                );
+                return null;
+            }
+        });
+        commands.put("enqueue_next", new Command(optional("audioUrl", String.class)) {
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                String url = (String) args.get("audioUrl");
+                if (url != null) {
+                    player.enqueueNext(url);
+                } else {
+                    player.clearNext();
+                }
+                return null;
+            }
+        });
+        commands.put("subscribe_position", new Command(required("subscriberId", String.class), required("interval", Number.class)) {
+            @Nullable
+            @Override
+            String validate(@NonNull Map<String, Object> args) {
+                String error = super.validate(args);
+                if (error == null && ((Number) args.get("interval")).intValue() <= 0) {
+                    error = "interval must be positive, was: " + args.get("interval");
+                }
+                return error;
+            }
+
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                player.subscribeToPosition((String) args.get("subscriberId"), ((Number) args.get("interval")).intValue());
+                return null;
+            }
+        });
+        commands.put("unsubscribe_position", new Command(required("subscriberId", String.class)) {
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                player.unsubscribeFromPosition((String) args.get("subscriberId"));
+                return null;
+            }
+        });
+        commands.put("play", new Command() {
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                return rejectIfNeeded(player.play());
+            }
+        });
+        commands.put("pause", new Command() {
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                return rejectIfNeeded(player.pause());
+            }
+        });
+        commands.put("stop", new Command() {
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                return rejectIfNeeded(player.stop());
+            }
+        });
+        commands.put("seek", new Command(required("seekPosition", Number.class)) {
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                return rejectIfNeeded(player.seek(((Number) args.get("seekPosition")).intValue()));
+            }
+        });
+        commands.put("scrub_start", new Command() {
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                player.startScrubbing();
+                return null;
+            }
+        });
+        commands.put("scrub_end", new Command() {
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                player.endScrubbing();
+                return null;
+            }
+        });
+
+        commands.put("session_stats", new Command() {
+            @Override
+            Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+                return player.sessionStats().toMap();
+            }
+        });
+
+        COMMANDS = Collections.unmodifiableMap(commands);
+    }
+
+    private AudioPlayerCommands() {}
+
+    /**
+     * Returns the command with the given name, or null if there is no such command.
+     */
+    @Nullable
+    public static Command lookup(@NonNull String name) {
+        return COMMANDS.get(name);
+    }
+
+    /**
+     * Returns the player ID in a method name of the form
+     * {@code audioplayer/<playerId>/<command>}, or null if the method name
+     * doesn't have that form.
+     */
+    @Nullable
+    public static String playerIdOf(@NonNull String methodName) {
+        int commandSeparator = commandSeparatorOf(methodName);
+        return commandSeparator >= 0 ? methodName.substring(METHOD_PREFIX.length(), commandSeparator) : null;
+    }
+
+    /**
+     * Returns the command in a method name of the form
+     * {@code audioplayer/<playerId>/<command>}, or null if the method name
+     * doesn't have that form.
+     */
+    @Nullable
+    public static String commandOf(@NonNull String methodName) {
+        int commandSeparator = commandSeparatorOf(methodName);
+        return commandSeparator >= 0 ? methodName.substring(commandSeparator + 1) : null;
+    }
+
+    private static int commandSeparatorOf(@NonNull String methodName) {
+        if (!methodName.startsWith(METHOD_PREFIX)) {
+            return -1;
+        }
+
+        int commandSeparator = methodName.indexOf('/', METHOD_PREFIX.length());
+        boolean hasPlayerId = commandSeparator > METHOD_PREFIX.length();
+        boolean hasCommand = commandSeparator >= 0
+                && commandSeparator < methodName.length() - 1
+                && methodName.indexOf('/', commandSeparator + 1) < 0;
+        return hasPlayerId && hasCommand ? commandSeparator : -1;
+    }
+
+    /**
+     * Runs an ordered list of operations against a player and returns one
+     * result per operation.
+     *
+     * Each operation is a map with a {@code command} name and optional
+     * {@code args}. Every operation is validated before any of them runs, so
+     * a batch with an unknown command or a missing argument doesn't leave the
+     * player half-way through the batch. The batch runs on the calling
+     * thread without yielding, so, when called on the main thread, no player
+     * callback can interleave with it.
+     *
+     * Each result is a map with a {@code status} of {@code ok}, {@code error},
+     * {@code skipped} or {@code rejected}, plus a {@code message} or a
+     * {@code result}. An operation is rejected when the player's state
+     * doesn't allow it at the time it runs.
+     */
+    @NonNull
+    public static List<Map<String, Object>> executeBatch(@NonNull AudioPlayer player, @NonNull List<Map<String, Object>> operations) {
+        int operationCount = operations.size();
+        Command[] commands = new Command[operationCount];
+        List<Map<String, Object>> results = new ArrayList<>(operationCount);
+
+        boolean isValid = true;
+        for (int i = 0; i < operationCount; ++i) {
+            // Flutter's codec doesn't enforce the declared types, so nothing
+            // about an operation is taken for granted until it's validated.
+            Object operation = operations.get(i);
+            Command command = null;
+            String error;
+            if (operation instanceof Map) {
+                Object name = ((Map<?, ?>) operation).get("command");
+                Object args = ((Map<?, ?>) operation).get("args");
+                command = name instanceof String ? COMMANDS.get(name) : null;
+                if (command == null) {
+                    error = "Unknown command: " + name;
+                } else if (args != null && !(args instanceof Map)) {
+                    error = "Operation args must be a map";
+                } else {
+                    error = command.validate(argsOf(operations.get(i)));
+                }
+            } else {
+                error = "Operation must be a map, was: " + operation;
+            }
+
+            commands[i] = command;
+            results.add(error != null ? errorResult(error) : null);
+            isValid &= error == null;
+        }
+
+        if (!isValid) {
+            for (int i = 0; i < operationCount; ++i) {
+                if (results.get(i) == null) {
+                    results.set(i, statusResult("skipped"));
+                }
+            }
+            return results;
+        }
+
+        for (int i = 0; i < operationCount; ++i) {
+            try {
+                Object result = commands[i].execute(player, argsOf(operations.get(i)));
+                Map<String, Object> okResult = statusResult("ok");
+                if (result != null) {
+                    okResult.put("result", result);
+                }
+                results.set(i, okResult);
+            } catch (CommandRejectedException e) {
+                // The player's state only allows some operations, so a
+                // rejection doesn't stop the rest of the batch.
+                Map<String, Object> rejectedResult = statusResult("rejected");
+                rejectedResult.put("message", e.getMessage());
+                results.set(i, rejectedResult);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Turns the rejection reason that a player command returns into a
+     * {@link CommandRejectedException}.
+     */
+    @Nullable
+    private static Object rejectIfNeeded(@Nullable String rejection) {
+        if (rejection != null) {
+            throw new CommandRejectedException(rejection);
+        }
+        return null;
+    }
+
+    @NonNull
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> argsOf(@NonNull Map<String, Object> operation) {
+        Object args = operation.get("args");
+        return args instanceof Map ? (Map<String, Object>) args : Collections.<String, Object>emptyMap();
+    }
+
+    @NonNull
+    private static Map<String, Object> statusResult(@NonNull String status) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("status", status);
+        return result;
+    }
+
+    @NonNull
+    private static Map<String, Object> errorResult(@NonNull String message) {
+        Map<String, Object> result = statusResult("error");
+        result.put("message", message);
+        return result;
+    }
+
+    @NonNull
+    private static Arg required(@NonNull String name, @NonNull Class<?> type) {
+        return new Arg(name, type, true);
+    }
+
+    @NonNull
+    private static Arg optional(@NonNull String name, @NonNull Class<?> type) {
+        return new Arg(name, type, false);
+    }
+
+    /**
+     * An argument that a command reads, and the type that it must have.
+     */
+    private static class Arg {
+        final String name;
+        final Class<?> type;
+        final boolean isRequired;
+
+        Arg(@NonNull String name, @NonNull Class<?> type, boolean isRequired) {
+            this.name = name;
+            this.type = type;
+            this.isRequired = isRequired;
+        }
+    }
+
+    /**
+     * A single command in the dispatch table.
+     */
+    public abstract static class Command {
+
+        private final Arg[] args;
+
+        Command(@NonNull Arg... args) {
+            this.args = args;
+        }
+
+        /**
+         * Returns a description of what is wrong with the given arguments, or
+         * null if the command can run with them.
+         *
+         * Everything that could make {@link #execute(AudioPlayer, Map)} fail
+         * must be checked here, so that a batch is either rejected as a
+         * whole or runs to the end.
+         */
+        @Nullable
+        String validate(@NonNull Map<String, Object> args) {
+            for (Arg arg : this.args) {
+                Object value = args.get(arg.name);
+                if (value == null) {
+                    if (arg.isRequired) {
+                        return "Missing argument: " + arg.name;
+                    }
+                } else if (!arg.type.isInstance(value)) {
+                    return "Argument " + arg.name + " must be a " + arg.type.getSimpleName()
+                            + ", was: " + value.getClass().getSimpleName();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Runs the command and returns its result, which may be null. Only
+         * called with arguments that passed {@link #validate(Map)}.
+         */
+        @Nullable
+        abstract Object execute(@NonNull AudioPlayer player, @NonNull Map<String, Object> args);
+
+        /**
+         * Validates the arguments and runs the command.
+         *
+         * @throws IllegalArgumentException if the arguments are invalid
+         * @throws CommandRejectedException if the player's state doesn't
+         *                                  allow the command
+         */
+        @Nullable
+        public Object run(@NonNull AudioPlayer player, @NonNull Map<String, Object> args) {
+            String error = validate(args);
+            if (error != null) {
+                throw new IllegalArgumentException(error);
+            }
+            return execute(player, args);
+        }
+    }
+
+    /**
+     * Thrown when a player rejects a command because of its current state.
+     */
+    public static class CommandRejectedException extends IllegalStateException {
+        CommandRejectedException(@NonNull String reason) {
+            super(reason);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of {@link AudioPlayer}s keyed by the player ID that Flutter uses
+ * in its channel messages, e.g., {@code audioplayer/<playerId>/play}.
+ *
+ * Players are created lazily the first time an ID is referenced. At most
+ * {@code maxLivePlayers} players are kept alive at once. When that limit is
+ * reached, the least recently used {@link AudioPlayer#isIdle() idle} player
+ * is released to make room for the new one.
+ *
+ * The registry is not thread-safe. It is expected to be accessed from the
+ * platform's main thread, which is where channel messages arrive.
+ */
+public class AudioPlayerRegistry {
+
+    private static final String TAG = "AudioPlayerRegistry";
+
+    public static final int DEFAULT_MAX_LIVE_PLAYERS = 4;
+
+    private final int maxLivePlayers;
+    private final Callbacks callbacks;
+
+    // Access-ordered so that iteration starts with the least recently used player.
+    private final LinkedHashMap<String, AudioPlayer> players = new LinkedHashMap<>(8, 0.75f, true);
+
+    public AudioPlayerRegistry(@NonNull Callbacks callbacks) {
+        this(DEFAULT_MAX_LIVE_PLAYERS, callbacks);
+    }
+
+    public AudioPlayerRegistry(int maxLivePlayers, @NonNull Callbacks callbacks) {
+        if (maxLivePlayers < 1) {
+            throw new IllegalArgumentException("maxLivePlayers must be at least 1, was: " + maxLivePlayers);
+        }
+        this.maxLivePlayers = maxLivePlayers;
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * Returns the player with the given ID, creating it if it doesn't exist yet.
+     */
+    @NonNull
+    public AudioPlayer obtain(@NonNull String playerId) {
+        AudioPlayer player = players.get(playerId);
+        if (player == null) {
+            evictIdlePlayersIfNeeded();
+
+            AudioLog.d(TAG, "Creating player: ", playerId);
+            player = new AudioPlayer();
+            players.put(playerId, player);
+            callbacks.onPlayerCreated(playerId, player);
+        }
+        return player;
+    }
+
+    /**
+     * Returns the player with the given ID, or null if no such player is live.
+     *
+     * Unlike {@link #obtain(String)}, this does not count as a use of the
+     * player for LRU purposes.
+     */
+    @Nullable
+    public AudioPlayer peek(@NonNull String playerId) {
+        for (Map.Entry<String, AudioPlayer> entry : players.entrySet()) {
+            if (entry.getKey().equals(playerId)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the most recently used player, or null if there are no live players.
+     */
+    @Nullable
+    public AudioPlayer mostRecentlyUsed() {
+        AudioPlayer mostRecent = null;
+        for (AudioPlayer player : players.values()) {
+            mostRecent = player;
+        }
+        return mostRecent;
+    }
+
+    public int size() {
+        return players.size();
+    }
+
+    /**
+     * IDs of all live players, from least to most recently used.
+     */
+    @NonNull
+    public List<String> playerIds() {
+        return new ArrayList<>(players.keySet());
+    }
+
+    public void release(@NonNull String playerId) {
+        AudioPlayer player = players.remove(playerId);
+        if (player != null) {
+            releasePlayer(playerId, player);
+        }
+    }
+
+    public void releaseAll() {
+        List<Map.Entry<String, AudioPlayer>> entries = new ArrayList<>(players.entrySet());
+        players.clear();
+        for (Map.Entry<String, AudioPlayer> entry : entries) {
+            releasePlayer(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void evictIdlePlayersIfNeeded() {
+        Iterator<Map.Entry<String, AudioPlayer>> iterator = players.entrySet().iterator();
+        while (players.size() >= maxLivePlayers && iterator.hasNext()) {
+            Map.Entry<String, AudioPlayer> entry = iterator.next();
+            if (entry.getValue().isIdle()) {
+                AudioLog.d(TAG, "Evicting least recently used idle player: ", entry.getKey());
+                iterator.remove();
+                releasePlayer(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (players.size() >= maxLivePlayers) {
+            Log.w(TAG, "All " + players.size() + " live players are busy. Exceeding limit of " + maxLivePlayers + ".");
+        }
+    }
+
+    private void releasePlayer(@NonNull String playerId, @NonNull AudioPlayer player) {
+        player.release();
+        callbacks.onPlayerReleased(playerId);
+    }
+
+    /**
+     * Lifecycle callbacks for players owned by an {@link AudioPlayerRegistry}.
+     */
+    public interface Callbacks {
+        void onPlayerCreated(@NonNull String playerId, @NonNull AudioPlayer player);
+
+        void onPlayerReleased(@NonNull String playerId);
+    }
+}
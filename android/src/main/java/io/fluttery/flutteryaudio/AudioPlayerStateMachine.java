@@ -0,0 +1,168 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State machine of an {@link AudioPlayer}, which mirrors the parts of the
+ * {@code MediaPlayer} state machine that the plugin cares about.
+ *
+ * Every {@link Command} has a precomputed set of states in which it's
+ * allowed, as a bitmask over {@link State} ordinals, and the state that it
+ * leads to. Checking and applying a command doesn't allocate, and a
+ * rejected command returns a reason that was also built up front.
+ *
+ * Commands must be applied on the main thread, where the player also runs
+ * the side effects of a transition, e.g., starting the engine after
+ * {@link Command#play}. Nothing else can interleave between a transition
+ * and its side effects that way. The state itself may be read from any
+ * thread, e.g., by the position reporting thread, which sees either the
+ * state before or after a transition.
+ */
+public class AudioPlayerStateMachine {
+
+    public enum State {
+        idle,
+        loading,
+        paused,
+        playing,
+        stopped,
+        completed,
+        /** Resources were released, e.g., after losing audio focus, but can be restored. */
+        suspended,
+        error
+    }
+
+    /**
+     * Commands from clients and events from the {@code MediaPlayer}.
+     */
+    public enum Command {
+        load,
+        prepared,
+        play,
+        pause,
+        stop,
+        seek,
+        complete,
+        advance,
+        suspend,
+        fail
+    }
+
+    private static final State[] STATES = State.values();
+    private static final Command[] COMMANDS = Command.values();
+
+    private static final int ANY_STATE = (1 << STATES.length) - 1;
+
+    /** States in which the {@code MediaPlayer} has audio and can be queried. */
+    public static final int READY_STATES = mask(State.paused, State.playing, State.completed);
+
+    // Indexed by command ordinal.
+    private static final int[] ALLOWED_STATES = new int[COMMANDS.length];
+    // Indexed by command ordinal. Null means that the command doesn't change the state.
+    private static final State[] TARGET_STATES = new State[COMMANDS.length];
+    // Indexed by command ordinal, then state ordinal. Null where the command is allowed.
+    private static final String[][] REJECTIONS = new String[COMMANDS.length][STATES.length];
+
+    static {
+        allow(Command.load, ANY_STATE, State.loading);
+        allow(Command.prepared, mask(State.loading), State.paused);
+        allow(Command.play, mask(State.paused, State.completed), State.playing);
+        allow(Command.pause, mask(State.playing), State.paused);
+        allow(Command.stop, mask(State.playing, State.paused, State.completed, State.suspended), State.stopped);
+        allow(Command.seek, READY_STATES, null);
+        allow(Command.complete, mask(State.playing, State.paused), State.completed);
+        allow(Command.advance, READY_STATES, State.playing);
+        allow(Command.suspend, READY_STATES, State.suspended);
+        allow(Command.fail, ANY_STATE, State.error);
+
+        for (Command command : COMMANDS) {
+            for (State state : STATES) {
+                if (!isAllowed(command, state)) {
+                    REJECTIONS[command.ordinal()][state.ordinal()] =
+                            "Can't " + command + " in current MediaPlayer state: " + state;
+                }
+            }
+        }
+    }
+
+    private static void allow(@NonNull Command command, int states, @Nullable State target) {
+        ALLOWED_STATES[command.ordinal()] = states;
+        TARGET_STATES[command.ordinal()] = target;
+    }
+
+    /**
+     * Bitmask of the given states, for use with {@link #isIn(int)}.
+     */
+    public static int mask(@NonNull State... states) {
+        int mask = 0;
+        for (State state : states) {
+            mask |= 1 << state.ordinal();
+        }
+        return mask;
+    }
+
+    public static boolean isAllowed(@NonNull Command command, @NonNull State state) {
+        return (ALLOWED_STATES[command.ordinal()] & (1 << state.ordinal())) != 0;
+    }
+
+    /**
+     * The state that {@code command} leads to from {@code state}, or null if
+     * the command isn't allowed in that state.
+     */
+    @Nullable
+    public static State targetOf(@NonNull Command command, @NonNull State state) {
+        if (!isAllowed(command, state)) {
+            return null;
+        }
+        State target = TARGET_STATES[command.ordinal()];
+        return target != null ? target : state;
+    }
+
+    /**
+     * Why {@code command} isn't allowed in {@code state}, or null if it is.
+     */
+    @Nullable
+    public static String rejectionOf(@NonNull Command command, @NonNull State state) {
+        return REJECTIONS[command.ordinal()][state.ordinal()];
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.idle);
+
+    @NonNull
+    public State state() {
+        return state.get();
+    }
+
+    /**
+     * True if the current state is one of the states in {@code stateMask},
+     * see {@link #mask(State...)}.
+     */
+    public boolean isIn(int stateMask) {
+        return (stateMask & (1 << state.get().ordinal())) != 0;
+    }
+
+    /**
+     * Moves to the state that {@code command} leads to. Must be called on
+     * the main thread.
+     *
+     * @return null if the command was applied, or the reason why it was
+     *         rejected in the current state
+     */
+    @Nullable
+    public String apply(@NonNull Command command) {
+        while (true) {
+            State current = state.get();
+            State target = targetOf(command, current);
+            if (target == null) {
+                PlaybackMetrics.shared().increment(PlaybackMetrics.Counter.stateMachineRejections);
+                return rejectionOf(command, current);
+            }
+            if (state.compareAndSet(current, target)) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads the beginning of upcoming audio into an {@link AudioFileCache}
+ * so that it starts playing without waiting for the network.
+ *
+ * Work runs on a small, bounded pool of threads. Items are downloaded in the
+ * order in which they were given, i.e., the item that is going to play soonest
+ * comes first. Every call to {@link #prefetch(List, long)} replaces the
+ * previous one: items that haven't started are dropped and items that are
+ * downloading stop at their next read.
+ *
+ * Prefetched bytes are written as a regular cache prefix, so the
+ * {@link AudioCacheProxy} serves them to the player and resumes from where
+ * the prefetch stopped. A prefetch stops early, at its next read, when the
+ * proxy asks for the entry because the player skipped to it.
+ */
+public class AudioPrefetcher {
+
+    private static final String TAG = "AudioPrefetcher";
+
+    private static final int THREAD_COUNT = 2;
+    private static final int BUFFER_SIZE_IN_BYTES = 16 * 1024;
+
+    private final AudioFileCache cache;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger generation = new AtomicInteger();
+
+    public AudioPrefetcher(@NonNull AudioFileCache cache) {
+        this.cache = cache;
+        executor = new ThreadPoolExecutor(
+                THREAD_COUNT,
+                THREAD_COUNT,
+                30,
+                TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>()
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Downloads up to {@code bytesPerItem} bytes from the start of each url,
+     * in order, and cancels any earlier prefetch.
+     */
+    public void prefetch(@NonNull List<String> urls, long bytesPerItem) {
+        int currentGeneration = cancel();
+        if (bytesPerItem <= 0) {
+            return;
+        }
+
+        for (int i = 0; i < urls.size(); ++i) {
+            String url = urls.get(i);
+            if (url.startsWith("http://") || url.startsWith("https://")) {
+                executor.execute(new PrefetchTask(currentGeneration, i, url, bytesPerItem));
+            }
+        }
+    }
+
+    /**
+     * Cancels all outstanding work and returns the new generation.
+     */
+    public int cancel() {
+        int newGeneration = generation.incrementAndGet();
+        executor.getQueue().clear();
+        return newGeneration;
+    }
+
+    public void shutdown() {
+        generation.incrementAndGet();
+        executor.shutdownNow();
+    }
+
+    private boolean isCancelled(int taskGeneration) {
+        return generation.get() != taskGeneration;
+    }
+
+    private void download(@NonNull PrefetchTask task) throws IOException {
+        AudioFileCache.Entry entry = cache.entryFor(task.url);
+        if (!cache.tryAcquireWriter(entry)) {
+            // The player, or an earlier prefetch, is already caching it.
+            return;
+        }
+
+        try {
+            long totalLength = entry.totalLength();
+            long target = totalLength >= 0 ? Math.min(task.byteCount, totalLength) : task.byteCount;
+            long cachedLength = entry.cachedLength();
+            if (cachedLength >= target) {
+                return;
+            }
+
+            HttpURLConnection connection = AudioCacheProxy.openUpstream(task.url, cachedLength, target - 1);
+            try {
+                int status = connection.getResponseCode();
+                boolean isResumed = status == HttpURLConnection.HTTP_PARTIAL;
+                if (status != HttpURLConnection.HTTP_OK && !isResumed) {
+                    Log.w(TAG, "Failed to prefetch " + task.url + ": HTTP " + status);
+                    return;
+                }
+
+                long upstreamStart = isResumed ? cachedLength : 0;
+                totalLength = AudioCacheProxy.totalLengthOf(connection, upstreamStart);
+                if (totalLength >= 0) {
+                    entry.writeMeta(totalLength, connection.getContentType());
+                }
+
+                long remaining = target - upstreamStart;
+                InputStream upstream = connection.getInputStream();
+                OutputStream cacheOut = entry.openAppend(!isResumed);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE_IN_BYTES];
+                    int read;
+                    while (remaining > 0
+                            && !isCancelled(task.generation)
+                            && !cache.isWriterWanted(entry)
+                            && (read = upstream.read(buffer, 0, (int) Math.min(buffer.length, remaining))) >= 0) {
+                        cacheOut.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                } finally {
+                    cacheOut.close();
+                    upstream.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } finally {
+            cache.releaseWriter(entry);
+        }
+    }
+
+    /**
+     * Prefetches a single url. Tasks are ordered by their position in the
+     * list that they were prefetched with.
+     */
+    private class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
+
+        private final int generation;
+        private final int priority;
+        private final String url;
+        private final long byteCount;
+
+        private PrefetchTask(int generation, int priority, @NonNull String url, long byteCount) {
+            this.generation = generation;
+            this.priority = priority;
+            this.url = url;
+            this.byteCount = byteCount;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled(generation)) {
+                return;
+            }
+
+            try {
+                download(this);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to prefetch " + url + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull PrefetchTask other) {
+            return priority < other.priority ? -1 : (priority > other.priority ? 1 : 0);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package io.fluttery.flutteryaudio;
 
-import android.media.audiofx.Equalizer;
 import android.media.audiofx.Visualizer;
 import android.support.annotation.NonNull;
 
@@ -11,31 +10,110 @@ public class AudioVisualizer {
     private static final String TAG = "AudioVisualizer";
 
     private Visualizer visualizer;
+    private Visualizer.OnDataCaptureListener listener;
+    private CaptureConfig config;
 
     public boolean isActive() {
         return visualizer != null;
     }
 
-    public void activate(@NonNull Visualizer.OnDataCaptureListener listener) {
-        // TODO: handle playerId in non-static way
-        // TODO: support multiple AuidioPlayers
-        visualizer = new Visualizer(AudioPlayer.playerId);
-        visualizer.setCaptureSize(Visualizer.getCaptureSizeRange()[1]);
+    public void activate(int audioSessionId, @NonNull Visualizer.OnDataCaptureListener listener) {
+        activate(audioSessionId, CaptureConfig.DEFAULT, listener);
+    }
+
+    public void activate(int audioSessionId, @NonNull CaptureConfig config, @NonNull Visualizer.OnDataCaptureListener listener) {
+        this.listener = listener;
+        this.config = config;
+
+        visualizer = new Visualizer(audioSessionId);
+        setCapture(config.captureSize, config.captureRate);
+    }
+
+    /**
+     * Changes the capture size and rate of the active visualizer.
+     *
+     * @param captureSize number of samples per capture, or 0 for the largest
+     *                    supported size. Rounded down to a power of 2 within
+     *                    {@link Visualizer#getCaptureSizeRange()}.
+     * @param captureRate captures per second in milliHertz, or 0 for half of
+     *                    {@link Visualizer#getMaxCaptureRate()}
+     */
+    public void setCapture(int captureSize, int captureRate) {
+        // The capture size can only be changed while the Visualizer is disabled.
+        visualizer.setEnabled(false);
+        visualizer.setCaptureSize(resolveCaptureSize(captureSize));
         visualizer.setDataCaptureListener(
                 listener,
-                Visualizer.getMaxCaptureRate() / 2,
-                false,
-                true
+                resolveCaptureRate(captureRate),
+                config.waveform,
+                config.fft
         );
         visualizer.setEnabled(true);
+    }
+
+    /**
+     * Changes what the active visualizer captures, and how often.
+     */
+    public void setConfig(@NonNull CaptureConfig config) {
+        this.config = config;
+        setCapture(config.captureSize, config.captureRate);
+    }
 
-        Equalizer equalizer = new Equalizer(0, AudioPlayer.playerId);
-        equalizer.setEnabled(true);
+    public int captureSize() {
+        return visualizer.getCaptureSize();
     }
 
     public void deactivate() {
+        if (visualizer == null) {
+            return;
+        }
         visualizer.release();
         visualizer = null;
+        listener = null;
+    }
+
+    /**
+     * Returns the largest supported capture size that is not larger than the
+     * requested size, or the largest supported size if none was requested.
+     */
+    public static int resolveCaptureSize(int requestedCaptureSize) {
+        int[] range = Visualizer.getCaptureSizeRange();
+        if (requestedCaptureSize <= 0) {
+            return range[1];
+        }
+
+        int captureSize = Integer.highestOneBit(requestedCaptureSize);
+        return Math.max(range[0], Math.min(range[1], captureSize));
+    }
+
+    public static int resolveCaptureRate(int requestedCaptureRate) {
+        int maxCaptureRate = Visualizer.getMaxCaptureRate();
+        if (requestedCaptureRate <= 0) {
+            return maxCaptureRate / 2;
+        }
+        return Math.min(maxCaptureRate, requestedCaptureRate);
+    }
+
+    /**
+     * What an {@link AudioVisualizer} captures, and how often.
+     */
+    public static class CaptureConfig {
+
+        public static final CaptureConfig DEFAULT = new CaptureConfig(0, 0, false, true);
+
+        /** Samples per capture, or 0 for the largest supported size. */
+        public final int captureSize;
+        /** Captures per second in milliHertz, or 0 for half the maximum rate. */
+        public final int captureRate;
+        public final boolean waveform;
+        public final boolean fft;
+
+        public CaptureConfig(int captureSize, int captureRate, boolean waveform, boolean fft) {
+            this.captureSize = captureSize;
+            this.captureRate = captureRate;
+            this.waveform = waveform;
+            this.fft = fft;
+        }
     }
 
 }
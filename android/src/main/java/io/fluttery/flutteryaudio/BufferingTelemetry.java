@@ -0,0 +1,327 @@
+package io.fluttery.flutteryaudio;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Buffering and quality of experience telemetry of an {@link AudioPlayer}.
+ *
+ * Engines report buffering progress as often as they like, e.g.,
+ * {@code MediaPlayer} about once per second whether or not anything changed.
+ * The telemetry only reports progress when the buffered percentage changed,
+ * and then at most every {@link #MIN_UPDATE_INTERVAL_MILLIS}. The latest
+ * progress is reported once the interval has passed, so the final value is
+ * never lost.
+ *
+ * A stall is the time during which audio should play, but can't because the
+ * engine ran out of buffered audio. Buffering before playback first starts
+ * counts towards startup time instead, and buffering after a seek is
+ * expected, so neither counts as a stall.
+ *
+ * Each load starts a playback session, which ends with the next load, a
+ * stop, a completion or the release of the player. {@link SessionStats}
+ * summarize a session:
+ *
+ *  - Time to first byte: from the load until the engine reports the first
+ *    buffered audio, or until the audio is ready if it never reports
+ *    buffering, e.g., for local files.
+ *  - Startup time: from the load, or from the first play request if that
+ *    came later, until audio starts playing.
+ *  - Stall ratio: the share of the time that audio should have been playing
+ *    which was spent stalled.
+ *
+ * Must be used on the main thread.
+ */
+public class BufferingTelemetry {
+
+    public static final int MIN_UPDATE_INTERVAL_MILLIS = 1000;
+
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Session. Times are SystemClock.elapsedRealtime() millis, or -1 if they didn't happen yet.
+    private String url;
+    private long loadStartedAt = -1;
+    private long playRequestedAt = -1;
+    private int timeToFirstByteMillis = -1;
+    private int startupMillis = -1;
+    private int rebufferCount = 0;
+    private long stallMillis = 0;
+    private long playingMillis = 0;
+
+    // Playback and buffering state.
+    private boolean isPlaying = false;
+    private boolean isBuffering = false;
+    private boolean isSeeking = false;
+    // Buffering that started during a seek isn't a stall.
+    private boolean isBufferingForSeek = false;
+    private boolean isStalled = false;
+    private long playingSince = 0;
+    private long stalledSince = 0;
+
+    // Reported buffering progress.
+    private int reportedPercent = -1;
+    private long reportedAt = 0;
+    private int pendingPercent = -1;
+    private int pendingBufferedPositionMillis = -1;
+    private long pendingBitrateEstimate = -1;
+
+    private final Runnable reportPendingProgress = new Runnable() {
+        @Override
+        public void run() {
+            reportProgress(pendingPercent, pendingBufferedPositionMillis, pendingBitrateEstimate);
+        }
+    };
+
+    public BufferingTelemetry(@NonNull Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Ends the current session, if any, and starts a new one for {@code url}.
+     */
+    public void onLoadStarted(@Nullable String url) {
+        endSession();
+        this.url = url;
+        loadStartedAt = now();
+    }
+
+    /**
+     * Playback was requested. If audio is still loading, startup time is
+     * measured from here, because that's how long the user waits.
+     */
+    public void onPlayRequested() {
+        if (loadStartedAt >= 0 && playRequestedAt < 0 && startupMillis < 0) {
+            playRequestedAt = now();
+        }
+    }
+
+    public void onReady() {
+        if (loadStartedAt >= 0 && timeToFirstByteMillis < 0) {
+            timeToFirstByteMillis = (int) (now() - loadStartedAt);
+        }
+    }
+
+    public void onPlaybackStarted() {
+        if (isPlaying) {
+            return;
+        }
+        long now = now();
+        if (loadStartedAt >= 0 && startupMillis < 0) {
+            startupMillis = (int) (now - Math.max(loadStartedAt, playRequestedAt));
+        }
+        isPlaying = true;
+        playingSince = now;
+        updateStall(now);
+    }
+
+    /**
+     * Playback paused, stopped or completed, or failed. Ends any stall.
+     */
+    public void onPlaybackStopped() {
+        if (!isPlaying) {
+            return;
+        }
+        long now = now();
+        if (!isStalled) {
+            playingMillis += now - playingSince;
+        }
+        isPlaying = false;
+        updateStall(now);
+    }
+
+    public void onSeekStarted() {
+        isSeeking = true;
+    }
+
+    public void onSeekCompleted() {
+        isSeeking = false;
+    }
+
+    /**
+     * The engine ran out of buffered audio, or has enough again.
+     */
+    public void onBufferingChanged(boolean isBuffering) {
+        if (isBuffering == this.isBuffering) {
+            return;
+        }
+        this.isBuffering = isBuffering;
+        isBufferingForSeek = isBuffering && isSeeking;
+        updateStall(now());
+    }
+
+    /**
+     * @param durationMillis    length of the audio, or 0 if it's not known yet
+     * @param bitrateEstimate   download bitrate in bits per second, or -1 if unknown
+     */
+    public void onBufferingProgress(int percent, int durationMillis, long bitrateEstimate) {
+        if (loadStartedAt >= 0 && timeToFirstByteMillis < 0 && percent > 0) {
+            timeToFirstByteMillis = (int) (now() - loadStartedAt);
+        }
+
+        int bufferedPositionMillis = durationMillis > 0 ? (int) ((long) durationMillis * percent / 100) : -1;
+        if (percent == reportedPercent) {
+            return;
+        }
+
+        long sinceLastReport = now() - reportedAt;
+        if (reportedPercent < 0 || percent == 100 || sinceLastReport >= MIN_UPDATE_INTERVAL_MILLIS) {
+            reportProgress(percent, bufferedPositionMillis, bitrateEstimate);
+        } else {
+            boolean isScheduled = pendingPercent >= 0;
+            pendingPercent = percent;
+            pendingBufferedPositionMillis = bufferedPositionMillis;
+            pendingBitrateEstimate = bitrateEstimate;
+            if (!isScheduled) {
+                mainHandler.postDelayed(reportPendingProgress, MIN_UPDATE_INTERVAL_MILLIS - sinceLastReport);
+            }
+        }
+    }
+
+    private void reportProgress(int percent, int bufferedPositionMillis, long bitrateEstimate) {
+        mainHandler.removeCallbacks(reportPendingProgress);
+        pendingPercent = -1;
+        reportedPercent = percent;
+        reportedAt = now();
+        callback.onBufferingUpdate(percent, bufferedPositionMillis, bitrateEstimate);
+    }
+
+    private void updateStall(long now) {
+        boolean shouldStall = isPlaying && isBuffering && !isBufferingForSeek;
+        if (shouldStall == isStalled) {
+            return;
+        }
+
+        isStalled = shouldStall;
+        if (isStalled) {
+            playingMillis += now - playingSince;
+            stalledSince = now;
+            ++rebufferCount;
+            callback.onStallStarted();
+        } else {
+            int duration = (int) (now - stalledSince);
+            stallMillis += duration;
+            playingSince = now;
+            callback.onStallEnded(duration, rebufferCount);
+        }
+    }
+
+    /**
+     * Ends the current session, if any, and reports its {@link SessionStats}.
+     */
+    public void endSession() {
+        if (loadStartedAt < 0) {
+            return;
+        }
+        onPlaybackStopped();
+        SessionStats stats = sessionStats();
+
+        mainHandler.removeCallbacks(reportPendingProgress);
+        url = null;
+        loadStartedAt = -1;
+        playRequestedAt = -1;
+        timeToFirstByteMillis = -1;
+        startupMillis = -1;
+        rebufferCount = 0;
+        stallMillis = 0;
+        playingMillis = 0;
+        isBuffering = false;
+        isSeeking = false;
+        isBufferingForSeek = false;
+        reportedPercent = -1;
+        pendingPercent = -1;
+
+        callback.onSessionEnded(stats);
+    }
+
+    /**
+     * Stats of the current session so far, including an ongoing stall.
+     */
+    @NonNull
+    public SessionStats sessionStats() {
+        long now = now();
+        long currentPlayingMillis = playingMillis;
+        long currentStallMillis = stallMillis;
+        if (isStalled) {
+            currentStallMillis += now - stalledSince;
+        } else if (isPlaying) {
+            currentPlayingMillis += now - playingSince;
+        }
+        return new SessionStats(url, timeToFirstByteMillis, startupMillis, rebufferCount, currentStallMillis, currentPlayingMillis);
+    }
+
+    private static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Quality of experience of a single playback session.
+     */
+    public static class SessionStats {
+        /** The url that was loaded, as given by the client. */
+        @Nullable
+        public final String url;
+        /** -1 if no audio arrived. */
+        public final int timeToFirstByteMillis;
+        /** -1 if audio never started playing. */
+        public final int startupMillis;
+        public final int rebufferCount;
+        public final long stallMillis;
+        /** Time that audio played, not counting stalls. */
+        public final long playingMillis;
+
+        public SessionStats(@Nullable String url, int timeToFirstByteMillis, int startupMillis, int rebufferCount,
+                            long stallMillis, long playingMillis) {
+            this.url = url;
+            this.timeToFirstByteMillis = timeToFirstByteMillis;
+            this.startupMillis = startupMillis;
+            this.rebufferCount = rebufferCount;
+            this.stallMillis = stallMillis;
+            this.playingMillis = playingMillis;
+        }
+
+        /**
+         * Share of the time that audio should have played which was spent
+         * stalled, from 0 to 1.
+         */
+        public double stallRatio() {
+            long total = stallMillis + playingMillis;
+            return total > 0 ? (double) stallMillis / total : 0;
+        }
+
+        @NonNull
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("url", url);
+            map.put("timeToFirstByte", timeToFirstByteMillis);
+            map.put("startupTime", startupMillis);
+            map.put("rebufferCount", rebufferCount);
+            map.put("stallTime", stallMillis);
+            map.put("playingTime", playingMillis);
+            map.put("stallRatio", stallRatio());
+            return map;
+        }
+    }
+
+    public interface Callback {
+        /**
+         * @param bufferedPositionMillis how far the audio is buffered, or -1
+         *                               if its length isn't known yet
+         * @param bitrateEstimate        download bitrate in bits per second,
+         *                               or -1 if the engine doesn't measure it
+         */
+        void onBufferingUpdate(int percent, int bufferedPositionMillis, long bitrateEstimate);
+
+        void onStallStarted();
+
+        void onStallEnded(int stallMillis, int rebufferCount);
+
+        void onSessionEnded(@NonNull SessionStats stats);
+    }
+}
@@ -0,0 +1,310 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * {@link AudioEngine} for short local clips, e.g., UI sounds, that need to
+ * start within a few milliseconds.
+ *
+ * Clips are decoded once into memory by a {@link DecodedClipCache} and
+ * played from a static {@code AudioTrack}, which starts without any
+ * buffering. Loading the same clip again reuses its {@code AudioTrack},
+ * so replaying a clip costs no more than rewinding it.
+ *
+ * Must be used on the main thread.
+ */
+public class ClipEngine implements AudioEngine {
+
+    private static final String TAG = "ClipEngine";
+
+    /**
+     * True if the clip engine can play {@code dataSource} at all. Whether it
+     * is short enough is only known once it's decoded.
+     */
+    public static boolean canPlay(@NonNull String dataSource) {
+        return DecodedClipCache.isLocalFile(dataSource);
+    }
+
+    private final DecodedClipCache clips;
+    private final int audioSessionId;
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Identifies the current load so that results of earlier loads are dropped.
+    private Object loadToken;
+    private boolean isPrepared = false;
+    private boolean isAtEnd = false;
+    private DecodedClipCache.DecodedClip clip;
+    private AudioTrack track;
+    private float volume = 1f;
+
+    private final AudioTrack.OnPlaybackPositionUpdateListener endListener = new AudioTrack.OnPlaybackPositionUpdateListener() {
+        @Override
+        public void onMarkerReached(AudioTrack audioTrack) {
+            if (audioTrack == track && isPrepared) {
+                isAtEnd = true;
+                callback.onCompletion();
+            }
+        }
+
+        @Override
+        public void onPeriodicNotification(AudioTrack audioTrack) {}
+    };
+
+    /**
+     * @param audioSessionId the session to play in, so that effects and
+     *                       visualizers of the owning player apply to clips
+     *                       as well
+     */
+    public ClipEngine(@NonNull DecodedClipCache clips, int audioSessionId, @NonNull Callback callback) {
+        this.clips = clips;
+        this.audioSessionId = audioSessionId;
+        this.callback = callback;
+    }
+
+    @Override
+    public void load(@NonNull String dataSource) throws IOException {
+        if (!canPlay(dataSource)) {
+            throw new IOException("Not a local file: " + dataSource);
+        }
+
+        // The previous clip must go quiet right away, not when the new one is ready.
+        isPrepared = false;
+        if (track != null) {
+            track.stop();
+        }
+
+        final Object token = new Object();
+        loadToken = token;
+        clips.load(dataSource, new DecodedClipCache.LoadCallback() {
+            @Override
+            public void onClipLoaded(@NonNull DecodedClipCache.DecodedClip loadedClip) {
+                if (token == loadToken) {
+                    onClipReady(loadedClip);
+                }
+            }
+
+            @Override
+            public void onClipFailed(@NonNull IOException error) {
+                if (token == loadToken) {
+                    Log.w(TAG, "Failed to load clip: " + error.getMessage());
+                    callback.onError(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_UNSUPPORTED);
+                }
+            }
+        });
+    }
+
+    private void onClipReady(@NonNull DecodedClipCache.DecodedClip loadedClip) {
+        if (track != null && loadedClip == clip) {
+            rewind();
+        } else {
+            releaseTrack();
+            clip = loadedClip;
+            track = createTrack(loadedClip);
+            if (track == null) {
+                callback.onError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+                return;
+            }
+            track.setPlaybackPositionUpdateListener(endListener, mainHandler);
+            track.setNotificationMarkerPosition(loadedClip.frameCount());
+            applyVolume();
+        }
+
+        isPrepared = true;
+        callback.onPrepared();
+    }
+
+    @Nullable
+    private AudioTrack createTrack(@NonNull DecodedClipCache.DecodedClip clip) {
+        int channelConfig = clip.channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        try {
+            AudioTrack audioTrack;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                audioTrack = new AudioTrack(
+                        new AudioAttributes.Builder()
+                                .setUsage(AudioAttributes.USAGE_MEDIA)
+                                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                                .build(),
+                        new AudioFormat.Builder()
+                                .setSampleRate(clip.sampleRate)
+                                .setChannelMask(channelConfig)
+                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                                .build(),
+                        clip.pcm.length,
+                        AudioTrack.MODE_STATIC,
+                        audioSessionId
+                );
+            } else {
+                audioTrack = createStreamTypeTrack(clip.sampleRate, channelConfig, clip.pcm.length);
+            }
+            audioTrack.write(clip.pcm, 0, clip.pcm.length);
+            if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+                Log.w(TAG, "AudioTrack failed to initialize.");
+                audioTrack.release();
+                return null;
+            }
+            return audioTrack;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unsupported clip format: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Audio attributes only exist since Lollipop. Before that, the stream
+    // type is the only way to say what a track plays.
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private AudioTrack createStreamTypeTrack(int sampleRate, int channelConfig, int sizeInBytes) {
+        return new AudioTrack(
+                AudioManager.STREAM_MUSIC,
+                sampleRate,
+                channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT,
+                sizeInBytes,
+                AudioTrack.MODE_STATIC,
+                audioSessionId
+        );
+    }
+
+    /**
+     * Moves a static track back to its start. Only a stopped track can be
+     * reloaded.
+     */
+    private void rewind() {
+        track.stop();
+        track.reloadStaticData();
+        track.setNotificationMarkerPosition(clip.frameCount());
+        isAtEnd = false;
+    }
+
+    @Override
+    public void start() {
+        if (isAtEnd) {
+            rewind();
+        }
+        track.play();
+    }
+
+    @Override
+    public void pause() {
+        track.pause();
+    }
+
+    @Override
+    public void stop() {
+        track.stop();
+    }
+
+    @Override
+    public void seekTo(int positionInMillis, boolean isPrecise) {
+        int frame = (int) Math.min((long) positionInMillis * clip.sampleRate / 1000, clip.frameCount());
+        if (isAtEnd) {
+            rewind();
+        }
+
+        // The head of a static track can only be moved while it's paused or stopped.
+        boolean wasPlaying = track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+        if (wasPlaying) {
+            track.pause();
+        }
+        track.setPlaybackHeadPosition(Math.max(frame, 0));
+        if (wasPlaying) {
+            track.play();
+        }
+
+        // Report completion asynchronously, like every other engine does.
+        final Object token = loadToken;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (token == loadToken && isPrepared) {
+                    callback.onSeekComplete();
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean supportsFastSeek() {
+        // Every seek is already as fast as it gets.
+        return false;
+    }
+
+    @Override
+    public int currentPosition() {
+        return track != null ? (int) (track.getPlaybackHeadPosition() * 1000L / clip.sampleRate) : 0;
+    }
+
+    @Override
+    public int duration() {
+        return clip != null ? clip.durationMillis() : 0;
+    }
+
+    @Override
+    public float playbackSpeed() {
+        return 1f;
+    }
+
+    @Override
+    public int audioSessionId() {
+        return audioSessionId;
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        this.volume = volume;
+        if (track != null) {
+            applyVolume();
+        }
+    }
+
+    @Override
+    public long bitrateEstimate() {
+        // Clips are local, nothing is downloaded.
+        return -1;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void applyVolume() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            track.setVolume(volume);
+        } else {
+            track.setStereoVolume(volume, volume);
+        }
+    }
+
+    @Override
+    public void reset() {
+        loadToken = null;
+        isPrepared = false;
+        mainHandler.removeCallbacksAndMessages(null);
+        releaseTrack();
+    }
+
+    @Override
+    public void release() {
+        reset();
+    }
+
+    private void releaseTrack() {
+        if (track != null) {
+            track.setPlaybackPositionUpdateListener(null);
+            track.release();
+            track = null;
+        }
+        clip = null;
+        isAtEnd = false;
+    }
+}
@@ -0,0 +1,76 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.MediaCodec;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Input and output buffers of a started {@link MediaCodec}.
+ *
+ * Since Lollipop the codec hands out each buffer by its index. Earlier
+ * releases only have arrays of all buffers, and the output array has to be
+ * fetched again whenever the codec reports that it changed.
+ */
+class CodecBuffers {
+
+    private final MediaCodec codec;
+    // Only used before Lollipop.
+    private ByteBuffer[] legacyInputBuffers;
+    private ByteBuffer[] legacyOutputBuffers;
+
+    CodecBuffers(@NonNull MediaCodec codec) {
+        this.codec = codec;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            legacyInputBuffers = legacyInputBuffers(codec);
+            legacyOutputBuffers = legacyOutputBuffers(codec);
+        }
+    }
+
+    @NonNull
+    ByteBuffer input(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return codec.getInputBuffer(index);
+        }
+        return legacyInputBuffers[index];
+    }
+
+    @NonNull
+    ByteBuffer output(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return codec.getOutputBuffer(index);
+        }
+        return legacyOutputBuffers[index];
+    }
+
+    /**
+     * To be called with every negative result of
+     * {@link MediaCodec#dequeueOutputBuffer}.
+     */
+    void onOutputInfo(int outputIndex) {
+        if (legacyOutputBuffers != null && isOutputBuffersChanged(outputIndex)) {
+            legacyOutputBuffers = legacyOutputBuffers(codec);
+        }
+    }
+
+    // The buffer arrays are the only buffer API before Lollipop.
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private static ByteBuffer[] legacyInputBuffers(@NonNull MediaCodec codec) {
+        return codec.getInputBuffers();
+    }
+
+    // The buffer arrays are the only buffer API before Lollipop.
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private static ByteBuffer[] legacyOutputBuffers(@NonNull MediaCodec codec) {
+        return codec.getOutputBuffers();
+    }
+
+    // Only matters for the buffer arrays, which are used before Lollipop.
+    @SuppressWarnings("deprecation")
+    private static boolean isOutputBuffersChanged(int outputIndex) {
+        return outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED;
+    }
+}
@@ -0,0 +1,327 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short local audio clips, decoded once into 16 bit PCM and kept in memory
+ * for the {@link ClipEngine}.
+ *
+ * Clips are decoded with {@code MediaExtractor} and {@code MediaCodec} on a
+ * single background thread, which stops when there is nothing to decode.
+ * Decoded clips are kept in an LRU of at most {@code maxSizeInBytes}. Clips
+ * that decode to more than {@link #MAX_CLIP_SIZE_IN_BYTES} aren't short
+ * clips and fail to load, so that they're streamed instead.
+ *
+ * Methods may be called from any thread. {@link LoadCallback}s are invoked
+ * on the main thread.
+ */
+public class DecodedClipCache {
+
+    private static final String TAG = "DecodedClipCache";
+
+    public static final long DEFAULT_MAX_SIZE_IN_BYTES = 8 * 1024 * 1024;
+    /** About 12 seconds of 44.1kHz stereo audio. */
+    public static final int MAX_CLIP_SIZE_IN_BYTES = 2 * 1024 * 1024;
+
+    private static final long DEQUEUE_TIMEOUT_MICROS = 10_000;
+
+    private static DecodedClipCache shared;
+
+    /**
+     * The cache that is used by {@link ClipEngine}s that aren't given one.
+     */
+    @NonNull
+    public static synchronized DecodedClipCache shared() {
+        if (shared == null) {
+            shared = new DecodedClipCache(DEFAULT_MAX_SIZE_IN_BYTES);
+        }
+        return shared;
+    }
+
+    /**
+     * True if {@code dataSource} is a local file, which is what clips are
+     * decoded from.
+     */
+    public static boolean isLocalFile(@NonNull String dataSource) {
+        return dataSource.startsWith("/") || dataSource.startsWith("file://");
+    }
+
+    @NonNull
+    private static String pathOf(@NonNull String dataSource) {
+        return dataSource.startsWith("file://") ? Uri.parse(dataSource).getPath() : dataSource;
+    }
+
+    private final long maxSizeInBytes;
+    private final ThreadPoolExecutor decoder;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this. Access-ordered so that iteration starts with the least recently used clip.
+    private final LinkedHashMap<String, DecodedClip> clips = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, List<LoadCallback>> pendingLoads = new HashMap<>();
+    private long sizeInBytes = 0;
+
+    public DecodedClipCache(long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+        decoder = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        decoder.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the decoded clip if it's in memory.
+     */
+    @Nullable
+    public synchronized DecodedClip get(@NonNull String dataSource) {
+        return clips.get(pathOf(dataSource));
+    }
+
+    /**
+     * Decodes the given local file, unless it's already in memory, and
+     * reports the result to {@code callback}. Concurrent loads of the same
+     * file share a single decode.
+     */
+    public void load(@NonNull String dataSource, @NonNull final LoadCallback callback) {
+        final String path = pathOf(dataSource);
+        final DecodedClip cached;
+        synchronized (this) {
+            cached = clips.get(path);
+            if (cached == null) {
+                List<LoadCallback> callbacks = pendingLoads.get(path);
+                if (callbacks != null) {
+                    callbacks.add(callback);
+                    return;
+                }
+                callbacks = new ArrayList<>();
+                callbacks.add(callback);
+                pendingLoads.put(path, callbacks);
+            }
+        }
+
+        if (cached != null) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onClipLoaded(cached);
+                }
+            });
+            return;
+        }
+
+        decoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                DecodedClip clip = null;
+                IOException error = null;
+                try {
+                    long start = System.nanoTime();
+                    clip = decode(path);
+                    if (AudioLog.DEBUG) {
+                        AudioLog.d(TAG, "Decoded " + path + " in " + (System.nanoTime() - start) / 1000_000 + "ms");
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    // MediaExtractor and MediaCodec report most problems as
+                    // IllegalStateException or IllegalArgumentException.
+                    error = new IOException("Failed to decode " + path, e);
+                }
+                onLoadFinished(path, clip, error);
+            }
+        });
+    }
+
+    /**
+     * Drops all decoded clips from memory.
+     */
+    public synchronized void clear() {
+        clips.clear();
+        sizeInBytes = 0;
+    }
+
+    private void onLoadFinished(@NonNull String path, @Nullable final DecodedClip clip, @Nullable final IOException error) {
+        final List<LoadCallback> callbacks;
+        synchronized (this) {
+            callbacks = pendingLoads.remove(path);
+            if (clip != null) {
+                put(path, clip);
+            }
+        }
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (LoadCallback callback : callbacks) {
+                    if (clip != null) {
+                        callback.onClipLoaded(clip);
+                    } else {
+                        callback.onClipFailed(error);
+                    }
+                }
+            }
+        });
+    }
+
+    // Must hold this.
+    private void put(@NonNull String path, @NonNull DecodedClip clip) {
+        DecodedClip previous = clips.put(path, clip);
+        if (previous != null) {
+            sizeInBytes -= previous.pcm.length;
+        }
+        sizeInBytes += clip.pcm.length;
+
+        Iterator<DecodedClip> iterator = clips.values().iterator();
+        while (sizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+            DecodedClip eldest = iterator.next();
+            if (eldest == clip) {
+                // Always keep the clip that was just decoded, even if it
+                // doesn't fit on its own. Players hold on to it anyway.
+                continue;
+            }
+            iterator.remove();
+            sizeInBytes -= eldest.pcm.length;
+        }
+    }
+
+    @NonNull
+    private static DecodedClip decode(@NonNull String path) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(path);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); ++i) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) {
+                throw new IOException("No audio track in " + path);
+            }
+
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            CodecBuffers buffers = new CodecBuffers(codec);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteArrayOutputStream pcm = new ByteArrayOutputStream(64 * 1024);
+            byte[] chunk = new byte[0];
+
+            boolean isInputDone = false;
+            boolean isOutputDone = false;
+            while (!isOutputDone) {
+                if (!isInputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_MICROS);
+                    if (inputIndex >= 0) {
+                        ByteBuffer inputBuffer = buffers.input(inputIndex);
+                        inputBuffer.clear();
+                        int sampleSize = extractor.readSampleData(inputBuffer, 0);
+                        if (sampleSize < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            isInputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, sampleSize, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_MICROS);
+                if (outputIndex >= 0) {
+                    if (info.size > 0) {
+                        if (pcm.size() + info.size > MAX_CLIP_SIZE_IN_BYTES) {
+                            throw new IOException("Not a short clip, decodes to more than " + MAX_CLIP_SIZE_IN_BYTES + " bytes: " + path);
+                        }
+                        if (chunk.length < info.size) {
+                            chunk = new byte[info.size];
+                        }
+                        ByteBuffer outputBuffer = buffers.output(outputIndex);
+                        outputBuffer.position(info.offset);
+                        outputBuffer.limit(info.offset + info.size);
+                        outputBuffer.get(chunk, 0, info.size);
+                        pcm.write(chunk, 0, info.size);
+                    }
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    isOutputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // The decoder knows better than the container.
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else {
+                    buffers.onOutputInfo(outputIndex);
+                }
+            }
+
+            if (channelCount < 1 || channelCount > 2) {
+                throw new IOException("Unsupported channel count " + channelCount + ": " + path);
+            }
+            return new DecodedClip(pcm.toByteArray(), sampleRate, channelCount);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // The codec failed before it started.
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    /**
+     * 16 bit, interleaved PCM audio.
+     */
+    public static class DecodedClip {
+        public final byte[] pcm;
+        public final int sampleRate;
+        public final int channelCount;
+
+        private DecodedClip(@NonNull byte[] pcm, int sampleRate, int channelCount) {
+            this.pcm = pcm;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+        }
+
+        public int frameCount() {
+            return pcm.length / (2 * channelCount);
+        }
+
+        public int durationMillis() {
+            return (int) (frameCount() * 1000L / sampleRate);
+        }
+    }
+
+    public interface LoadCallback {
+        void onClipLoaded(@NonNull DecodedClip clip);
+
+        void onClipFailed(@NonNull IOException error);
+    }
+}
@@ -0,0 +1,251 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides whether, and when, an {@link AudioPlayer} retries audio that
+ * failed to load or play.
+ *
+ * Errors are classified by their {@code MediaPlayer} codes, which all
+ * engines report. Network errors, timeouts and a crashed media server are
+ * transient, and so are unknown errors of remote audio, which is how many
+ * devices report a dropped connection. Unsupported and malformed audio,
+ * and unknown errors of local files, fail the same way every time and
+ * aren't retried.
+ *
+ * Retries back off exponentially, from {@link #INITIAL_BACKOFF_MILLIS} up to
+ * {@link #MAX_BACKOFF_MILLIS}, for at most {@link #MAX_ATTEMPTS} attempts.
+ * Audio that plays for {@link #STABLE_MILLIS} after a recovery gets a fresh
+ * budget of attempts, so that one bad connection late in a long stream
+ * doesn't use up what an earlier one left.
+ *
+ * Must be used on the main thread.
+ */
+public class ErrorRecovery {
+
+    public static final int MAX_ATTEMPTS = 5;
+    public static final int INITIAL_BACKOFF_MILLIS = 500;
+    public static final int MAX_BACKOFF_MILLIS = 8_000;
+    public static final long STABLE_MILLIS = 30_000;
+
+    /**
+     * What went wrong, as far as the error codes tell.
+     */
+    public enum Kind {
+        /** Reading the audio failed, e.g., because the connection dropped. */
+        network,
+        timedOut,
+        /** The media server crashed and took the player with it. */
+        serverDied,
+        /** The audio uses a format or feature that the device can't play. */
+        unsupported,
+        /** The audio is corrupt or doesn't match its format. */
+        malformed,
+        unknown
+    }
+
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private int attempt = 0;
+    // SystemClock.elapsedRealtime() of the error that started the current
+    // recovery, or -1 if not recovering.
+    private long failedAt = -1;
+    // SystemClock.elapsedRealtime() of the last recovery, or -1 if none.
+    private long recoveredAt = -1;
+    private boolean isRetryPending = false;
+    private int retryAttempt = 0;
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            isRetryPending = false;
+            callback.retry(retryAttempt);
+        }
+    };
+
+    public ErrorRecovery(@NonNull Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Classifies the {@code MediaPlayer.OnErrorListener} codes of an error.
+     *
+     * @param isRemote true if the audio is read over the network
+     */
+    @NonNull
+    public static PlaybackError classify(int what, int extra, boolean isRemote) {
+        Kind kind;
+        if (what == MediaPlayer.MEDIA_ERROR_SERVER_DIED) {
+            kind = Kind.serverDied;
+        } else if (what == MediaPlayer.MEDIA_ERROR_NOT_VALID_FOR_PROGRESSIVE_PLAYBACK) {
+            kind = Kind.unsupported;
+        } else {
+            switch (extra) {
+                case MediaPlayer.MEDIA_ERROR_IO:
+                    kind = Kind.network;
+                    break;
+                case MediaPlayer.MEDIA_ERROR_TIMED_OUT:
+                    kind = Kind.timedOut;
+                    break;
+                case MediaPlayer.MEDIA_ERROR_UNSUPPORTED:
+                    kind = Kind.unsupported;
+                    break;
+                case MediaPlayer.MEDIA_ERROR_MALFORMED:
+                    kind = Kind.malformed;
+                    break;
+                default:
+                    kind = Kind.unknown;
+                    break;
+            }
+        }
+
+        boolean isRecoverable;
+        switch (kind) {
+            case network:
+            case timedOut:
+            case serverDied:
+                isRecoverable = true;
+                break;
+            case unknown:
+                isRecoverable = isRemote;
+                break;
+            default:
+                isRecoverable = false;
+                break;
+        }
+        return new PlaybackError(what, extra, kind, isRecoverable);
+    }
+
+    /**
+     * True between an error that is being retried and the moment that the
+     * audio is ready again, or the recovery is given up.
+     */
+    public boolean isRecovering() {
+        return failedAt >= 0;
+    }
+
+    public boolean isRetryPending() {
+        return isRetryPending;
+    }
+
+    /**
+     * Schedules a retry of the failed audio, unless the error is permanent
+     * or the attempts are used up.
+     *
+     * @return the number of the scheduled attempt, starting at 1, or 0 if
+     *         the error is final
+     */
+    public int onError(@NonNull PlaybackError error) {
+        long now = SystemClock.elapsedRealtime();
+        if (recoveredAt >= 0 && now - recoveredAt >= STABLE_MILLIS) {
+            attempt = 0;
+        }
+        recoveredAt = -1;
+
+        if (!error.isRecoverable || attempt >= MAX_ATTEMPTS) {
+            cancel();
+            return 0;
+        }
+
+        if (failedAt < 0) {
+            failedAt = now;
+        }
+        ++attempt;
+        retryAttempt = attempt;
+        isRetryPending = true;
+        mainHandler.removeCallbacks(retry);
+        mainHandler.postDelayed(retry, backoffMillis(attempt));
+        return attempt;
+    }
+
+    /**
+     * Delay before the given attempt.
+     */
+    public static int backoffMillis(int attempt) {
+        int shift = Math.min(attempt - 1, 16);
+        return (int) Math.min((long) INITIAL_BACKOFF_MILLIS << shift, MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * The audio is ready again. Reports the recovery if there was one.
+     */
+    public void onReady() {
+        if (failedAt < 0 || isRetryPending) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        int attempts = attempt;
+        int recoveryMillis = (int) (now - failedAt);
+        failedAt = -1;
+        recoveredAt = now;
+        callback.onRecovered(attempts, recoveryMillis);
+    }
+
+    /**
+     * Gives up the current recovery, e.g., because other audio was loaded,
+     * and starts over with a fresh budget of attempts.
+     */
+    public void cancel() {
+        mainHandler.removeCallbacks(retry);
+        isRetryPending = false;
+        attempt = 0;
+        failedAt = -1;
+        recoveredAt = -1;
+    }
+
+    /**
+     * A classified playback error.
+     */
+    public static class PlaybackError {
+        /** The {@code what} code of {@code MediaPlayer.OnErrorListener}. */
+        public final int what;
+        /** The {@code extra} code of {@code MediaPlayer.OnErrorListener}. */
+        public final int extra;
+        @NonNull
+        public final Kind kind;
+        public final boolean isRecoverable;
+
+        public PlaybackError(int what, int extra, @NonNull Kind kind, boolean isRecoverable) {
+            this.what = what;
+            this.extra = extra;
+            this.kind = kind;
+            this.isRecoverable = isRecoverable;
+        }
+
+        @NonNull
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("what", what);
+            map.put("extra", extra);
+            map.put("kind", kind.name());
+            map.put("recoverable", isRecoverable);
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " (what: " + what + ", extra: " + extra + ")";
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Time to load the failed audio again.
+         */
+        void retry(int attempt);
+
+        /**
+         * The audio is ready again after {@code attempts} retries, which took
+         * {@code recoveryMillis} since the first error in total.
+         */
+        void onRecovered(int attempts, int recoveryMillis);
+    }
+}
@@ -0,0 +1,404 @@
+package io.fluttery.flutteryaudio;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SeekParameters;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.source.ExtractorMediaSource;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.dash.DashMediaSource;
+import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
+import com.google.android.exoplayer2.source.hls.HlsMediaSource;
+import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.IOException;
+
+/**
+ * {@link AudioEngine} backed by ExoPlayer, for HLS and DASH streams with
+ * adaptive bitrate, and for control over how much audio is buffered.
+ *
+ * The plugin only compiles against ExoPlayer. Apps that want this engine
+ * add {@code exoplayer-core}, and {@code exoplayer-hls} or
+ * {@code exoplayer-dash} for those formats, to their own dependencies.
+ * Check {@link #isAvailable()} before creating the engine.
+ *
+ * Must be created and used on the main thread, which is where its events
+ * arrive. The exceptions are {@link #currentPosition()}, {@link #duration()}
+ * and {@link #playbackSpeed()}, which the position reporter calls on its own
+ * thread. ExoPlayer must not be used there, so they answer from a
+ * {@link PlaybackSnapshot} that the main thread keeps up to date.
+ */
+public class ExoPlayerEngine implements AudioEngine {
+
+    private static final String TAG = "ExoPlayerEngine";
+
+    private static final String PLAYER_CLASS = "com.google.android.exoplayer2.SimpleExoPlayer";
+    private static final String HLS_CLASS = "com.google.android.exoplayer2.source.hls.HlsMediaSource";
+    private static final String DASH_CLASS = "com.google.android.exoplayer2.source.dash.DashMediaSource";
+
+    /**
+     * True if the app bundles ExoPlayer. This class can be loaded without
+     * ExoPlayer, but must not be instantiated.
+     */
+    public static boolean isAvailable() {
+        return isClassAvailable(PLAYER_CLASS);
+    }
+
+    private static boolean isClassAvailable(@NonNull String className) {
+        try {
+            Class.forName(className);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private final Callback callback;
+    private final DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
+    private final DataSource.Factory dataSourceFactory;
+    private final SimpleExoPlayer player;
+    private final PlaybackSnapshot snapshot = new PlaybackSnapshot();
+
+    private boolean isPreparing = false;
+    private boolean isSeeking = false;
+    private boolean hasEnded = false;
+    private boolean isBuffering = false;
+    private int bufferedPercentage = -1;
+
+    public ExoPlayerEngine(@NonNull Context context, @NonNull Config config, @NonNull Callback callback) {
+        this.callback = callback;
+
+        AdaptiveTrackSelection.Factory trackSelectionFactory = new AdaptiveTrackSelection.Factory(
+                bandwidthMeter,
+                config.maxInitialBitrate > 0 ? config.maxInitialBitrate : AdaptiveTrackSelection.DEFAULT_MAX_INITIAL_BITRATE,
+                AdaptiveTrackSelection.DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS,
+                AdaptiveTrackSelection.DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS,
+                AdaptiveTrackSelection.DEFAULT_MIN_DURATION_TO_RETAIN_AFTER_DISCARD_MS,
+                config.bandwidthFraction > 0 ? config.bandwidthFraction : AdaptiveTrackSelection.DEFAULT_BANDWIDTH_FRACTION
+        );
+        DefaultLoadControl loadControl = new DefaultLoadControl(
+                new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE),
+                config.minBufferMs > 0 ? config.minBufferMs : DefaultLoadControl.DEFAULT_MIN_BUFFER_MS,
+                config.maxBufferMs > 0 ? config.maxBufferMs : DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
+                config.bufferForPlaybackMs > 0 ? config.bufferForPlaybackMs : DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS,
+                config.bufferForPlaybackAfterRebufferMs > 0
+                        ? config.bufferForPlaybackAfterRebufferMs
+                        : DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS
+        );
+
+        player = ExoPlayerFactory.newSimpleInstance(
+                new DefaultRenderersFactory(context),
+                new DefaultTrackSelector(trackSelectionFactory),
+                loadControl
+        );
+        player.addListener(new PlayerEvents());
+
+        // The bandwidth meter watches every transfer so that track selection
+        // adapts to the measured throughput.
+        dataSourceFactory = new DefaultDataSourceFactory(context, Util.getUserAgent(context, "fluttery_audio"), bandwidthMeter);
+    }
+
+    /**
+     * Current estimate of the download bitrate in bits per second, or -1
+     * before enough has been downloaded.
+     */
+    @Override
+    public long bitrateEstimate() {
+        long estimate = bandwidthMeter.getBitrateEstimate();
+        return estimate == BandwidthMeter.NO_ESTIMATE ? -1 : estimate;
+    }
+
+    @Override
+    public void load(@NonNull String dataSource) throws IOException {
+        isPreparing = true;
+        isSeeking = false;
+        hasEnded = false;
+        isBuffering = false;
+        bufferedPercentage = -1;
+        player.setPlayWhenReady(false);
+        player.prepare(mediaSourceFor(Uri.parse(dataSource)), true, true);
+        updateSnapshot();
+    }
+
+    @NonNull
+    private MediaSource mediaSourceFor(@NonNull Uri uri) throws IOException {
+        String lastPathSegment = uri.getLastPathSegment();
+        int type = lastPathSegment != null ? Util.inferContentType(lastPathSegment) : C.TYPE_OTHER;
+        switch (type) {
+            case C.TYPE_HLS:
+                if (!isClassAvailable(HLS_CLASS)) {
+                    throw new IOException("HLS needs exoplayer-hls: " + uri);
+                }
+                return new HlsMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+            case C.TYPE_DASH:
+                if (!isClassAvailable(DASH_CLASS)) {
+                    throw new IOException("DASH needs exoplayer-dash: " + uri);
+                }
+                return new DashMediaSource.Factory(new DefaultDashChunkSource.Factory(dataSourceFactory), dataSourceFactory)
+                        .createMediaSource(uri);
+            default:
+                return new ExtractorMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+        }
+    }
+
+    @Override
+    public void start() {
+        if (hasEnded) {
+            // Like a completed MediaPlayer, start over.
+            hasEnded = false;
+            player.seekTo(0);
+        }
+        player.setPlayWhenReady(true);
+        updateSnapshot();
+    }
+
+    @Override
+    public void pause() {
+        player.setPlayWhenReady(false);
+        updateSnapshot();
+    }
+
+    @Override
+    public void stop() {
+        player.stop();
+        updateSnapshot();
+    }
+
+    @Override
+    public void seekTo(int positionInMillis, boolean isPrecise) {
+        isSeeking = true;
+        hasEnded = false;
+        player.setSeekParameters(isPrecise ? SeekParameters.EXACT : SeekParameters.CLOSEST_SYNC);
+        player.seekTo(positionInMillis);
+        updateSnapshot();
+    }
+
+    @Override
+    public boolean supportsFastSeek() {
+        return true;
+    }
+
+    @Override
+    public int currentPosition() {
+        if (isOnMainThread()) {
+            updateSnapshot();
+        }
+        return snapshot.position(SystemClock.elapsedRealtime());
+    }
+
+    @Override
+    public int duration() {
+        if (isOnMainThread()) {
+            updateSnapshot();
+        }
+        return snapshot.duration();
+    }
+
+    @Override
+    public float playbackSpeed() {
+        if (isOnMainThread()) {
+            updateSnapshot();
+        }
+        return snapshot.speed();
+    }
+
+    private static boolean isOnMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Records the player's current values for readers on other threads.
+     * Called on the main thread whenever the position may have jumped, or
+     * stopped or started advancing.
+     */
+    private void updateSnapshot() {
+        long duration = player.getDuration();
+        boolean isAdvancing = player.getPlayWhenReady() && player.getPlaybackState() == Player.STATE_READY;
+        snapshot.update(
+                player.getCurrentPosition(),
+                // MediaPlayer reports unknown durations, e.g., of live streams, as -1.
+                duration == C.TIME_UNSET ? -1 : duration,
+                player.getPlaybackParameters().speed,
+                isAdvancing,
+                SystemClock.elapsedRealtime()
+        );
+    }
+
+    @Override
+    public int audioSessionId() {
+        return player.getAudioSessionId();
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        player.setVolume(volume);
+    }
+
+    @Override
+    public void reset() {
+        isPreparing = false;
+        isSeeking = false;
+        hasEnded = false;
+        isBuffering = false;
+        player.stop();
+        updateSnapshot();
+    }
+
+    @Override
+    public void release() {
+        reset();
+        player.release();
+    }
+
+    private void reportBufferedPercentage() {
+        int percentage = player.getBufferedPercentage();
+        if (percentage != bufferedPercentage) {
+            bufferedPercentage = percentage;
+            callback.onBufferingUpdate(percentage);
+        }
+    }
+
+    private class PlayerEvents extends Player.DefaultEventListener {
+        @Override
+        public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+            updateSnapshot();
+            switch (playbackState) {
+                case Player.STATE_READY:
+                    if (isPreparing) {
+                        isPreparing = false;
+                        callback.onPrepared();
+                    }
+                    break;
+                case Player.STATE_ENDED:
+                    if (!hasEnded && !isPreparing) {
+                        hasEnded = true;
+                        callback.onCompletion();
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (playbackState != Player.STATE_IDLE) {
+                reportBufferedPercentage();
+            }
+
+            // Buffering while preparing is part of loading, not running out of audio.
+            boolean isBufferingNow = playbackState == Player.STATE_BUFFERING && !isPreparing;
+            if (isBufferingNow != isBuffering) {
+                isBuffering = isBufferingNow;
+                callback.onBufferingChanged(isBuffering);
+            }
+        }
+
+        @Override
+        public void onTimelineChanged(Timeline timeline, Object manifest, int reason) {
+            // The duration becomes known, or changes for a live stream.
+            updateSnapshot();
+        }
+
+        @Override
+        public void onPositionDiscontinuity(int reason) {
+            updateSnapshot();
+        }
+
+        @Override
+        public void onLoadingChanged(boolean isLoading) {
+            reportBufferedPercentage();
+        }
+
+        @Override
+        public void onSeekProcessed() {
+            updateSnapshot();
+            if (isSeeking) {
+                isSeeking = false;
+                callback.onSeekComplete();
+            }
+        }
+
+        @Override
+        public void onPlayerError(ExoPlaybackException error) {
+            Log.w(TAG, "Playback failed.", error);
+            isPreparing = false;
+            isSeeking = false;
+            // Reported with MediaPlayer codes so that listeners don't need to
+            // know which engine failed.
+            int extra = error.type == ExoPlaybackException.TYPE_SOURCE
+                    ? MediaPlayer.MEDIA_ERROR_IO
+                    : MediaPlayer.MEDIA_ERROR_MALFORMED;
+            callback.onError(MediaPlayer.MEDIA_ERROR_UNKNOWN, extra);
+        }
+    }
+
+    /**
+     * Buffering and bitrate selection of an {@link ExoPlayerEngine}. Zero means
+     * ExoPlayer's default.
+     */
+    public static class Config {
+
+        public static final Config DEFAULT = new Config(0, 0, 0, 0, 0, 0f);
+
+        /** Playback keeps at least this much audio buffered, if it can. */
+        public final int minBufferMs;
+        /** Buffering stops at this much audio. */
+        public final int maxBufferMs;
+        /** Audio needed before playback starts. Lower starts faster, but may stall. */
+        public final int bufferForPlaybackMs;
+        /** Audio needed before playback continues after a stall. */
+        public final int bufferForPlaybackAfterRebufferMs;
+        /** Highest bitrate to start adaptive streams with, before bandwidth is measured. */
+        public final int maxInitialBitrate;
+        /** Fraction of the measured bandwidth that adaptive streams may use. */
+        public final float bandwidthFraction;
+
+        public Config(int minBufferMs, int maxBufferMs, int bufferForPlaybackMs, int bufferForPlaybackAfterRebufferMs,
+                      int maxInitialBitrate, float bandwidthFraction) {
+            this.minBufferMs = minBufferMs;
+            this.maxBufferMs = maxBufferMs;
+            this.bufferForPlaybackMs = bufferForPlaybackMs;
+            this.bufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+            this.maxInitialBitrate = maxInitialBitrate;
+            this.bandwidthFraction = bandwidthFraction;
+        }
+    }
+
+    /**
+     * Creates an {@link ExoPlayerEngine} for every {@link AudioPlayer} that
+     * streams with it.
+     */
+    public static class Factory implements AudioEngine.Factory {
+
+        private final Context context;
+        private final Config config;
+
+        public Factory(@NonNull Context context, @NonNull Config config) {
+            this.context = context.getApplicationContext();
+            this.config = config;
+        }
+
+        @NonNull
+        @Override
+        public AudioEngine create(@NonNull Callback callback) {
+            return new ExoPlayerEngine(context, config, callback);
+        }
+    }
+}
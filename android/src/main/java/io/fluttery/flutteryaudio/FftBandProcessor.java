@@ -0,0 +1,250 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Turns the raw FFT captured by {@code android.media.audiofx.Visualizer} into
+ * a small number of logarithmically spaced frequency bands that are ready to
+ * be drawn as bars.
+ *
+ * The Visualizer FFT of capture size {@code n} holds {@code n / 2 + 1}
+ * frequency bins: {@code fft[0]} is the real part of the DC bin,
+ * {@code fft[1]} is the real part of the Nyquist bin, and
+ * {@code fft[2k], fft[2k + 1]} are the real and imaginary parts of bin
+ * {@code k} for {@code 0 < k < n / 2}.
+ *
+ * Each band is the average level of the bins that it covers. Levels are
+ * smoothed over time with separate attack and decay rates, and every band
+ * has a peak marker that holds for a number of frames before it falls.
+ *
+ * The bin ranges of the bands are computed once per capture size and
+ * sampling rate. Processing a frame doesn't allocate.
+ *
+ * Instances are not thread-safe. A processor is meant to be fed from the
+ * Visualizer's capture thread.
+ */
+public class FftBandProcessor {
+
+    public static final float DEFAULT_MIN_FREQUENCY_HZ = 40f;
+    public static final float DEFAULT_ATTACK = 0.6f;
+    public static final float DEFAULT_DECAY = 0.15f;
+    public static final int DEFAULT_PEAK_HOLD_FRAMES = 15;
+    public static final float DEFAULT_PEAK_FALL_PER_FRAME = 0.02f;
+
+    // Largest possible magnitude of a bin whose real and imaginary parts are bytes.
+    private static final float LOG_MAX_MAGNITUDE = (float) Math.log1p(Math.sqrt(2 * 128 * 128));
+
+    private static final double EDGE_TOLERANCE_IN_BINS = 1e-9;
+
+    private final int bandCount;
+    private final float minFrequencyHz;
+    private final float attack;
+    private final float decay;
+    private final int peakHoldFrames;
+    private final float peakFallPerFrame;
+
+    // Band -> bin index tables, inclusive start and exclusive end.
+    private final int[] bandStartBin;
+    private final int[] bandEndBin;
+
+    private final float[] levels;
+    private final float[] peaks;
+    private final int[] peakAges;
+
+    private int tableCaptureSize = -1;
+    private int tableSamplingRate = -1;
+
+    public FftBandProcessor(int bandCount) {
+        this(
+                bandCount,
+                DEFAULT_MIN_FREQUENCY_HZ,
+                DEFAULT_ATTACK,
+                DEFAULT_DECAY,
+                DEFAULT_PEAK_HOLD_FRAMES,
+                DEFAULT_PEAK_FALL_PER_FRAME
+        );
+    }
+
+    /**
+     * @param bandCount number of bands to produce
+     * @param minFrequencyHz lower edge of the lowest band
+     * @param attack fraction, in (0, 1], of a rising level that is applied per frame
+     * @param decay fraction, in (0, 1], of a falling level that is applied per frame
+     * @param peakHoldFrames number of frames that a peak holds before it starts to fall
+     * @param peakFallPerFrame amount that a peak falls per frame once it's no longer held
+     */
+    public FftBandProcessor(
+            int bandCount,
+            float minFrequencyHz,
+            float attack,
+            float decay,
+            int peakHoldFrames,
+            float peakFallPerFrame
+    ) {
+        if (bandCount < 1) {
+            throw new IllegalArgumentException("bandCount must be at least 1, was: " + bandCount);
+        }
+        if (attack <= 0f || attack > 1f || decay <= 0f || decay > 1f) {
+            throw new IllegalArgumentException("attack and decay must be in (0, 1], were: " + attack + ", " + decay);
+        }
+
+        this.bandCount = bandCount;
+        this.minFrequencyHz = minFrequencyHz;
+        this.attack = attack;
+        this.decay = decay;
+        this.peakHoldFrames = peakHoldFrames;
+        this.peakFallPerFrame = peakFallPerFrame;
+
+        bandStartBin = new int[bandCount];
+        bandEndBin = new int[bandCount];
+        levels = new float[bandCount];
+        peaks = new float[bandCount];
+        peakAges = new int[bandCount];
+    }
+
+    public int bandCount() {
+        return bandCount;
+    }
+
+    /**
+     * Smoothed band levels in [0, 1], lowest frequency first.
+     *
+     * The returned array is owned by this processor and is overwritten by
+     * the next call to {@link #process(byte[], int)}.
+     */
+    @NonNull
+    public float[] levels() {
+        return levels;
+    }
+
+    /**
+     * Peak markers in [0, 1] for each band, lowest frequency first.
+     *
+     * The returned array is owned by this processor and is overwritten by
+     * the next call to {@link #process(byte[], int)}.
+     */
+    @NonNull
+    public float[] peaks() {
+        return peaks;
+    }
+
+    /**
+     * Processes one Visualizer FFT capture and updates {@link #levels()} and {@link #peaks()}.
+     *
+     * @param fft FFT as delivered by {@code Visualizer.OnDataCaptureListener}
+     * @param samplingRate sampling rate in milliHertz as delivered by the Visualizer
+     */
+    public void process(@NonNull byte[] fft, int samplingRate) {
+        if (fft.length != tableCaptureSize || samplingRate != tableSamplingRate) {
+            buildBandTables(fft.length, samplingRate);
+        }
+
+        for (int band = 0; band < bandCount; ++band) {
+            int startBin = bandStartBin[band];
+            int endBin = bandEndBin[band];
+
+            float sum = 0f;
+            for (int bin = startBin; bin < endBin; ++bin) {
+                sum += magnitude(fft, bin);
+            }
+            float magnitude = sum / (endBin - startBin);
+            float target = (float) Math.log1p(magnitude) / LOG_MAX_MAGNITUDE;
+            if (target > 1f) {
+                target = 1f;
+            }
+
+            float level = levels[band];
+            level += (target > level ? attack : decay) * (target - level);
+            levels[band] = level;
+
+            if (level >= peaks[band]) {
+                peaks[band] = level;
+                peakAges[band] = 0;
+            } else if (peakAges[band] < peakHoldFrames) {
+                ++peakAges[band];
+            } else {
+                peaks[band] = Math.max(level, peaks[band] - peakFallPerFrame);
+            }
+        }
+    }
+
+    /**
+     * Writes the current levels followed by the current peaks into
+     * {@code out} as unsigned bytes in [0, 255].
+     *
+     * @return the number of bytes written, which is twice the band count
+     */
+    public int writeFrame(@NonNull byte[] out) {
+        for (int band = 0; band < bandCount; ++band) {
+            out[band] = (byte) Math.round(levels[band] * 255f);
+            out[bandCount + band] = (byte) Math.round(peaks[band] * 255f);
+        }
+        return 2 * bandCount;
+    }
+
+    /**
+     * Clears smoothing and peak state, e.g., when capture restarts.
+     */
+    public void reset() {
+        for (int band = 0; band < bandCount; ++band) {
+            levels[band] = 0f;
+            peaks[band] = 0f;
+            peakAges[band] = 0;
+        }
+    }
+
+    private static float magnitude(@NonNull byte[] fft, int bin) {
+        int lastBin = fft.length / 2;
+        if (bin == 0) {
+            return Math.abs(fft[0]);
+        } else if (bin == lastBin) {
+            return Math.abs(fft[1]);
+        } else {
+            float real = fft[2 * bin];
+            float imaginary = fft[2 * bin + 1];
+            return (float) Math.sqrt(real * real + imaginary * imaginary);
+        }
+    }
+
+    /**
+     * Splits the bins between {@code minFrequencyHz} and Nyquist into
+     * {@code bandCount} logarithmically spaced ranges. Every band covers at
+     * least one bin, so low bands may overlap when there are fewer low bins
+     * than low bands. The highest band includes the Nyquist bin.
+     *
+     * Edges are computed in bins rather than Hz. With power of two capture
+     * sizes they often land exactly on a bin, and rounding error must not
+     * decide which band such a bin belongs to.
+     */
+    private void buildBandTables(int captureSize, int samplingRate) {
+        int lastBin = captureSize / 2;
+        double binWidthHz = samplingRate / 2000.0 / lastBin;
+
+        // The DC bin carries no useful information for a visualization.
+        double logLow = Math.log(Math.max(minFrequencyHz / binWidthHz, 1));
+        double logStep = (Math.log(lastBin) - logLow) / bandCount;
+
+        for (int band = 0; band < bandCount; ++band) {
+            double startEdge = Math.exp(logLow + band * logStep);
+            double endEdge = Math.exp(logLow + (band + 1) * logStep);
+
+            int startBin = (int) Math.floor(startEdge + EDGE_TOLERANCE_IN_BINS);
+            int endBin = band == bandCount - 1
+                    ? lastBin + 1
+                    : (int) Math.ceil(endEdge - EDGE_TOLERANCE_IN_BINS);
+
+            startBin = clamp(startBin, 1, lastBin);
+            endBin = clamp(endBin, startBin + 1, lastBin + 1);
+
+            bandStartBin[band] = startBin;
+            bandEndBin[band] = endBin;
+        }
+
+        tableCaptureSize = captureSize;
+        tableSamplingRate = samplingRate;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
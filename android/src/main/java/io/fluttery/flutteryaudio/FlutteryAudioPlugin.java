@@ -1,15 +1,26 @@
 package io.fluttery.flutteryaudio;
 
-import android.media.MediaPlayer;
-import android.media.audiofx.Visualizer;
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
@@ -23,8 +34,15 @@ import io.flutter.plugin.common.PluginRegistry.Registrar;
 public class FlutteryAudioPlugin implements MethodCallHandler {
   private static final String TAG = "FlutteryAudioPlugin";
 
-  private static final Pattern METHOD_NAME_MATCH = Pattern.compile("audioplayer/([^/]+)/([^/]+)");
-  private static final Pattern VISUALIZER_METHOD_NAME_MATCH = Pattern.compile("audiovisualizer/([^/]+)");
+  private static final String VISUALIZER_METHOD_PREFIX = "audiovisualizer/";
+  private static final String CACHE_METHOD_PREFIX = "audiocache/";
+  private static final String SERVICE_METHOD_PREFIX = "audioservice/";
+  private static final String ENGINE_METHOD_PREFIX = "audioengine/";
+  private static final String METRICS_METHOD_PREFIX = "audiometrics/";
+  private static final String WAVEFORM_METHOD_PREFIX = "audiowaveform/";
+  private static final String EFFECTS_METHOD_PREFIX = "audioeffects/";
+  private static final String CACHE_DIRECTORY_NAME = "fluttery_audio";
+  private static final String WAVEFORM_DIRECTORY_NAME = "fluttery_audio_waveforms";
 
   private static MethodChannel channel;
   private static MethodChannel visualizerChannel;
@@ -33,214 +51,785 @@ public class FlutteryAudioPlugin implements MethodCallHandler {
    * Plugin registration.
    */
   public static void registerWith(Registrar registrar) {
+    FlutteryAudioPlugin plugin = new FlutteryAudioPlugin(registrar.context());
     channel = new MethodChannel(registrar.messenger(), "fluttery_audio");
-    channel.setMethodCallHandler(new FlutteryAudioPlugin());
+    channel.setMethodCallHandler(plugin);
 
+    if (FlutteryAudioService.isRunning()) {
+      // The activity was recreated while the service kept playing. Pick up
+      // its players before Flutter sends the first command.
+      plugin.connectToService(null);
+    }
+
+    final FlutteryAudioVisualizerPlugin visualizerPlugin = new FlutteryAudioVisualizerPlugin(
+        plugin,
+        new VisualizerFrameTransport(registrar.messenger())
+    );
     visualizerChannel = new MethodChannel(registrar.messenger(), "fluttery_audio_visualizer");
-    visualizerChannel.setMethodCallHandler(new FlutteryAudioVisualizerPlugin());
+    visualizerChannel.setMethodCallHandler(visualizerPlugin);
+
+    final Activity activity = registrar.activity();
+    if (activity != null) {
+      activity.getApplication().registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityCreated(Activity a, Bundle savedInstanceState) {}
+
+        @Override
+        public void onActivityStarted(Activity a) {
+          if (a == activity) {
+            visualizerPlugin.setBackgrounded(false);
+          }
+        }
+
+        @Override
+        public void onActivityResumed(Activity a) {}
+
+        @Override
+        public void onActivityPaused(Activity a) {}
+
+        @Override
+        public void onActivityStopped(Activity a) {
+          if (a == activity) {
+            visualizerPlugin.setBackgrounded(true);
+          }
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity a, Bundle outState) {}
+
+        @Override
+        public void onActivityDestroyed(Activity a) {
+          if (a == activity) {
+            // A recreated activity registers the plugin again, so these
+            // callbacks must not keep the old activity alive.
+            a.getApplication().unregisterActivityLifecycleCallbacks(this);
+          }
+        }
+      });
+    }
   }
 
-  private AudioPlayer player; // TODO: support multiple players.
+  private final Context context;
+  // Owned by the plugin until it connects to FlutteryAudioService, and by
+  // the service afterwards.
+  private AudioPlayerRegistry players;
+  private boolean isConnectingToService = false;
+  private boolean isServiceConnected = false;
+  private final List<Result> pendingServiceResults = new ArrayList<>();
+  // Null unless Flutter opted into caching with "audiocache/configure".
+  private AudioCacheProxy cacheProxy;
+  private AudioPrefetcher prefetcher;
+  // Null unless Flutter opted into another streaming engine with "audioengine/configure".
+  private AudioEngine.Factory streamingEngineFactory;
+  // Created with the first "audiowaveform/" call.
+  private WaveformIndex waveforms;
+
+  private final AudioPlayer.DataSourceResolver cacheResolver = new AudioPlayer.DataSourceResolver() {
+    @NonNull
+    @Override
+    public String resolve(@NonNull String url) {
+      return cacheProxy != null ? cacheProxy.proxyUrl(url) : url;
+    }
+  };
 
-  public FlutteryAudioPlugin() {
-    final MediaPlayer mediaPlayer = new MediaPlayer();
-    player = new AudioPlayer(mediaPlayer);
+  private final AudioPlayerRegistry.Callbacks registryCallbacks = new AudioPlayerRegistry.Callbacks() {
+    @Override
+    public void onPlayerCreated(@NonNull String playerId, @NonNull AudioPlayer player) {
+      player.setDataSourceResolver(cacheResolver);
+      player.setStreamingEngineFactory(streamingEngineFactory);
+      player.addListener(new ChannelListener(playerId, player));
+    }
 
-    player.addListener(new AudioPlayer.Listener() {
+    @Override
+    public void onPlayerReleased(@NonNull String playerId) {
+      AudioLog.d(TAG, "Android -> Flutter: onPlayerReleased()");
+      channel.invokeMethod("onPlayerReleased", playerArgs(playerId));
+    }
+  };
 
-      @Override
-      public void onAudioLoading() {
-        Log.d(TAG, "Android -> Flutter: onAudioLoading()");
-        channel.invokeMethod("onAudioLoading", null);
-      }
+  private final ServiceConnection serviceConnection = new ServiceConnection() {
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+      AudioLog.d(TAG, "Connected to FlutteryAudioService.");
+      onServiceReady((FlutteryAudioService.PlayersBinder) service);
+    }
 
-      @Override
-      public void onBufferingUpdate(int percent) {
-        Log.d(TAG, "Android -> Flutter: onBufferingUpdate()");
-        channel.invokeMethod("onBufferingUpdate", null);
-      }
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+      // The service runs in our process, so this only happens if it crashed,
+      // which took its players with it.
+      Log.w(TAG, "Lost connection to FlutteryAudioService.");
+      isServiceConnected = false;
+      players = new AudioPlayerRegistry(registryCallbacks);
+    }
+  };
 
-      @Override
-      public void onAudioReady() {
-        Log.d(TAG, "Android -> Flutter: onAudioReady()");
-        Map<String, Object> args = new HashMap<>();
-        args.put("audioLength", player.audioLength());
-        channel.invokeMethod("onAudioReady", args);
-      }
+  public FlutteryAudioPlugin(@NonNull Context context) {
+    this.context = context;
+    players = new AudioPlayerRegistry(registryCallbacks);
+  }
 
-      @Override
-      public void onPlayerPlaying() {
-        Log.d(TAG, "Android -> Flutter: onPlayerPlaying()");
-        channel.invokeMethod("onPlayerPlaying", null);
-      }
+  @Override
+  public void onMethodCall(MethodCall call, Result result) {
+    long startNanos = System.nanoTime();
+    AudioLog.d(TAG, "Flutter -> Android: ", call.method);
+    AudioLog.trace(TAG, call.method, 0);
+    try {
+      dispatchMethodCall(call, result);
+    } finally {
+      PlaybackMetrics.shared().recordSince(PlaybackMetrics.Timer.channelDispatch, startNanos);
+    }
+  }
 
-      @Override
-      public void onPlayerPlaybackUpdate(int position, int audioLength) {
-//        Log.d(TAG, "Android -> Flutter: onPlayerPlaybackUpdate()");
-        Map<String, Object> args = new HashMap<>();
-        args.put("position", position);
-        args.put("audioLength", audioLength);
-        channel.invokeMethod("onPlayerPlaybackUpdate", args);
+  private void dispatchMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+    if (call.method.startsWith(METRICS_METHOD_PREFIX)) {
+      onMetricsMethodCall(call.method.substring(METRICS_METHOD_PREFIX.length()), call, result);
+      return;
+    }
+    if (call.method.startsWith(WAVEFORM_METHOD_PREFIX)) {
+      onWaveformMethodCall(call.method.substring(WAVEFORM_METHOD_PREFIX.length()), call, result);
+      return;
+    }
+    if (call.method.startsWith(EFFECTS_METHOD_PREFIX)) {
+      onEffectsMethodCall(call.method.substring(EFFECTS_METHOD_PREFIX.length()), call, result);
+      return;
+    }
+    if (call.method.startsWith(CACHE_METHOD_PREFIX)) {
+      onCacheMethodCall(call.method.substring(CACHE_METHOD_PREFIX.length()), call, result);
+      return;
+    }
+    if (call.method.startsWith(ENGINE_METHOD_PREFIX)) {
+      onEngineMethodCall(call.method.substring(ENGINE_METHOD_PREFIX.length()), call, result);
+      return;
+    }
+    if (call.method.startsWith(SERVICE_METHOD_PREFIX)) {
+      onServiceMethodCall(call.method.substring(SERVICE_METHOD_PREFIX.length()), result);
+      return;
+    }
+
+    String playerId = AudioPlayerCommands.playerIdOf(call.method);
+    String command = AudioPlayerCommands.commandOf(call.method);
+    if (playerId == null || command == null) {
+      AudioLog.d(TAG, "Match not found");
+      result.notImplemented();
+      return;
+    }
+
+    if (AudioPlayerCommands.RELEASE.equals(command)) {
+      players.release(playerId);
+      result.success(null);
+      return;
+    }
+
+    if (AudioPlayerCommands.SET_AUDIO_FOCUS.equals(command)) {
+      Boolean isEnabled = call.argument("enabled");
+      players.obtain(playerId).setAudioFocusController(
+          isEnabled != null && isEnabled ? AudioFocusController.shared(context) : null
+      );
+      result.success(null);
+      return;
+    }
+
+    if (AudioPlayerCommands.BATCH.equals(command)) {
+      Object operations = call.argument("operations");
+      if (!(operations instanceof List)) {
+        result.error("invalid_arguments", "Missing argument: operations", null);
+        return;
       }
+      @SuppressWarnings("unchecked")
+      List<Map<String, Object>> operationList = (List<Map<String, Object>>) operations;
+      result.success(AudioPlayerCommands.executeBatch(players.obtain(playerId), operationList));
+      return;
+    }
 
-      @Override
-      public void onPlayerPaused() {
-        Log.d(TAG, "Android -> Flutter: onPlayerPaused()");
-        channel.invokeMethod("onPlayerPaused", null);
+    AudioPlayerCommands.Command playerCommand = AudioPlayerCommands.lookup(command);
+    if (playerCommand == null) {
+      // Unknown commands still create the player, as they always did, so
+      // that Flutter can use them to warm up a player.
+      players.obtain(playerId);
+      result.success(null);
+      return;
+    }
+
+    try {
+      result.success(playerCommand.run(players.obtain(playerId), argumentsOf(call)));
+    } catch (IllegalArgumentException e) {
+      result.error("invalid_arguments", e.getMessage(), null);
+    } catch (AudioPlayerCommands.CommandRejectedException e) {
+      result.error("command_rejected", e.getMessage(), null);
+    }
+  }
+
+  private void onMetricsMethodCall(@NonNull String command, @NonNull MethodCall call, @NonNull Result result) {
+    PlaybackMetrics metrics = PlaybackMetrics.shared();
+    switch (command) {
+      case "snapshot":
+        Boolean reset = call.argument("reset");
+        Map<String, Object> snapshot = metrics.snapshot().toMap();
+        if (reset != null && reset) {
+          metrics.reset();
+        }
+        result.success(snapshot);
+        break;
+      case "reset":
+        metrics.reset();
+        result.success(null);
+        break;
+      case "trace":
+        result.success(AudioLog.dumpTrace());
+        break;
+      default:
+        result.notImplemented();
+        break;
+    }
+  }
+
+  private void onCacheMethodCall(@NonNull String command, @NonNull MethodCall call, @NonNull Result result) {
+    switch (command) {
+      case "configure":
+        Number maxBytes = call.argument("maxBytes");
+        configureCache(maxBytes != null ? maxBytes.longValue() : 0);
+        result.success(cacheProxy != null);
+        break;
+      case "prefetch":
+        List<String> urls = call.argument("urls");
+        Number bytesPerItem = call.argument("bytesPerItem");
+        if (urls == null || bytesPerItem == null) {
+          result.error("invalid_arguments", "Missing argument: " + (urls == null ? "urls" : "bytesPerItem"), null);
+          break;
+        }
+        if (prefetcher != null) {
+          prefetcher.prefetch(urls, bytesPerItem.longValue());
+        }
+        result.success(prefetcher != null);
+        break;
+      case "clear":
+        if (cacheProxy != null) {
+          cacheProxy.cache().clear();
+        } else {
+          new AudioFileCache(cacheDirectory(), 0).clear();
+        }
+        result.success(null);
+        break;
+      default:
+        result.notImplemented();
+        break;
+    }
+  }
+
+  private void onWaveformMethodCall(@NonNull String command, @NonNull MethodCall call, @NonNull final Result result) {
+    if (waveforms == null) {
+      waveforms = new WaveformIndex(new File(context.getCacheDir(), WAVEFORM_DIRECTORY_NAME));
+    }
+
+    switch (command) {
+      case "load":
+      case "peaks":
+        String url = call.argument("url");
+        if (url == null) {
+          result.error("invalid_arguments", "Missing argument: url", null);
+          break;
+        }
+        final boolean isPeaksRequest = command.equals("peaks");
+        final Integer level = call.argument("level");
+        final Integer start = call.argument("start");
+        final Integer count = call.argument("count");
+        if (isPeaksRequest && (level == null || start == null || count == null)) {
+          result.error("invalid_arguments", "Missing argument: level, start or count", null);
+          break;
+        }
+        // Decoded through the cache, if it's enabled, so that the audio is
+        // downloaded once for both the waveform and playback.
+        waveforms.load(url, cacheResolver.resolve(url), new WaveformIndex.LoadCallback() {
+          @Override
+          public void onWaveformLoaded(@NonNull WaveformIndex.Waveform waveform) {
+            if (!isPeaksRequest) {
+              result.success(waveform.toMap());
+              return;
+            }
+            try {
+              result.success(waveform.peaks(level, start, count));
+            } catch (IllegalArgumentException e) {
+              result.error("invalid_arguments", e.getMessage(), null);
+            }
+          }
+
+          @Override
+          public void onWaveformFailed(@NonNull IOException error) {
+            Log.w(TAG, "Failed to load waveform: " + error.getMessage());
+            result.error("waveform_failed", error.getMessage(), null);
+          }
+        });
+        break;
+      case "clear":
+        waveforms.clear();
+        result.success(null);
+        break;
+      default:
+        result.notImplemented();
+        break;
+    }
+  }
+
+  private void onEffectsMethodCall(@NonNull String command, @NonNull MethodCall call, @NonNull Result result) {
+    String playerId = call.argument("playerId");
+    if (playerId == null) {
+      result.error("invalid_arguments", "Missing argument: playerId", null);
+      return;
+    }
+    // Effects can be set up before the player loads any audio.
+    AudioEffects effects = players.obtain(playerId).effects();
+
+    switch (command) {
+      case "describe":
+        result.success(effects.describe());
+        break;
+      case "apply":
+        effects.apply(effectSettingsFrom(call));
+        result.success(effects.settings().toMap());
+        break;
+      case "reset":
+        effects.reset();
+        result.success(null);
+        break;
+      default:
+        result.notImplemented();
+        break;
+    }
+  }
+
+  @NonNull
+  private static AudioEffects.Settings effectSettingsFrom(@NonNull MethodCall call) {
+    Boolean equalizerEnabled = call.argument("equalizerEnabled");
+    Integer equalizerPreset = call.argument("equalizerPreset");
+    List<Integer> bandLevels = call.argument("bandLevels");
+    Boolean bassBoostEnabled = call.argument("bassBoostEnabled");
+    Integer bassBoostStrength = call.argument("bassBoostStrength");
+    Boolean loudnessEnhancerEnabled = call.argument("loudnessEnhancerEnabled");
+    Integer loudnessGain = call.argument("loudnessGain");
+
+    short[] levels = null;
+    if (bandLevels != null) {
+      levels = new short[bandLevels.size()];
+      for (int band = 0; band < levels.length; ++band) {
+        levels[band] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, bandLevels.get(band)));
       }
+    }
 
-      @Override
-      public void onPlayerStopped() {
-        Log.d(TAG, "Android -> Flutter: onPlayerStopped()");
-        channel.invokeMethod("onPlayerStopped", null);
+    return new AudioEffects.Settings(
+        equalizerEnabled != null && equalizerEnabled,
+        equalizerPreset != null && equalizerPreset >= 0 ? equalizerPreset : AudioEffects.Settings.NO_PRESET,
+        levels,
+        bassBoostEnabled != null && bassBoostEnabled,
+        (short) (bassBoostStrength != null ? Math.max(0, Math.min(1000, bassBoostStrength)) : 0),
+        loudnessEnhancerEnabled != null && loudnessEnhancerEnabled,
+        loudnessGain != null ? loudnessGain : 0
+    );
+  }
+
+  private void onEngineMethodCall(@NonNull String command, @NonNull MethodCall call, @NonNull Result result) {
+    switch (command) {
+      case "configure":
+        configureStreamingEngine(call);
+        result.success(streamingEngineFactory != null);
+        break;
+      default:
+        result.notImplemented();
+        break;
+    }
+  }
+
+  /**
+   * Selects the engine that streams audio for all players, starting with
+   * their next load. ExoPlayer is only used if the app bundles it.
+   */
+  private void configureStreamingEngine(@NonNull MethodCall call) {
+    String engine = call.argument("engine");
+    if ("exoplayer".equals(engine)) {
+      if (ExoPlayerEngine.isAvailable()) {
+        streamingEngineFactory = new ExoPlayerEngine.Factory(context, exoPlayerConfigFrom(call));
+      } else {
+        Log.w(TAG, "ExoPlayer isn't bundled with the app. Streaming with MediaPlayer.");
+        streamingEngineFactory = null;
       }
+    } else {
+      streamingEngineFactory = null;
+    }
 
-      @Override
-      public void onPlayerCompleted() {
-        Log.d(TAG, "Android -> Flutter: onPlayerCompleted()");
-        channel.invokeMethod("onPlayerCompleted", null);
+    for (String playerId : players.playerIds()) {
+      AudioPlayer player = players.peek(playerId);
+      if (player != null) {
+        player.setStreamingEngineFactory(streamingEngineFactory);
       }
+    }
+  }
 
-      @Override
-      public void onSeekStarted() {
-        Log.d(TAG, "Android -> Flutter: onSeekStarted()");
-        channel.invokeMethod("onSeekStarted", null);
+  @NonNull
+  private static ExoPlayerEngine.Config exoPlayerConfigFrom(@NonNull MethodCall call) {
+    Integer minBufferMs = call.argument("minBufferMs");
+    Integer maxBufferMs = call.argument("maxBufferMs");
+    Integer bufferForPlaybackMs = call.argument("bufferForPlaybackMs");
+    Integer bufferForPlaybackAfterRebufferMs = call.argument("bufferForPlaybackAfterRebufferMs");
+    Integer maxInitialBitrate = call.argument("maxInitialBitrate");
+    Double bandwidthFraction = call.argument("bandwidthFraction");
+
+    return new ExoPlayerEngine.Config(
+        minBufferMs != null ? minBufferMs : 0,
+        maxBufferMs != null ? maxBufferMs : 0,
+        bufferForPlaybackMs != null ? bufferForPlaybackMs : 0,
+        bufferForPlaybackAfterRebufferMs != null ? bufferForPlaybackAfterRebufferMs : 0,
+        maxInitialBitrate != null ? maxInitialBitrate : 0,
+        bandwidthFraction != null ? bandwidthFraction.floatValue() : 0f
+    );
+  }
+
+  private void onServiceMethodCall(@NonNull String command, @NonNull Result result) {
+    switch (command) {
+      case "connect":
+        connectToService(result);
+        break;
+      default:
+        result.notImplemented();
+        break;
+    }
+  }
+
+  /**
+   * Binds to {@link FlutteryAudioService} and moves playback into it. The
+   * {@code result}, if any, receives true once the service's players are in
+   * use.
+   */
+  private void connectToService(@Nullable Result result) {
+    if (isServiceConnected) {
+      if (result != null) {
+        result.success(true);
       }
+      return;
+    }
 
-      @Override
-      public void onSeekCompleted() {
-        Log.d(TAG, "Android -> Flutter: onSeekCompleted()");
-
-        // We send the new seek position over the channel with the
-        // onSeekCompleted call because clients will likely need to
-        // know immediately after seeking what the position is. If we
-        // don't send that information with this call then a client will
-        // have to call back and ask, and due to the asynchronous nature
-        // of channels, there will be a noticeable time gap between when
-        // seeking ends and when clients are able to synchronize with the
-        // new playback position which will lead to visual artifacts in the UI.
-        Map<String, Object> args = new HashMap<>();
-        args.put("position", player.playbackPosition());
-        
-        channel.invokeMethod("onSeekCompleted", args);
+    if (result != null) {
+      pendingServiceResults.add(result);
+    }
+    if (!isConnectingToService) {
+      Intent intent = new Intent(context, FlutteryAudioService.class)
+          .setAction(FlutteryAudioService.ACTION_BIND_PLAYERS);
+      // Bound with the application context so that the connection outlives
+      // the activity.
+      isConnectingToService = context.getApplicationContext().bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
+      if (!isConnectingToService) {
+        Log.e(TAG, "Failed to bind to FlutteryAudioService. Is it declared in the manifest?");
+        for (Result pending : pendingServiceResults) {
+          pending.success(false);
+        }
+        pendingServiceResults.clear();
       }
-    });
+    }
   }
 
-  @Override
-  public void onMethodCall(MethodCall call, Result result) {
-    Log.d(TAG, "Flutter -> Android: " + call.method);
-    try {
-      AudioPlayerCall playerCall = parseMethodName(call.method);
-      Log.d(TAG, playerCall.toString());
+  private void onServiceReady(@NonNull FlutteryAudioService.PlayersBinder binder) {
+    isConnectingToService = false;
+    isServiceConnected = true;
+
+    // Players that were created before connecting can't move into the
+    // service. Flutter is told that they were released and recreates them
+    // in the service with its next command.
+    players.releaseAll();
+    players = binder.players();
+    binder.setClient(registryCallbacks);
+
+    // Players that survived a previous activity already forward their events
+    // through the static channel, which now points at the new Flutter view.
+    // They only need to use this plugin's cache.
+    for (String playerId : players.playerIds()) {
+      AudioPlayer player = players.peek(playerId);
+      if (player != null) {
+        player.setDataSourceResolver(cacheResolver);
+        player.setStreamingEngineFactory(streamingEngineFactory);
+      }
+    }
 
-      // TODO: account for player ID
+    for (Result pending : pendingServiceResults) {
+      pending.success(true);
+    }
+    pendingServiceResults.clear();
+  }
 
-      switch (playerCall.command) {
-        case "load":
-          Log.d(TAG, "Loading new audio.");
-          String audioUrl = call.argument("audioUrl");
-          player.load(audioUrl);
-          break;
-        case "play":
-          Log.d(TAG, "Playing audio");
-          player.play();
-          break;
-        case "pause":
-          Log.d(TAG, "Pausing audio");
-          player.pause();
-          break;
-        case "stop":
-          Log.d(TAG, "Stopping audio");
-          player.stop();
-          break;
-        case "seek":
-          Log.d(TAG, "Seeking audio");
-          int seekPositionInMillis = call.argument("seekPosition");
-          player.seek(seekPositionInMillis);
-          break;
+  /**
+   * Enables the disk cache with the given size limit, or disables it when
+   * {@code maxBytes} isn't positive. Audio that is already loaded keeps
+   * using the data source it was loaded with.
+   */
+  private void configureCache(long maxBytes) {
+    if (cacheProxy != null) {
+      if (cacheProxy.cache().maxSizeInBytes() == maxBytes) {
+        return;
       }
+      prefetcher.shutdown();
+      prefetcher = null;
+      cacheProxy.shutdown();
+      cacheProxy = null;
+    }
 
-      result.success(null);
-    } catch (IllegalArgumentException e) {
-      result.notImplemented();
+    if (maxBytes <= 0) {
+      return;
+    }
+
+    try {
+      AudioFileCache cache = new AudioFileCache(cacheDirectory(), maxBytes);
+      cache.trim();
+      cacheProxy = new AudioCacheProxy(cache);
+      prefetcher = new AudioPrefetcher(cache);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to start audio cache proxy. Audio will be streamed without caching.", e);
     }
   }
 
-  private AudioPlayerCall parseMethodName(@NonNull String methodName) {
-    Matcher matcher = METHOD_NAME_MATCH.matcher(methodName);
+  @NonNull
+  private File cacheDirectory() {
+    return new File(context.getCacheDir(), CACHE_DIRECTORY_NAME);
+  }
 
-    if (matcher.matches()) {
-      String playerId = matcher.group(1);
-      String command = matcher.group(2);
-      return new AudioPlayerCall(playerId, command);
-    } else {
-      Log.d(TAG, "Match not found");
-      throw new IllegalArgumentException("Invalid audio player message: " + methodName);
+  @NonNull
+  private static Map<String, Object> argumentsOf(@NonNull MethodCall call) {
+    Object arguments = call.arguments;
+    if (arguments instanceof Map) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> map = (Map<String, Object>) arguments;
+      return map;
     }
+    return Collections.emptyMap();
+  }
+
+  private static Map<String, Object> playerArgs(@NonNull String playerId) {
+    Map<String, Object> args = new HashMap<>();
+    args.put("playerId", playerId);
+    return args;
   }
 
-  private static class AudioPlayerCall {
-    public final String playerId;
-    public final String command;
+  /**
+   * Arguments of {@code onPlayerPlaybackUpdate}, the most frequent message to
+   * Flutter.
+   */
+  @NonNull
+  static Map<String, Object> playbackUpdateArgs(@NonNull String playerId, int position, int audioLength) {
+    Map<String, Object> args = playerArgs(playerId);
+    args.put("position", position);
+    args.put("audioLength", audioLength);
+    return args;
+  }
 
-    private AudioPlayerCall(@NonNull String playerId, @NonNull String command) {
+  /**
+   * Forwards the callbacks of a single {@link AudioPlayer} to Flutter, tagging
+   * every message with the ID of the player that produced it.
+   */
+  private static class ChannelListener implements AudioPlayer.Listener {
+
+    private final String playerId;
+    private final AudioPlayer player;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private ChannelListener(@NonNull String playerId, @NonNull AudioPlayer player) {
       this.playerId = playerId;
-      this.command = command;
+      this.player = player;
+    }
+
+    @Override
+    public void onAudioLoading() {
+      AudioLog.d(TAG, "Android -> Flutter: onAudioLoading()");
+      channel.invokeMethod("onAudioLoading", playerArgs(playerId));
+    }
+
+    @Override
+    public void onBufferingUpdate(int percent, int bufferedPositionMillis, long bitrateEstimate) {
+      // Already deduplicated and rate limited by the player, but still too
+      // frequent to log.
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("percent", percent);
+      args.put("bufferedPosition", bufferedPositionMillis);
+      args.put("bitrateEstimate", bitrateEstimate);
+      channel.invokeMethod("onBufferingUpdate", args);
+    }
+
+    @Override
+    public void onStallStarted(int position) {
+      AudioLog.d(TAG, "Android -> Flutter: onStallStarted()");
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("position", position);
+      channel.invokeMethod("onStallStarted", args);
+    }
+
+    @Override
+    public void onStallEnded(int stallMillis, int rebufferCount) {
+      AudioLog.d(TAG, "Android -> Flutter: onStallEnded()");
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("stallTime", stallMillis);
+      args.put("rebufferCount", rebufferCount);
+      channel.invokeMethod("onStallEnded", args);
+    }
+
+    @Override
+    public void onPlaybackSessionEnded(@NonNull BufferingTelemetry.SessionStats stats) {
+      AudioLog.d(TAG, "Android -> Flutter: onPlaybackSessionEnded()");
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("stats", stats.toMap());
+      channel.invokeMethod("onPlaybackSessionEnded", args);
+    }
+
+    @Override
+    public void onError(@NonNull ErrorRecovery.PlaybackError error, int retryAttempt, int retryDelayMillis) {
+      AudioLog.d(TAG, "Android -> Flutter: onError()");
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("error", error.toMap());
+      args.put("retryAttempt", retryAttempt);
+      args.put("retryDelay", retryDelayMillis);
+      channel.invokeMethod("onError", args);
+    }
+
+    @Override
+    public void onRecovered(int attempts, int recoveryMillis) {
+      AudioLog.d(TAG, "Android -> Flutter: onRecovered()");
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("attempts", attempts);
+      args.put("recoveryTime", recoveryMillis);
+      channel.invokeMethod("onRecovered", args);
+    }
+
+    @Override
+    public void onAudioReady() {
+      AudioLog.d(TAG, "Android -> Flutter: onAudioReady()");
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("audioLength", player.audioLength());
+      channel.invokeMethod("onAudioReady", args);
+    }
+
+    @Override
+    public void onPlayerPlaying() {
+      AudioLog.d(TAG, "Android -> Flutter: onPlayerPlaying()");
+      channel.invokeMethod("onPlayerPlaying", playerArgs(playerId));
+    }
+
+    // Position updates arrive on the position reporter's thread, but the
+    // channel may only be used on the platform thread.
+    @Override
+    public void onPlayerPlaybackUpdate(final int position, final int audioLength) {
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          channel.invokeMethod("onPlayerPlaybackUpdate", playbackUpdateArgs(playerId, position, audioLength));
+        }
+      });
+    }
+
+    @Override
+    public void onPlaybackAnchorChanged(@NonNull final PlaybackPositionReporter.PlaybackAnchor anchor) {
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          // Flutter can't read the Android clock, so the anchor's age is sent
+          // along with it. Flutter subtracts it from its own clock on arrival.
+          Map<String, Object> args = playerArgs(playerId);
+          args.put("position", anchor.position);
+          args.put("speed", (double) anchor.speed);
+          args.put("elapsedRealtimeNanos", anchor.elapsedRealtimeNanos);
+          args.put("ageMicros", anchor.ageNanos() / 1000);
+          channel.invokeMethod("onPlaybackAnchor", args);
+        }
+      });
+    }
+
+    @Override
+    public void onPlayerPaused() {
+      AudioLog.d(TAG, "Android -> Flutter: onPlayerPaused()");
+      channel.invokeMethod("onPlayerPaused", playerArgs(playerId));
     }
 
     @Override
-    public String toString() {
-      return String.format("AudioPlayerCall - Player ID: %s, Command: %s", playerId, command);
+    public void onPlayerStopped() {
+      AudioLog.d(TAG, "Android -> Flutter: onPlayerStopped()");
+      channel.invokeMethod("onPlayerStopped", playerArgs(playerId));
+    }
+
+    @Override
+    public void onPlayerCompleted() {
+      AudioLog.d(TAG, "Android -> Flutter: onPlayerCompleted()");
+      channel.invokeMethod("onPlayerCompleted", playerArgs(playerId));
+    }
+
+    @Override
+    public void onNextAudioStarted(@NonNull String url) {
+      AudioLog.d(TAG, "Android -> Flutter: onNextAudioStarted()");
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("audioUrl", url);
+      args.put("audioLength", player.audioLength());
+      channel.invokeMethod("onNextAudioStarted", args);
+    }
+
+    @Override
+    public void onSeekStarted(int requestedPosition, int fromPosition) {
+      AudioLog.d(TAG, "Android -> Flutter: onSeekStarted()");
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("requestedPosition", requestedPosition);
+      args.put("fromPosition", fromPosition);
+      channel.invokeMethod("onSeekStarted", args);
+    }
+
+    @Override
+    public void onSeekCompleted(int requestedPosition, int actualPosition) {
+      AudioLog.d(TAG, "Android -> Flutter: onSeekCompleted()");
+
+      // We send the new seek position over the channel with the
+      // onSeekCompleted call because clients will likely need to
+      // know immediately after seeking what the position is. If we
+      // don't send that information with this call then a client will
+      // have to call back and ask, and due to the asynchronous nature
+      // of channels, there will be a noticeable time gap between when
+      // seeking ends and when clients are able to synchronize with the
+      // new playback position which will lead to visual artifacts in the UI.
+      Map<String, Object> args = playerArgs(playerId);
+      args.put("position", actualPosition);
+      args.put("requestedPosition", requestedPosition);
+
+      channel.invokeMethod("onSeekCompleted", args);
     }
   }
 
   private static class FlutteryAudioVisualizerPlugin implements MethodCallHandler {
 
-    private AudioVisualizer visualizer = new AudioVisualizer();
+    private final FlutteryAudioPlugin plugin;
+    private final VisualizerFrameTransport frameTransport;
+    // Capture sessions by audio session, and by their subscribers.
+    private final Map<Integer, VisualizerCaptureSession> sessions = new HashMap<>();
+    private final Map<Integer, VisualizerCaptureSession> sessionsBySubscriber = new HashMap<>();
+    // Bit i is set if subscriber id i is taken.
+    private int subscriberIds = 0;
+    private boolean isBackgrounded = false;
+
+    private FlutteryAudioVisualizerPlugin(@NonNull FlutteryAudioPlugin plugin, @NonNull VisualizerFrameTransport frameTransport) {
+      this.plugin = plugin;
+      this.frameTransport = frameTransport;
+    }
 
     @Override
     public void onMethodCall(MethodCall call, Result result) {
-//      Log.d(TAG, "Flutter -> Android: " + call.method);
+      AudioLog.d(TAG, "Flutter -> Android: ", call.method);
       try {
         AudioVisualizerPlayerCall playerCall = parseMethodName(call.method);
-        Log.d(TAG, playerCall.toString());
 
         switch (playerCall.command) {
           case "activate_visualizer":
-            Log.d(TAG, "Activating visualizer");
-            if (visualizer.isActive()) {
-              Log.d(TAG, "Visualizer is already active. Ignoring.");
+            activate(call, result);
+            return;
+          case "deactivate_visualizer":
+            Integer subscriberId = call.argument("subscriberId");
+            if (subscriberId == null) {
+              result.error("invalid_arguments", "deactivate_visualizer requires a subscriberId.", null);
               return;
             }
-
-            // TODO: support media player specification for visualizer
-            // TODO: support requested sample rate and buffer size
-            // TODO: support selection of FFT vs waveform
-            visualizer.activate(new Visualizer.OnDataCaptureListener() {
-              @Override
-              public void onWaveFormDataCapture(Visualizer visualizer, byte[] waveform, int samplingRate) {
-                Map<String, Object> args = new HashMap<>();
-                args.put("waveform", waveform);
-
-                visualizerChannel.invokeMethod("onWaveformVisualization", args);
-              }
-
-              @Override
-              public void onFftDataCapture(Visualizer visualizer, byte[] sharedFft, int samplingRate) {
-                byte[] fft = Arrays.copyOf(sharedFft, sharedFft.length);
-                
-                Map<String, Object> args = new HashMap<>();
-                args.put("fft", fft);
-
-                visualizerChannel.invokeMethod("onFftVisualization", args);
-              }
-            });
-            break;
-          case "deactivate_visualizer":
-            Log.d(TAG, "Deactivating visualizer");
-            visualizer.deactivate();
-            break;
+            result.success(deactivate(subscriberId));
+            return;
+          case "frame_stats":
+            result.success(frameTransport.frameStats());
+            return;
         }
 
         result.success(null);
@@ -249,14 +838,127 @@ public class FlutteryAudioPlugin implements MethodCallHandler {
       }
     }
 
-    private AudioVisualizerPlayerCall parseMethodName(@NonNull String methodName) {
-      Matcher matcher = VISUALIZER_METHOD_NAME_MATCH.matcher(methodName);
+    /**
+     * Subscribes to the capture of the requested player's audio session,
+     * starting the capture if nobody else is subscribed to it yet, and
+     * replies with the new subscriber's id.
+     */
+    private void activate(@NonNull MethodCall call, @NonNull Result result) {
+      if (subscriberIds == -1) {
+        result.error("too_many_subscribers", "At most " + VisualizerFrameTransport.MAX_SUBSCRIBERS
+            + " visualizers can be active at once.", null);
+        return;
+      }
+      int subscriberId = Integer.numberOfTrailingZeros(~subscriberIds);
+
+      AudioVisualizer.CaptureConfig captureConfig = captureConfigFrom(call);
+      Integer bandCount = call.argument("bandCount");
+      Boolean adaptive = call.argument("adaptive");
+      if (bandCount != null && bandCount > VisualizerFrameTransport.MAX_BAND_COUNT) {
+        // Levels and peaks of more bands don't fit into a frame.
+        result.error("invalid_arguments", "bandCount must be at most " + VisualizerFrameTransport.MAX_BAND_COUNT
+            + ", was: " + bandCount, null);
+        return;
+      }
 
-      if (matcher.matches()) {
-        String command = matcher.group(1);
+      int audioSessionId = audioSessionFor((String) call.argument("playerId"));
+      VisualizerCaptureSession session = sessions.get(audioSessionId);
+      if (session == null) {
+        session = new VisualizerCaptureSession(audioSessionId, frameTransport);
+        session.setBackgrounded(isBackgrounded);
+      }
+
+      AudioLog.d(TAG, "Activating visualizer ", subscriberId);
+      try {
+        session.subscribe(
+            subscriberId,
+            captureConfig,
+            bandCount != null ? Math.max(0, bandCount) : 0,
+            adaptive != null && adaptive
+        );
+      } catch (RuntimeException e) {
+        // The Visualizer throws if, e.g., the app may not record audio.
+        Log.w(TAG, "Failed to activate visualizer", e);
+        if (session.isEmpty()) {
+          sessions.remove(audioSessionId);
+        }
+        result.error("visualizer_failed", e.getMessage(), null);
+        return;
+      }
+
+      sessions.put(audioSessionId, session);
+      sessionsBySubscriber.put(subscriberId, session);
+      subscriberIds |= 1 << subscriberId;
+      result.success(subscriberId);
+    }
+
+    /**
+     * Unsubscribes from a capture, releasing it if it was the last
+     * subscriber.
+     *
+     * @return false if there was no such subscriber
+     */
+    private boolean deactivate(int subscriberId) {
+      VisualizerCaptureSession session = sessionsBySubscriber.remove(subscriberId);
+      if (session == null) {
+        AudioLog.d(TAG, "Visualizer is not active: ", subscriberId);
+        return false;
+      }
+
+      AudioLog.d(TAG, "Deactivating visualizer ", subscriberId);
+      session.unsubscribe(subscriberId);
+      subscriberIds &= ~(1 << subscriberId);
+      if (session.isEmpty()) {
+        sessions.remove(session.audioSessionId());
+      }
+      return true;
+    }
+
+    private void setBackgrounded(boolean isBackgrounded) {
+      this.isBackgrounded = isBackgrounded;
+      for (VisualizerCaptureSession session : sessions.values()) {
+        session.setBackgrounded(isBackgrounded);
+      }
+    }
+
+    @NonNull
+    private static AudioVisualizer.CaptureConfig captureConfigFrom(@NonNull MethodCall call) {
+      Integer captureSize = call.argument("captureSize");
+      Integer captureRate = call.argument("captureRate");
+      String mode = call.argument("mode");
+
+      boolean waveform = "waveform".equals(mode) || "both".equals(mode);
+      boolean fft = mode == null || "fft".equals(mode) || "both".equals(mode);
+
+      return new AudioVisualizer.CaptureConfig(
+          captureSize != null ? captureSize : 0,
+          captureRate != null ? captureRate : 0,
+          waveform,
+          fft
+      );
+    }
+
+    /**
+     * Returns the audio session of the requested player, falling back to the
+     * most recently used player, and finally to the global output mix (0).
+     */
+    private int audioSessionFor(@Nullable String playerId) {
+      // Looked up on every call because the plugin switches registries when
+      // it connects to the service.
+      AudioPlayerRegistry players = plugin.players;
+      AudioPlayer player = playerId != null ? players.peek(playerId) : players.mostRecentlyUsed();
+      return player != null ? player.audioSessionId() : 0;
+    }
+
+    private AudioVisualizerPlayerCall parseMethodName(@NonNull String methodName) {
+      boolean isVisualizerCall = methodName.startsWith(VISUALIZER_METHOD_PREFIX)
+          && methodName.length() > VISUALIZER_METHOD_PREFIX.length()
+          && methodName.indexOf('/', VISUALIZER_METHOD_PREFIX.length()) < 0;
+      if (isVisualizerCall) {
+        String command = methodName.substring(VISUALIZER_METHOD_PREFIX.length());
         return new AudioVisualizerPlayerCall(command);
       } else {
-        Log.d(TAG, "Match not found");
+        AudioLog.d(TAG, "Match not found");
         throw new IllegalArgumentException("Invalid audio visualizer message: " + methodName);
       }
     }
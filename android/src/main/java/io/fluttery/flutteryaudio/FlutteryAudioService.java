@@ -0,0 +1,488 @@
+package io.fluttery.flutteryaudio;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserServiceCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hosts {@link AudioPlayer}s in a service so that they outlive the Flutter
+ * activity.
+ *
+ * The plugin binds to this service with {@link #ACTION_BIND_PLAYERS} and
+ * then uses the service's {@link AudioPlayerRegistry} instead of its own.
+ * When the activity is recreated, the new plugin instance binds again and
+ * finds the players exactly as they were: prepared, buffered and possibly
+ * still playing.
+ *
+ * While a player plays, the service runs in the foreground with a media
+ * notification. A {@link MediaSessionCompat} mirrors the most recently
+ * active player so that the lock screen, headsets and other controllers
+ * can see and control playback.
+ */
+public class FlutteryAudioService extends MediaBrowserServiceCompat {
+
+    private static final String TAG = "FlutteryAudioService";
+
+    /** Intent action with which the plugin binds to the service's players. */
+    public static final String ACTION_BIND_PLAYERS = "io.fluttery.flutteryaudio.action.BIND_PLAYERS";
+
+    private static final String ACTION_PLAY = "io.fluttery.flutteryaudio.action.PLAY";
+    private static final String ACTION_PAUSE = "io.fluttery.flutteryaudio.action.PAUSE";
+    private static final String ACTION_STOP = "io.fluttery.flutteryaudio.action.STOP";
+
+    private static final String NOTIFICATION_CHANNEL_ID = "fluttery_audio_playback";
+    private static final int NOTIFICATION_ID = 4711;
+    private static final String BROWSER_ROOT_ID = "root";
+
+    private static final long SUPPORTED_ACTIONS = PlaybackStateCompat.ACTION_PLAY
+            | PlaybackStateCompat.ACTION_PAUSE
+            | PlaybackStateCompat.ACTION_PLAY_PAUSE
+            | PlaybackStateCompat.ACTION_STOP
+            | PlaybackStateCompat.ACTION_SEEK_TO;
+
+    private static volatile boolean isRunning = false;
+
+    /**
+     * True while the service exists, i.e., while there may be players to
+     * reconnect to.
+     */
+    public static boolean isRunning() {
+        return isRunning;
+    }
+
+    private final PlayersBinder binder = new PlayersBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private AudioPlayerRegistry players;
+    private AudioPlayerRegistry.Callbacks client;
+    private MediaSessionCompat mediaSession;
+    private NotificationManager notificationManager;
+    private boolean isForeground = false;
+
+    // The player that the media session reflects.
+    private String sessionPlayerId;
+    private int sessionState = PlaybackStateCompat.STATE_NONE;
+    private PlaybackPositionReporter.PlaybackAnchor sessionAnchor;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        AudioLog.d(TAG, "onCreate()");
+        isRunning = true;
+
+        players = new AudioPlayerRegistry(new RegistryCallbacks());
+        notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+
+        mediaSession = new MediaSessionCompat(this, TAG);
+        mediaSession.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS | MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
+        mediaSession.setCallback(new SessionCallback());
+        setSessionToken(mediaSession.getSessionToken());
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (ACTION_BIND_PLAYERS.equals(intent.getAction())) {
+            return binder;
+        }
+        return super.onBind(intent);
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        if (ACTION_BIND_PLAYERS.equals(intent.getAction())) {
+            client = null;
+        }
+        return super.onUnbind(intent);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String action = intent != null ? intent.getAction() : null;
+        AudioPlayer player = sessionPlayer();
+        if (action != null && player != null) {
+            switch (action) {
+                case ACTION_PLAY:
+                    player.play();
+                    break;
+                case ACTION_PAUSE:
+                    player.pause();
+                    break;
+                case ACTION_STOP:
+                    player.stop();
+                    break;
+                default:
+                    break;
+            }
+        }
+        stopIfIdle();
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onTaskRemoved(Intent rootIntent) {
+        super.onTaskRemoved(rootIntent);
+        stopIfIdle();
+    }
+
+    @Override
+    public void onDestroy() {
+        AudioLog.d(TAG, "onDestroy()");
+        isRunning = false;
+        players.releaseAll();
+        mediaSession.setActive(false);
+        mediaSession.release();
+        super.onDestroy();
+    }
+
+    @Nullable
+    @Override
+    public BrowserRoot onGetRoot(@NonNull String clientPackageName, int clientUid, @Nullable Bundle rootHints) {
+        // Only this app may browse. Other controllers use the media session.
+        return clientUid == Process.myUid() ? new BrowserRoot(BROWSER_ROOT_ID, null) : null;
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
+        // Flutter owns the playlist, so there is nothing to browse.
+        result.sendResult(Collections.<MediaBrowserCompat.MediaItem>emptyList());
+    }
+
+    @Nullable
+    private AudioPlayer sessionPlayer() {
+        AudioPlayer player = sessionPlayerId != null ? players.peek(sessionPlayerId) : null;
+        return player != null ? player : players.mostRecentlyUsed();
+    }
+
+    /**
+     * Stops the service once nobody is bound and nothing plays. Stopping only
+     * takes effect after the last client unbinds.
+     */
+    private void stopIfIdle() {
+        AudioPlayer player = sessionPlayer();
+        if (client == null && (player == null || !player.isPlaying())) {
+            stopSelf();
+        }
+    }
+
+    private void onSessionPlayerChanged(@NonNull String playerId) {
+        if (!playerId.equals(sessionPlayerId)) {
+            sessionPlayerId = playerId;
+            sessionAnchor = null;
+        }
+        if (!mediaSession.isActive()) {
+            mediaSession.setActive(true);
+        }
+    }
+
+    private void publishPlaybackState(int state) {
+        sessionState = state;
+
+        PlaybackStateCompat.Builder builder = new PlaybackStateCompat.Builder().setActions(SUPPORTED_ACTIONS);
+        if (sessionAnchor != null) {
+            builder.setState(
+                    state,
+                    sessionAnchor.position,
+                    state == PlaybackStateCompat.STATE_PLAYING ? sessionAnchor.speed : 0f,
+                    sessionAnchor.elapsedRealtimeNanos / 1000_000L
+            );
+        } else {
+            builder.setState(state, PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN, 0f);
+        }
+        mediaSession.setPlaybackState(builder.build());
+    }
+
+    private void publishMetadata(@NonNull AudioPlayer player) {
+        String url = player.currentUrl();
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, player.isAudioReady() ? player.audioLength() : -1);
+        if (url != null) {
+            builder.putString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI, url);
+            builder.putString(MediaMetadataCompat.METADATA_KEY_TITLE, titleOf(url));
+        }
+        mediaSession.setMetadata(builder.build());
+    }
+
+    private void updateForegroundState(boolean isPlaying) {
+        if (isPlaying) {
+            Notification notification = buildNotification(true);
+            if (!isForeground) {
+                // Keeps the service alive after the plugin unbinds.
+                ContextCompat.startForegroundService(this, new Intent(this, FlutteryAudioService.class));
+                startForeground(NOTIFICATION_ID, notification);
+                isForeground = true;
+            } else {
+                notificationManager.notify(NOTIFICATION_ID, notification);
+            }
+        } else if (sessionState == PlaybackStateCompat.STATE_PAUSED) {
+            // Keep the notification so that playback can be resumed from it,
+            // but let the user dismiss it.
+            stopForeground(false);
+            isForeground = false;
+            notificationManager.notify(NOTIFICATION_ID, buildNotification(false));
+        } else {
+            stopForeground(true);
+            isForeground = false;
+            notificationManager.cancel(NOTIFICATION_ID);
+            stopIfIdle();
+        }
+    }
+
+    @NonNull
+    private Notification buildNotification(boolean isPlaying) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && notificationManager.getNotificationChannel(NOTIFICATION_CHANNEL_ID) == null) {
+            notificationManager.createNotificationChannel(new NotificationChannel(
+                    NOTIFICATION_CHANNEL_ID,
+                    "Playback",
+                    NotificationManager.IMPORTANCE_LOW
+            ));
+        }
+
+        AudioPlayer player = sessionPlayer();
+        String url = player != null ? player.currentUrl() : null;
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(isPlaying ? android.R.drawable.ic_media_play : android.R.drawable.ic_media_pause)
+                .setContentTitle(url != null ? titleOf(url) : getApplicationInfo().loadLabel(getPackageManager()))
+                .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+                .setShowWhen(false)
+                .setDeleteIntent(actionIntent(ACTION_STOP))
+                .addAction(
+                        isPlaying ? android.R.drawable.ic_media_pause : android.R.drawable.ic_media_play,
+                        isPlaying ? "Pause" : "Play",
+                        actionIntent(isPlaying ? ACTION_PAUSE : ACTION_PLAY)
+                )
+                .setStyle(new android.support.v4.media.app.NotificationCompat.MediaStyle()
+                        .setMediaSession(mediaSession.getSessionToken())
+                        .setShowActionsInCompactView(0));
+
+        Intent launchIntent = getPackageManager().getLaunchIntentForPackage(getPackageName());
+        if (launchIntent != null) {
+            builder.setContentIntent(PendingIntent.getActivity(this, 0, launchIntent, 0));
+        }
+        return builder.build();
+    }
+
+    @NonNull
+    private PendingIntent actionIntent(@NonNull String action) {
+        Intent intent = new Intent(this, FlutteryAudioService.class).setAction(action);
+        return PendingIntent.getService(this, action.hashCode(), intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    @NonNull
+    private static String titleOf(@NonNull String url) {
+        String lastPathSegment = Uri.parse(url).getLastPathSegment();
+        return lastPathSegment != null ? lastPathSegment : url;
+    }
+
+    /**
+     * What a bound plugin gets: the service's players, and a way to hear
+     * about players being created and released.
+     */
+    public class PlayersBinder extends Binder {
+        @NonNull
+        public AudioPlayerRegistry players() {
+            return players;
+        }
+
+        /**
+         * Sets the callbacks that are told about players being created and
+         * released, replacing those of any previously bound plugin.
+         */
+        public void setClient(@Nullable AudioPlayerRegistry.Callbacks client) {
+            FlutteryAudioService.this.client = client;
+        }
+    }
+
+    /**
+     * Attaches the media session to new players and forwards registry events
+     * to the bound plugin.
+     */
+    private class RegistryCallbacks implements AudioPlayerRegistry.Callbacks {
+        @Override
+        public void onPlayerCreated(@NonNull String playerId, @NonNull AudioPlayer player) {
+            player.addListener(new SessionListener(playerId, player));
+            if (client != null) {
+                client.onPlayerCreated(playerId, player);
+            }
+        }
+
+        @Override
+        public void onPlayerReleased(@NonNull String playerId) {
+            if (playerId.equals(sessionPlayerId)) {
+                sessionPlayerId = null;
+                sessionAnchor = null;
+                publishPlaybackState(PlaybackStateCompat.STATE_NONE);
+                updateForegroundState(false);
+            }
+            if (client != null) {
+                client.onPlayerReleased(playerId);
+            }
+        }
+    }
+
+    /**
+     * Mirrors a player in the media session and the notification while it's
+     * the session player.
+     */
+    private class SessionListener extends AudioPlayer.EmptyListener {
+
+        private final String playerId;
+        private final AudioPlayer player;
+
+        private SessionListener(@NonNull String playerId, @NonNull AudioPlayer player) {
+            this.playerId = playerId;
+            this.player = player;
+        }
+
+        private boolean isSessionPlayer() {
+            return playerId.equals(sessionPlayerId);
+        }
+
+        @Override
+        public void onAudioLoading() {
+            if (sessionPlayerId == null) {
+                onSessionPlayerChanged(playerId);
+            }
+            if (isSessionPlayer()) {
+                publishPlaybackState(PlaybackStateCompat.STATE_BUFFERING);
+            }
+        }
+
+        @Override
+        public void onAudioReady() {
+            if (isSessionPlayer()) {
+                publishMetadata(player);
+            }
+        }
+
+        @Override
+        public void onPlayerPlaying() {
+            // Whatever plays most recently owns the session.
+            onSessionPlayerChanged(playerId);
+            publishMetadata(player);
+            publishPlaybackState(PlaybackStateCompat.STATE_PLAYING);
+            updateForegroundState(true);
+        }
+
+        @Override
+        public void onPlaybackAnchorChanged(@NonNull final PlaybackPositionReporter.PlaybackAnchor anchor) {
+            // Arrives on the position reporter's thread.
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isSessionPlayer()) {
+                        sessionAnchor = anchor;
+                        publishPlaybackState(sessionState);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onPlayerPaused() {
+            if (isSessionPlayer()) {
+                publishPlaybackState(PlaybackStateCompat.STATE_PAUSED);
+                updateForegroundState(false);
+            }
+        }
+
+        @Override
+        public void onPlayerStopped() {
+            if (isSessionPlayer()) {
+                publishPlaybackState(PlaybackStateCompat.STATE_STOPPED);
+                updateForegroundState(false);
+            }
+        }
+
+        @Override
+        public void onPlayerCompleted() {
+            if (isSessionPlayer()) {
+                publishPlaybackState(PlaybackStateCompat.STATE_STOPPED);
+                updateForegroundState(false);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull ErrorRecovery.PlaybackError error, int retryAttempt, int retryDelayMillis) {
+            if (!isSessionPlayer()) {
+                return;
+            }
+            if (retryAttempt > 0) {
+                // Stays in the foreground while it's being retried.
+                publishPlaybackState(PlaybackStateCompat.STATE_BUFFERING);
+            } else {
+                publishPlaybackState(PlaybackStateCompat.STATE_ERROR);
+                updateForegroundState(false);
+            }
+        }
+
+        @Override
+        public void onNextAudioStarted(@NonNull String url) {
+            if (isSessionPlayer()) {
+                publishMetadata(player);
+                updateForegroundState(true);
+            }
+        }
+    }
+
+    /**
+     * Controls the session player from the lock screen, headsets and other
+     * media controllers.
+     */
+    private class SessionCallback extends MediaSessionCompat.Callback {
+        @Override
+        public void onPlay() {
+            AudioPlayer player = sessionPlayer();
+            if (player != null) {
+                player.play();
+            }
+        }
+
+        @Override
+        public void onPause() {
+            AudioPlayer player = sessionPlayer();
+            if (player != null) {
+                player.pause();
+            }
+        }
+
+        @Override
+        public void onStop() {
+            AudioPlayer player = sessionPlayer();
+            if (player != null) {
+                player.stop();
+            }
+        }
+
+        @Override
+        public void onSeekTo(long position) {
+            AudioPlayer player = sessionPlayer();
+            if (player != null) {
+                player.seek((int) position);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, with buckets laid out like an
+ * HdrHistogram: every power of two is split into {@link #SUB_BUCKET_HALF_COUNT}
+ * linear sub-buckets, so every recorded value is accurate to about 3%
+ * whether it's 50 microseconds or 5 seconds.
+ *
+ * All buckets are allocated up front. Recording is a handful of atomic
+ * operations on them, doesn't allocate and doesn't lock, so latencies can be
+ * recorded from any thread, including the visualizer's capture thread.
+ * Values above {@link #MAX_VALUE_MICROS} are recorded as that value.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    /** About 35 minutes. */
+    public static final long MAX_VALUE_MICROS = (1L << 31) - 1;
+
+    private static final int BUCKET_COUNT = indexOf(MAX_VALUE_MICROS) + 1;
+
+    private static final double[] REPORTED_PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] REPORTED_PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong minMicros = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxMicros = new AtomicLong(0);
+
+    /**
+     * Bucket of a value. Values below {@link #SUB_BUCKET_COUNT} have a bucket
+     * each. Above, each power of two has {@link #SUB_BUCKET_HALF_COUNT}
+     * buckets.
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Shift the value so that its top SUB_BUCKET_BITS bits remain.
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (subBucket - SUB_BUCKET_HALF_COUNT);
+    }
+
+    /** The highest value that falls into the given bucket. */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_VALUE_MICROS));
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(value);
+
+        long min = minMicros.get();
+        while (value < min && !minMicros.compareAndSet(min, value)) {
+            min = minMicros.get();
+        }
+        long max = maxMicros.get();
+        while (value > max && !maxMicros.compareAndSet(max, value)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Forgets all recorded values. Values that are recorded concurrently may
+     * be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalMicros.set(0);
+        minMicros.set(Long.MAX_VALUE);
+        maxMicros.set(0);
+    }
+
+    /**
+     * Summary of the recorded values. Values that are recorded while the
+     * snapshot is taken may be partly included.
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            bucketCounts[i] = counts.get(i);
+            count += bucketCounts[i];
+        }
+
+        long max = maxMicros.get();
+        long[] percentiles = new long[REPORTED_PERCENTILES.length];
+        for (int p = 0; p < REPORTED_PERCENTILES.length; ++p) {
+            long rank = (long) Math.ceil(REPORTED_PERCENTILES[p] / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                seen += bucketCounts[i];
+                if (seen >= rank && seen > 0) {
+                    // Never report more than was actually recorded.
+                    percentiles[p] = Math.min(highestValueOf(i), max);
+                    break;
+                }
+            }
+        }
+
+        long min = minMicros.get();
+        return new Snapshot(
+                count,
+                count > 0 ? min : 0,
+                max,
+                count > 0 ? totalMicros.get() / count : 0,
+                percentiles
+        );
+    }
+
+    /**
+     * Recorded latencies in microseconds.
+     */
+    public static class Snapshot {
+        public final long count;
+        public final long minMicros;
+        public final long maxMicros;
+        public final long meanMicros;
+        // Indexed like REPORTED_PERCENTILES.
+        private final long[] percentileMicros;
+
+        private Snapshot(long count, long minMicros, long maxMicros, long meanMicros, @NonNull long[] percentileMicros) {
+            this.count = count;
+            this.minMicros = minMicros;
+            this.maxMicros = maxMicros;
+            this.meanMicros = meanMicros;
+            this.percentileMicros = percentileMicros;
+        }
+
+        public long p50Micros() {
+            return percentileMicros[0];
+        }
+
+        public long p90Micros() {
+            return percentileMicros[1];
+        }
+
+        public long p99Micros() {
+            return percentileMicros[2];
+        }
+
+        public long p999Micros() {
+            return percentileMicros[3];
+        }
+
+        @NonNull
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("count", count);
+            map.put("min", minMicros);
+            map.put("max", maxMicros);
+            map.put("mean", meanMicros);
+            for (int p = 0; p < REPORTED_PERCENTILE_NAMES.length; ++p) {
+                map.put(REPORTED_PERCENTILE_NAMES[p], percentileMicros[p]);
+            }
+            return map;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Recycles {@code MediaPlayer}s and owns the background thread that all
+ * {@link AudioPlayer}s share.
+ *
+ * Creating a {@code MediaPlayer} costs 50-150ms of native setup, which adds
+ * up in apps that play many short clips, e.g., UI sounds or previews.
+ * Instead of being released, players that are no longer needed are reset on
+ * the pool's thread and kept for the next {@link #obtain()}. At most
+ * {@code maxIdlePlayers} are kept, and players that stay idle for longer
+ * than {@code idleTimeoutMillis} are released.
+ *
+ * {@code reset()} keeps a player's audio session. A player that shares its
+ * session with another one, see {@link #obtainSharingSession(int)}, is
+ * released instead of kept while the other one is still in use. Otherwise
+ * the next owner would play into the session of an unrelated player, along
+ * with its effects and visualizers.
+ *
+ * The pool's thread is started when the first client calls {@link #retain()}
+ * and quit when the last client calls {@link #release()}, which also
+ * releases all idle players.
+ *
+ * Methods may be called from any thread.
+ */
+public class MediaPlayerPool {
+
+    private static final String TAG = "MediaPlayerPool";
+
+    public static final int DEFAULT_MAX_IDLE_PLAYERS = 2;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+
+    private static MediaPlayerPool shared;
+
+    /**
+     * The pool that is used by {@link AudioPlayer}s that aren't given one.
+     */
+    @NonNull
+    public static synchronized MediaPlayerPool shared() {
+        if (shared == null) {
+            shared = new MediaPlayerPool(DEFAULT_MAX_IDLE_PLAYERS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+        }
+        return shared;
+    }
+
+    private final int maxIdlePlayers;
+    private final long idleTimeoutMillis;
+
+    // Guarded by this.
+    private final ArrayDeque<IdlePlayer> idlePlayers = new ArrayDeque<>();
+    // Number of players that use each audio session that was shared through
+    // obtainSharingSession(). Sessions that aren't shared aren't listed.
+    private final Map<Integer, Integer> sharedSessionPlayerCounts = new HashMap<>();
+    private int refCount = 0;
+    private HandlerThread thread;
+    private Handler handler;
+
+    private final Runnable evictExpiredPlayers = new Runnable() {
+        @Override
+        public void run() {
+            evictExpiredPlayers();
+        }
+    };
+
+    public MediaPlayerPool(int maxIdlePlayers, long idleTimeoutMillis) {
+        if (maxIdlePlayers < 0) {
+            throw new IllegalArgumentException("maxIdlePlayers must not be negative, was: " + maxIdlePlayers);
+        }
+        this.maxIdlePlayers = maxIdlePlayers;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Registers a client of the pool, starting the pool's thread if needed.
+     */
+    public synchronized void retain() {
+        if (refCount++ == 0) {
+            thread = new HandlerThread("AudioPlayer");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+    }
+
+    /**
+     * Unregisters a client. When the last client is gone, idle players are
+     * released and the pool's thread is quit after it has run the work that
+     * is already due, e.g., final position updates.
+     */
+    public synchronized void release() {
+        if (refCount == 0) {
+            throw new IllegalStateException("release() was called more often than retain().");
+        }
+        if (--refCount > 0) {
+            return;
+        }
+
+        for (IdlePlayer idlePlayer : idlePlayers) {
+            idlePlayer.player.release();
+        }
+        idlePlayers.clear();
+
+        handler.removeCallbacks(evictExpiredPlayers);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            thread.quitSafely();
+        } else {
+            thread.quit();
+        }
+        thread = null;
+        handler = null;
+    }
+
+    /**
+     * The looper of the pool's shared thread. Only valid between
+     * {@link #retain()} and the matching {@link #release()}.
+     */
+    @NonNull
+    public synchronized Looper looper() {
+        if (thread == null) {
+            throw new IllegalStateException("The pool isn't retained.");
+        }
+        return thread.getLooper();
+    }
+
+    /**
+     * Returns an idle player, or a new one if there is none. The player is in
+     * the idle state, and its callbacks arrive on the calling thread's looper,
+     * or on the main looper if the calling thread has none.
+     */
+    @NonNull
+    public MediaPlayer obtain() {
+        synchronized (this) {
+            IdlePlayer idlePlayer = idlePlayers.pollLast();
+            if (idlePlayer != null) {
+                return idlePlayer.player;
+            }
+        }
+        return new MediaPlayer();
+    }
+
+    /**
+     * Like {@link #obtain()}, but the player joins the given audio session,
+     * e.g., so that effects that are attached to it also apply to a
+     * look-ahead player.
+     */
+    @NonNull
+    public MediaPlayer obtainSharingSession(int audioSessionId) {
+        MediaPlayer player = obtain();
+        player.setAudioSessionId(audioSessionId);
+        synchronized (this) {
+            Integer count = sharedSessionPlayerCounts.get(audioSessionId);
+            // The player that the session came from counts, too.
+            sharedSessionPlayerCounts.put(audioSessionId, count != null ? count + 1 : 2);
+        }
+        return player;
+    }
+
+    /**
+     * Takes back a player that its owner no longer needs. The player must not
+     * be used by the caller afterwards.
+     */
+    public void recycle(@NonNull final MediaPlayer player) {
+        // Detach the previous owner right away so that callbacks that are
+        // already queued for this player don't reach it.
+        player.setOnPreparedListener(null);
+        player.setOnBufferingUpdateListener(null);
+        player.setOnSeekCompleteListener(null);
+        player.setOnCompletionListener(null);
+        player.setOnErrorListener(null);
+        player.setOnInfoListener(null);
+
+        Handler handler;
+        synchronized (this) {
+            handler = this.handler;
+        }
+        if (handler == null) {
+            release(player);
+            return;
+        }
+
+        // Resetting can block for a while, e.g., while a stream disconnects,
+        // so it's done off the caller's thread.
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                park(player);
+            }
+        });
+    }
+
+    private void park(@NonNull MediaPlayer player) {
+        if (isSessionStillShared(player)) {
+            release(player);
+            return;
+        }
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                player.setNextMediaPlayer(null);
+            }
+            player.reset();
+            player.setVolume(1f, 1f);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to reset MediaPlayer for reuse. Releasing it.");
+            release(player);
+            return;
+        }
+
+        synchronized (this) {
+            if (refCount == 0 || idlePlayers.size() >= maxIdlePlayers) {
+                player.release();
+                return;
+            }
+            idlePlayers.addLast(new IdlePlayer(player, SystemClock.elapsedRealtime()));
+            handler.removeCallbacks(evictExpiredPlayers);
+            handler.postDelayed(evictExpiredPlayers, idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * Whether another player that is still in use shares the given player's
+     * audio session.
+     */
+    private synchronized boolean isSessionStillShared(@NonNull MediaPlayer player) {
+        return sharedSessionPlayerCounts.containsKey(player.getAudioSessionId());
+    }
+
+    /**
+     * Releases a player that leaves the pool's care, and stops counting it
+     * as a user of a shared session. Once a session has a single player
+     * left, that player may be kept again.
+     */
+    private void release(@NonNull MediaPlayer player) {
+        int audioSessionId = player.getAudioSessionId();
+        player.release();
+        synchronized (this) {
+            Integer count = sharedSessionPlayerCounts.get(audioSessionId);
+            if (count == null) {
+                return;
+            }
+            if (count > 2) {
+                sharedSessionPlayerCounts.put(audioSessionId, count - 1);
+            } else {
+                sharedSessionPlayerCounts.remove(audioSessionId);
+            }
+        }
+    }
+
+    private synchronized void evictExpiredPlayers() {
+        long now = SystemClock.elapsedRealtime();
+        // Oldest first, so eviction stops at the first player that is still fresh.
+        Iterator<IdlePlayer> iterator = idlePlayers.iterator();
+        while (iterator.hasNext()) {
+            IdlePlayer idlePlayer = iterator.next();
+            long idleMillis = now - idlePlayer.idleSinceMillis;
+            if (idleMillis < idleTimeoutMillis) {
+                handler.postDelayed(evictExpiredPlayers, idleTimeoutMillis - idleMillis);
+                return;
+            }
+            iterator.remove();
+            idlePlayer.player.release();
+        }
+    }
+
+    private static class IdlePlayer {
+        private final MediaPlayer player;
+        private final long idleSinceMillis;
+
+        private IdlePlayer(@NonNull MediaPlayer player, long idleSinceMillis) {
+            this.player = player;
+            this.idleSinceMillis = idleSinceMillis;
+        }
+    }
+}
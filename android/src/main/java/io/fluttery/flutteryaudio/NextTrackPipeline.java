@@ -0,0 +1,221 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * State machine that keeps the next track of a playlist prepared while the
+ * current track plays so that the transition between the two is gapless.
+ *
+ * The pipeline holds at most one "next" player. As soon as both the current
+ * player and the next player are ready, the next player is linked to the
+ * current one so that the platform starts it the moment the current track
+ * completes. If linking isn't possible the next player is still handed back
+ * on completion so that the caller can swap it in and start it manually.
+ *
+ * The pipeline knows nothing about {@code MediaPlayer}. All player
+ * operations go through a {@link Backend}, which makes it possible to drive
+ * the state machine with a fake player.
+ *
+ * The pipeline is not thread-safe. It must be driven from the same thread
+ * that delivers the player callbacks.
+ *
+ * @param <P> the type of player handle that the {@link Backend} works with
+ */
+public class NextTrackPipeline<P> {
+
+    private final Backend<P> backend;
+
+    private State state = State.empty;
+    private P next;
+    private String nextUrl;
+    private P current;
+
+    public NextTrackPipeline(@NonNull Backend<P> backend) {
+        this.backend = backend;
+    }
+
+    @NonNull
+    public State state() {
+        return state;
+    }
+
+    @Nullable
+    public String nextUrl() {
+        return nextUrl;
+    }
+
+    /**
+     * Starts preparing the given url as the next track, replacing whatever
+     * was previously queued.
+     */
+    public void enqueue(@NonNull String url) {
+        if (url.equals(nextUrl)) {
+            return;
+        }
+
+        clear();
+
+        P player = backend.prepare(url);
+        if (player == null) {
+            // Preparing failed right away. The backend released the player.
+            return;
+        }
+        nextUrl = url;
+        next = player;
+        state = State.preparing;
+    }
+
+    /**
+     * To be called when a player that was created by {@link Backend#prepare(String)}
+     * finishes preparing. Callbacks for players that are no longer queued are ignored.
+     */
+    public void onNextPrepared(@NonNull P player) {
+        if (player != next || state != State.preparing) {
+            return;
+        }
+
+        state = State.prepared;
+        linkIfPossible();
+    }
+
+    /**
+     * To be called when the player that was created by {@link Backend#prepare(String)}
+     * fails. The queued track is dropped.
+     */
+    public void onNextFailed(@NonNull P player) {
+        if (player == next) {
+            clear();
+        }
+    }
+
+    /**
+     * To be called when the current player is prepared and able to hand off
+     * to a next player.
+     */
+    public void onCurrentReady(@NonNull P player) {
+        current = player;
+        linkIfPossible();
+    }
+
+    /**
+     * To be called before the current player is reset or released, e.g., when
+     * the current player loads a different track.
+     */
+    public void onCurrentInvalidated() {
+        if (state == State.linked) {
+            backend.unlink(current);
+            state = State.prepared;
+        }
+        current = null;
+    }
+
+    /**
+     * Removes the queued track if its url matches the given url and returns
+     * its player so that it can become the current player. This lets a skip
+     * to the queued track use the already prepared player instead of loading
+     * the url from scratch.
+     *
+     * Use {@link #state()} before calling this method to find out whether
+     * the returned player is already prepared.
+     *
+     * @return the queued player, or null if the given url isn't queued
+     */
+    @Nullable
+    public P takeIfQueued(@NonNull String url) {
+        if (!url.equals(nextUrl)) {
+            return null;
+        }
+
+        onCurrentInvalidated();
+        return take();
+    }
+
+    /**
+     * To be called when the current player completes its track.
+     *
+     * If the next track was linked, the platform has already started it. If
+     * it was only prepared, the caller is responsible for starting it. Use
+     * {@link #state()} before calling this method to find out which one
+     * applies.
+     *
+     * @return the player for the next track, or null if no prepared track is queued
+     */
+    @Nullable
+    public P onCurrentCompleted() {
+        current = null;
+        if (state != State.linked && state != State.prepared) {
+            return null;
+        }
+        return take();
+    }
+
+    /**
+     * Releases the queued track, if any.
+     */
+    public void clear() {
+        if (next != null) {
+            if (state == State.linked && current != null) {
+                backend.unlink(current);
+            }
+            backend.release(next);
+        }
+        next = null;
+        nextUrl = null;
+        state = State.empty;
+    }
+
+    private void linkIfPossible() {
+        if (state == State.prepared && current != null && backend.link(current, next)) {
+            state = State.linked;
+        }
+    }
+
+    private P take() {
+        P taken = next;
+        next = null;
+        nextUrl = null;
+        state = State.empty;
+        return taken;
+    }
+
+    /**
+     * Player operations that the {@link NextTrackPipeline} needs.
+     */
+    public interface Backend<P> {
+        /**
+         * Creates a new player and starts preparing the given url
+         * asynchronously. Completion must be reported through
+         * {@link NextTrackPipeline#onNextPrepared(Object)} or
+         * {@link NextTrackPipeline#onNextFailed(Object)}.
+         *
+         * @return the player, or null if preparing failed right away, in
+         *         which case the backend releases the player itself
+         */
+        @Nullable
+        P prepare(@NonNull String url);
+
+        /**
+         * Arranges for {@code next} to start as soon as {@code current} completes.
+         *
+         * @return true if the players were linked, false if the caller must
+         *         start the next player itself
+         */
+        boolean link(@NonNull P current, @NonNull P next);
+
+        void unlink(@NonNull P current);
+
+        void release(@NonNull P player);
+    }
+
+    public enum State {
+        /** No next track is queued. */
+        empty,
+        /** The next track is being prepared. */
+        preparing,
+        /** The next track is prepared but not linked to the current player. */
+        prepared,
+        /** The next track will start automatically when the current one completes. */
+        linked
+    }
+}
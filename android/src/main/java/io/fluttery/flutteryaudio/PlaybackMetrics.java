@@ -0,0 +1,151 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the plugin's own performance metrics: latency histograms of
+ * its hot paths and counters of work that was thrown away.
+ *
+ * Every metric is created up front, so recording never allocates or locks
+ * and may happen on any thread. Apps read the metrics with
+ * {@link #snapshot()}, or from Flutter through {@code audiometrics/snapshot},
+ * and ship them wherever they like.
+ */
+public class PlaybackMetrics {
+
+    /**
+     * Operations whose latency is recorded.
+     */
+    public enum Timer {
+        /** From a load until its audio is prepared. */
+        loadToPrepared,
+        /** From a play request until playback started, including any loading in between. */
+        playToPlaying,
+        /** From the first seek of a seek session until its last seek completed. */
+        seekToComplete,
+        /** Time that the plugin spends handling a method call from Flutter. */
+        channelDispatch,
+        /** From a visualizer capture callback until its frame was sent to Flutter. */
+        visualizerCallbackToSend
+    }
+
+    /**
+     * Events that are counted.
+     */
+    public enum Counter {
+        /** Visualizer frames that were replaced by a newer frame before Flutter got them. */
+        visualizerFramesCoalesced,
+        /** Commands that an {@link AudioPlayerStateMachine} rejected in its current state. */
+        stateMachineRejections
+    }
+
+    private static final Timer[] TIMERS = Timer.values();
+    private static final Counter[] COUNTERS = Counter.values();
+
+    private static PlaybackMetrics shared;
+
+    /**
+     * The registry that the plugin records into.
+     */
+    @NonNull
+    public static synchronized PlaybackMetrics shared() {
+        if (shared == null) {
+            shared = new PlaybackMetrics();
+        }
+        return shared;
+    }
+
+    // Indexed by ordinal.
+    private final LatencyHistogram[] histograms = new LatencyHistogram[TIMERS.length];
+    private final AtomicLongArray counts = new AtomicLongArray(COUNTERS.length);
+
+    public PlaybackMetrics() {
+        for (int i = 0; i < histograms.length; ++i) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a {@code System.nanoTime()}.
+     */
+    public void recordSince(@NonNull Timer timer, long startNanos) {
+        histograms[timer.ordinal()].recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public void increment(@NonNull Counter counter) {
+        counts.incrementAndGet(counter.ordinal());
+    }
+
+    @NonNull
+    public LatencyHistogram histogram(@NonNull Timer timer) {
+        return histograms[timer.ordinal()];
+    }
+
+    public long count(@NonNull Counter counter) {
+        return counts.get(counter.ordinal());
+    }
+
+    @NonNull
+    public Snapshot snapshot() {
+        Map<Timer, LatencyHistogram.Snapshot> latencies = new EnumMap<>(Timer.class);
+        for (Timer timer : TIMERS) {
+            latencies.put(timer, histograms[timer.ordinal()].snapshot());
+        }
+        Map<Counter, Long> counters = new EnumMap<>(Counter.class);
+        for (Counter counter : COUNTERS) {
+            counters.put(counter, counts.get(counter.ordinal()));
+        }
+        return new Snapshot(latencies, counters);
+    }
+
+    /**
+     * Forgets everything that was recorded so far, e.g., after a snapshot
+     * was shipped.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < COUNTERS.length; ++i) {
+            counts.set(i, 0);
+        }
+    }
+
+    public static class Snapshot {
+        @NonNull
+        public final Map<Timer, LatencyHistogram.Snapshot> latencies;
+        @NonNull
+        public final Map<Counter, Long> counters;
+
+        private Snapshot(@NonNull Map<Timer, LatencyHistogram.Snapshot> latencies, @NonNull Map<Counter, Long> counters) {
+            this.latencies = latencies;
+            this.counters = counters;
+        }
+
+        /**
+         * The snapshot as channel values: latency summaries in microseconds
+         * by timer name, and counts by counter name.
+         */
+        @NonNull
+        public Map<String, Object> toMap() {
+            Map<String, Object> latencyMaps = new HashMap<>();
+            for (Map.Entry<Timer, LatencyHistogram.Snapshot> entry : latencies.entrySet()) {
+                latencyMaps.put(entry.getKey().name(), entry.getValue().toMap());
+            }
+            Map<String, Object> counterValues = new HashMap<>();
+            for (Map.Entry<Counter, Long> entry : counters.entrySet()) {
+                counterValues.put(entry.getKey().name(), entry.getValue());
+            }
+
+            Map<String, Object> map = new HashMap<>();
+            map.put("latencies", latencyMaps);
+            map.put("counters", counterValues);
+            return map;
+        }
+    }
+}
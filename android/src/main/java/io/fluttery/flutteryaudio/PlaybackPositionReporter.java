@@ -0,0 +1,285 @@
+package io.fluttery.flutteryaudio;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reports the playhead position of an {@link AudioPlayer} to subscribers at
+ * the rate that they need.
+ *
+ * Every subscriber asks for an update interval, e.g., 16ms to sync lyrics or
+ * 1s for a mini player. While audio plays, updates are produced at the
+ * fastest requested interval. When there are no subscribers, or when audio
+ * isn't playing, nothing is scheduled at all.
+ *
+ * Asking the {@code MediaPlayer} for its position is a binder call, so the
+ * reporter doesn't do that on every update. Instead it keeps a
+ * {@link PlaybackAnchor}: a position, a playback speed and the monotonic
+ * time at which that position was observed. Updates extrapolate from the
+ * anchor, which is refreshed from the player about once per second and
+ * whenever playback starts, stops or seeks. The anchor is published as
+ * well, so that clients can extrapolate on their own without any further
+ * updates.
+ *
+ * All work happens on the thread of the given {@link Handler}. The public
+ * methods may be called from any thread.
+ */
+public class PlaybackPositionReporter {
+
+    private static final long ANCHOR_REFRESH_INTERVAL_NANOS = 1000_000_000L;
+
+    // Extrapolation error that is tolerated before a refreshed anchor is published.
+    private static final int ANCHOR_DRIFT_TOLERANCE_MILLIS = 40;
+
+    private final Handler handler;
+    private final PositionSource positionSource;
+    private final Callback callback;
+
+    // Only accessed on the handler's thread.
+    private final Map<String, Integer> subscriptions = new HashMap<>();
+    private int updateIntervalMillis = 0;
+    private boolean isPlaying = false;
+    private boolean isTickScheduled = false;
+    private int duration = 0;
+
+    private volatile PlaybackAnchor anchor = new PlaybackAnchor(0, 0f, now());
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            isTickScheduled = false;
+            if (!isPlaying || subscriptions.isEmpty()) {
+                return;
+            }
+
+            long now = now();
+            if (now - anchor.elapsedRealtimeNanos >= ANCHOR_REFRESH_INTERVAL_NANOS) {
+                refreshAnchor(false);
+            }
+
+            int position = anchor.positionAt(now);
+            if (duration > 0 && position > duration) {
+                position = duration;
+            }
+            callback.onPositionUpdate(position, duration);
+
+            scheduleTick();
+        }
+    };
+
+    public PlaybackPositionReporter(@NonNull Handler handler, @NonNull PositionSource positionSource, @NonNull Callback callback) {
+        this.handler = handler;
+        this.positionSource = positionSource;
+        this.callback = callback;
+    }
+
+    /**
+     * Adds or updates a subscription. Updates are delivered at least as often
+     * as {@code intervalMillis} while audio plays.
+     */
+    public void subscribe(@NonNull final String subscriberId, final int intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be positive, was: " + intervalMillis);
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                subscriptions.put(subscriberId, intervalMillis);
+                onSubscriptionsChanged();
+            }
+        });
+    }
+
+    public void unsubscribe(@NonNull final String subscriberId) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                subscriptions.remove(subscriberId);
+                onSubscriptionsChanged();
+            }
+        });
+    }
+
+    /**
+     * To be called when audio starts playing.
+     */
+    public void onPlaybackStarted() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                isPlaying = true;
+                refreshAnchor(true);
+                scheduleTick();
+            }
+        });
+    }
+
+    /**
+     * To be called when audio stops playing for any reason.
+     */
+    public void onPlaybackStopped() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                isPlaying = false;
+                handler.removeCallbacks(tick);
+                isTickScheduled = false;
+                refreshAnchor(true);
+            }
+        });
+    }
+
+    /**
+     * To be called when the position jumps, e.g., after a seek completes or
+     * new audio is ready.
+     */
+    public void onPositionDiscontinuity() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                refreshAnchor(true);
+            }
+        });
+    }
+
+    /**
+     * Stops all updates and drops all subscriptions.
+     */
+    public void release() {
+        handler.removeCallbacksAndMessages(null);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                subscriptions.clear();
+                isPlaying = false;
+                isTickScheduled = false;
+            }
+        });
+    }
+
+    /**
+     * The most recently published anchor.
+     */
+    @NonNull
+    public PlaybackAnchor anchor() {
+        return anchor;
+    }
+
+    private void onSubscriptionsChanged() {
+        int fastestInterval = 0;
+        for (int interval : subscriptions.values()) {
+            if (fastestInterval == 0 || interval < fastestInterval) {
+                fastestInterval = interval;
+            }
+        }
+
+        boolean isFaster = fastestInterval > 0 && (updateIntervalMillis == 0 || fastestInterval < updateIntervalMillis);
+        updateIntervalMillis = fastestInterval;
+
+        if (subscriptions.isEmpty()) {
+            handler.removeCallbacks(tick);
+            isTickScheduled = false;
+        } else if (isFaster) {
+            // Don't wait for the slower interval that is currently scheduled.
+            handler.removeCallbacks(tick);
+            isTickScheduled = false;
+            scheduleTick();
+        } else {
+            scheduleTick();
+        }
+    }
+
+    private void scheduleTick() {
+        if (isTickScheduled || !isPlaying || updateIntervalMillis <= 0) {
+            return;
+        }
+        isTickScheduled = true;
+        handler.postDelayed(tick, updateIntervalMillis);
+    }
+
+    private void refreshAnchor(boolean forcePublish) {
+        long now = now();
+        int extrapolatedPosition = anchor.positionAt(now);
+        duration = positionSource.duration();
+        PlaybackAnchor refreshed = new PlaybackAnchor(
+                positionSource.currentPosition(),
+                isPlaying ? positionSource.playbackSpeed() : 0f,
+                now
+        );
+        anchor = refreshed;
+
+        boolean hasDrifted = Math.abs(refreshed.position - extrapolatedPosition) > ANCHOR_DRIFT_TOLERANCE_MILLIS;
+        if (forcePublish || hasDrifted) {
+            callback.onAnchorChanged(refreshed);
+        }
+    }
+
+    private static long now() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return SystemClock.elapsedRealtimeNanos();
+        } else {
+            return SystemClock.elapsedRealtime() * 1000_000L;
+        }
+    }
+
+    /**
+     * A playhead position observed at a point in time, from which the
+     * position at any later time can be extrapolated.
+     */
+    public static class PlaybackAnchor {
+        /** Observed playhead position in milliseconds. */
+        public final int position;
+        /** Playback speed, where 1 is normal speed and 0 means not playing. */
+        public final float speed;
+        /**
+         * Time of the observation on the {@code SystemClock.elapsedRealtimeNanos()}
+         * time base.
+         */
+        public final long elapsedRealtimeNanos;
+
+        public PlaybackAnchor(int position, float speed, long elapsedRealtimeNanos) {
+            this.position = position;
+            this.speed = speed;
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        }
+
+        /**
+         * Extrapolated playhead position, in milliseconds, at the given
+         * {@code SystemClock.elapsedRealtimeNanos()} time.
+         */
+        public int positionAt(long elapsedRealtimeNanos) {
+            long elapsedNanos = elapsedRealtimeNanos - this.elapsedRealtimeNanos;
+            return position + (int) (elapsedNanos * speed / 1000_000L);
+        }
+
+        /**
+         * Nanoseconds between this anchor's observation and now.
+         */
+        public long ageNanos() {
+            return now() - elapsedRealtimeNanos;
+        }
+    }
+
+    /**
+     * Where the reporter reads the actual playhead from.
+     */
+    public interface PositionSource {
+        int currentPosition();
+
+        int duration();
+
+        float playbackSpeed();
+    }
+
+    public interface Callback {
+        void onPositionUpdate(int position, int audioLength);
+
+        void onAnchorChanged(@NonNull PlaybackAnchor anchor);
+    }
+}
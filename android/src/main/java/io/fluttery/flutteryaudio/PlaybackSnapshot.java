@@ -0,0 +1,77 @@
+package io.fluttery.flutteryaudio;
+
+/**
+ * Position, duration and speed of a player that may only be used on the
+ * main thread, for readers on other threads, e.g., the
+ * {@link PlaybackPositionReporter}.
+ *
+ * The main thread records the player's values whenever they change other
+ * than by playing on, i.e., on state changes, seeks and discontinuities.
+ * While playback advances, readers extrapolate the position from the last
+ * record, so they never touch the player.
+ *
+ * {@link #update} must only be called by one thread. The other methods may
+ * be called from any thread.
+ */
+class PlaybackSnapshot {
+
+    private volatile Values values = new Values(0, -1, 1f, false, 0);
+
+    /**
+     * Records the player's values.
+     *
+     * @param durationMillis -1 if unknown
+     * @param isAdvancing true if the position moves on by itself, i.e., the
+     *                    player is playing and not buffering
+     * @param nowMillis {@code SystemClock.elapsedRealtime()}
+     */
+    void update(long positionMillis, long durationMillis, float speed, boolean isAdvancing, long nowMillis) {
+        values = new Values(positionMillis, durationMillis, speed, isAdvancing, nowMillis);
+    }
+
+    /**
+     * The position at the given time, which must not be earlier than the
+     * last update.
+     *
+     * @param nowMillis {@code SystemClock.elapsedRealtime()}
+     */
+    int position(long nowMillis) {
+        Values values = this.values;
+        long position = values.positionMillis;
+        if (values.isAdvancing) {
+            position += (long) ((nowMillis - values.updatedAtMillis) * values.speed);
+            if (values.durationMillis >= 0) {
+                position = Math.min(position, values.durationMillis);
+            }
+        }
+        return (int) position;
+    }
+
+    /**
+     * The duration, or -1 if it's unknown, e.g., of a live stream.
+     */
+    int duration() {
+        return (int) values.durationMillis;
+    }
+
+    float speed() {
+        return values.speed;
+    }
+
+    // Immutable, so that readers always see values from the same update.
+    private static class Values {
+        private final long positionMillis;
+        private final long durationMillis;
+        private final float speed;
+        private final boolean isAdvancing;
+        private final long updatedAtMillis;
+
+        private Values(long positionMillis, long durationMillis, float speed, boolean isAdvancing, long updatedAtMillis) {
+            this.positionMillis = positionMillis;
+            this.durationMillis = durationMillis;
+            this.speed = speed;
+            this.isAdvancing = isAdvancing;
+            this.updatedAtMillis = updatedAtMillis;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Keeps at most one seek in flight on a player and collapses the seeks that
+ * arrive in the meantime into a single pending target.
+ *
+ * A seek bar that is being dragged can ask for dozens of seeks per second,
+ * which is far more than a player can complete. While a seek is in flight,
+ * every new target replaces the pending one, and only the latest target is
+ * issued once the in-flight seek completes. Clients see a single seek
+ * session from the first request to the completion of the last one.
+ *
+ * While scrubbing, seeks go to the nearest sync frame when the backend can
+ * do that, which is fast enough to preview the position under the user's
+ * finger. When scrubbing ends, the session finishes with a precise seek to
+ * the last requested position, unless the seek that went there was precise
+ * already.
+ *
+ * Methods may be called from any thread. The {@link Callback} is invoked on
+ * the calling thread while the coalescer's lock is held.
+ */
+public class SeekCoalescer {
+
+    private static final int NO_TARGET = -1;
+
+    private final Backend backend;
+    private final Callback callback;
+
+    private boolean isSessionActive = false;
+    private boolean isSeekInFlight = false;
+    private boolean isInFlightSeekPrecise = false;
+    private boolean isScrubbing = false;
+    private int pendingTarget = NO_TARGET;
+    private int requestedPosition = 0;
+
+    public SeekCoalescer(@NonNull Backend backend, @NonNull Callback callback) {
+        this.backend = backend;
+        this.callback = callback;
+    }
+
+    public synchronized boolean isScrubbing() {
+        return isScrubbing;
+    }
+
+    public synchronized boolean isSeeking() {
+        return isSessionActive;
+    }
+
+    public synchronized void seek(int positionInMillis) {
+        if (!isSessionActive) {
+            isSessionActive = true;
+            callback.onSeekStarted(positionInMillis, backend.currentPosition());
+        }
+        requestedPosition = positionInMillis;
+
+        if (isSeekInFlight) {
+            pendingTarget = positionInMillis;
+        } else {
+            issue(positionInMillis);
+        }
+    }
+
+    /**
+     * Seeks are previews until {@link #endScrubbing()}.
+     */
+    public synchronized void startScrubbing() {
+        isScrubbing = true;
+    }
+
+    /**
+     * Finishes a scrub with a precise seek to the last requested position,
+     * unless the player is already there.
+     */
+    public synchronized void endScrubbing() {
+        if (!isScrubbing) {
+            return;
+        }
+        isScrubbing = false;
+
+        // With a seek in flight the precise seek is issued when it completes.
+        if (!isSessionActive || isSeekInFlight) {
+            return;
+        }
+        if (isInFlightSeekPrecise) {
+            // The last seek was precise already, e.g., because the backend
+            // can't seek fast, and it went to the last requested position.
+            isSessionActive = false;
+            callback.onSeekCompleted(requestedPosition, backend.currentPosition());
+        } else {
+            issue(requestedPosition);
+        }
+    }
+
+    /**
+     * To be called when the player completes a seek.
+     */
+    public synchronized void onSeekComplete() {
+        if (!isSeekInFlight) {
+            // A seek from before the last reset.
+            return;
+        }
+        isSeekInFlight = false;
+
+        if (pendingTarget != NO_TARGET) {
+            int target = pendingTarget;
+            pendingTarget = NO_TARGET;
+            issue(target);
+        } else if (!isScrubbing && !isInFlightSeekPrecise) {
+            issue(requestedPosition);
+        } else if (!isScrubbing) {
+            isSessionActive = false;
+            callback.onSeekCompleted(requestedPosition, backend.currentPosition());
+        }
+        // While scrubbing the session stays open until scrubbing ends.
+    }
+
+    /**
+     * Forgets all seeks, e.g., because the player was reset for new audio.
+     */
+    public synchronized void reset() {
+        isSessionActive = false;
+        isSeekInFlight = false;
+        isScrubbing = false;
+        pendingTarget = NO_TARGET;
+    }
+
+    private void issue(int target) {
+        isSeekInFlight = true;
+        isInFlightSeekPrecise = !isScrubbing || !backend.supportsFastSeek();
+        backend.seekTo(target, isInFlightSeekPrecise);
+    }
+
+    /**
+     * The player that seeks are issued to.
+     */
+    public interface Backend {
+        /**
+         * Starts a seek. Completion must be reported with
+         * {@link SeekCoalescer#onSeekComplete()}.
+         *
+         * @param isPrecise false to seek to the nearest sync frame instead,
+         *                  only used if {@link #supportsFastSeek()}
+         */
+        void seekTo(int positionInMillis, boolean isPrecise);
+
+        /**
+         * True if the player can seek to the nearest sync frame, which is
+         * faster than a precise seek.
+         */
+        boolean supportsFastSeek();
+
+        int currentPosition();
+    }
+
+    public interface Callback {
+        void onSeekStarted(int requestedPosition, int fromPosition);
+
+        void onSeekCompleted(int requestedPosition, int actualPosition);
+    }
+}
@@ -0,0 +1,376 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.audiofx.Visualizer;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One Visualizer capture of an audio session that is shared by all
+ * subscribers of that session, e.g., several visualizer widgets on one
+ * screen.
+ *
+ * The capture is created with the first subscriber and released with the
+ * last one. In between it captures the largest capture size and the highest
+ * capture rate that any subscriber asked for, and the waveform and FFT only
+ * if some subscriber wants them.
+ *
+ * Every subscriber receives frames at its own rate. Captures are decimated
+ * per subscriber by accumulating its rate on every capture and sending it a
+ * frame whenever a full capture period has been accumulated, so that a
+ * subscriber at a third of the capture rate receives every third capture.
+ * Subscribers that want the same frames, i.e., the waveform, the raw FFT, or
+ * the same number of bands, share a {@link Stream}. A capture is processed
+ * once per stream and sent once, to all of its subscribers that are due,
+ * which are set in the frame's subscriber mask, see
+ * {@link VisualizerFrameTransport}.
+ *
+ * Must be used on the main thread. Captures are handled on the Visualizer's
+ * capture thread, which only reads snapshots of the streams.
+ */
+public class VisualizerCaptureSession implements Visualizer.OnDataCaptureListener {
+
+    private static final String TAG = "VisualizerCaptureSession";
+
+    private final int audioSessionId;
+    private final VisualizerFrameTransport transport;
+    private final AudioVisualizer visualizer = new AudioVisualizer();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final List<Stream> activeStreams = new ArrayList<>();
+    private AudioVisualizer.CaptureConfig config;
+    private boolean isAdaptive = false;
+    private boolean isBackgrounded = false;
+
+    // Read on the capture thread.
+    private volatile Stream[] streams = new Stream[0];
+    private volatile AdaptiveCaptureController adaptiveCapture;
+    // Actual capture rate in milliHertz, which subscriber rates are relative to.
+    private volatile int captureRate;
+
+    public VisualizerCaptureSession(int audioSessionId, @NonNull VisualizerFrameTransport transport) {
+        this.audioSessionId = audioSessionId;
+        this.transport = transport;
+    }
+
+    public int audioSessionId() {
+        return audioSessionId;
+    }
+
+    public boolean isEmpty() {
+        return subscribers.isEmpty();
+    }
+
+    /**
+     * Adds a subscriber, starting the capture if it is the first one, and
+     * widening the capture if the subscriber needs more than it provides.
+     *
+     * @param subscriberId bit of the subscriber in frame subscriber masks,
+     *                     less than {@link VisualizerFrameTransport#MAX_SUBSCRIBERS}
+     * @param bandCount number of FFT bands that the subscriber receives
+     *                  instead of the raw FFT, or 0 for the raw FFT
+     * @throws RuntimeException if the Visualizer can't be created, e.g.,
+     *                          because the app may not record audio
+     */
+    public void subscribe(int subscriberId, @NonNull AudioVisualizer.CaptureConfig config, int bandCount, boolean isAdaptive) {
+        subscribers.add(new Subscriber(subscriberId, config, bandCount, isAdaptive));
+        try {
+            onSubscribersChanged();
+        } catch (RuntimeException e) {
+            unsubscribe(subscriberId);
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a subscriber, releasing the capture if it was the last one.
+     *
+     * @return false if there was no such subscriber
+     */
+    public boolean unsubscribe(int subscriberId) {
+        for (int i = 0; i < subscribers.size(); ++i) {
+            if (subscribers.get(i).id == subscriberId) {
+                subscribers.remove(i);
+                onSubscribersChanged();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setBackgrounded(boolean isBackgrounded) {
+        this.isBackgrounded = isBackgrounded;
+        AdaptiveCaptureController controller = adaptiveCapture;
+        if (controller != null) {
+            controller.setBackgrounded(isBackgrounded);
+        }
+    }
+
+    /**
+     * Releases the capture and drops all subscribers.
+     */
+    public void release() {
+        subscribers.clear();
+        onSubscribersChanged();
+    }
+
+    private void onSubscribersChanged() {
+        if (subscribers.isEmpty()) {
+            AudioLog.d(TAG, "Releasing capture of audio session ", audioSessionId);
+            streams = new Stream[0];
+            activeStreams.clear();
+            adaptiveCapture = null;
+            config = null;
+            visualizer.deactivate();
+            return;
+        }
+
+        int captureSize = 0;
+        int captureRate = 0;
+        boolean waveform = false;
+        boolean fft = false;
+        boolean isAdaptive = false;
+        for (Subscriber subscriber : subscribers) {
+            captureSize = Math.max(captureSize, AudioVisualizer.resolveCaptureSize(subscriber.config.captureSize));
+            captureRate = Math.max(captureRate, subscriber.captureRate);
+            waveform |= subscriber.config.waveform;
+            fft |= subscriber.config.fft;
+            isAdaptive |= subscriber.isAdaptive;
+        }
+        AudioVisualizer.CaptureConfig newConfig = new AudioVisualizer.CaptureConfig(captureSize, captureRate, waveform, fft);
+
+        updateStreams();
+
+        boolean isCaptureChanged = config == null
+                || config.captureSize != newConfig.captureSize
+                || config.captureRate != newConfig.captureRate
+                || config.waveform != newConfig.waveform
+                || config.fft != newConfig.fft;
+        if (isCaptureChanged || isAdaptive != this.isAdaptive) {
+            if (AudioLog.DEBUG) {
+                AudioLog.d(TAG, "Capturing audio session " + audioSessionId + " for " + subscribers.size()
+                        + " subscribers - size: " + captureSize + ", rate: " + captureRate + "mHz");
+            }
+            // Adaptive capture starts over from full fidelity.
+            adaptiveCapture = null;
+            this.captureRate = captureRate;
+            if (!visualizer.isActive()) {
+                visualizer.activate(audioSessionId, newConfig, this);
+            } else {
+                visualizer.setConfig(newConfig);
+            }
+            config = newConfig;
+            this.isAdaptive = isAdaptive;
+            if (isAdaptive) {
+                startAdaptiveCapture();
+            }
+        }
+    }
+
+    /**
+     * Groups the subscribers into streams, keeping the streams, and their
+     * band levels, that still have subscribers.
+     */
+    private void updateStreams() {
+        List<Stream> updated = new ArrayList<>();
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.config.waveform) {
+                streamFor(updated, VisualizerFrameTransport.FRAME_TYPE_WAVEFORM, 0).add(subscriber);
+            }
+            if (subscriber.config.fft) {
+                if (subscriber.bandCount > 0) {
+                    streamFor(updated, VisualizerFrameTransport.FRAME_TYPE_BANDS, subscriber.bandCount).add(subscriber);
+                } else {
+                    streamFor(updated, VisualizerFrameTransport.FRAME_TYPE_FFT, 0).add(subscriber);
+                }
+            }
+        }
+
+        activeStreams.clear();
+        activeStreams.addAll(updated);
+        Stream[] snapshot = new Stream[updated.size()];
+        for (int i = 0; i < snapshot.length; ++i) {
+            Stream stream = updated.get(i);
+            stream.subscribers = stream.pendingSubscribers.toArray(new Subscriber[stream.pendingSubscribers.size()]);
+            stream.pendingSubscribers.clear();
+            snapshot[i] = stream;
+        }
+        streams = snapshot;
+    }
+
+    @NonNull
+    private Stream streamFor(@NonNull List<Stream> updated, int frameType, int bandCount) {
+        for (Stream stream : updated) {
+            if (stream.frameType == frameType && stream.bandCount == bandCount) {
+                return stream;
+            }
+        }
+        Stream stream = null;
+        for (Stream existing : activeStreams) {
+            if (existing.frameType == frameType && existing.bandCount == bandCount) {
+                stream = existing;
+                break;
+            }
+        }
+        if (stream == null) {
+            stream = new Stream(transport.newStream(), frameType, bandCount);
+        }
+        updated.add(stream);
+        return stream;
+    }
+
+    private void startAdaptiveCapture() {
+        final AudioVisualizer.CaptureConfig startConfig = config;
+        final AdaptiveCaptureController controller = new AdaptiveCaptureController(
+                startConfig.captureSize,
+                AudioVisualizer.resolveCaptureRate(startConfig.captureRate),
+                Visualizer.getCaptureSizeRange()[0],
+                new AdaptiveCaptureController.Callback() {
+                    @Override
+                    public void onCaptureChanged(final int captureSize, final int captureRate) {
+                        // The Visualizer must not be reconfigured from its own capture thread.
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Unless the capture was reconfigured in the meantime.
+                                if (config == startConfig && visualizer.isActive()) {
+                                    if (AudioLog.DEBUG) {
+                                        AudioLog.d(TAG, "Adapting visualizer capture - size: " + captureSize + ", rate: " + captureRate + "mHz");
+                                    }
+                                    visualizer.setCapture(captureSize, captureRate);
+                                    VisualizerCaptureSession.this.captureRate = AudioVisualizer.resolveCaptureRate(captureRate);
+                                }
+                            }
+                        });
+                    }
+                }
+        );
+        controller.setBackgrounded(isBackgrounded);
+        adaptiveCapture = controller;
+    }
+
+    @Override
+    public void onWaveFormDataCapture(Visualizer visualizer, byte[] waveform, int samplingRate) {
+        onCapture(waveform, samplingRate, true);
+    }
+
+    @Override
+    public void onFftDataCapture(Visualizer visualizer, byte[] sharedFft, int samplingRate) {
+        onCapture(sharedFft, samplingRate, false);
+    }
+
+    // Runs on the capture thread.
+    private void onCapture(@NonNull byte[] capture, int samplingRate, boolean isWaveform) {
+        int captureRate = this.captureRate;
+        AdaptiveCaptureController controller = adaptiveCapture;
+        for (Stream stream : streams) {
+            if ((stream.frameType == VisualizerFrameTransport.FRAME_TYPE_WAVEFORM) != isWaveform) {
+                continue;
+            }
+
+            int dueSubscribers = 0;
+            for (Subscriber subscriber : stream.subscribers) {
+                if (subscriber.isDue(isWaveform, captureRate)) {
+                    dueSubscribers |= 1 << subscriber.id;
+                }
+            }
+
+            byte[] payload = capture;
+            int length = capture.length;
+            if (stream.bandProcessor != null) {
+                // Bands are smoothed from capture to capture, so every
+                // capture is processed even if nobody is due.
+                stream.bandProcessor.process(capture, samplingRate);
+                if (dueSubscribers == 0) {
+                    continue;
+                }
+                payload = stream.bandFrame;
+                length = stream.bandProcessor.writeFrame(stream.bandFrame);
+            } else if (dueSubscribers == 0) {
+                continue;
+            }
+
+            // The transport copies the shared buffer into its own pooled
+            // buffer, so there's no need to copy it here.
+            boolean wasCoalesced = transport.send(stream.id, stream.frameType, dueSubscribers, payload, length, samplingRate);
+            if (controller != null) {
+                controller.onFrameProduced(wasCoalesced);
+            }
+        }
+    }
+
+    /**
+     * Frames with the same content, and the subscribers that receive them.
+     */
+    private static class Stream {
+        private final int id;
+        private final int frameType;
+        private final int bandCount;
+        // Only used on the capture thread.
+        @Nullable
+        private final FftBandProcessor bandProcessor;
+        @Nullable
+        private final byte[] bandFrame;
+
+        private volatile Subscriber[] subscribers = new Subscriber[0];
+        // Main thread only, while the streams are updated.
+        private final List<Subscriber> pendingSubscribers = new ArrayList<>();
+
+        private Stream(int id, int frameType, int bandCount) {
+            this.id = id;
+            this.frameType = frameType;
+            this.bandCount = bandCount;
+            this.bandProcessor = bandCount > 0 ? new FftBandProcessor(bandCount) : null;
+            this.bandFrame = bandCount > 0 ? new byte[2 * bandCount] : null;
+        }
+
+        private void add(@NonNull Subscriber subscriber) {
+            pendingSubscribers.add(subscriber);
+        }
+    }
+
+    private static class Subscriber {
+        private final int id;
+        private final AudioVisualizer.CaptureConfig config;
+        private final int bandCount;
+        private final boolean isAdaptive;
+        // Frames per second in milliHertz.
+        private final int captureRate;
+
+        // Accumulated rate since the last frame, in milliHertz. Only used on
+        // the capture thread.
+        private int waveformCredit;
+        private int fftCredit;
+
+        private Subscriber(int id, @NonNull AudioVisualizer.CaptureConfig config, int bandCount, boolean isAdaptive) {
+            this.id = id;
+            this.config = config;
+            this.bandCount = bandCount;
+            this.isAdaptive = isAdaptive;
+            this.captureRate = AudioVisualizer.resolveCaptureRate(config.captureRate);
+        }
+
+        /**
+         * Accounts for a capture at {@code captureRate} and returns whether
+         * it is time for this subscriber's next frame.
+         */
+        private boolean isDue(boolean isWaveform, int captureRate) {
+            int credit = Math.min((isWaveform ? waveformCredit : fftCredit) + this.captureRate, captureRate);
+            boolean isDue = credit >= captureRate;
+            if (isDue) {
+                credit -= captureRate;
+            }
+            if (isWaveform) {
+                waveformCredit = credit;
+            } else {
+                fftCredit = credit;
+            }
+            return isDue;
+        }
+    }
+}
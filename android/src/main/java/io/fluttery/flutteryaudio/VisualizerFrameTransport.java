@@ -0,0 +1,272 @@
+package io.fluttery.flutteryaudio;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
+import io.flutter.plugin.common.BinaryMessenger;
+
+/**
+ * Sends visualizer frames to Flutter as raw bytes over a dedicated
+ * {@link BasicMessageChannel} instead of as a map on a {@code MethodChannel}.
+ *
+ * Frames are written into a small pool of direct {@link ByteBuffer}s that are
+ * reused, so sending a frame doesn't allocate. The pool only grows while more
+ * streams than ever before have frames waiting at once. Each frame is a
+ * fixed-size big-endian header followed by the payload:
+ *
+ * <pre>
+ * offset  size  field
+ *      0     4  sequence number, incremented for every frame
+ *      4     4  sampling rate in milliHertz, as reported by the Visualizer
+ *      8     8  capture timestamp from System.nanoTime()
+ *     16     4  frame type, one of the FRAME_TYPE_* constants
+ *     20     4  payload length in bytes
+ *     24     4  subscribers, bit i set for each subscriber i that the
+ *               frame is for
+ *     28     n  payload
+ * </pre>
+ *
+ * The Dart side reads the payload as a {@code Uint8List} view of the message
+ * without copying it.
+ *
+ * Delivery works like a mailbox with room for one letter per stream, where a
+ * stream is a sequence of frames with the same content, e.g., the bands of
+ * one capture session, see {@link #newStream()}. At most one frame is in
+ * flight to Flutter at a time, and the next frame is only sent once the Dart
+ * handler has replied to the previous one. Frames of a stream that are
+ * produced in the meantime replace each other, so only the latest one is
+ * sent, to all subscribers of the frames that it replaced. This keeps the
+ * visual latency at about one frame per stream no matter how slow the UI
+ * is, instead of queueing up stale frames in the platform message queue.
+ */
+public class VisualizerFrameTransport {
+
+    public static final String CHANNEL_NAME = "fluttery_audio_visualizer/frames";
+
+    public static final int FRAME_TYPE_FFT = 0;
+    public static final int FRAME_TYPE_WAVEFORM = 1;
+    /** Band levels followed by band peaks, see {@link FftBandProcessor#writeFrame(byte[])}. */
+    public static final int FRAME_TYPE_BANDS = 2;
+
+    public static final int HEADER_SIZE_IN_BYTES = 28;
+
+    /**
+     * Most bands that a {@link #FRAME_TYPE_BANDS} frame can carry, as it
+     * holds a level and a peak byte per band. It's also the number of
+     * frequency bins of the largest capture that the Visualizer supports.
+     */
+    public static final int MAX_BAND_COUNT = 512;
+
+    /** Subscribers are bits of the header's subscriber mask. */
+    public static final int MAX_SUBSCRIBERS = 32;
+
+    // Every stream has at least one subscriber.
+    private static final int MAX_STREAMS = MAX_SUBSCRIBERS;
+    // One buffer being written, one waiting to be sent, and one in flight.
+    // More are allocated when several streams have frames waiting.
+    private static final int INITIAL_POOL_SIZE = 3;
+    private static final int MAX_POOL_SIZE = MAX_STREAMS + 2;
+    private static final int MAX_PAYLOAD_SIZE_IN_BYTES = 2 * MAX_BAND_COUNT;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int SUBSCRIBERS_OFFSET = 24;
+
+    private final BasicMessageChannel<ByteBuffer> channel;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object lock = new Object();
+    private final PlaybackMetrics metrics = PlaybackMetrics.shared();
+
+    // Guarded by this, i.e., only touched while sending.
+    private ByteBuffer writable;
+    private int sequence = 0;
+
+    private final AtomicInteger nextStream = new AtomicInteger();
+
+    // Guarded by lock.
+    private final ByteBuffer[] free = new ByteBuffer[MAX_POOL_SIZE];
+    private int freeCount = 0;
+    private int poolSize = 0;
+    // Frames waiting to be sent and their streams, oldest first.
+    private final ByteBuffer[] pending = new ByteBuffer[MAX_STREAMS];
+    private final int[] pendingStreams = new int[MAX_STREAMS];
+    private int pendingCount = 0;
+    private ByteBuffer inFlight;
+    private long producedFrames = 0;
+    private long coalescedFrames = 0;
+    private long deliveredFrames = 0;
+
+    // Single instances serve every frame so that sending doesn't allocate.
+    private final Runnable sendPendingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendPending();
+        }
+    };
+
+    private final BasicMessageChannel.Reply<ByteBuffer> deliveryReply = new BasicMessageChannel.Reply<ByteBuffer>() {
+        @Override
+        public void reply(ByteBuffer reply) {
+            synchronized (lock) {
+                free[freeCount++] = inFlight;
+                inFlight = null;
+                ++deliveredFrames;
+            }
+            sendPending();
+        }
+    };
+
+    public VisualizerFrameTransport(@NonNull BinaryMessenger messenger) {
+        this(new BasicMessageChannel<>(messenger, CHANNEL_NAME, BinaryCodec.INSTANCE));
+    }
+
+    public VisualizerFrameTransport(@NonNull BasicMessageChannel<ByteBuffer> channel) {
+        this.channel = channel;
+        writable = allocateFrame();
+        for (int i = 1; i < INITIAL_POOL_SIZE; ++i) {
+            free[freeCount++] = allocateFrame();
+        }
+        poolSize = INITIAL_POOL_SIZE;
+    }
+
+    @NonNull
+    private static ByteBuffer allocateFrame() {
+        return ByteBuffer.allocateDirect(HEADER_SIZE_IN_BYTES + MAX_PAYLOAD_SIZE_IN_BYTES);
+    }
+
+    /**
+     * Returns a new stream id for {@link #send(int, int, int, byte[], int, int)}.
+     */
+    public int newStream() {
+        return nextStream.getAndIncrement();
+    }
+
+    /**
+     * Writes a frame and hands it to the mailbox. If an earlier frame of the
+     * same {@code stream} is still waiting to be sent then it is replaced by
+     * this one, which then goes to the subscribers of both.
+     *
+     * Called from the capture threads of the Visualizers, one frame at a
+     * time. Only the first {@code payloadLength} bytes of {@code payload}
+     * are sent.
+     *
+     * @param subscribers bit mask of the subscribers that the frame is for
+     * @return true if the frame replaced an earlier frame that never reached
+     *         Flutter
+     */
+    public synchronized boolean send(int stream, int frameType, int subscribers, @NonNull byte[] payload, int payloadLength, int samplingRate) {
+        int length = Math.min(payloadLength, MAX_PAYLOAD_SIZE_IN_BYTES);
+
+        ByteBuffer frame = writable;
+        frame.clear();
+        frame.putInt(sequence++);
+        frame.putInt(samplingRate);
+        frame.putLong(System.nanoTime());
+        frame.putInt(frameType);
+        frame.putInt(length);
+        frame.putInt(subscribers);
+        frame.put(payload, 0, length);
+
+        boolean wasCoalesced = false;
+        boolean isSendNeeded;
+        synchronized (lock) {
+            ++producedFrames;
+            // If a frame is in flight then its reply sends the next pending
+            // frame. If a frame was already pending then a send is already
+            // scheduled.
+            isSendNeeded = inFlight == null && pendingCount == 0;
+
+            int index = 0;
+            while (index < pendingCount && pendingStreams[index] != stream) {
+                ++index;
+            }
+            if (index < pendingCount) {
+                ByteBuffer replaced = pending[index];
+                frame.putInt(SUBSCRIBERS_OFFSET, subscribers | replaced.getInt(SUBSCRIBERS_OFFSET));
+                free[freeCount++] = replaced;
+                pending[index] = frame;
+                wasCoalesced = true;
+            } else {
+                if (pendingCount == MAX_STREAMS) {
+                    // Only when streams were replaced faster than frames were
+                    // sent. Drops the oldest frame.
+                    free[freeCount++] = removeOldestPending();
+                    wasCoalesced = true;
+                }
+                pending[pendingCount] = frame;
+                pendingStreams[pendingCount] = stream;
+                ++pendingCount;
+            }
+            if (wasCoalesced) {
+                ++coalescedFrames;
+            }
+            if (freeCount > 0) {
+                writable = free[--freeCount];
+                free[freeCount] = null;
+            } else {
+                // Every other buffer is waiting or in flight.
+                writable = null;
+                ++poolSize;
+            }
+        }
+        if (writable == null) {
+            writable = allocateFrame();
+        }
+
+        if (isSendNeeded) {
+            mainHandler.post(sendPendingRunnable);
+        }
+        if (wasCoalesced) {
+            metrics.increment(PlaybackMetrics.Counter.visualizerFramesCoalesced);
+        }
+        return wasCoalesced;
+    }
+
+    // Runs on the main thread.
+    private void sendPending() {
+        ByteBuffer frame;
+        synchronized (lock) {
+            if (inFlight != null || pendingCount == 0) {
+                return;
+            }
+            frame = removeOldestPending();
+            inFlight = frame;
+        }
+        // The header's timestamp was taken in the capture callback.
+        metrics.recordSince(PlaybackMetrics.Timer.visualizerCallbackToSend, frame.getLong(TIMESTAMP_OFFSET));
+        channel.send(frame, deliveryReply);
+    }
+
+    // Must hold lock.
+    @NonNull
+    private ByteBuffer removeOldestPending() {
+        ByteBuffer frame = pending[0];
+        --pendingCount;
+        System.arraycopy(pending, 1, pending, 0, pendingCount);
+        System.arraycopy(pendingStreams, 1, pendingStreams, 0, pendingCount);
+        pending[pendingCount] = null;
+        return frame;
+    }
+
+    /**
+     * Counts of frames that were produced, that were replaced by a newer
+     * frame before they could be sent, and that Flutter has handled.
+     */
+    @NonNull
+    public Map<String, Object> frameStats() {
+        Map<String, Object> stats = new HashMap<>();
+        synchronized (lock) {
+            stats.put("produced", producedFrames);
+            stats.put("coalesced", coalescedFrames);
+            stats.put("delivered", deliveredFrames);
+            stats.put("buffers", poolSize);
+        }
+        return stats;
+    }
+}
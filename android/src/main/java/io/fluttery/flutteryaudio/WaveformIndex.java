@@ -0,0 +1,651 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overviews of whole tracks for drawing waveforms, e.g., behind a scrubber.
+ *
+ * A track is decoded once with {@code MediaExtractor} and {@code MediaCodec}
+ * on a background thread, and reduced to the minimum and maximum sample of
+ * every {@link #FRAMES_PER_PEAK} frames. Each coarser zoom level halves the
+ * previous one, until a level has at most {@link #MIN_PEAKS_PER_LEVEL}
+ * peaks. All levels are written to a peaks file, named after a hash of the
+ * url, so that opening the track again reads the file instead of decoding.
+ * Local files are keyed by their size and modification time too, so that a
+ * file that changed is decoded again. The most recently used waveforms are
+ * also kept in memory.
+ *
+ * Peaks files are deleted, least recently used first, when they take more
+ * than {@link #MAX_DIRECTORY_SIZE_IN_BYTES}.
+ *
+ * Methods may be called from any thread. {@link LoadCallback}s are invoked
+ * on the main thread.
+ */
+public class WaveformIndex {
+
+    private static final String TAG = "WaveformIndex";
+
+    /** Frames per peak at the finest level, about 6ms at 44.1kHz. */
+    public static final int FRAMES_PER_PEAK = 256;
+    /** Coarser levels are added until a level has no more peaks than this. */
+    public static final int MIN_PEAKS_PER_LEVEL = 512;
+    public static final long MAX_DIRECTORY_SIZE_IN_BYTES = 16 * 1024 * 1024;
+
+    private static final String FILE_SUFFIX = ".peaks";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // "FWAV" followed by the format version.
+    private static final int MAGIC = 0x46574156;
+    private static final int VERSION = 1;
+    private static final int MAX_LEVEL_COUNT = 16;
+    private static final int MAX_WAVEFORMS_IN_MEMORY = 4;
+    private static final long DEQUEUE_TIMEOUT_MICROS = 10_000;
+
+    private final File directory;
+    private final ThreadPoolExecutor analyzer;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this. Access-ordered so that iteration starts with the least recently used waveform.
+    private final LinkedHashMap<String, Waveform> waveforms = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, List<LoadCallback>> pendingLoads = new HashMap<>();
+
+    public WaveformIndex(@NonNull File directory) {
+        this.directory = directory;
+        analyzer = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                // Decoding a whole track takes a while. It mustn't take CPU
+                // away from playback or the UI.
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG);
+            }
+        });
+        analyzer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the waveform of {@code url} if it's in memory.
+     */
+    @Nullable
+    public synchronized Waveform get(@NonNull String url) {
+        return waveforms.get(url);
+    }
+
+    /**
+     * Reads the waveform of {@code url} from its peaks file, or decodes it
+     * from {@code dataSource} if there is none, and reports it to
+     * {@code callback}. Concurrent loads of the same url share a single
+     * decode.
+     *
+     * @param dataSource what is decoded, e.g., the url itself or a proxy url
+     *                   that serves it from the cache
+     */
+    public void load(@NonNull final String url, @NonNull final String dataSource, @NonNull final LoadCallback callback) {
+        final Waveform cached;
+        synchronized (this) {
+            cached = waveforms.get(url);
+            if (cached == null) {
+                List<LoadCallback> callbacks = pendingLoads.get(url);
+                if (callbacks != null) {
+                    callbacks.add(callback);
+                    return;
+                }
+                callbacks = new ArrayList<>();
+                callbacks.add(callback);
+                pendingLoads.put(url, callbacks);
+            }
+        }
+
+        if (cached != null) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onWaveformLoaded(cached);
+                }
+            });
+            return;
+        }
+
+        analyzer.execute(new Runnable() {
+            @Override
+            public void run() {
+                Waveform waveform = null;
+                IOException error = null;
+                try {
+                    waveform = readOrDecode(url, dataSource);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    // MediaExtractor and MediaCodec report most problems as
+                    // IllegalStateException or IllegalArgumentException.
+                    error = new IOException("Failed to decode " + dataSource, e);
+                }
+                onLoadFinished(url, waveform, error);
+            }
+        });
+    }
+
+    /**
+     * Deletes all peaks files and drops all waveforms from memory.
+     */
+    public void clear() {
+        synchronized (this) {
+            waveforms.clear();
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            // Files that are being written are renamed into place afterwards.
+            if (file.getName().endsWith(FILE_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void onLoadFinished(@NonNull String url, @Nullable final Waveform waveform, @Nullable final IOException error) {
+        final List<LoadCallback> callbacks;
+        synchronized (this) {
+            callbacks = pendingLoads.remove(url);
+            if (waveform != null) {
+                waveforms.put(url, waveform);
+                if (waveforms.size() > MAX_WAVEFORMS_IN_MEMORY) {
+                    waveforms.remove(waveforms.keySet().iterator().next());
+                }
+            }
+        }
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (LoadCallback callback : callbacks) {
+                    if (waveform != null) {
+                        callback.onWaveformLoaded(waveform);
+                    } else {
+                        callback.onWaveformFailed(error);
+                    }
+                }
+            }
+        });
+    }
+
+    // Runs on the analyzer thread.
+    @NonNull
+    private Waveform readOrDecode(@NonNull String url, @NonNull String dataSource) throws IOException {
+        File file = fileFor(url);
+        if (file.isFile()) {
+            long start = System.nanoTime();
+            try {
+                Waveform waveform = read(file);
+                // Marks the file as recently used.
+                file.setLastModified(System.currentTimeMillis());
+                AudioLog.d(TAG, "Read peaks file in micros: ", (System.nanoTime() - start) / 1000);
+                return waveform;
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable peaks file " + file + ": " + e.getMessage());
+                file.delete();
+            }
+        }
+
+        long start = System.nanoTime();
+        Waveform waveform = decode(dataSource);
+        if (AudioLog.DEBUG) {
+            AudioLog.d(TAG, "Decoded waveform of " + url + " in " + (System.nanoTime() - start) / 1000_000 + "ms");
+        }
+
+        try {
+            write(waveform, file);
+            trim();
+        } catch (IOException e) {
+            // The waveform is still good, it'll just be decoded again next time.
+            Log.w(TAG, "Failed to write peaks file " + file + ": " + e.getMessage());
+        }
+        return waveform;
+    }
+
+    @NonNull
+    private File fileFor(@NonNull String url) {
+        String identity = url;
+        if (DecodedClipCache.isLocalFile(url)) {
+            File source = new File(pathOf(url));
+            identity = url + "#" + source.length() + "#" + source.lastModified();
+        }
+        return new File(directory, AudioFileCache.keyFor(identity) + FILE_SUFFIX);
+    }
+
+    @NonNull
+    private static String pathOf(@NonNull String dataSource) {
+        return dataSource.startsWith("file://") ? Uri.parse(dataSource).getPath() : dataSource;
+    }
+
+    /**
+     * Deletes the least recently used peaks files until they fit within
+     * {@link #MAX_DIRECTORY_SIZE_IN_BYTES}.
+     */
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long sizeInBytes = 0;
+        for (File file : files) {
+            sizeInBytes += file.length();
+        }
+        if (sizeInBytes <= MAX_DIRECTORY_SIZE_IN_BYTES) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (sizeInBytes <= MAX_DIRECTORY_SIZE_IN_BYTES) {
+                break;
+            }
+            if (file.getName().endsWith(FILE_SUFFIX)) {
+                long length = file.length();
+                if (file.delete()) {
+                    sizeInBytes -= length;
+                }
+            }
+        }
+    }
+
+    // Peaks file layout, big-endian:
+    //
+    //   int magic, int version, int sampleRate, int durationMillis,
+    //   int framesPerPeak, int levelCount, int peakCount[levelCount],
+    //   then for each level, peakCount pairs of short min, short max.
+    private static void write(@NonNull Waveform waveform, @NonNull File file) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+
+        int levelCount = waveform.levels.length;
+        int size = 4 * (6 + levelCount);
+        for (short[] level : waveform.levels) {
+            size += 2 * level.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(waveform.sampleRate);
+        buffer.putInt(waveform.durationMillis);
+        buffer.putInt(waveform.framesPerPeak);
+        buffer.putInt(levelCount);
+        for (short[] level : waveform.levels) {
+            buffer.putInt(level.length / 2);
+        }
+        for (short[] level : waveform.levels) {
+            buffer.asShortBuffer().put(level);
+            buffer.position(buffer.position() + 2 * level.length);
+        }
+
+        // Written next to the peaks file and renamed into place, so that a
+        // reader never sees half a file.
+        File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+    }
+
+    @NonNull
+    private static Waveform read(@NonNull File file) throws IOException {
+        long length = file.length();
+        if (length < 24 || length > Integer.MAX_VALUE) {
+            throw new IOException("Unexpected length " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = in.read(bytes, offset, bytes.length - offset);
+                if (count < 0) {
+                    throw new IOException("Truncated at " + offset);
+                }
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a peaks file of version " + VERSION);
+        }
+        int sampleRate = buffer.getInt();
+        int durationMillis = buffer.getInt();
+        int framesPerPeak = buffer.getInt();
+        int levelCount = buffer.getInt();
+        if (levelCount < 1 || levelCount > MAX_LEVEL_COUNT || buffer.remaining() < 4 * levelCount) {
+            throw new IOException("Invalid level count " + levelCount);
+        }
+
+        int[] peakCounts = new int[levelCount];
+        long expectedLength = 4 * (6 + levelCount);
+        for (int i = 0; i < levelCount; ++i) {
+            peakCounts[i] = buffer.getInt();
+            if (peakCounts[i] < 0) {
+                throw new IOException("Invalid peak count " + peakCounts[i]);
+            }
+            expectedLength += 4L * peakCounts[i];
+        }
+        if (expectedLength != length) {
+            throw new IOException("Expected " + expectedLength + " bytes but found " + length);
+        }
+
+        short[][] levels = new short[levelCount][];
+        for (int i = 0; i < levelCount; ++i) {
+            levels[i] = new short[2 * peakCounts[i]];
+            buffer.asShortBuffer().get(levels[i]);
+            buffer.position(buffer.position() + 4 * peakCounts[i]);
+        }
+        return new Waveform(sampleRate, durationMillis, framesPerPeak, levels);
+    }
+
+    @NonNull
+    private static Waveform decode(@NonNull String dataSource) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(pathOf(dataSource));
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); ++i) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) {
+                throw new IOException("No audio track in " + dataSource);
+            }
+
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            int expectedPeakCount = 0;
+            if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                expectedPeakCount = (int) (format.getLong(MediaFormat.KEY_DURATION) * sampleRate / 1000_000 / FRAMES_PER_PEAK) + 1;
+            }
+            PeakAccumulator peaks = new PeakAccumulator(expectedPeakCount);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            CodecBuffers buffers = new CodecBuffers(codec);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            short[] chunk = new short[0];
+
+            boolean isInputDone = false;
+            boolean isOutputDone = false;
+            while (!isOutputDone) {
+                if (!isInputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_MICROS);
+                    if (inputIndex >= 0) {
+                        ByteBuffer inputBuffer = buffers.input(inputIndex);
+                        inputBuffer.clear();
+                        int sampleSize = extractor.readSampleData(inputBuffer, 0);
+                        if (sampleSize < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            isInputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, sampleSize, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_MICROS);
+                if (outputIndex >= 0) {
+                    if (info.size > 0) {
+                        // Peaks are taken straight from the codec's buffer,
+                        // so that the track's PCM is never held in memory.
+                        int sampleCount = info.size / 2;
+                        if (chunk.length < sampleCount) {
+                            chunk = new short[sampleCount];
+                        }
+                        ByteBuffer outputBuffer = buffers.output(outputIndex);
+                        outputBuffer.position(info.offset);
+                        outputBuffer.limit(info.offset + info.size);
+                        ShortBuffer samples = outputBuffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+                        samples.get(chunk, 0, sampleCount);
+                        peaks.add(chunk, sampleCount, channelCount);
+                    }
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    isOutputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // The decoder knows better than the container.
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else {
+                    buffers.onOutputInfo(outputIndex);
+                }
+            }
+
+            if (channelCount < 1) {
+                throw new IOException("Unsupported channel count " + channelCount + ": " + dataSource);
+            }
+            int durationMillis = (int) (peaks.frameCount * 1000L / sampleRate);
+            return new Waveform(sampleRate, durationMillis, FRAMES_PER_PEAK, peaks.levels());
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // The codec failed before it started.
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    /**
+     * Reduces interleaved 16 bit PCM to the minimum and maximum sample, over
+     * all channels, of every {@link #FRAMES_PER_PEAK} frames.
+     */
+    private static class PeakAccumulator {
+        // Pairs of min and max.
+        private short[] peaks;
+        private int length = 0;
+        private long frameCount = 0;
+        private int samplesInPeak = 0;
+        private short min = Short.MAX_VALUE;
+        private short max = Short.MIN_VALUE;
+
+        PeakAccumulator(int expectedPeakCount) {
+            peaks = new short[2 * Math.max(expectedPeakCount, 1024)];
+        }
+
+        void add(@NonNull short[] samples, int sampleCount, int channelCount) {
+            int samplesPerPeak = FRAMES_PER_PEAK * channelCount;
+            for (int i = 0; i < sampleCount; ++i) {
+                short sample = samples[i];
+                if (sample < min) {
+                    min = sample;
+                }
+                if (sample > max) {
+                    max = sample;
+                }
+                if (++samplesInPeak >= samplesPerPeak) {
+                    endPeak();
+                }
+            }
+            frameCount += sampleCount / channelCount;
+        }
+
+        private void endPeak() {
+            if (length + 2 > peaks.length) {
+                peaks = Arrays.copyOf(peaks, 2 * peaks.length);
+            }
+            peaks[length++] = min;
+            peaks[length++] = max;
+            samplesInPeak = 0;
+            min = Short.MAX_VALUE;
+            max = Short.MIN_VALUE;
+        }
+
+        /**
+         * The finest level, with the last, partial peak, followed by
+         * coarser levels that each merge pairs of peaks of the previous one.
+         */
+        @NonNull
+        short[][] levels() {
+            if (samplesInPeak > 0) {
+                endPeak();
+            }
+
+            List<short[]> levels = new ArrayList<>();
+            short[] level = Arrays.copyOf(peaks, length);
+            levels.add(level);
+            while (level.length / 2 > MIN_PEAKS_PER_LEVEL && levels.size() < MAX_LEVEL_COUNT) {
+                int peakCount = level.length / 2;
+                short[] coarser = new short[2 * ((peakCount + 1) / 2)];
+                for (int i = 0; i < peakCount; i += 2) {
+                    int j = i + 1 < peakCount ? i + 1 : i;
+                    coarser[i] = (short) Math.min(level[2 * i], level[2 * j]);
+                    coarser[i + 1] = (short) Math.max(level[2 * i + 1], level[2 * j + 1]);
+                }
+                level = coarser;
+                levels.add(level);
+            }
+            return levels.toArray(new short[levels.size()][]);
+        }
+    }
+
+    /**
+     * Peaks of a track at several zoom levels. Level 0 is the finest, with a
+     * peak every {@link #framesPerPeak} frames, and every further level has
+     * half as many peaks.
+     */
+    public static class Waveform {
+        public final int sampleRate;
+        public final int durationMillis;
+        public final int framesPerPeak;
+        // Pairs of min and max per level.
+        private final short[][] levels;
+
+        private Waveform(int sampleRate, int durationMillis, int framesPerPeak, @NonNull short[][] levels) {
+            this.sampleRate = sampleRate;
+            this.durationMillis = durationMillis;
+            this.framesPerPeak = framesPerPeak;
+            this.levels = levels;
+        }
+
+        public int levelCount() {
+            return levels.length;
+        }
+
+        public int peakCount(int level) {
+            return levels[level].length / 2;
+        }
+
+        public int framesPerPeak(int level) {
+            return framesPerPeak << level;
+        }
+
+        /**
+         * Up to {@code count} peaks of the given level, starting with peak
+         * {@code start}, as pairs of min and max sample.
+         *
+         * @throws IllegalArgumentException if there is no such level or
+         *                                  {@code start} is negative
+         */
+        @NonNull
+        public int[] peaks(int level, int start, int count) {
+            if (level < 0 || level >= levels.length) {
+                throw new IllegalArgumentException("No waveform level " + level + ", there are " + levels.length);
+            }
+            if (start < 0 || count < 0) {
+                throw new IllegalArgumentException("Invalid peak range " + start + "+" + count);
+            }
+            short[] peaks = levels[level];
+            int end = (int) Math.min((long) start + count, peaks.length / 2);
+            int[] range = new int[2 * Math.max(end - start, 0)];
+            for (int i = 0; i < range.length; ++i) {
+                range[i] = peaks[2 * start + i];
+            }
+            return range;
+        }
+
+        /**
+         * The waveform's description as channel values, without its peaks.
+         */
+        @NonNull
+        public Map<String, Object> toMap() {
+            List<Map<String, Object>> levelMaps = new ArrayList<>(levels.length);
+            for (int i = 0; i < levels.length; ++i) {
+                Map<String, Object> levelMap = new HashMap<>();
+                levelMap.put("framesPerPeak", framesPerPeak(i));
+                levelMap.put("peakCount", peakCount(i));
+                levelMaps.add(levelMap);
+            }
+
+            Map<String, Object> map = new HashMap<>();
+            map.put("sampleRate", sampleRate);
+            map.put("duration", durationMillis);
+            map.put("levels", levelMaps);
+            return map;
+        }
+    }
+
+    public interface LoadCallback {
+        void onWaveformLoaded(@NonNull Waveform waveform);
+
+        void onWaveformFailed(@NonNull IOException error);
+    }
+}
@@ -0,0 +1,256 @@
+package io.fluttery.flutteryaudio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class AudioCacheProxyTest {
+
+    private static final int AUDIO_SIZE_IN_BYTES = 100 * 1024;
+    private static final int CACHED_PREFIX_IN_BYTES = 30 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] audio = new byte[AUDIO_SIZE_IN_BYTES];
+    private StandInServer upstream;
+    private AudioFileCache cache;
+    private AudioCacheProxy proxy;
+    private String audioUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < audio.length; ++i) {
+            audio[i] = (byte) (i * 31 + i / 251);
+        }
+        upstream = new StandInServer(audio);
+        audioUrl = upstream.url("/track.mp3");
+        cache = new AudioFileCache(folder.newFolder("cache"), 10 * 1024 * 1024);
+        proxy = new AudioCacheProxy(cache);
+    }
+
+    @After
+    public void tearDown() {
+        proxy.shutdown();
+        upstream.shutdown();
+    }
+
+    @Test
+    public void cachesAWholeTrack() throws IOException {
+        assertArrayEquals(audio, get(proxy.proxyUrl(audioUrl), null).body);
+
+        AudioFileCache.Entry entry = cache.entryFor(audioUrl);
+        assertTrue(entry.isComplete());
+        assertEquals("audio/mpeg", entry.contentType());
+        assertNull(upstream.lastRange);
+    }
+
+    @Test
+    public void servesACompleteEntryFromDisk() throws IOException {
+        get(proxy.proxyUrl(audioUrl), null);
+        int requestCount = upstream.requestCount;
+
+        Response response = get(proxy.proxyUrl(audioUrl), "bytes=1000-1999");
+
+        assertEquals(206, response.status);
+        assertEquals("bytes 1000-1999/" + AUDIO_SIZE_IN_BYTES, response.contentRange);
+        assertArrayEquals(Arrays.copyOfRange(audio, 1000, 2000), response.body);
+        assertEquals(requestCount, upstream.requestCount);
+    }
+
+    @Test
+    public void resumesAPartialEntryWithARangeRequest() throws IOException {
+        cachePrefix(CACHED_PREFIX_IN_BYTES);
+
+        Response response = get(proxy.proxyUrl(audioUrl), null);
+
+        assertEquals(200, response.status);
+        assertArrayEquals(audio, response.body);
+        assertEquals("bytes=" + CACHED_PREFIX_IN_BYTES + "-", upstream.lastRange);
+        assertEntryIsComplete();
+    }
+
+    @Test
+    public void resumesAPartialEntryForASeekIntoTheCachedPrefix() throws IOException {
+        cachePrefix(CACHED_PREFIX_IN_BYTES);
+
+        Response response = get(proxy.proxyUrl(audioUrl), "bytes=10000-");
+
+        assertEquals(206, response.status);
+        assertEquals("bytes 10000-" + (AUDIO_SIZE_IN_BYTES - 1) + "/" + AUDIO_SIZE_IN_BYTES, response.contentRange);
+        assertArrayEquals(Arrays.copyOfRange(audio, 10000, AUDIO_SIZE_IN_BYTES), response.body);
+        assertEntryIsComplete();
+    }
+
+    @Test
+    public void startsOverWhenTheServerIgnoresRanges() throws IOException {
+        upstream.supportsRanges = false;
+        // Bytes that the server would never send, so a stale prefix shows up.
+        cacheGarbage(CACHED_PREFIX_IN_BYTES);
+
+        Response response = get(proxy.proxyUrl(audioUrl), "bytes=5000-");
+
+        assertEquals("bytes=" + CACHED_PREFIX_IN_BYTES + "-", upstream.lastRange);
+        assertArrayEquals(Arrays.copyOfRange(audio, 5000, AUDIO_SIZE_IN_BYTES), response.body);
+        assertEntryIsComplete();
+    }
+
+    @Test
+    public void passesThroughASeekBeyondTheCachedPrefix() throws IOException {
+        cachePrefix(CACHED_PREFIX_IN_BYTES);
+
+        Response response = get(proxy.proxyUrl(audioUrl), "bytes=50000-");
+
+        assertEquals(206, response.status);
+        assertArrayEquals(Arrays.copyOfRange(audio, 50000, AUDIO_SIZE_IN_BYTES), response.body);
+        assertEquals("bytes=50000-", upstream.lastRange);
+        assertEquals(CACHED_PREFIX_IN_BYTES, cache.entryFor(audioUrl).cachedLength());
+    }
+
+    @Test
+    public void takesOverARunningPrefetch() throws IOException, InterruptedException {
+        upstream.chunkDelayMillis = 20;
+        AudioPrefetcher prefetcher = new AudioPrefetcher(cache);
+        try {
+            prefetcher.prefetch(Collections.singletonList(audioUrl), AUDIO_SIZE_IN_BYTES);
+            AudioFileCache.Entry entry = cache.entryFor(audioUrl);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (entry.cachedLength() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(entry.cachedLength() > 0);
+
+            Response response = get(proxy.proxyUrl(audioUrl), null);
+
+            assertArrayEquals(audio, response.body);
+            // The proxy resumed where the prefetch stopped, rather than
+            // passing the request through. A prefetch asks for a bounded range.
+            assertTrue(upstream.lastRange, upstream.lastRange.matches("bytes=[1-9][0-9]*-"));
+            assertEntryIsComplete();
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void refusesRequestsWithoutTheToken() throws IOException {
+        String proxyUrl = proxy.proxyUrl(audioUrl);
+        String base = proxyUrl.substring(0, proxyUrl.indexOf('/', "http://".length()));
+        String query = proxyUrl.substring(proxyUrl.indexOf("/audio?"));
+
+        assertEquals(403, get(base + query, null).status);
+        assertEquals(403, get(base + "/00000000000000000000000000000000" + query, null).status);
+        assertEquals(0, upstream.requestCount);
+        assertEquals(0, cache.entryFor(audioUrl).cachedLength());
+    }
+
+    @Test
+    public void tokensDifferBetweenProxies() throws IOException {
+        AudioCacheProxy other = new AudioCacheProxy(cache);
+        try {
+            String path = pathOf(proxy.proxyUrl(audioUrl));
+            String otherPath = pathOf(other.proxyUrl(audioUrl));
+            assertNotEquals(path, otherPath);
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void leavesManifestsAndLocalFilesAlone() {
+        assertEquals("file:///sdcard/a.mp3", proxy.proxyUrl("file:///sdcard/a.mp3"));
+        String manifest = upstream.url("/live/index.m3u8");
+        assertEquals(manifest, proxy.proxyUrl(manifest));
+        assertFalse(proxy.proxyUrl(audioUrl).equals(audioUrl));
+    }
+
+    private void assertEntryIsComplete() throws IOException {
+        AudioFileCache.Entry entry = cache.entryFor(audioUrl);
+        assertTrue(entry.isComplete());
+        InputStream in = entry.openRead(0);
+        try {
+            assertArrayEquals(audio, readAll(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private void cachePrefix(int length) throws IOException {
+        writeEntry(Arrays.copyOf(audio, length));
+    }
+
+    private void cacheGarbage(int length) throws IOException {
+        byte[] garbage = new byte[length];
+        Arrays.fill(garbage, (byte) 0x5A);
+        writeEntry(garbage);
+    }
+
+    private void writeEntry(byte[] prefix) throws IOException {
+        AudioFileCache.Entry entry = cache.entryFor(audioUrl);
+        entry.writeMeta(AUDIO_SIZE_IN_BYTES, "audio/mpeg");
+        OutputStream out = entry.openAppend(true);
+        try {
+            out.write(prefix);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String pathOf(String url) {
+        return url.substring(url.indexOf('/', "http://".length()));
+    }
+
+    private static Response get(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            if (range != null) {
+                connection.setRequestProperty("Range", range);
+            }
+            Response response = new Response();
+            response.status = connection.getResponseCode();
+            response.contentRange = connection.getHeaderField("Content-Range");
+            InputStream in = response.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            response.body = in != null ? readAll(in) : new byte[0];
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Response {
+        int status;
+        String contentRange;
+        byte[] body;
+    }
+}
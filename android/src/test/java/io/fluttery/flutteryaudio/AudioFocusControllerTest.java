@@ -0,0 +1,243 @@
+package io.fluttery.flutteryaudio;
+
+import android.content.Context;
+import android.content.Intent;
+import android.media.AudioManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAudioManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// Robolectric only shadows the focus calls that predate AudioFocusRequest.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class AudioFocusControllerTest {
+
+    private ShadowAudioManager audioManager;
+    private AudioFocusController controller;
+    private FakeTarget first;
+    private FakeTarget second;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.application;
+        audioManager = Shadows.shadowOf((AudioManager) context.getSystemService(Context.AUDIO_SERVICE));
+        controller = new AudioFocusController(context);
+        first = new FakeTarget("first");
+        second = new FakeTarget("second");
+    }
+
+    @Test
+    public void playersShareOneFocusRequest() {
+        assertTrue(controller.requestFocus(first));
+        ShadowAudioManager.AudioFocusRequest request = audioManager.getLastAudioFocusRequest();
+        assertNotNull(request);
+        assertSame(controller, request.listener);
+        assertEquals(AudioManager.AUDIOFOCUS_GAIN, request.durationHint);
+
+        assertTrue(controller.requestFocus(second));
+
+        assertSame(request, audioManager.getLastAudioFocusRequest());
+    }
+
+    @Test
+    public void abandonsFocusAfterTheLastPlayerLetsGo() {
+        controller.requestFocus(first);
+        controller.requestFocus(second);
+
+        controller.abandonFocus(first);
+        assertTrue(controller.hasFocus());
+        assertNull(audioManager.getLastAbandonedAudioFocusListener());
+
+        controller.detach(second);
+        assertFalse(controller.hasFocus());
+        assertSame(controller, audioManager.getLastAbandonedAudioFocusListener());
+    }
+
+    @Test
+    public void deniedFocusIsNotHeld() {
+        audioManager.setNextFocusRequestResponse(AudioManager.AUDIOFOCUS_REQUEST_FAILED);
+
+        assertFalse(controller.requestFocus(first));
+        assertFalse(controller.hasFocus());
+
+        controller.onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK);
+        assertFalse(first.isDucked);
+    }
+
+    @Test
+    public void ducksAndRestoresEveryPlayer() {
+        holdFocus(first, second);
+
+        controller.onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK);
+        assertTrue(first.isDucked);
+        assertTrue(second.isDucked);
+        assertTrue(first.isPlaying);
+
+        controller.onAudioFocusChange(AudioManager.AUDIOFOCUS_GAIN);
+        assertFalse(first.isDucked);
+        assertFalse(second.isDucked);
+    }
+
+    @Test
+    public void transientLossPausesAndResumesPlayingPlayers() {
+        holdFocus(first, second);
+        second.pause();
+        second.events.clear();
+
+        controller.onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS_TRANSIENT);
+        assertEquals(events("pauseTransiently"), first.events);
+        assertEquals(events(), second.events);
+        assertTrue(first.isPlaybackDesired);
+
+        controller.onAudioFocusChange(AudioManager.AUDIOFOCUS_GAIN);
+        assertEquals(events("pauseTransiently", "setDucked false", "resume"), first.events);
+        assertEquals(events("setDucked false"), second.events);
+        assertTrue(controller.hasFocus());
+    }
+
+    @Test
+    public void transientLossDoesNotResumeAPlayerPausedByTheClient() {
+        holdFocus(first);
+
+        controller.onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS_TRANSIENT);
+        first.isPlaybackDesired = false;
+        controller.onAudioFocusChange(AudioManager.AUDIOFOCUS_GAIN);
+
+        assertFalse(first.isPlaying);
+        assertFalse(first.events.contains("resume"));
+    }
+
+    @Test
+    public void permanentLossSuspendsEveryPlayerAndAbandonsFocus() {
+        holdFocus(first, second);
+
+        controller.onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS);
+
+        assertEquals(events("suspend"), first.events);
+        assertEquals(events("suspend"), second.events);
+        assertFalse(controller.hasFocus());
+        assertSame(controller, audioManager.getLastAbandonedAudioFocusListener());
+
+        // Playing again asks the system for focus again.
+        audioManager.setNextFocusRequestResponse(AudioManager.AUDIOFOCUS_REQUEST_FAILED);
+        assertFalse(controller.requestFocus(first));
+    }
+
+    @Test
+    public void noisyAudioPausesPlayingPlayers() {
+        holdFocus(first, second);
+        second.pause();
+        second.events.clear();
+
+        becomeNoisy();
+
+        assertEquals(events("pause"), first.events);
+        assertFalse(first.isPlaybackDesired);
+        assertEquals(events(), second.events);
+    }
+
+    @Test
+    public void noisyAudioIsIgnoredWithoutFocus() {
+        holdFocus(first);
+        controller.abandonFocus(first);
+
+        becomeNoisy();
+
+        assertTrue(first.isPlaying);
+        assertEquals(events(), first.events);
+    }
+
+    private void holdFocus(FakeTarget... targets) {
+        for (FakeTarget target : targets) {
+            assertTrue(controller.requestFocus(target));
+            target.isPlaying = true;
+            target.isPlaybackDesired = true;
+        }
+    }
+
+    private static void becomeNoisy() {
+        RuntimeEnvironment.application.sendBroadcast(new Intent(AudioManager.ACTION_AUDIO_BECOMING_NOISY));
+    }
+
+    private static List<String> events(String... events) {
+        List<String> list = new ArrayList<>();
+        for (String event : events) {
+            list.add(event);
+        }
+        return list;
+    }
+
+    private static class FakeTarget implements AudioFocusController.Target {
+        private final String name;
+        final List<String> events = new ArrayList<>();
+        boolean isPlaying = false;
+        boolean isPlaybackDesired = false;
+        boolean isDucked = false;
+
+        FakeTarget(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return isPlaying;
+        }
+
+        @Override
+        public boolean isPlaybackDesired() {
+            return isPlaybackDesired;
+        }
+
+        @Override
+        public void pause() {
+            events.add("pause");
+            isPlaying = false;
+            isPlaybackDesired = false;
+        }
+
+        @Override
+        public void pauseTransiently() {
+            events.add("pauseTransiently");
+            isPlaying = false;
+        }
+
+        @Override
+        public void resume() {
+            events.add("resume");
+            isPlaying = true;
+        }
+
+        @Override
+        public void suspend() {
+            events.add("suspend");
+            isPlaying = false;
+        }
+
+        @Override
+        public void setDucked(boolean isDucked) {
+            events.add("setDucked " + isDucked);
+            this.isDucked = isDucked;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
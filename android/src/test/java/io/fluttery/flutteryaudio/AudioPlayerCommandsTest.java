@@ -0,0 +1,131 @@
+package io.fluttery.flutteryaudio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AudioPlayerCommandsTest {
+
+    @Test
+    public void splitsMethodNames() {
+        assertEquals("p1", AudioPlayerCommands.playerIdOf("audioplayer/p1/play"));
+        assertEquals("play", AudioPlayerCommands.commandOf("audioplayer/p1/play"));
+        assertNull(AudioPlayerCommands.playerIdOf("audioplayer//play"));
+        assertNull(AudioPlayerCommands.commandOf("audioplayer/p1/"));
+        assertNull(AudioPlayerCommands.commandOf("audioplayer/p1/play/now"));
+        assertNull(AudioPlayerCommands.playerIdOf("audiocache/configure"));
+    }
+
+    @Test
+    public void unknownLoadHintRejectsTheWholeBatch() {
+        Map<String, Object> loadArgs = args("audioUrl", "https://example.com/a.mp3");
+        loadArgs.put("hint", "nope");
+
+        List<Map<String, Object>> results = runWithoutPlayer(
+                operation("load", loadArgs),
+                operation("seek", args("seekPosition", 1000)),
+                operation("play", null)
+        );
+
+        assertEquals("error", results.get(0).get("status"));
+        assertEquals("Unknown load hint: nope", results.get(0).get("message"));
+        assertEquals("skipped", results.get(1).get("status"));
+        assertEquals("skipped", results.get(2).get("status"));
+    }
+
+    @Test
+    public void argumentsOfTheWrongTypeAreErrors() {
+        List<Map<String, Object>> results = runWithoutPlayer(
+                operation("load", args("audioUrl", 42)),
+                operation("seek", args("seekPosition", "1000")),
+                operation("subscribe_position", args("subscriberId", "s")),
+                operation("enqueue_next", args("audioUrl", true))
+        );
+
+        assertEquals("Argument audioUrl must be a String, was: Integer", results.get(0).get("message"));
+        assertEquals("Argument seekPosition must be a Number, was: String", results.get(1).get("message"));
+        assertEquals("Missing argument: interval", results.get(2).get("message"));
+        assertEquals("Argument audioUrl must be a String, was: Boolean", results.get(3).get("message"));
+    }
+
+    @Test
+    public void intervalsThatAreNotPositiveRejectTheWholeBatch() {
+        Map<String, Object> subscribeArgs = args("subscriberId", "s");
+        subscribeArgs.put("interval", 0);
+
+        List<Map<String, Object>> results = runWithoutPlayer(
+                operation("load", args("audioUrl", "https://example.com/a.mp3")),
+                operation("subscribe_position", subscribeArgs),
+                operation("play", null)
+        );
+
+        assertEquals("skipped", results.get(0).get("status"));
+        assertEquals("error", results.get(1).get("status"));
+        assertEquals("interval must be positive, was: 0", results.get(1).get("message"));
+        assertEquals("skipped", results.get(2).get("status"));
+    }
+
+    @Test
+    public void malformedOperationsAreErrors() {
+        Map<String, Object> badArgs = new HashMap<>();
+        badArgs.put("command", "seek");
+        badArgs.put("args", Arrays.asList(1, 2));
+        Map<String, Object> badName = new HashMap<>();
+        badName.put("command", 7);
+
+        List<Map<String, Object>> results = runWithoutPlayer(
+                badArgs,
+                badName,
+                operation("dance", null),
+                operation("pause", null)
+        );
+
+        assertEquals("Operation args must be a map", results.get(0).get("message"));
+        assertEquals("Unknown command: 7", results.get(1).get("message"));
+        assertEquals("Unknown command: dance", results.get(2).get("message"));
+        assertEquals("skipped", results.get(3).get("status"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void operationsThatAreNotMapsAreErrors() {
+        List operations = new ArrayList();
+        operations.add("play");
+
+        List<Map<String, Object>> results = AudioPlayerCommands.executeBatch(null, operations);
+
+        assertEquals("error", results.get(0).get("status"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void runValidatesBeforeExecuting() {
+        AudioPlayerCommands.lookup("seek").run(null, args("seekPosition", "1.5s"));
+    }
+
+    // Every batch here fails validation, so the player is never touched.
+    private static List<Map<String, Object>> runWithoutPlayer(Map<String, Object>... operations) {
+        return AudioPlayerCommands.executeBatch(null, Arrays.asList(operations));
+    }
+
+    private static Map<String, Object> operation(String command, Map<String, Object> args) {
+        Map<String, Object> operation = new HashMap<>();
+        operation.put("command", command);
+        if (args != null) {
+            operation.put("args", args);
+        }
+        return operation;
+    }
+
+    private static Map<String, Object> args(String name, Object value) {
+        Map<String, Object> args = new HashMap<>();
+        args.put(name, value);
+        return args;
+    }
+}
@@ -0,0 +1,115 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.MediaPlayer;
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class AudioPlayerErrorTest {
+
+    private static final String URL = "/sdcard/Music/track.mp3";
+    private static final String MISSING_URL = "/sdcard/Music/missing.mp3";
+    // Without a delay, the shadow prepares right away, unlike a real player.
+    private static final int PREPARATION_DELAY_MILLIS = 10;
+
+    private MediaPlayerPool pool;
+    private MediaPlayer mediaPlayer;
+    private AudioPlayer player;
+    private final RecordingListener listener = new RecordingListener();
+
+    @Before
+    public void setUp() {
+        ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(URL), new ShadowMediaPlayer.MediaInfo(60000, PREPARATION_DELAY_MILLIS));
+        ShadowMediaPlayer.addException(DataSource.toDataSource(MISSING_URL), new IOException("No such file"));
+        // Park a player in the pool, so that it's the one that AudioPlayer
+        // starts with and the test can drive its callbacks.
+        pool = new MediaPlayerPool(1, 30_000);
+        pool.retain();
+        mediaPlayer = pool.obtain();
+        pool.recycle(mediaPlayer);
+        shadowOf(pool.looper()).idle();
+        player = new AudioPlayer(pool);
+        player.addListener(listener);
+
+        player.load(URL);
+        ShadowLooper.idleMainLooper(PREPARATION_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(player.isAudioReady());
+        player.play();
+    }
+
+    @After
+    public void tearDown() {
+        player.release();
+        pool.release();
+    }
+
+    @Test
+    public void errorIsNotFollowedByCompletion() {
+        shadowOf(mediaPlayer).invokeErrorListener(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_UNSUPPORTED);
+
+        assertEquals(1, listener.errorCount);
+        assertEquals(0, listener.completionCount);
+    }
+
+    @Test
+    public void completionAfterAnErrorIsIgnored() {
+        shadowOf(mediaPlayer).invokeErrorListener(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_UNSUPPORTED);
+
+        shadowOf(mediaPlayer).invokeCompletionListener();
+
+        assertEquals(0, listener.completionCount);
+    }
+
+    @Test
+    public void completionWithoutAnErrorIsReported() {
+        shadowOf(mediaPlayer).invokeCompletionListener();
+
+        assertEquals(1, listener.completionCount);
+        assertEquals(0, listener.errorCount);
+    }
+
+    @Test
+    public void failedLoadIsReportedAndRetried() {
+        player.load(MISSING_URL);
+
+        assertEquals(1, listener.errorCount);
+        assertEquals(ErrorRecovery.Kind.network, listener.lastError.kind);
+        assertEquals(1, listener.lastRetryAttempt);
+        assertFalse(player.isAudioReady());
+    }
+
+    private static class RecordingListener extends AudioPlayer.EmptyListener {
+        int errorCount;
+        int completionCount;
+        ErrorRecovery.PlaybackError lastError;
+        int lastRetryAttempt;
+
+        @Override
+        public void onError(@NonNull ErrorRecovery.PlaybackError error, int retryAttempt, int retryDelayMillis) {
+            ++errorCount;
+            lastError = error;
+            lastRetryAttempt = retryAttempt;
+        }
+
+        @Override
+        public void onPlayerCompleted() {
+            ++completionCount;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class AudioPlayerRegistryTest {
+
+    private static final String URL = "/sdcard/Music/track.mp3";
+    // Without a delay, the shadow prepares right away, unlike a real player.
+    private static final int PREPARATION_DELAY_MILLIS = 10;
+
+    private final Map<String, AudioPlayer.Listener> listeners = new HashMap<>();
+    private final List<String> releasedIds = new ArrayList<>();
+    private AudioPlayerRegistry registry;
+
+    @Before
+    public void setUp() {
+        ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(URL), new ShadowMediaPlayer.MediaInfo(60000, PREPARATION_DELAY_MILLIS));
+        registry = new AudioPlayerRegistry(2, new AudioPlayerRegistry.Callbacks() {
+            @Override
+            public void onPlayerCreated(@NonNull String playerId, @NonNull AudioPlayer player) {
+                // Like the plugin, which forwards the player's events to Flutter.
+                AudioPlayer.Listener listener = new AudioPlayer.EmptyListener();
+                listeners.put(playerId, listener);
+                player.addListener(listener);
+            }
+
+            @Override
+            public void onPlayerReleased(@NonNull String playerId) {
+                releasedIds.add(playerId);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        registry.releaseAll();
+    }
+
+    @Test
+    public void keepsALoadingPlayer() {
+        registry.obtain("loading").load(URL);
+        registry.obtain("idle");
+
+        registry.obtain("new");
+
+        assertEquals(Collections.singletonList("idle"), releasedIds);
+    }
+
+    @Test
+    public void keepsAPausedPlayer() {
+        AudioPlayer paused = registry.obtain("paused");
+        paused.load(URL);
+        ShadowLooper.idleMainLooper(PREPARATION_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        paused.play();
+        paused.pause();
+        registry.obtain("idle");
+
+        registry.obtain("new");
+
+        assertEquals(Collections.singletonList("idle"), releasedIds);
+    }
+
+    @Test
+    public void evictsAStoppedPlayer() {
+        AudioPlayer stopped = registry.obtain("stopped");
+        stopped.load(URL);
+        ShadowLooper.idleMainLooper(PREPARATION_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        stopped.play();
+        stopped.stop();
+        registry.obtain("idle");
+
+        registry.obtain("new");
+
+        assertEquals(Collections.singletonList("stopped"), releasedIds);
+    }
+
+    @Test
+    public void evictsAPlayerThatNobodyListensTo() {
+        AudioPlayer detached = registry.obtain("detached");
+        detached.load(URL);
+        detached.removeListener(listeners.get("detached"));
+        registry.obtain("idle");
+
+        registry.obtain("new");
+
+        assertEquals(Collections.singletonList("detached"), releasedIds);
+    }
+
+    @Test
+    public void exceedsTheLimitRatherThanEvictingBusyPlayers() {
+        registry.obtain("first").load(URL);
+        registry.obtain("second").load(URL);
+
+        registry.obtain("new");
+
+        assertTrue(releasedIds.isEmpty());
+        assertEquals(3, registry.size());
+    }
+}
@@ -0,0 +1,156 @@
+package io.fluttery.flutteryaudio;
+
+import org.junit.Test;
+
+import io.fluttery.flutteryaudio.AudioPlayerStateMachine.Command;
+import io.fluttery.flutteryaudio.AudioPlayerStateMachine.State;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AudioPlayerStateMachineTest {
+
+    // Expected transitions, one row per command in declaration order and one
+    // column per state in declaration order:
+    //
+    //   idle, loading, paused, playing, stopped, completed, suspended, error
+    //
+    // A state name is the state that the command leads to, "=" means that
+    // the command is allowed and keeps the state, and "-" means that the
+    // command is rejected.
+    private static final String[][] TRANSITIONS = {
+            /* load */      {"loading", "loading", "loading", "loading", "loading", "loading", "loading", "loading"},
+            /* prepared */  {"-", "paused", "-", "-", "-", "-", "-", "-"},
+            /* play */      {"-", "-", "playing", "-", "-", "playing", "-", "-"},
+            /* pause */     {"-", "-", "-", "paused", "-", "-", "-", "-"},
+            /* stop */      {"-", "-", "stopped", "stopped", "-", "stopped", "stopped", "-"},
+            /* seek */      {"-", "-", "=", "=", "-", "=", "-", "-"},
+            /* complete */  {"-", "-", "completed", "completed", "-", "-", "-", "-"},
+            /* advance */   {"-", "-", "playing", "playing", "-", "playing", "-", "-"},
+            /* suspend */   {"-", "-", "suspended", "suspended", "-", "suspended", "-", "-"},
+            /* fail */      {"error", "error", "error", "error", "error", "error", "error", "error"},
+    };
+
+    @Test
+    public void tableCoversEveryCommandAndState() {
+        assertEquals(Command.values().length, TRANSITIONS.length);
+        for (String[] row : TRANSITIONS) {
+            assertEquals(State.values().length, row.length);
+        }
+    }
+
+    @Test
+    public void staticTablesMatchExpectedTransitions() {
+        for (Command command : Command.values()) {
+            for (State state : State.values()) {
+                State expected = expectedTarget(command, state);
+                String cell = command + " in " + state;
+
+                assertEquals(cell, expected != null, AudioPlayerStateMachine.isAllowed(command, state));
+                assertEquals(cell, expected, AudioPlayerStateMachine.targetOf(command, state));
+                if (expected != null) {
+                    assertNull(cell, AudioPlayerStateMachine.rejectionOf(command, state));
+                } else {
+                    assertEquals(
+                            cell,
+                            "Can't " + command + " in current MediaPlayer state: " + state,
+                            AudioPlayerStateMachine.rejectionOf(command, state)
+                    );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void applyMatchesExpectedTransitions() {
+        for (Command command : Command.values()) {
+            for (State state : State.values()) {
+                AudioPlayerStateMachine stateMachine = machineIn(state);
+                State expected = expectedTarget(command, state);
+                String cell = command + " in " + state;
+
+                String rejection = stateMachine.apply(command);
+
+                if (expected != null) {
+                    assertNull(cell, rejection);
+                    assertEquals(cell, expected, stateMachine.state());
+                } else {
+                    assertNotNull(cell, rejection);
+                    assertEquals(cell, state, stateMachine.state());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readyStatesAreTheStatesWithAudio() {
+        for (State state : State.values()) {
+            boolean isReady = state == State.paused || state == State.playing || state == State.completed;
+            assertEquals(state.toString(), isReady, machineIn(state).isIn(AudioPlayerStateMachine.READY_STATES));
+        }
+    }
+
+    @Test
+    public void masksOnlyContainTheirStates() {
+        int mask = AudioPlayerStateMachine.mask(State.idle, State.error);
+        AudioPlayerStateMachine stateMachine = new AudioPlayerStateMachine();
+
+        assertTrue(stateMachine.isIn(mask));
+        stateMachine.apply(Command.load);
+        assertFalse(stateMachine.isIn(mask));
+        stateMachine.apply(Command.fail);
+        assertTrue(stateMachine.isIn(mask));
+    }
+
+    private static State expectedTarget(Command command, State state) {
+        String cell = TRANSITIONS[command.ordinal()][state.ordinal()];
+        if (cell.equals("-")) {
+            return null;
+        }
+        return cell.equals("=") ? state : State.valueOf(cell);
+    }
+
+    /**
+     * A state machine that was driven into the given state through allowed
+     * commands only.
+     */
+    private static AudioPlayerStateMachine machineIn(State state) {
+        AudioPlayerStateMachine stateMachine = new AudioPlayerStateMachine();
+        switch (state) {
+            case idle:
+                break;
+            case loading:
+                drive(stateMachine, Command.load);
+                break;
+            case paused:
+                drive(stateMachine, Command.load, Command.prepared);
+                break;
+            case playing:
+                drive(stateMachine, Command.load, Command.prepared, Command.play);
+                break;
+            case stopped:
+                drive(stateMachine, Command.load, Command.prepared, Command.stop);
+                break;
+            case completed:
+                drive(stateMachine, Command.load, Command.prepared, Command.play, Command.complete);
+                break;
+            case suspended:
+                drive(stateMachine, Command.load, Command.prepared, Command.suspend);
+                break;
+            case error:
+                drive(stateMachine, Command.fail);
+                break;
+        }
+        assertEquals(state, stateMachine.state());
+        return stateMachine;
+    }
+
+    private static void drive(AudioPlayerStateMachine stateMachine, Command... commands) {
+        for (Command command : commands) {
+            assertNull(stateMachine.apply(command));
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package io.fluttery.flutteryaudio;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FftBandProcessorTest {
+
+    private static final int SAMPLING_RATE = 44100000;
+    private static final float DELTA = 1e-4f;
+
+    @Test
+    public void matchesReferenceForRandomCaptures() {
+        int[] captureSizes = {128, 256, 1024};
+        int[] samplingRates = {22050000, 44100000, 48000000};
+        int[] bandCounts = {1, 8, 32};
+        Random random = new Random(42);
+
+        for (int captureSize : captureSizes) {
+            for (int samplingRate : samplingRates) {
+                for (int bandCount : bandCounts) {
+                    FftBandProcessor processor = new FftBandProcessor(bandCount);
+                    Reference reference = new Reference(bandCount);
+                    byte[] fft = new byte[captureSize];
+
+                    for (int frame = 0; frame < 40; ++frame) {
+                        random.nextBytes(fft);
+                        // Quiet frames exercise decay and peak fall.
+                        if (frame % 7 > 3) {
+                            for (int i = 0; i < fft.length; ++i) {
+                                fft[i] = (byte) (fft[i] / 16);
+                            }
+                        }
+                        processor.process(fft, samplingRate);
+                        reference.process(fft, samplingRate);
+
+                        String where = "capture " + captureSize + ", rate " + samplingRate
+                                + ", bands " + bandCount + ", frame " + frame;
+                        assertArrayEquals(where, reference.levels, processor.levels());
+                        assertArrayEquals(where, reference.peaks, processor.peaks());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bandEdgesAreLogarithmicAndCoverEveryBinAboveTheMinimum() {
+        int captureSize = 1024;
+        int bandCount = 8;
+        int lastBin = captureSize / 2;
+        double binWidthHz = SAMPLING_RATE / 2000.0 / lastBin;
+
+        int previousBand = -1;
+        for (int bin = 1; bin <= lastBin; ++bin) {
+            FftBandProcessor processor = instant(bandCount);
+            processor.process(singleBin(captureSize, bin), SAMPLING_RATE);
+
+            int band = loudestBand(processor.levels());
+            double frequencyHz = bin * binWidthHz;
+            if (frequencyHz < FftBandProcessor.DEFAULT_MIN_FREQUENCY_HZ) {
+                continue;
+            }
+
+            assertTrue("bin " + bin + " isn't in any band", processor.levels()[band] > 0f);
+            assertTrue("bands must rise with frequency at bin " + bin, band >= previousBand);
+            previousBand = band;
+
+            assertEquals(
+                    "band of bin " + bin + " (" + frequencyHz + " Hz)",
+                    Reference.bandOf(bin, bandCount, SAMPLING_RATE, captureSize),
+                    band
+            );
+        }
+        assertEquals(bandCount - 1, previousBand);
+    }
+
+    @Test
+    public void nyquistBinReachesTheHighestBand() {
+        int captureSize = 256;
+        byte[] fft = new byte[captureSize];
+        fft[1] = 127;
+
+        FftBandProcessor processor = instant(4);
+        processor.process(fft, SAMPLING_RATE);
+
+        float[] levels = processor.levels();
+        assertTrue(levels[3] > 0f);
+        assertEquals(0f, levels[0], 0f);
+    }
+
+    @Test
+    public void dcBinIsIgnored() {
+        byte[] fft = new byte[256];
+        fft[0] = 127;
+
+        FftBandProcessor processor = instant(4);
+        processor.process(fft, SAMPLING_RATE);
+
+        for (float level : processor.levels()) {
+            assertEquals(0f, level, 0f);
+        }
+    }
+
+    @Test
+    public void levelsRiseWithAttackAndFallWithDecay() {
+        float attack = 0.5f;
+        float decay = 0.25f;
+        FftBandProcessor processor = new FftBandProcessor(1, 40f, attack, decay, 0, 1f);
+        byte[] loud = fullScale(256);
+        byte[] silent = new byte[256];
+
+        processor.process(loud, SAMPLING_RATE);
+        float target = processor.levels()[0] / attack;
+        assertTrue(target > 0.9f);
+
+        processor.process(loud, SAMPLING_RATE);
+        assertEquals(target * (1 - (1 - attack) * (1 - attack)), processor.levels()[0], DELTA);
+
+        float before = processor.levels()[0];
+        processor.process(silent, SAMPLING_RATE);
+        assertEquals(before * (1 - decay), processor.levels()[0], DELTA);
+    }
+
+    @Test
+    public void peakHoldsThenFalls() {
+        int holdFrames = 3;
+        float fall = 0.1f;
+        FftBandProcessor processor = new FftBandProcessor(1, 40f, 1f, 1f, holdFrames, fall);
+        byte[] silent = new byte[256];
+
+        processor.process(fullScale(256), SAMPLING_RATE);
+        float peak = processor.peaks()[0];
+        assertEquals(processor.levels()[0], peak, 0f);
+
+        for (int frame = 0; frame < holdFrames; ++frame) {
+            processor.process(silent, SAMPLING_RATE);
+            assertEquals("held at frame " + frame, peak, processor.peaks()[0], 0f);
+        }
+
+        processor.process(silent, SAMPLING_RATE);
+        assertEquals(peak - fall, processor.peaks()[0], DELTA);
+        processor.process(silent, SAMPLING_RATE);
+        assertEquals(peak - 2 * fall, processor.peaks()[0], DELTA);
+    }
+
+    @Test
+    public void peakNeverFallsBelowTheLevel() {
+        FftBandProcessor processor = new FftBandProcessor(1, 40f, 1f, 0.01f, 0, 1f);
+
+        processor.process(fullScale(256), SAMPLING_RATE);
+        processor.process(new byte[256], SAMPLING_RATE);
+
+        assertEquals(processor.levels()[0], processor.peaks()[0], 0f);
+    }
+
+    @Test
+    public void risingLevelResetsThePeakHold() {
+        FftBandProcessor processor = new FftBandProcessor(1, 40f, 1f, 1f, 2, 0.5f);
+        byte[] quiet = scaled(fullScale(256), 8);
+
+        processor.process(quiet, SAMPLING_RATE);
+        processor.process(new byte[256], SAMPLING_RATE);
+        processor.process(fullScale(256), SAMPLING_RATE);
+        float peak = processor.peaks()[0];
+        processor.process(new byte[256], SAMPLING_RATE);
+        processor.process(new byte[256], SAMPLING_RATE);
+
+        assertEquals(peak, processor.peaks()[0], 0f);
+    }
+
+    @Test
+    public void writeFrameWritesLevelsThenPeaks() {
+        FftBandProcessor processor = new FftBandProcessor(2, 40f, 1f, 0.5f, 10, 0f);
+        processor.process(fullScale(256), SAMPLING_RATE);
+        processor.process(new byte[256], SAMPLING_RATE);
+
+        byte[] out = new byte[4];
+        assertEquals(4, processor.writeFrame(out));
+        for (int band = 0; band < 2; ++band) {
+            assertEquals(Math.round(processor.levels()[band] * 255f), out[band] & 0xFF);
+            assertEquals(Math.round(processor.peaks()[band] * 255f), out[2 + band] & 0xFF);
+        }
+    }
+
+    @Test
+    public void resetClearsLevelsAndPeaks() {
+        FftBandProcessor processor = new FftBandProcessor(4);
+        processor.process(fullScale(256), SAMPLING_RATE);
+
+        processor.reset();
+
+        for (int band = 0; band < 4; ++band) {
+            assertEquals(0f, processor.levels()[band], 0f);
+            assertEquals(0f, processor.peaks()[band], 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroBands() {
+        new FftBandProcessor(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAttackOutOfRange() {
+        new FftBandProcessor(4, 40f, 1.5f, 0.5f, 0, 0f);
+    }
+
+    private static FftBandProcessor instant(int bandCount) {
+        return new FftBandProcessor(bandCount, FftBandProcessor.DEFAULT_MIN_FREQUENCY_HZ, 1f, 1f, 0, 1f);
+    }
+
+    private static byte[] singleBin(int captureSize, int bin) {
+        byte[] fft = new byte[captureSize];
+        if (bin == captureSize / 2) {
+            fft[1] = 127;
+        } else {
+            fft[2 * bin] = 127;
+        }
+        return fft;
+    }
+
+    private static byte[] fullScale(int captureSize) {
+        byte[] fft = new byte[captureSize];
+        for (int i = 0; i < captureSize; ++i) {
+            fft[i] = 127;
+        }
+        return fft;
+    }
+
+    private static byte[] scaled(byte[] fft, int divisor) {
+        for (int i = 0; i < fft.length; ++i) {
+            fft[i] = (byte) (fft[i] / divisor);
+        }
+        return fft;
+    }
+
+    private static int loudestBand(float[] levels) {
+        int loudest = 0;
+        for (int band = 1; band < levels.length; ++band) {
+            if (levels[band] > levels[loudest]) {
+                loudest = band;
+            }
+        }
+        return loudest;
+    }
+
+    private static void assertArrayEquals(String message, double[] expected, float[] actual) {
+        assertEquals(message, expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(message + ", band " + i, expected[i], actual[i], DELTA);
+        }
+    }
+
+    /**
+     * Straightforward double precision version of the band processing that
+     * the optimized processor must agree with.
+     */
+    private static class Reference {
+        final int bandCount;
+        final double[] levels;
+        final double[] peaks;
+        final int[] peakAges;
+
+        Reference(int bandCount) {
+            this.bandCount = bandCount;
+            levels = new double[bandCount];
+            peaks = new double[bandCount];
+            peakAges = new int[bandCount];
+        }
+
+        // Band edge in bins, from the lowest frequency up to the Nyquist bin.
+        static double edge(int edge, int bandCount, int samplingRate, int captureSize) {
+            int lastBin = captureSize / 2;
+            double binWidthHz = samplingRate / 2000.0 / lastBin;
+            double low = Math.max(FftBandProcessor.DEFAULT_MIN_FREQUENCY_HZ / binWidthHz, 1);
+            return low * Math.pow(lastBin / low, (double) edge / bandCount);
+        }
+
+        static int bandOf(int bin, int bandCount, int samplingRate, int captureSize) {
+            for (int band = 0; band < bandCount; ++band) {
+                if (bin < edge(band + 1, bandCount, samplingRate, captureSize)) {
+                    return band;
+                }
+            }
+            return bandCount - 1;
+        }
+
+        void process(byte[] fft, int samplingRate) {
+            int lastBin = fft.length / 2;
+            double maxMagnitude = Math.sqrt(2 * 128 * 128);
+
+            for (int band = 0; band < bandCount; ++band) {
+                // Edges that land on a bin within rounding error snap to it.
+                double start = edge(band, bandCount, samplingRate, fft.length);
+                double end = edge(band + 1, bandCount, samplingRate, fft.length);
+                int startBin = Math.min(lastBin, Math.max(1, (int) Math.floor(start + 1e-6)));
+                int endBin = band == bandCount - 1 ? lastBin + 1 : (int) Math.ceil(end - 1e-6);
+                endBin = Math.min(lastBin + 1, Math.max(startBin + 1, endBin));
+
+                double sum = 0;
+                for (int bin = startBin; bin < endBin; ++bin) {
+                    double real = bin == lastBin ? fft[1] : fft[2 * bin];
+                    double imaginary = bin == lastBin ? 0 : fft[2 * bin + 1];
+                    sum += Math.hypot(real, imaginary);
+                }
+                double target = Math.min(1, Math.log1p(sum / (endBin - startBin)) / Math.log1p(maxMagnitude));
+
+                double rate = target > levels[band]
+                        ? FftBandProcessor.DEFAULT_ATTACK
+                        : FftBandProcessor.DEFAULT_DECAY;
+                levels[band] += rate * (target - levels[band]);
+
+                if (levels[band] >= peaks[band]) {
+                    peaks[band] = levels[band];
+                    peakAges[band] = 0;
+                } else if (peakAges[band] < FftBandProcessor.DEFAULT_PEAK_HOLD_FRAMES) {
+                    ++peakAges[band];
+                } else {
+                    peaks[band] = Math.max(levels[band], peaks[band] - FftBandProcessor.DEFAULT_PEAK_FALL_PER_FRAME);
+                }
+            }
+        }
+    }
+}
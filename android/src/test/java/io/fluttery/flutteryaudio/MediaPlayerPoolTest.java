@@ -0,0 +1,121 @@
+package io.fluttery.flutteryaudio;
+
+import android.media.MediaPlayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowMediaPlayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class MediaPlayerPoolTest {
+
+    private static final int SESSION_ID = 42;
+
+    private MediaPlayerPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new MediaPlayerPool(2, 30_000);
+        pool.retain();
+    }
+
+    @After
+    public void tearDown() {
+        pool.release();
+    }
+
+    @Test
+    public void keepsARecycledPlayer() {
+        MediaPlayer player = pool.obtain();
+
+        pool.recycle(player);
+        idle();
+
+        assertSame(player, pool.obtain());
+    }
+
+    @Test
+    public void releasesThePlayerThatLentItsSessionWhileTheOtherIsInUse() {
+        MediaPlayer current = playerInSession(SESSION_ID);
+        MediaPlayer next = pool.obtainSharingSession(SESSION_ID);
+        assertEquals(SESSION_ID, next.getAudioSessionId());
+
+        pool.recycle(current);
+        idle();
+
+        assertReleased(current);
+        assertNotSame(current, pool.obtain());
+
+        // The session is no longer shared, so the other player may be kept.
+        pool.recycle(next);
+        idle();
+        assertSame(next, pool.obtain());
+    }
+
+    @Test
+    public void releasesTheLookAheadPlayerWhileTheLenderIsInUse() {
+        MediaPlayer current = playerInSession(SESSION_ID);
+        MediaPlayer next = pool.obtainSharingSession(SESSION_ID);
+
+        pool.recycle(next);
+        idle();
+
+        assertReleased(next);
+        pool.recycle(current);
+        idle();
+        assertSame(current, pool.obtain());
+    }
+
+    @Test
+    public void countsEveryPlayerThatJoinedASession() {
+        MediaPlayer current = playerInSession(SESSION_ID);
+        MediaPlayer first = pool.obtainSharingSession(SESSION_ID);
+        MediaPlayer second = pool.obtainSharingSession(SESSION_ID);
+
+        pool.recycle(first);
+        idle();
+        pool.recycle(current);
+        idle();
+
+        assertReleased(first);
+        assertReleased(current);
+        pool.recycle(second);
+        idle();
+        assertSame(second, pool.obtain());
+    }
+
+    @Test
+    public void sharingASessionDoesNotAffectOtherPlayers() {
+        playerInSession(SESSION_ID);
+        pool.obtainSharingSession(SESSION_ID);
+        MediaPlayer unrelated = playerInSession(SESSION_ID + 1);
+
+        pool.recycle(unrelated);
+        idle();
+
+        assertSame(unrelated, pool.obtain());
+    }
+
+    // Players are parked on the pool's thread.
+    private void idle() {
+        shadowOf(pool.looper()).idle();
+    }
+
+    private MediaPlayer playerInSession(int audioSessionId) {
+        MediaPlayer player = pool.obtain();
+        player.setAudioSessionId(audioSessionId);
+        return player;
+    }
+
+    private static void assertReleased(MediaPlayer player) {
+        assertEquals(ShadowMediaPlayer.State.END, shadowOf(player).getState());
+    }
+}
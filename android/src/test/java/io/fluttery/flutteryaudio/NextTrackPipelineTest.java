@@ -0,0 +1,269 @@
+package io.fluttery.flutteryaudio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NextTrackPipelineTest {
+
+    private FakeBackend backend;
+    private NextTrackPipeline<FakePlayer> pipeline;
+
+    @Before
+    public void setUp() {
+        backend = new FakeBackend();
+        pipeline = new NextTrackPipeline<>(backend);
+    }
+
+    @Test
+    public void enqueuePreparesTheNextTrack() {
+        pipeline.enqueue("a");
+
+        assertEquals(NextTrackPipeline.State.preparing, pipeline.state());
+        assertEquals("a", pipeline.nextUrl());
+        assertEquals(1, backend.prepared.size());
+    }
+
+    @Test
+    public void enqueueOfTheQueuedUrlIsIgnored() {
+        pipeline.enqueue("a");
+        pipeline.enqueue("a");
+
+        assertEquals(1, backend.prepared.size());
+        assertTrue(backend.released.isEmpty());
+    }
+
+    @Test
+    public void enqueueReplacesTheQueuedTrack() {
+        pipeline.enqueue("a");
+        FakePlayer first = backend.last();
+        pipeline.enqueue("b");
+
+        assertTrue(backend.released.contains(first));
+        assertEquals("b", pipeline.nextUrl());
+        assertEquals(NextTrackPipeline.State.preparing, pipeline.state());
+    }
+
+    @Test
+    public void enqueueStaysEmptyWhenPreparingFailsRightAway() {
+        backend.failingUrl = "broken";
+
+        pipeline.enqueue("broken");
+
+        assertEquals(NextTrackPipeline.State.empty, pipeline.state());
+        assertNull(pipeline.nextUrl());
+
+        // A retry of the same url prepares again instead of being ignored.
+        backend.failingUrl = null;
+        pipeline.enqueue("broken");
+        assertEquals(NextTrackPipeline.State.preparing, pipeline.state());
+    }
+
+    @Test
+    public void enqueueAfterImmediateFailureReleasesNothingTwice() {
+        pipeline.enqueue("a");
+        FakePlayer first = backend.last();
+        backend.failingUrl = "broken";
+
+        pipeline.enqueue("broken");
+
+        assertEquals(1, backend.released.size());
+        assertTrue(backend.released.contains(first));
+        assertEquals(NextTrackPipeline.State.empty, pipeline.state());
+    }
+
+    @Test
+    public void preparedNextIsLinkedOnceTheCurrentIsReady() {
+        FakePlayer current = new FakePlayer("current");
+        pipeline.enqueue("a");
+        FakePlayer next = backend.last();
+
+        pipeline.onNextPrepared(next);
+        assertEquals(NextTrackPipeline.State.prepared, pipeline.state());
+
+        pipeline.onCurrentReady(current);
+        assertEquals(NextTrackPipeline.State.linked, pipeline.state());
+        assertSame(next, current.linkedTo);
+    }
+
+    @Test
+    public void readyCurrentIsLinkedOnceTheNextIsPrepared() {
+        FakePlayer current = new FakePlayer("current");
+        pipeline.onCurrentReady(current);
+        pipeline.enqueue("a");
+
+        pipeline.onNextPrepared(backend.last());
+
+        assertEquals(NextTrackPipeline.State.linked, pipeline.state());
+        assertSame(backend.last(), current.linkedTo);
+    }
+
+    @Test
+    public void nextStaysPreparedWhenLinkingIsNotPossible() {
+        backend.canLink = false;
+        pipeline.onCurrentReady(new FakePlayer("current"));
+        pipeline.enqueue("a");
+        FakePlayer next = backend.last();
+
+        pipeline.onNextPrepared(next);
+
+        assertEquals(NextTrackPipeline.State.prepared, pipeline.state());
+        assertSame(next, pipeline.onCurrentCompleted());
+        assertEquals(NextTrackPipeline.State.empty, pipeline.state());
+    }
+
+    @Test
+    public void staleCallbacksAreIgnored() {
+        pipeline.enqueue("a");
+        FakePlayer stale = backend.last();
+        pipeline.enqueue("b");
+
+        pipeline.onNextPrepared(stale);
+        assertEquals(NextTrackPipeline.State.preparing, pipeline.state());
+
+        pipeline.onNextFailed(stale);
+        assertEquals(NextTrackPipeline.State.preparing, pipeline.state());
+        assertEquals("b", pipeline.nextUrl());
+    }
+
+    @Test
+    public void failedNextIsDropped() {
+        pipeline.enqueue("a");
+        FakePlayer next = backend.last();
+
+        pipeline.onNextFailed(next);
+
+        assertEquals(NextTrackPipeline.State.empty, pipeline.state());
+        assertNull(pipeline.nextUrl());
+        assertTrue(backend.released.contains(next));
+    }
+
+    @Test
+    public void completionHandsOverTheLinkedNext() {
+        FakePlayer current = new FakePlayer("current");
+        pipeline.onCurrentReady(current);
+        pipeline.enqueue("a");
+        FakePlayer next = backend.last();
+        pipeline.onNextPrepared(next);
+
+        assertSame(next, pipeline.onCurrentCompleted());
+        assertEquals(NextTrackPipeline.State.empty, pipeline.state());
+        assertFalse(backend.released.contains(next));
+    }
+
+    @Test
+    public void completionWhilePreparingKeepsTheQueuedTrack() {
+        pipeline.enqueue("a");
+
+        assertNull(pipeline.onCurrentCompleted());
+        assertEquals(NextTrackPipeline.State.preparing, pipeline.state());
+    }
+
+    @Test
+    public void invalidatingTheCurrentUnlinks() {
+        FakePlayer current = new FakePlayer("current");
+        pipeline.onCurrentReady(current);
+        pipeline.enqueue("a");
+        pipeline.onNextPrepared(backend.last());
+
+        pipeline.onCurrentInvalidated();
+
+        assertNull(current.linkedTo);
+        assertEquals(NextTrackPipeline.State.prepared, pipeline.state());
+    }
+
+    @Test
+    public void takeIfQueuedOnlyMatchesTheQueuedUrl() {
+        FakePlayer current = new FakePlayer("current");
+        pipeline.onCurrentReady(current);
+        pipeline.enqueue("a");
+        FakePlayer next = backend.last();
+        pipeline.onNextPrepared(next);
+
+        assertNull(pipeline.takeIfQueued("b"));
+        assertSame(next, current.linkedTo);
+
+        assertSame(next, pipeline.takeIfQueued("a"));
+        assertNull(current.linkedTo);
+        assertEquals(NextTrackPipeline.State.empty, pipeline.state());
+    }
+
+    @Test
+    public void clearUnlinksAndReleases() {
+        FakePlayer current = new FakePlayer("current");
+        pipeline.onCurrentReady(current);
+        pipeline.enqueue("a");
+        FakePlayer next = backend.last();
+        pipeline.onNextPrepared(next);
+
+        pipeline.clear();
+
+        assertNull(current.linkedTo);
+        assertTrue(backend.released.contains(next));
+        assertEquals(NextTrackPipeline.State.empty, pipeline.state());
+    }
+
+    private static class FakePlayer {
+        final String url;
+        FakePlayer linkedTo;
+
+        FakePlayer(String url) {
+            this.url = url;
+        }
+    }
+
+    private static class FakeBackend implements NextTrackPipeline.Backend<FakePlayer> {
+        final List<FakePlayer> prepared = new ArrayList<>();
+        final Set<FakePlayer> released = new HashSet<>();
+        String failingUrl;
+        boolean canLink = true;
+
+        FakePlayer last() {
+            return prepared.get(prepared.size() - 1);
+        }
+
+        @Nullable
+        @Override
+        public FakePlayer prepare(@NonNull String url) {
+            if (url.equals(failingUrl)) {
+                return null;
+            }
+            FakePlayer player = new FakePlayer(url);
+            prepared.add(player);
+            return player;
+        }
+
+        @Override
+        public boolean link(@NonNull FakePlayer current, @NonNull FakePlayer next) {
+            if (!canLink) {
+                return false;
+            }
+            current.linkedTo = next;
+            return true;
+        }
+
+        @Override
+        public void unlink(@NonNull FakePlayer current) {
+            current.linkedTo = null;
+        }
+
+        @Override
+        public void release(@NonNull FakePlayer player) {
+            assertFalse("released twice", released.contains(player));
+            released.add(player);
+        }
+    }
+}
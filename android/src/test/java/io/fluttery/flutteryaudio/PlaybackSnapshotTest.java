@@ -0,0 +1,96 @@
+package io.fluttery.flutteryaudio;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PlaybackSnapshotTest {
+
+    private final PlaybackSnapshot snapshot = new PlaybackSnapshot();
+
+    @Test
+    public void startsAtTheBeginningWithUnknownDuration() {
+        assertEquals(0, snapshot.position(5000));
+        assertEquals(-1, snapshot.duration());
+        assertEquals(1f, snapshot.speed(), 0f);
+    }
+
+    @Test
+    public void holdsThePositionWhileNotAdvancing() {
+        snapshot.update(2000, 60000, 1f, false, 1000);
+
+        assertEquals(2000, snapshot.position(1000));
+        assertEquals(2000, snapshot.position(9000));
+        assertEquals(60000, snapshot.duration());
+    }
+
+    @Test
+    public void extrapolatesThePositionWhileAdvancing() {
+        snapshot.update(2000, 60000, 1f, true, 1000);
+
+        assertEquals(2000, snapshot.position(1000));
+        assertEquals(2250, snapshot.position(1250));
+    }
+
+    @Test
+    public void extrapolatesAtThePlaybackSpeed() {
+        snapshot.update(2000, 60000, 1.5f, true, 1000);
+
+        assertEquals(3500, snapshot.position(2000));
+        assertEquals(1.5f, snapshot.speed(), 0f);
+    }
+
+    @Test
+    public void stopsAtTheDuration() {
+        snapshot.update(59000, 60000, 1f, true, 1000);
+
+        assertEquals(60000, snapshot.position(5000));
+    }
+
+    @Test
+    public void keepsAdvancingWithUnknownDuration() {
+        snapshot.update(59000, -1, 1f, true, 1000);
+
+        assertEquals(63000, snapshot.position(5000));
+    }
+
+    @Test
+    public void latestUpdateWins() {
+        snapshot.update(2000, 60000, 1f, true, 1000);
+        // E.g., a pause after a second of playback, followed by a seek.
+        snapshot.update(3000, 60000, 1f, false, 2000);
+        snapshot.update(40000, 60000, 1f, false, 2100);
+
+        assertEquals(40000, snapshot.position(9000));
+    }
+
+    @Test
+    public void readersOnOtherThreadsSeeValuesOfTheSameUpdate() throws InterruptedException {
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final int updates = 200000;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Every update has equal position and duration.
+                while (failure.get() == null && snapshot.duration() < updates) {
+                    int position = snapshot.position(0);
+                    int duration = snapshot.duration();
+                    if (position > duration) {
+                        failure.set("position " + position + " is past duration " + duration);
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        for (int i = 1; i <= updates; ++i) {
+            snapshot.update(i, i, 1f, false, 0);
+        }
+        reader.join(10000);
+
+        assertNull(failure.get());
+    }
+}
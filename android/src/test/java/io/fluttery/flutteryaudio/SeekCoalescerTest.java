@@ -0,0 +1,107 @@
+package io.fluttery.flutteryaudio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeekCoalescerTest {
+
+    private final RecordingBackend backend = new RecordingBackend();
+    private final RecordingCallback callback = new RecordingCallback();
+
+    @Test
+    public void collapsesSeeksWhileOneIsInFlight() {
+        SeekCoalescer coalescer = new SeekCoalescer(backend, callback);
+
+        coalescer.seek(1000);
+        coalescer.seek(2000);
+        coalescer.seek(3000);
+        coalescer.onSeekComplete();
+        coalescer.onSeekComplete();
+
+        assertEquals(Arrays.asList("precise 1000", "precise 3000"), backend.seeks);
+        assertEquals(1, callback.completedCount);
+        assertFalse(coalescer.isSeeking());
+    }
+
+    @Test
+    public void finishesAFastScrubWithAPreciseSeek() {
+        backend.supportsFastSeek = true;
+        SeekCoalescer coalescer = new SeekCoalescer(backend, callback);
+
+        coalescer.startScrubbing();
+        coalescer.seek(1000);
+        coalescer.onSeekComplete();
+        coalescer.endScrubbing();
+
+        assertEquals(Arrays.asList("fast 1000", "precise 1000"), backend.seeks);
+        assertTrue(coalescer.isSeeking());
+        coalescer.onSeekComplete();
+        assertEquals(1, callback.completedCount);
+    }
+
+    @Test
+    public void finishesAPreciseScrubWithoutAnotherSeek() {
+        SeekCoalescer coalescer = new SeekCoalescer(backend, callback);
+
+        coalescer.startScrubbing();
+        coalescer.seek(1000);
+        coalescer.onSeekComplete();
+        coalescer.endScrubbing();
+
+        assertEquals(Arrays.asList("precise 1000"), backend.seeks);
+        assertEquals(1, callback.completedCount);
+        assertFalse(coalescer.isSeeking());
+    }
+
+    @Test
+    public void finishesAPreciseScrubWhenTheInFlightSeekCompletes() {
+        SeekCoalescer coalescer = new SeekCoalescer(backend, callback);
+
+        coalescer.startScrubbing();
+        coalescer.seek(1000);
+        coalescer.endScrubbing();
+        coalescer.onSeekComplete();
+
+        assertEquals(Arrays.asList("precise 1000"), backend.seeks);
+        assertEquals(1, callback.completedCount);
+    }
+
+    private static class RecordingBackend implements SeekCoalescer.Backend {
+        final List<String> seeks = new ArrayList<>();
+        boolean supportsFastSeek = false;
+
+        @Override
+        public void seekTo(int positionInMillis, boolean isPrecise) {
+            seeks.add((isPrecise ? "precise " : "fast ") + positionInMillis);
+        }
+
+        @Override
+        public boolean supportsFastSeek() {
+            return supportsFastSeek;
+        }
+
+        @Override
+        public int currentPosition() {
+            return 0;
+        }
+    }
+
+    private static class RecordingCallback implements SeekCoalescer.Callback {
+        int completedCount;
+
+        @Override
+        public void onSeekStarted(int requestedPosition, int fromPosition) {}
+
+        @Override
+        public void onSeekCompleted(int requestedPosition, int actualPosition) {
+            ++completedCount;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.fluttery.flutteryaudio;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Loopback HTTP server that stands in for a remote audio host in tests. It
+ * serves the same bytes for every path, honours single range requests
+ * unless told not to, and remembers what it was asked for.
+ */
+class StandInServer {
+
+    private static final int CHUNK_SIZE_IN_BYTES = 4 * 1024;
+
+    private final byte[] body;
+    private final ServerSocket serverSocket;
+
+    volatile boolean supportsRanges = true;
+    // Sends the body in chunks with this delay in between, to keep a
+    // download running for a while.
+    volatile long chunkDelayMillis = 0;
+    volatile String contentType = "audio/mpeg";
+    volatile String lastRange;
+    volatile int requestCount;
+
+    StandInServer(byte[] body) throws IOException {
+        this.body = body;
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "StandInServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread connectionThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                });
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            } catch (IOException e) {
+                // Closed by shutdown().
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String range = null;
+            String line = readLine(in);
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    range = line.substring("range:".length()).trim();
+                }
+            }
+            lastRange = range;
+            ++requestCount;
+
+            long start = 0;
+            long end = body.length - 1;
+            boolean isPartial = false;
+            if (range != null && supportsRanges) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                isPartial = true;
+            }
+
+            StringBuilder headers = new StringBuilder();
+            headers.append(isPartial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+            if (isPartial) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(body.length).append("\r\n");
+            }
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            headers.append("Content-Type: ").append(contentType).append("\r\n");
+            headers.append("Connection: close\r\n\r\n");
+
+            OutputStream out = socket.getOutputStream();
+            out.write(headers.toString().getBytes("UTF-8"));
+            int offset = (int) start;
+            int length = (int) (end - start + 1);
+            while (length > 0) {
+                int chunk = chunkDelayMillis > 0 ? Math.min(length, CHUNK_SIZE_IN_BYTES) : length;
+                out.write(body, offset, chunk);
+                out.flush();
+                offset += chunk;
+                length -= chunk;
+                if (length > 0 && chunkDelayMillis > 0) {
+                    Thread.sleep(chunkDelayMillis);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client went away.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return c < 0 && line.length() == 0 ? null : line.toString();
+    }
+}
@@ -6,7 +6,6 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
-import android.media.MediaPlayer;
 import android.media.audiofx.Visualizer;
 import android.os.Bundle;
 import android.os.Handler;
@@ -38,11 +37,11 @@ public class AndroidExampleActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_android_example);
 
-        final MediaPlayer mediaPlayer = new MediaPlayer();
-        audioPlayer = new AudioPlayer(mediaPlayer);
+        audioPlayer = new AudioPlayer();
 
         audioPlayerListener = new AudioPlayerListener();
         audioPlayer.addListener(audioPlayerListener);
+        audioPlayer.subscribeToPosition("seekbar", 500);
 
         findViewById(R.id.button_load).setOnClickListener(new View.OnClickListener() {
             @Override
@@ -79,6 +78,9 @@ public class AndroidExampleActivity extends AppCompatActivity {
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 if (fromUser) {
                     dragPositionInMillis = progress;
+                    // Preview the position while dragging. Seeks that arrive
+                    // faster than the player can complete them are coalesced.
+                    audioPlayer.seek(dragPositionInMillis);
                 }
             }
 
@@ -86,6 +88,7 @@ public class AndroidExampleActivity extends AppCompatActivity {
             public void onStartTrackingTouch(SeekBar seekBar) {
                 Log.d(TAG, "onStartTrackingTouch()");
                 draggingSeekBar = true;
+                audioPlayer.startScrubbing();
             }
 
             @Override
@@ -93,7 +96,7 @@ public class AndroidExampleActivity extends AppCompatActivity {
                 Log.d(TAG, "onStopTrackingTouch()");
                 if (draggingSeekBar) {
                     Log.d(TAG, "Drag position in millis: " + dragPositionInMillis);
-                    audioPlayer.seek(dragPositionInMillis);
+                    audioPlayer.endScrubbing();
                 }
                 draggingSeekBar = false;
             }
@@ -108,7 +111,7 @@ public class AndroidExampleActivity extends AppCompatActivity {
         visualizerView.init();
         ((LinearLayout) findViewById(R.id.linearlayout)).addView(visualizerView);
 
-        AudioVisualizer.instance.activate(new Visualizer.OnDataCaptureListener() {
+        AudioVisualizer.instance.activate(audioPlayer.audioSessionId(), new Visualizer.OnDataCaptureListener() {
             @Override
             public void onWaveFormDataCapture(Visualizer visualizer, final byte[] waveform, int samplingRate) {
 //                runOnUiThread(new Runnable() {
@@ -167,12 +170,12 @@ public class AndroidExampleActivity extends AppCompatActivity {
         }
 
         @Override
-        public void onSeekStarted() {
+        public void onSeekStarted(int requestedPosition, int fromPosition) {
 
         }
 
         @Override
-        public void onSeekCompleted() {
+        public void onSeekCompleted(int requestedPosition, int actualPosition) {
 
         }
     }
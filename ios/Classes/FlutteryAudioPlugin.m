@@ -29,6 +29,12 @@
   NSRegularExpression *regex = [NSRegularExpression regularExpressionWithPattern:@"audioplayer/([^/]+)/([^/]+)" options:NSRegularExpressionCaseInsensitive error:&regexError];
 
   NSArray *matches = [regex matchesInString:call.method options:0 range:NSMakeRange(0, [call.method length])];
+  if ([matches count] == 0) {
+    NSLog(@"Received unknown message: %@", call.method);
+    result(FlutterMethodNotImplemented);
+    return;
+  }
+
   NSString *playerId = nil;
   NSString *command = nil;
   NSRange first = [matches[0] rangeAtIndex:1];
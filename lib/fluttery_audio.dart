@@ -1,12 +1,28 @@
+import 'dart:async';
+import 'dart:typed_data';
+
 import 'package:flutter/services.dart';
+import 'package:fluttery_audio/src/_audio_effects.dart';
 import 'package:fluttery_audio/src/_audio_player.dart';
 import 'package:fluttery_audio/src/_audio_visualizer.dart';
+import 'package:fluttery_audio/src/_waveform.dart';
 
+export 'src/_audio_effects.dart';
 export 'src/_audio_player.dart';
 export 'src/_audio_player_widgets.dart';
 export 'src/_audio_visualizer.dart';
 export 'src/_playlist.dart';
 export 'src/_visualizer.dart';
+export 'src/_waveform.dart';
+
+/// Engines that can stream audio, see [FlutteryAudio.configureEngine].
+enum AudioEngineType {
+  /// The platform's own player.
+  platform,
+
+  /// ExoPlayer, on Android only.
+  exoPlayer,
+}
 
 class FlutteryAudio {
   static const MethodChannel _channel =
@@ -15,16 +31,200 @@ class FlutteryAudio {
   static const MethodChannel _visualizerChannel =
       const MethodChannel('fluttery_audio_visualizer');
 
-  static AudioPlayer audioPlayer() {
+  static const BasicMessageChannel<ByteData> _visualizerFrameChannel =
+      const BasicMessageChannel<ByteData>('fluttery_audio_visualizer/frames', const BinaryCodec());
+
+  static int _nextPlayerId = 0;
+
+  /// Creates an [AudioPlayer] that is backed by its own platform player.
+  ///
+  /// If no [playerId] is given then a unique one is generated.
+  static AudioPlayer audioPlayer({String playerId}) {
     return new AudioPlayer(
-      playerId: 'demo_player',
+      playerId: playerId ?? 'player_${_nextPlayerId++}',
       channel: _channel,
     );
   }
 
-  static AudioVisualizer audioVisualizer() {
+  /// Creates an [AudioVisualizer] for the player with the given [playerId],
+  /// or for the most recently used player if no [playerId] is given.
+  static AudioVisualizer audioVisualizer({String playerId}) {
     return new AudioVisualizer(
+      playerId: playerId,
       channel: _visualizerChannel,
+      frameChannel: _visualizerFrameChannel,
+    );
+  }
+
+  /// The audio effects, e.g., an equalizer, of the player with the given
+  /// [playerId]. They can be set up before the player loads any audio.
+  static AudioEffects audioEffects(String playerId) {
+    return new AudioEffects(
+      playerId: playerId,
+      channel: _channel,
     );
   }
+
+  /// Enables a disk cache of up to [maxBytes] for streamed audio, or disables
+  /// it when [maxBytes] is zero.
+  ///
+  /// Audio that is played through the cache is served from disk when it is
+  /// played again or when the player seeks backwards. Returns true if the
+  /// cache is enabled, which is never the case on platforms that don't
+  /// support caching.
+  static Future<bool> configureCache({int maxBytes}) async {
+    try {
+      return await _channel.invokeMethod('audiocache/configure', {
+        'maxBytes': maxBytes ?? 0,
+      });
+    } on MissingPluginException {
+      return false;
+    }
+  }
+
+  /// Downloads up to [bytesPerItem] bytes from the start of each of the
+  /// given [urls] into the disk cache, most urgent first, so that they start
+  /// playing without waiting for the network.
+  ///
+  /// Each call replaces the previous one, and an empty list cancels all
+  /// prefetching. Does nothing unless the cache is enabled, see
+  /// [configureCache]. Returns true if prefetching was started.
+  static Future<bool> prefetch(List<String> urls, {int bytesPerItem = 256 * 1024}) async {
+    try {
+      return await _channel.invokeMethod('audiocache/prefetch', {
+        'urls': urls,
+        'bytesPerItem': bytesPerItem,
+      });
+    } on MissingPluginException {
+      return false;
+    }
+  }
+
+  /// Selects the [engine] that streams audio for all players, starting with
+  /// their next load.
+  ///
+  /// [AudioEngineType.exoPlayer] plays HLS and DASH with adaptive bitrate and
+  /// is tuned with the remaining arguments, where null keeps ExoPlayer's
+  /// default:
+  ///
+  ///  * [minBufferMs] and [maxBufferMs] bound how much audio is buffered
+  ///    ahead.
+  ///  * [bufferForPlaybackMs] is buffered before playback starts, and
+  ///    [bufferForPlaybackAfterRebufferMs] before it continues after a stall.
+  ///    Lower values start sooner but stall more often.
+  ///  * [maxInitialBitrate] caps the bitrate that adaptive streams start with,
+  ///    before bandwidth is measured, and [bandwidthFraction] is the share of
+  ///    the measured bandwidth that they may use.
+  ///
+  /// Android apps must bundle ExoPlayer themselves. Returns true if
+  /// ExoPlayer is used.
+  static Future<bool> configureEngine({
+    AudioEngineType engine = AudioEngineType.platform,
+    int minBufferMs,
+    int maxBufferMs,
+    int bufferForPlaybackMs,
+    int bufferForPlaybackAfterRebufferMs,
+    int maxInitialBitrate,
+    double bandwidthFraction,
+  }) async {
+    try {
+      return await _channel.invokeMethod('audioengine/configure', {
+        'engine': engine == AudioEngineType.exoPlayer ? 'exoplayer' : 'platform',
+        'minBufferMs': minBufferMs,
+        'maxBufferMs': maxBufferMs,
+        'bufferForPlaybackMs': bufferForPlaybackMs,
+        'bufferForPlaybackAfterRebufferMs': bufferForPlaybackAfterRebufferMs,
+        'maxInitialBitrate': maxInitialBitrate,
+        'bandwidthFraction': bandwidthFraction,
+      });
+    } on MissingPluginException {
+      return false;
+    }
+  }
+
+  /// Loads the [Waveform] of the track at [url], for drawing all of it
+  /// rather than what is playing.
+  ///
+  /// The first time, the platform decodes the whole track in the background,
+  /// which takes a while. Afterwards the waveform is read from disk in
+  /// milliseconds. Returns null on platforms that don't extract waveforms.
+  static Future<Waveform> waveform(String url) async {
+    try {
+      final Map map = await _channel.invokeMethod('audiowaveform/load', {
+        'url': url,
+      });
+      return new Waveform.fromMap(url: url, channel: _channel, map: map);
+    } on MissingPluginException {
+      return null;
+    }
+  }
+
+  /// Deletes all waveforms that were stored by [waveform].
+  static Future<Null> clearWaveforms() async {
+    try {
+      await _channel.invokeMethod('audiowaveform/clear');
+    } on MissingPluginException {
+      // Nothing is stored on this platform.
+    }
+  }
+
+  /// Moves playback into a platform service so that it continues in the
+  /// background, with a media notification and lock screen controls, and so
+  /// that loaded players survive when the app's UI is recreated.
+  ///
+  /// Call this before creating any [AudioPlayer]. Players that already exist
+  /// are released. Returns true if playback runs in the service, which is
+  /// never the case on platforms that don't have one.
+  static Future<bool> enableBackgroundPlayback() async {
+    try {
+      return await _channel.invokeMethod('audioservice/connect');
+    } on MissingPluginException {
+      return false;
+    }
+  }
+
+  /// Snapshot of the plugin's own performance metrics, for shipping to a
+  /// telemetry backend, or null on platforms that don't record any.
+  ///
+  /// 'latencies' maps each measured operation, e.g., 'loadToPrepared',
+  /// 'playToPlaying', 'seekToComplete', 'channelDispatch' or
+  /// 'visualizerCallbackToSend', to its 'count', 'min', 'max', 'mean',
+  /// 'p50', 'p90', 'p99' and 'p999' in microseconds. 'counters' maps events,
+  /// e.g., 'visualizerFramesCoalesced' or 'stateMachineRejections', to how
+  /// often they happened. With [reset], recording starts over after the
+  /// snapshot.
+  static Future<Map<String, dynamic>> metrics({bool reset = false}) async {
+    try {
+      final Map snapshot = await _channel.invokeMethod('audiometrics/snapshot', {
+        'reset': reset,
+      });
+      return snapshot != null ? new Map<String, dynamic>.from(snapshot) : null;
+    } on MissingPluginException {
+      return null;
+    }
+  }
+
+  /// The most recent events that the platform traced, oldest first, e.g., to
+  /// attach to a bug report. Each is a map with the event's 'tag', 'event'
+  /// name and 'value', and its 'nanoTime' on the platform's monotonic clock.
+  /// Returns an empty list on platforms that don't trace.
+  static Future<List<Map<String, dynamic>>> dumpTrace() async {
+    try {
+      final List events = await _channel.invokeMethod('audiometrics/trace');
+      return events
+          .map((event) => new Map<String, dynamic>.from(event))
+          .toList();
+    } on MissingPluginException {
+      return [];
+    }
+  }
+
+  /// Deletes all cached audio that isn't being written.
+  static Future<Null> clearCache() async {
+    try {
+      await _channel.invokeMethod('audiocache/clear');
+    } on MissingPluginException {
+      // Nothing is cached on this platform.
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+import 'dart:async';
+
+import 'package:flutter/services.dart';
+
+/// The audio effects of one player, see [FlutteryAudio.audioEffects].
+///
+/// The platform creates each effect when it's first enabled, keeps it with
+/// the player, wherever the player's audio plays, and releases it with the
+/// player.
+class AudioEffects {
+
+  final String playerId;
+  final MethodChannel channel;
+
+  AudioEffects({
+    this.playerId,
+    this.channel,
+  });
+
+  /// What the effects of the player can do on this device, and their current
+  /// settings, or null on platforms without effects.
+  ///
+  /// The equalizer can only be described once the player has loaded audio.
+  Future<AudioEffectsInfo> describe() async {
+    try {
+      final Map description = await channel.invokeMethod('audioeffects/describe', {
+        'playerId': playerId,
+      });
+      return new AudioEffectsInfo._fromMap(description);
+    } on MissingPluginException {
+      return null;
+    }
+  }
+
+  /// Replaces the settings of all effects at once, and returns the settings
+  /// that are now in place, or null on platforms without effects.
+  Future<AudioEffectsSettings> apply(AudioEffectsSettings settings) async {
+    try {
+      final Map applied = await channel.invokeMethod(
+        'audioeffects/apply',
+        new Map<String, dynamic>.from(settings.toMap())..['playerId'] = playerId,
+      );
+      return new AudioEffectsSettings.fromMap(applied);
+    } on MissingPluginException {
+      return null;
+    }
+  }
+
+  /// Turns all effects off and releases them.
+  Future<Null> reset() async {
+    try {
+      await channel.invokeMethod('audioeffects/reset', {
+        'playerId': playerId,
+      });
+    } on MissingPluginException {
+      // There are no effects on this platform.
+    }
+  }
+}
+
+/// Settings of all effects of a player. Effects are off by default.
+class AudioEffectsSettings {
+  final bool equalizerEnabled;
+
+  /// Index of one of the equalizer's [EqualizerInfo.presets], or null to use
+  /// [bandLevels].
+  final int equalizerPreset;
+
+  /// Equalizer band levels in millibels, lowest band first, if there's no
+  /// [equalizerPreset]. Missing bands are flat, and levels are clamped to
+  /// the equalizer's range.
+  final List<int> bandLevels;
+
+  final bool bassBoostEnabled;
+
+  /// From 0 to 1000.
+  final int bassBoostStrength;
+
+  /// Only supported from Android 4.4.
+  final bool loudnessEnhancerEnabled;
+
+  /// Gain in millibels.
+  final int loudnessGain;
+
+  const AudioEffectsSettings({
+    this.equalizerEnabled = false,
+    this.equalizerPreset,
+    this.bandLevels = const [],
+    this.bassBoostEnabled = false,
+    this.bassBoostStrength = 0,
+    this.loudnessEnhancerEnabled = false,
+    this.loudnessGain = 0,
+  });
+
+  AudioEffectsSettings.fromMap(Map map)
+      : equalizerEnabled = map['equalizerEnabled'],
+        equalizerPreset = map['equalizerPreset'] >= 0 ? map['equalizerPreset'] : null,
+        bandLevels = new List<int>.from(map['bandLevels']),
+        bassBoostEnabled = map['bassBoostEnabled'],
+        bassBoostStrength = map['bassBoostStrength'],
+        loudnessEnhancerEnabled = map['loudnessEnhancerEnabled'],
+        loudnessGain = map['loudnessGain'];
+
+  /// A copy with the given settings replaced. Use [clearPreset] to switch
+  /// from a preset to [bandLevels].
+  AudioEffectsSettings copyWith({
+    bool equalizerEnabled,
+    int equalizerPreset,
+    bool clearPreset = false,
+    List<int> bandLevels,
+    bool bassBoostEnabled,
+    int bassBoostStrength,
+    bool loudnessEnhancerEnabled,
+    int loudnessGain,
+  }) {
+    return new AudioEffectsSettings(
+      equalizerEnabled: equalizerEnabled ?? this.equalizerEnabled,
+      equalizerPreset: clearPreset ? null : equalizerPreset ?? this.equalizerPreset,
+      bandLevels: bandLevels ?? this.bandLevels,
+      bassBoostEnabled: bassBoostEnabled ?? this.bassBoostEnabled,
+      bassBoostStrength: bassBoostStrength ?? this.bassBoostStrength,
+      loudnessEnhancerEnabled: loudnessEnhancerEnabled ?? this.loudnessEnhancerEnabled,
+      loudnessGain: loudnessGain ?? this.loudnessGain,
+    );
+  }
+
+  Map<String, dynamic> toMap() {
+    return {
+      'equalizerEnabled': equalizerEnabled,
+      'equalizerPreset': equalizerPreset ?? -1,
+      'bandLevels': bandLevels,
+      'bassBoostEnabled': bassBoostEnabled,
+      'bassBoostStrength': bassBoostStrength,
+      'loudnessEnhancerEnabled': loudnessEnhancerEnabled,
+      'loudnessGain': loudnessGain,
+    };
+  }
+}
+
+/// What the effects of a player can do on this device, see
+/// [AudioEffects.describe].
+class AudioEffectsInfo {
+  /// The equalizer, or null if it isn't available.
+  final EqualizerInfo equalizer;
+  final bool bassBoostAvailable;
+  final bool loudnessEnhancerAvailable;
+  final AudioEffectsSettings settings;
+
+  AudioEffectsInfo._fromMap(Map map)
+      : equalizer = map['equalizer'] != null ? new EqualizerInfo._fromMap(map['equalizer']) : null,
+        bassBoostAvailable = map['bassBoost'],
+        loudnessEnhancerAvailable = map['loudnessEnhancer'],
+        settings = new AudioEffectsSettings.fromMap(map['settings']);
+}
+
+class EqualizerInfo {
+  final int bandCount;
+
+  /// Lowest band level in millibels.
+  final int minBandLevel;
+
+  /// Highest band level in millibels.
+  final int maxBandLevel;
+
+  /// Center frequency of each band in milliHertz, lowest band first.
+  final List<int> centerFrequencies;
+
+  /// Names of the presets, by index.
+  final List<String> presets;
+
+  EqualizerInfo._fromMap(Map map)
+      : bandCount = map['bandCount'],
+        minBandLevel = map['minBandLevel'],
+        maxBandLevel = map['maxBandLevel'],
+        centerFrequencies = new List<int>.from(map['centerFrequencies']),
+        presets = new List<String>.from(map['presets']);
+}
@@ -1,8 +1,33 @@
+import 'dart:async';
+
 import 'package:flutter/services.dart';
 import 'package:logging/logging.dart';
 
 final _log = new Logger('AudioPlayer');
 
+// All AudioPlayers share a single channel, and a channel can only have one
+// handler. Messages that are tagged with a playerId are routed to that player.
+// Untagged messages are delivered to every player.
+final Map<String, AudioPlayer> _players = {};
+
+// Monotonic clock against which playback anchors are extrapolated.
+final Stopwatch _clock = new Stopwatch()..start();
+
+const String _positionSubscriberId = 'flutter';
+const Duration _defaultPositionUpdateInterval = const Duration(milliseconds: 500);
+
+Future<dynamic> _dispatchPlayerMessage(MethodCall call) async {
+  final arguments = call.arguments;
+  final String playerId = arguments is Map ? arguments['playerId'] : null;
+  if (playerId != null) {
+    _players[playerId]?._handleMethodCall(call);
+  } else {
+    for (AudioPlayer player in _players.values.toList()) {
+      player._handleMethodCall(call);
+    }
+  }
+}
+
 class AudioPlayer {
 
   final String playerId;
@@ -19,14 +44,28 @@ class AudioPlayer {
   final Set<Function> _onPlayerPauseds = new Set();
   final Set<Function> _onPlayerStoppeds = new Set();
   final Set<Function> _onPlayerCompleteds = new Set();
+  final Set<Function(Uri)> _onNextAudioStarteds = new Set();
   final Set<Function> _onSeekStarteds = new Set();
   final Set<Function> _onSeekCompleteds = new Set();
+  final Set<Function> _onStallStarteds = new Set();
+  final Set<Function(Duration)> _onStallEndeds = new Set();
+  final Set<Function(PlaybackSessionStats)> _onPlaybackSessionEndeds = new Set();
+  final Set<Function(AudioPlayerError)> _onErrors = new Set();
+  final Set<Function(Duration)> _onRecovereds = new Set();
 
   AudioPlayerState _state;
   Duration _audioLength;
   int _bufferedPercent;
+  Duration _bufferedPosition;
+  int _bitrateEstimate;
+  bool _isStalled = false;
+  AudioPlayerError _error;
   Duration _position;
+  PlaybackAnchor _anchor;
+  Duration _positionUpdateInterval = _defaultPositionUpdateInterval;
+  bool _isSubscribedToPosition = false;
   bool _isSeeking = false;
+  Uri _startedNextUri;
 
   AudioPlayer({
     this.playerId,
@@ -36,110 +75,213 @@ class AudioPlayer {
     // TODO: existing AudioPlayers
     _setState(AudioPlayerState.idle);
 
-    channel.setMethodCallHandler((MethodCall call) {
-      _log.fine('Received channel message: ${call.method}');
-      switch (call.method) {
-        case "onFftVisualization":
-          _log.fine('FFT Visualization:');
-          _log.fine('${call.arguments['fft'].runtimeType}');
-          break;
-        case "onAudioLoading":
-          _log.fine('onAudioLoading');
-
-          // If new audio is loading then we have no playhead position and we
-          // don't know the audio length.
-          _setAudioLength(null);
-          _setPosition(null);
-
-          _setState(AudioPlayerState.loading);
-
-          for (Function callback in _onAudioLoadings) {
-            callback();
-          }
-          break;
-        case "onBufferingUpdate":
-          _log.fine('onBufferingUpdate');
-
-          final percent = call.arguments['percent'];
-          _setBufferedPercent(percent);
-
-          break;
-        case "onAudioReady":
-          _log.fine('onAudioReady, audioLength: ${call.arguments['audioLength']}');
-
-          // When audio is ready then we get passed the length of the clip.
-          final audioLengthInMillis = call.arguments['audioLength'];
-          _setAudioLength(new Duration(milliseconds: audioLengthInMillis));
-
-          // When audio is ready then the playhead is at zero.
-          _setPosition(const Duration(milliseconds: 0));
-
-          for (Function callback in _onAudioReadys) {
-            callback();
-          }
-          break;
-        case "onPlayerPlaying":
-          _log.fine('onPlayerPlaying');
-
-          _setState(AudioPlayerState.playing);
-
-          for (Function callback in _onPlayerPlayings) {
-            callback();
-          }
-          break;
-        case "onPlayerPlaybackUpdate":
-          _log.fine('onPlayerPlaybackUpdate, position: ${call.arguments['position']}');
-
-          // The playhead has moved, update our playhead position reference.
-          _setPosition(new Duration(milliseconds: call.arguments['position']));
-          break;
-        case "onPlayerPaused":
-          _log.fine('onPlayerPaused');
-
-          _setState(AudioPlayerState.paused);
-
-          for (Function callback in _onPlayerPauseds) {
-            callback();
-          }
-          break;
-        case "onPlayerStopped":
-          _log.fine('onPlayerStopped');
-
-          // When we are stopped it means more than just paused. The audio will
-          // have to be reloaded. Therefore, we no longer have a playhead
-          // position or audio length.
-          _setAudioLength(null);
-          _setPosition(null);
-
-          _setState(AudioPlayerState.stopped);
-
-          for (Function callback in _onPlayerStoppeds) {
-            callback();
-          }
-          break;
-        case "onPlayerCompleted":
-          _log.fine('onPlayerCompleted');
-
-          _setState(AudioPlayerState.completed);
-
-          for (Function callback in _onPlayerCompleteds) {
-            callback();
-          }
-          break;
-        case "onSeekStarted":
-          _setIsSeeking(true);
-          break;
-        case "onSeekCompleted":
-          _setPosition(new Duration(milliseconds: call.arguments['position']));
-          _setIsSeeking(false);
-          break;
-      }
-    });
+    _players[playerId] = this;
+    channel.setMethodCallHandler(_dispatchPlayerMessage);
 
     channel.invokeMethod('audioplayer/$playerId/activate_visualizer');
   }
 
+  void _handleMethodCall(MethodCall call) {
+    _log.fine('Received channel message: ${call.method}');
+    switch (call.method) {
+      case "onFftVisualization":
+        _log.fine('FFT Visualization:');
+        _log.fine('${call.arguments['fft'].runtimeType}');
+        break;
+      case "onAudioLoading":
+        _log.fine('onAudioLoading');
+
+        // If new audio is loading then we have no playhead position and we
+        // don't know the audio length.
+        _setAudioLength(null);
+        _setPosition(null);
+        _bufferedPosition = null;
+        _bitrateEstimate = null;
+        _isStalled = false;
+        _error = null;
+
+        _setState(AudioPlayerState.loading);
+
+        for (Function callback in _onAudioLoadings) {
+          callback();
+        }
+        break;
+      case "onBufferingUpdate":
+        final int bufferedPosition = call.arguments['bufferedPosition'];
+        final int bitrateEstimate = call.arguments['bitrateEstimate'];
+        _bufferedPosition = bufferedPosition != null && bufferedPosition >= 0
+            ? new Duration(milliseconds: bufferedPosition)
+            : null;
+        _bitrateEstimate = bitrateEstimate != null && bitrateEstimate >= 0 ? bitrateEstimate : null;
+
+        final percent = call.arguments['percent'];
+        _setBufferedPercent(percent);
+
+        break;
+      case "onStallStarted":
+        _log.fine('onStallStarted, position: ${call.arguments['position']}');
+
+        _isStalled = true;
+        for (Function callback in _onStallStarteds) {
+          callback();
+        }
+        break;
+      case "onStallEnded":
+        _log.fine('onStallEnded, stallTime: ${call.arguments['stallTime']}');
+
+        _isStalled = false;
+        final stallTime = new Duration(milliseconds: call.arguments['stallTime']);
+        for (Function callback in _onStallEndeds) {
+          callback(stallTime);
+        }
+        break;
+      case "onPlaybackSessionEnded":
+        _log.fine('onPlaybackSessionEnded');
+
+        final stats = new PlaybackSessionStats._fromMap(call.arguments['stats']);
+        for (Function callback in _onPlaybackSessionEndeds) {
+          callback(stats);
+        }
+        break;
+      case "onError":
+        final error = new AudioPlayerError._fromMap(
+          call.arguments['error'],
+          call.arguments['retryAttempt'],
+          call.arguments['retryDelay'],
+        );
+        _log.warning('onError: $error');
+
+        _error = error;
+        if (!error.willRetry) {
+          _setState(AudioPlayerState.error);
+        }
+        for (Function callback in _onErrors) {
+          callback(error);
+        }
+        break;
+      case "onRecovered":
+        _log.fine('onRecovered, attempts: ${call.arguments['attempts']}');
+
+        _error = null;
+        final recoveryTime = new Duration(milliseconds: call.arguments['recoveryTime']);
+        for (Function callback in _onRecovereds) {
+          callback(recoveryTime);
+        }
+        break;
+      case "onAudioReady":
+        _log.fine('onAudioReady, audioLength: ${call.arguments['audioLength']}');
+
+        // When audio is ready then we get passed the length of the clip.
+        final audioLengthInMillis = call.arguments['audioLength'];
+        _setAudioLength(new Duration(milliseconds: audioLengthInMillis));
+
+        // When audio is ready then the playhead is at zero.
+        _setPosition(const Duration(milliseconds: 0));
+
+        for (Function callback in _onAudioReadys) {
+          callback();
+        }
+        break;
+      case "onPlayerPlaying":
+        _log.fine('onPlayerPlaying');
+
+        _setState(AudioPlayerState.playing);
+
+        for (Function callback in _onPlayerPlayings) {
+          callback();
+        }
+        break;
+      case "onPlayerPlaybackUpdate":
+        _log.fine('onPlayerPlaybackUpdate, position: ${call.arguments['position']}');
+
+        // The playhead has moved, update our playhead position reference.
+        _setPosition(new Duration(milliseconds: call.arguments['position']));
+        break;
+      case "onPlaybackAnchor":
+        final int ageMicros = call.arguments['ageMicros'];
+        _anchor = new PlaybackAnchor._(
+          new Duration(milliseconds: call.arguments['position']),
+          call.arguments['speed'],
+          _clock.elapsedMicroseconds - ageMicros,
+        );
+        break;
+      case "onPlayerPaused":
+        _log.fine('onPlayerPaused');
+
+        _setState(AudioPlayerState.paused);
+
+        for (Function callback in _onPlayerPauseds) {
+          callback();
+        }
+        break;
+      case "onPlayerStopped":
+        _log.fine('onPlayerStopped');
+
+        // When we are stopped it means more than just paused. The audio will
+        // have to be reloaded. Therefore, we no longer have a playhead
+        // position or audio length.
+        _setAudioLength(null);
+        _setPosition(null);
+
+        _setState(AudioPlayerState.stopped);
+
+        for (Function callback in _onPlayerStoppeds) {
+          callback();
+        }
+        break;
+      case "onPlayerCompleted":
+        _log.fine('onPlayerCompleted');
+
+        _setState(AudioPlayerState.completed);
+
+        for (Function callback in _onPlayerCompleteds) {
+          callback();
+        }
+        break;
+      case "onNextAudioStarted":
+        _log.fine('onNextAudioStarted: ${call.arguments['audioUrl']}');
+
+        // The platform has already moved on to the queued audio. Remember it
+        // so that loading that same audio doesn't start it over.
+        final nextUri = Uri.parse(call.arguments['audioUrl']);
+        _startedNextUri = nextUri;
+
+        _setAudioLength(new Duration(milliseconds: call.arguments['audioLength']));
+        _setPosition(const Duration(milliseconds: 0));
+
+        for (Function callback in _onNextAudioStarteds) {
+          callback(nextUri);
+        }
+        break;
+      case "onSeekStarted":
+        _setIsSeeking(true);
+        break;
+      case "onSeekCompleted":
+        _setPosition(new Duration(milliseconds: call.arguments['position']));
+        _setIsSeeking(false);
+        break;
+      case "onPlayerReleased":
+        _log.fine('onPlayerReleased');
+
+        // The platform released this player to make room for others. It
+        // will be recreated on demand, but whatever was loaded is gone.
+        _setAudioLength(null);
+        _setPosition(null);
+        _setState(AudioPlayerState.idle);
+        break;
+    }
+  }
+
+  /// Releases this player's platform resources.
+  ///
+  /// Using a player with the same [playerId] after [dispose] creates a new
+  /// platform player.
   void dispose() {
+    if (_players[playerId] == this) {
+      _players.remove(playerId);
+      _invoke('audioplayer/$playerId/release');
+    }
+
     _onStateChangeds.clear();
     _onAudioLengthChangeds.clear();
     _onAudioLoadings.clear();
@@ -150,8 +292,14 @@ class AudioPlayer {
     _onPlayerPauseds.clear();
     _onPlayerStoppeds.clear();
     _onPlayerCompleteds.clear();
+    _onNextAudioStarteds.clear();
     _onSeekStarteds.clear();
     _onSeekCompleteds.clear();
+    _onStallStarteds.clear();
+    _onStallEndeds.clear();
+    _onPlaybackSessionEndeds.clear();
+    _onErrors.clear();
+    _onRecovereds.clear();
   }
 
   AudioPlayerState get state => _state;
@@ -180,6 +328,20 @@ class AudioPlayer {
 
   int get bufferedPercent => _bufferedPercent;
 
+  /// How far the loaded audio is buffered, or null if that isn't known.
+  Duration get bufferedPosition => _bufferedPosition;
+
+  /// Estimated download bitrate in bits per second, or null if the platform
+  /// doesn't measure it.
+  int get bitrateEstimate => _bitrateEstimate;
+
+  /// True while playback waits for more audio to be downloaded.
+  bool get isStalled => _isStalled;
+
+  /// The latest error of the current audio, or null if there was none or
+  /// the player recovered from it.
+  AudioPlayerError get error => _error;
+
   _setBufferedPercent(int percent) {
     _bufferedPercent = percent;
 
@@ -196,12 +358,63 @@ class AudioPlayer {
 
   _setPosition(Duration position) {
     _position = position;
+    if (position == null) {
+      _anchor = null;
+    }
 
     for (Function callback in _onPlayerPositionChangeds) {
       callback(position);
     }
   }
 
+  /// The latest playhead observation reported by the platform, or null if
+  /// no audio is loaded.
+  PlaybackAnchor get playbackAnchor => _anchor;
+
+  /// Current playhead position extrapolated from the [playbackAnchor].
+  ///
+  /// Unlike [position], which only changes when the platform sends a
+  /// playback update, this is accurate whenever it's read and costs no
+  /// channel traffic, e.g., to animate a seek bar or sync lyrics every frame.
+  Duration get estimatedPosition => _anchor != null
+      ? _anchor.positionAt(_clock.elapsedMicroseconds)
+      : _position;
+
+  /// Sets how often this player's `onPlayerPlaybackUpdate` listeners are
+  /// called while audio plays.
+  void setPositionUpdateInterval(Duration interval) {
+    _positionUpdateInterval = interval;
+    if (_isSubscribedToPosition) {
+      _subscribeToPosition();
+    }
+  }
+
+  void _subscribeToPosition() {
+    _isSubscribedToPosition = true;
+    _invoke(
+      'audioplayer/$playerId/subscribe_position',
+      {
+        'subscriberId': _positionSubscriberId,
+        'interval': _positionUpdateInterval.inMilliseconds,
+      },
+    );
+  }
+
+  // The platform only polls the playhead while someone is listening.
+  void _updatePositionSubscription() {
+    if (_onPlayerPositionChangeds.isNotEmpty && !_isSubscribedToPosition) {
+      _subscribeToPosition();
+    } else if (_onPlayerPositionChangeds.isEmpty && _isSubscribedToPosition) {
+      _isSubscribedToPosition = false;
+      _invoke(
+        'audioplayer/$playerId/unsubscribe_position',
+        {
+          'subscriberId': _positionSubscriberId,
+        },
+      );
+    }
+  }
+
   bool get isSeeking => _isSeeking;
 
   _setIsSeeking(bool isSeeking) {
@@ -233,8 +446,14 @@ class AudioPlayer {
     Function onPlayerPaused,
     Function onPlayerStopped,
     Function onPlayerCompleted,
+    Function(Uri) onNextAudioStarted,
     Function onSeekStarted,
     Function onSeekCompleted,
+    Function onStallStarted,
+    Function(Duration) onStallEnded,
+    Function(PlaybackSessionStats) onPlaybackSessionEnded,
+    Function(AudioPlayerError) onError,
+    Function(Duration) onRecovered,
   }) {
     if (onStateChanged != null) {
       _onStateChangeds.add(onStateChanged);
@@ -256,6 +475,7 @@ class AudioPlayer {
     }
     if (onPlayerPlaybackUpdate != null) {
       _onPlayerPositionChangeds.add(onPlayerPlaybackUpdate);
+      _updatePositionSubscription();
     }
     if (onPlayerPaused != null) {
       _onPlayerPauseds.add(onPlayerPaused);
@@ -266,12 +486,30 @@ class AudioPlayer {
     if (onPlayerCompleted != null) {
       _onPlayerCompleteds.add(onPlayerCompleted);
     }
+    if (onNextAudioStarted != null) {
+      _onNextAudioStarteds.add(onNextAudioStarted);
+    }
     if (onSeekStarted != null) {
       _onSeekStarteds.add(onSeekStarted);
     }
     if (onSeekCompleted != null) {
       _onSeekCompleteds.add(onSeekCompleted);
     }
+    if (onStallStarted != null) {
+      _onStallStarteds.add(onStallStarted);
+    }
+    if (onStallEnded != null) {
+      _onStallEndeds.add(onStallEnded);
+    }
+    if (onPlaybackSessionEnded != null) {
+      _onPlaybackSessionEndeds.add(onPlaybackSessionEnded);
+    }
+    if (onError != null) {
+      _onErrors.add(onError);
+    }
+    if (onRecovered != null) {
+      _onRecovereds.add(onRecovered);
+    }
   }
 
   void removeListener({
@@ -285,8 +523,14 @@ class AudioPlayer {
     Function onPlayerPaused,
     Function onPlayerStopped,
     Function onPlayerCompleted,
+    Function(Uri) onNextAudioStarted,
     Function onSeekStarted,
     Function onSeekCompleted,
+    Function onStallStarted,
+    Function(Duration) onStallEnded,
+    Function(PlaybackSessionStats) onPlaybackSessionEnded,
+    Function(AudioPlayerError) onError,
+    Function(Duration) onRecovered,
   }) {
     _onStateChangeds.remove(onStateChanged);
     _onAudioLoadings.remove(onAudioLoading);
@@ -294,33 +538,68 @@ class AudioPlayer {
     _onAudioReadys.remove(onAudioReady);
     _onAudioLengthChangeds.remove(onAudioLengthChanged);
     _onPlayerPlayings.remove(onPlayerPlaying);
-    _onPlayerPositionChangeds.remove(onPlayerPlaybackUpdate);
+    if (_onPlayerPositionChangeds.remove(onPlayerPlaybackUpdate)) {
+      _updatePositionSubscription();
+    }
     _onPlayerPauseds.remove(onPlayerPaused);
     _onPlayerStoppeds.remove(onPlayerStopped);
     _onPlayerCompleteds.remove(onPlayerCompleted);
+    _onNextAudioStarteds.remove(onNextAudioStarted);
     _onSeekStarteds.remove(onSeekStarted);
     _onSeekCompleteds.remove(onSeekCompleted);
+    _onStallStarteds.remove(onStallStarted);
+    _onStallEndeds.remove(onStallEnded);
+    _onPlaybackSessionEndeds.remove(onPlaybackSessionEnded);
+    _onErrors.remove(onError);
+    _onRecovereds.remove(onRecovered);
   }
 
-  void loadMedia(Uri uri) {
+  /// Loads the audio at [uri].
+  ///
+  /// Short local clips that must start instantly, e.g., UI sounds, should be
+  /// loaded with [AudioLoadHint.lowLatency]. Platforms that can't honor the
+  /// hint load the audio as usual.
+  void loadMedia(Uri uri, {AudioLoadHint hint = AudioLoadHint.standard}) {
     _log.fine('loadMedia()');
+    if (uri == _startedNextUri) {
+      _log.fine('Audio is already playing as the queued next audio.');
+      _startedNextUri = null;
+      return;
+    }
+    _startedNextUri = null;
+
     // TODO: how to represent media
     channel.invokeMethod(
       'audioplayer/$playerId/load',
       {
-        'audioUrl': uri.toString()
+        'audioUrl': uri.toString(),
+        'hint': _loadHintNames[hint],
+      },
+    );
+  }
+
+  /// Prepares [uri] in the background so that it plays without a gap when
+  /// the current audio completes, or when it's loaded with [loadMedia].
+  ///
+  /// Passing null clears the queued audio.
+  void enqueueNext(Uri uri) {
+    _log.fine('enqueueNext(): $uri');
+    _invoke(
+      'audioplayer/$playerId/enqueue_next',
+      {
+        'audioUrl': uri?.toString(),
       },
     );
   }
 
   void play() {
     _log.fine('play()');
-    channel.invokeMethod('audioplayer/$playerId/play');
+    _command('audioplayer/$playerId/play');
   }
 
   void pause() {
     _log.fine('pause()');
-    channel.invokeMethod('audioplayer/$playerId/pause');
+    _command('audioplayer/$playerId/pause');
   }
 
   void seek(Duration duration) {
@@ -334,20 +613,266 @@ class AudioPlayer {
     // TODO: what are the failure cases for seeking and how do we recover?
     _setIsSeeking(true);
 
-    channel.invokeMethod(
+    _command(
         'audioplayer/$playerId/seek',
         {
           'seekPosition': duration.inMilliseconds,
         },
+    ).then((rejected) {
+      if (rejected == true) {
+        // No seek is coming to complete the optimistic one.
+        _setIsSeeking(false);
+      }
+    });
+  }
+
+  /// Turns audio focus management on or off for this player. Off by default.
+  ///
+  /// When on, the platform requests audio focus before playing. It pauses,
+  /// or lowers the volume, while another app briefly takes focus and
+  /// resumes afterwards. When another app takes focus for good, the player
+  /// releases its resources and picks up from the same position on the next
+  /// [play]. Playback also pauses when headphones are unplugged.
+  void setAudioFocusManaged(bool isManaged) {
+    _log.fine('setAudioFocusManaged(): $isManaged');
+    _invoke(
+      'audioplayer/$playerId/set_audio_focus',
+      {
+        'enabled': isManaged,
+      },
     );
   }
 
+  /// Enters scrubbing mode, e.g., while the user drags a seek bar.
+  ///
+  /// Until [endScrubbing], every [seek] only previews its position, as fast
+  /// as the platform allows, and seeks that arrive while an earlier one is
+  /// still in flight collapse into the latest one.
+  void startScrubbing() {
+    _log.fine('startScrubbing()');
+    _invoke('audioplayer/$playerId/scrub_start');
+  }
+
+  /// Leaves scrubbing mode and seeks precisely to the last [seek] position.
+  void endScrubbing() {
+    _log.fine('endScrubbing()');
+    _invoke('audioplayer/$playerId/scrub_end');
+  }
+
   void stop() {
     _log.fine('stop()');
-    channel.invokeMethod('audioplayer/$playerId/stop');
+    _command('audioplayer/$playerId/stop');
+  }
+
+  /// Quality of experience of the current audio so far, or null on
+  /// platforms that don't measure it.
+  ///
+  /// The final stats of each audio are also reported to
+  /// `onPlaybackSessionEnded` listeners once it's done with.
+  Future<PlaybackSessionStats> sessionStats() async {
+    final Map stats = await _invoke('audioplayer/$playerId/session_stats');
+    return stats != null ? new PlaybackSessionStats._fromMap(stats) : null;
+  }
+
+  /// Runs [operations] in order, in a single platform call, and returns one
+  /// [AudioPlayerOperationResult] per operation.
+  ///
+  /// The platform validates every operation before it runs any of them. If
+  /// one is invalid then none of them run: the invalid ones report an error
+  /// and the rest report that they were skipped.
+  Future<List<AudioPlayerOperationResult>> batch(List<AudioPlayerOperation> operations) async {
+    _log.fine('batch(): ${operations.length} operations');
+    final List results = await channel.invokeMethod(
+      'audioplayer/$playerId/batch',
+      {
+        'operations': operations.map((operation) => operation._toMap()).toList(),
+      },
+    );
+    return results
+        .map((result) => new AudioPlayerOperationResult._fromMap(result))
+        .toList();
+  }
+
+  /// Invokes a player command. Completes with true if the platform rejected
+  /// the command because the player's current state doesn't allow it, which
+  /// is logged rather than thrown.
+  Future<bool> _command(String method, [dynamic arguments]) {
+    return channel.invokeMethod(method, arguments).then((_) => false).catchError((error) {
+      _log.warning('$method rejected: ${error.message}');
+      return true;
+    }, test: (error) => error is PlatformException && error.code == 'command_rejected');
+  }
+
+  /// Invokes a channel method that not every platform implements.
+  Future<dynamic> _invoke(String method, [dynamic arguments]) {
+    return channel.invokeMethod(method, arguments).catchError((error) {
+      _log.fine('$method is not supported on this platform.');
+    }, test: (error) => error is MissingPluginException);
+  }
+}
+
+/// A single operation for [AudioPlayer.batch].
+class AudioPlayerOperation {
+  final String command;
+  final Map<String, dynamic> args;
+
+  const AudioPlayerOperation._(this.command, [this.args]);
+
+  factory AudioPlayerOperation.load(Uri uri, {AudioLoadHint hint = AudioLoadHint.standard}) {
+    return new AudioPlayerOperation._('load', {
+      'audioUrl': uri.toString(),
+      'hint': _loadHintNames[hint],
+    });
+  }
+
+  factory AudioPlayerOperation.enqueueNext(Uri uri) {
+    return new AudioPlayerOperation._('enqueue_next', {'audioUrl': uri?.toString()});
+  }
+
+  factory AudioPlayerOperation.play() => const AudioPlayerOperation._('play');
+
+  factory AudioPlayerOperation.pause() => const AudioPlayerOperation._('pause');
+
+  factory AudioPlayerOperation.stop() => const AudioPlayerOperation._('stop');
+
+  factory AudioPlayerOperation.seek(Duration position) {
+    return new AudioPlayerOperation._('seek', {'seekPosition': position.inMilliseconds});
+  }
+
+  Map<String, dynamic> _toMap() {
+    return {
+      'command': command,
+      'args': args,
+    };
+  }
+}
+
+/// Outcome of a single [AudioPlayerOperation] in [AudioPlayer.batch].
+class AudioPlayerOperationResult {
+  /// One of 'ok', 'error', 'skipped' or 'rejected'. An operation is rejected
+  /// when the player's state doesn't allow it at the time it runs.
+  final String status;
+  final String message;
+  final dynamic result;
+
+  AudioPlayerOperationResult._fromMap(Map map)
+      : status = map['status'],
+        message = map['message'],
+        result = map['result'];
+
+  bool get isOk => status == 'ok';
+
+  bool get isRejected => status == 'rejected';
+}
+
+/// A playhead position observed at a point in time, from which the position
+/// at any later time can be extrapolated.
+class PlaybackAnchor {
+  final Duration position;
+
+  /// Playback speed, where 1.0 is normal speed and 0.0 means not playing.
+  final double speed;
+
+  final int _clockMicros;
+
+  PlaybackAnchor._(this.position, this.speed, this._clockMicros);
+
+  Duration positionAt(int clockMicros) {
+    final elapsedMicros = ((clockMicros - _clockMicros) * speed).round();
+    return position + new Duration(microseconds: elapsedMicros);
+  }
+}
+
+/// Quality of experience of a single playback session, i.e., of one loaded
+/// audio from when it was loaded until it was done with.
+class PlaybackSessionStats {
+  final String url;
+
+  /// From the load until the first audio arrived, or null if none did.
+  final Duration timeToFirstByte;
+
+  /// From the load, or from the first [AudioPlayer.play] if that came later,
+  /// until audio started playing, or null if it never did.
+  final Duration startupTime;
+
+  /// Number of times that playback ran out of buffered audio.
+  final int rebufferCount;
+
+  /// Total time that playback waited for audio.
+  final Duration stallTime;
+
+  /// Total time that audio played, not counting stalls.
+  final Duration playingTime;
+
+  /// Share of the time that audio should have played which was spent
+  /// stalled, from 0.0 to 1.0.
+  final double stallRatio;
+
+  PlaybackSessionStats._fromMap(Map map)
+      : url = map['url'],
+        timeToFirstByte = _durationOrNull(map['timeToFirstByte']),
+        startupTime = _durationOrNull(map['startupTime']),
+        rebufferCount = map['rebufferCount'],
+        stallTime = new Duration(milliseconds: map['stallTime']),
+        playingTime = new Duration(milliseconds: map['playingTime']),
+        stallRatio = map['stallRatio'];
+
+  static Duration _durationOrNull(int millis) {
+    return millis != null && millis >= 0 ? new Duration(milliseconds: millis) : null;
   }
 }
 
+/// Why audio failed to load or play.
+class AudioPlayerError {
+  /// What kind of error it was, e.g., 'network', 'timedOut', 'serverDied',
+  /// 'unsupported', 'malformed' or 'unknown'.
+  final String kind;
+
+  /// Platform error codes, e.g., the `what` and `extra` codes of Android's
+  /// MediaPlayer.
+  final int what;
+  final int extra;
+
+  /// Whether the same audio may work when it's tried again.
+  final bool isRecoverable;
+
+  /// Number of the retry that the player scheduled, starting at 1, or 0 if
+  /// the player gave up.
+  final int retryAttempt;
+
+  /// Time until the scheduled retry.
+  final Duration retryDelay;
+
+  AudioPlayerError._fromMap(Map map, this.retryAttempt, int retryDelayMillis)
+      : kind = map['kind'],
+        what = map['what'],
+        extra = map['extra'],
+        isRecoverable = map['recoverable'],
+        retryDelay = new Duration(milliseconds: retryDelayMillis);
+
+  /// True if the player retries the audio on its own. Until it recovers,
+  /// the player reports a stall if it was playing.
+  bool get willRetry => retryAttempt > 0;
+
+  @override
+  String toString() => '$kind (what: $what, extra: $extra, retry: $retryAttempt)';
+}
+
+/// How loaded audio is going to be used, which decides how it's played.
+enum AudioLoadHint {
+  /// Streams and long-form audio.
+  standard,
+
+  /// Short local clips, e.g., UI sounds, that are decoded into memory so
+  /// that they start within a few milliseconds.
+  lowLatency,
+}
+
+const Map<AudioLoadHint, String> _loadHintNames = const {
+  AudioLoadHint.standard: 'standard',
+  AudioLoadHint.lowLatency: 'lowLatency',
+};
+
 enum AudioPlayerState {
   idle,
   loading,
@@ -355,4 +880,7 @@ enum AudioPlayerState {
   paused,
   stopped,
   completed,
+
+  /// The audio failed for good. Loading other audio recovers the player.
+  error,
 }
\ No newline at end of file
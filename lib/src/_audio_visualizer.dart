@@ -1,56 +1,200 @@
+import 'dart:async';
+import 'dart:typed_data';
+
 import 'package:flutter/services.dart';
 import 'package:logging/logging.dart';
 
 Logger _log = new Logger('AudioVisualizer');
 
+/// Size of the header that precedes the payload of every visualizer frame.
+///
+/// See VisualizerFrameTransport on the Android side for the frame layout.
+const int _frameHeaderSize = 28;
+const int _frameTypeFft = 0;
+const int _frameTypeWaveform = 1;
+const int _frameTypeBands = 2;
+
+/// Receives visualizer frames from the platform.
+///
+/// Any number of visualizers can be active at once. Those of the same player
+/// share one platform capture, which is released when the last of them is
+/// deactivated.
 class AudioVisualizer {
 
+  /// Active visualizers by their platform subscriber id.
+  static final Map<int, AudioVisualizer> _subscribers = {};
+
+  final String playerId;
   final MethodChannel channel;
+  final BasicMessageChannel<ByteData> frameChannel;
   final Set<FftCallback> _fftCallbacks = new Set();
   final Set<WaveformCallback> _waveformCallbacks = new Set();
+  final Set<BandsCallback> _bandsCallbacks = new Set();
+
+  int _subscriberId;
+  // Incremented by every activation and deactivation, so that an activation
+  // that was superseded before the platform replied is undone.
+  int _activation = 0;
 
   AudioVisualizer({
+    this.playerId,
     this.channel,
+    this.frameChannel,
   }) {
-    channel.setMethodCallHandler((MethodCall call) {
-      _log.fine('Received AudioVisualizer call: ${call.method}');
-
-      switch (call.method) {
-        case 'onFftVisualization':
-          List<int> samples = call.arguments['fft'];
-          for (Function callback in _fftCallbacks) {
-            callback(samples);
-          }
-          break;
-        case 'onWaveformVisualization':
-          List<int> samples = call.arguments['waveform'];
-          for (Function callback in _waveformCallbacks) {
-            callback(samples);
-          }
-          break;
-        default:
-          throw new UnimplementedError('${call.method} is not implemented for audio visualization channel.');
+    // All visualizers share the frame channel, so the handler is static.
+    frameChannel.setMessageHandler(_onFrame);
+  }
+
+  /// Handles a frame from the platform and hands it to the visualizers that
+  /// are set in its subscriber mask.
+  ///
+  /// The platform doesn't send another frame until this handler has replied,
+  /// so a frame is never queued behind stale frames.
+  static Future<ByteData> _onFrame(ByteData frame) async {
+    final int frameType = frame.getInt32(16);
+    final int length = frame.getInt32(20);
+    int subscribers = frame.getUint32(24);
+
+    // A view into the platform message, not a copy.
+    final Uint8List samples = frame.buffer.asUint8List(
+      frame.offsetInBytes + _frameHeaderSize,
+      length,
+    );
+
+    for (int subscriberId = 0; subscribers != 0; ++subscriberId) {
+      if ((subscribers & 1) != 0) {
+        _subscribers[subscriberId]?._dispatch(frameType, samples);
       }
-    });
+      subscribers >>= 1;
+    }
+
+    return null;
   }
 
-  void activate() {
-    channel.invokeMethod('audiovisualizer/activate_visualizer');
+  void _dispatch(int frameType, Uint8List samples) {
+    switch (frameType) {
+      case _frameTypeFft:
+        for (Function callback in _fftCallbacks) {
+          callback(samples);
+        }
+        break;
+      case _frameTypeWaveform:
+        for (Function callback in _waveformCallbacks) {
+          callback(samples);
+        }
+        break;
+      case _frameTypeBands:
+        // Band levels are followed by the same number of band peaks.
+        final int bandCount = samples.length ~/ 2;
+        final Uint8List levels = new Uint8List.view(samples.buffer, samples.offsetInBytes, bandCount);
+        final Uint8List peaks = new Uint8List.view(samples.buffer, samples.offsetInBytes + bandCount, bandCount);
+        for (Function callback in _bandsCallbacks) {
+          callback(levels, peaks);
+        }
+        break;
+      default:
+        _log.warning('Unknown visualizer frame type: $frameType');
+    }
   }
 
+  /// Starts capturing audio for visualization, or changes what is captured
+  /// if this visualizer is already active.
+  ///
+  /// [captureSize] is the number of samples per capture and [captureRate] is
+  /// the number of frames per second in milliHertz that this visualizer
+  /// receives. The platform picks defaults for any that are omitted and
+  /// clamps the rest to what the device supports. Visualizers of the same
+  /// player share a capture of the largest size and the highest rate that
+  /// any of them asked for, so a visualizer may receive larger captures than
+  /// it asked for.
+  ///
+  /// If [bandCount] is given then the platform reduces every FFT capture to
+  /// that many logarithmically spaced, smoothed frequency bands, which are
+  /// reported to [BandsCallback]s instead of the raw FFT. At most 512 bands
+  /// are supported.
+  ///
+  /// If [adaptive] is true then the platform lowers the capture rate and size
+  /// while Flutter can't keep up with the frames, or while the app is in the
+  /// background.
+  ///
+  /// Returns true if the visualizer is active, which is not the case if,
+  /// e.g., the app may not record audio.
+  Future<bool> activate({
+    VisualizerMode mode = VisualizerMode.fft,
+    int captureSize,
+    int captureRate,
+    int bandCount,
+    bool adaptive = false,
+  }) async {
+    deactivate();
+    final int activation = _activation;
+
+    int subscriberId;
+    try {
+      subscriberId = await channel.invokeMethod(
+        'audiovisualizer/activate_visualizer',
+        {
+          'playerId': playerId,
+          'mode': _modeNames[mode],
+          'captureSize': captureSize,
+          'captureRate': captureRate,
+          'bandCount': bandCount,
+          'adaptive': adaptive,
+        },
+      );
+    } on PlatformException catch (e) {
+      _log.warning('Failed to activate visualizer: ${e.message}');
+      return false;
+    }
+
+    if (activation != _activation) {
+      // Deactivated, or activated again, while waiting for the platform.
+      _deactivateSubscriber(subscriberId);
+      return false;
+    }
+    _subscriberId = subscriberId;
+    _subscribers[subscriberId] = this;
+    return true;
+  }
+
+  /// Stops receiving frames. The platform stops capturing once no other
+  /// visualizer of the player is active.
   void deactivate() {
-    channel.invokeMethod('audiovisualizer/deactivate_visualizer');
+    ++_activation;
+    if (_subscriberId != null) {
+      _subscribers.remove(_subscriberId);
+      _deactivateSubscriber(_subscriberId);
+      _subscriberId = null;
+    }
+  }
+
+  void _deactivateSubscriber(int subscriberId) {
+    channel.invokeMethod('audiovisualizer/deactivate_visualizer', {
+      'subscriberId': subscriberId,
+    });
+  }
+
+  /// Returns how many frames the platform produced, how many of them were
+  /// replaced by a newer frame because Flutter was still busy, and how many
+  /// were delivered, under the keys 'produced', 'coalesced' and 'delivered',
+  /// and how many frame buffers it allocated under 'buffers'. Counts are
+  /// shared by all visualizers.
+  Future<Map<String, int>> frameStats() async {
+    final Map stats = await channel.invokeMethod('audiovisualizer/frame_stats');
+    return new Map<String, int>.from(stats);
   }
 
   void dispose() {
     deactivate();
     _fftCallbacks.clear();
     _waveformCallbacks.clear();
+    _bandsCallbacks.clear();
   }
 
   void addListener({
     FftCallback fftCallback,
     WaveformCallback waveformCallback,
+    BandsCallback bandsCallback,
   }) {
     if (null != fftCallback) {
       _fftCallbacks.add(fftCallback);
@@ -58,11 +202,15 @@ class AudioVisualizer {
     if (null != waveformCallback) {
       _waveformCallbacks.add(waveformCallback);
     }
+    if (null != bandsCallback) {
+      _bandsCallbacks.add(bandsCallback);
+    }
   }
 
   void removeListener({
     FftCallback fftCallback,
     WaveformCallback waveformCallback,
+    BandsCallback bandsCallback,
   }) {
     if (null != fftCallback) {
       _fftCallbacks.remove(fftCallback);
@@ -70,9 +218,28 @@ class AudioVisualizer {
     if (null != waveformCallback) {
       _waveformCallbacks.remove(waveformCallback);
     }
+    if (null != bandsCallback) {
+      _bandsCallbacks.remove(bandsCallback);
+    }
   }
 
 }
 
+enum VisualizerMode {
+  fft,
+  waveform,
+  both,
+}
+
+const Map<VisualizerMode, String> _modeNames = const {
+  VisualizerMode.fft: 'fft',
+  VisualizerMode.waveform: 'waveform',
+  VisualizerMode.both: 'both',
+};
+
 typedef void FftCallback(List<int> fftSamples);
-typedef void WaveformCallback(List<int> waveformSamples);
\ No newline at end of file
+typedef void WaveformCallback(List<int> waveformSamples);
+
+/// Receives band [levels] and band [peaks], lowest frequency first, each
+/// scaled to 0-255.
+typedef void BandsCallback(Uint8List levels, Uint8List peaks);
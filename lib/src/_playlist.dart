@@ -1,4 +1,7 @@
+import 'dart:math';
+
 import 'package:flutter/widgets.dart';
+import 'package:fluttery_audio/fluttery_audio.dart';
 import 'package:fluttery_audio/src/_audio_player.dart';
 import 'package:fluttery_audio/src/_audio_player_widgets.dart';
 import 'package:logging/logging.dart';
@@ -11,6 +14,10 @@ class AudioPlaylist extends StatefulWidget {
   final List<String> playlist;
   final int startPlayingFromIndex;
   final PlaybackState playbackState;
+  /// Number of clips after the queued next clip whose beginning is downloaded
+  /// ahead of time. Only has an effect when the cache is enabled, see
+  /// [FlutteryAudio.configureCache].
+  final int prefetchCount;
   final Function(BuildContext, Playlist, Widget child) playlistBuilder;
   final Widget child;
 
@@ -18,6 +25,7 @@ class AudioPlaylist extends StatefulWidget {
     this.playlist = const [],
     this.startPlayingFromIndex = 0,
     this.playbackState = PlaybackState.paused,
+    this.prefetchCount = 2,
     this.playlistBuilder,
     this.child,
   });
@@ -35,6 +43,8 @@ class _AudioPlaylistState extends State<AudioPlaylist> with Playlist {
   int _activeAudioIndex;
   AudioPlayerState _prevState;
   AudioPlayer _audioPlayer;
+  String _enqueuedUrl;
+  String _prefetchedUrls;
 
   @override
   void initState() {
@@ -73,6 +83,38 @@ class _AudioPlaylistState extends State<AudioPlaylist> with Playlist {
     }
   }
 
+  void _onNextAudioStarted(Uri uri) {
+    _log.fine('Platform moved on to the queued clip.');
+    next();
+  }
+
+  /// Queues the clip after the active one so that the platform can prepare
+  /// it ahead of time and play it without a gap.
+  void _enqueueUpcoming() {
+    final nextIndex = _activeAudioIndex + 1;
+    final nextUrl = nextIndex < widget.playlist.length ? widget.playlist[nextIndex] : null;
+    if (nextUrl != _enqueuedUrl) {
+      _enqueuedUrl = nextUrl;
+      _audioPlayer.enqueueNext(nextUrl != null ? Uri.parse(nextUrl) : null);
+    }
+  }
+
+  /// Downloads the beginning of the clips after the queued one. The queued
+  /// clip itself is already being prepared by the platform.
+  void _prefetchUpcoming() {
+    final start = min(_activeAudioIndex + 2, widget.playlist.length);
+    final end = min(start + widget.prefetchCount, widget.playlist.length);
+    final upcoming = widget.playlist.sublist(start, end);
+
+    // Only tell the platform when the upcoming clips change, because every
+    // prefetch call cancels the one before it.
+    final prefetchedUrls = upcoming.join('\n');
+    if (prefetchedUrls != _prefetchedUrls) {
+      _prefetchedUrls = prefetchedUrls;
+      FlutteryAudio.prefetch(upcoming);
+    }
+  }
+
   @override
   Widget build(BuildContext context) {
     _log.fine('Building with active index: $_activeAudioIndex');
@@ -97,7 +139,12 @@ class _AudioPlaylistState extends State<AudioPlaylist> with Playlist {
         }
       },
       playerBuilder: (BuildContext context, AudioPlayer player, Widget child) {
-        _audioPlayer = player;
+        if (_audioPlayer != player) {
+          _audioPlayer = player;
+          _audioPlayer.addListener(onNextAudioStarted: _onNextAudioStarted);
+        }
+        _enqueueUpcoming();
+        _prefetchUpcoming();
 
         return new _InheritedPlaylist(
           activeIndex: activeIndex,
@@ -7,10 +7,16 @@ final _log = new Logger('Visualizer');
 
 class Visualizer extends StatefulWidget {
 
+  /// Receives the raw FFT, or the band levels if [bandCount] is set.
   final Function(BuildContext context, List<int> fft) builder;
 
+  /// Number of frequency bands that the platform should reduce the FFT to,
+  /// or null to receive the raw FFT.
+  final int bandCount;
+
   Visualizer({
     this.builder,
+    this.bandCount,
   });
 
   @override
@@ -26,11 +32,14 @@ class _VisualizerState extends State<Visualizer> {
   void initState() {
     super.initState();
     visualizer = FlutteryAudio.audioVisualizer()
-      ..activate()
+      ..activate(bandCount: widget.bandCount)
       ..addListener(
           fftCallback: (List<int> samples) {
             _log.fine('Got FFT samples: $samples');
             setState(() => fft = samples);
+          },
+          bandsCallback: (List<int> levels, List<int> peaks) {
+            setState(() => fft = levels);
           }
       );
   }
@@ -0,0 +1,67 @@
+import 'dart:async';
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+
+/// Overview of a whole track for drawing its waveform, e.g., behind a
+/// scrubber, see [FlutteryAudio.waveform].
+///
+/// The waveform is made of peaks, the minimum and maximum sample of a short
+/// stretch of audio, at several zoom [levels]. Level 0 is the finest, and
+/// every further level has half as many peaks. Peaks are kept by the
+/// platform and fetched in ranges with [peaks], so that only what is drawn
+/// crosses the channel.
+class Waveform {
+  final String url;
+  final MethodChannel channel;
+  final Duration duration;
+  final int sampleRate;
+  final List<WaveformLevel> levels;
+
+  Waveform.fromMap({
+    this.url,
+    this.channel,
+    Map map,
+  }) : duration = new Duration(milliseconds: map['duration']),
+        sampleRate = map['sampleRate'],
+        levels = (map['levels'] as List)
+            .map((level) => new WaveformLevel._fromMap(level, map['sampleRate']))
+            .toList();
+
+  /// The coarsest level that still has at least [peakCount] peaks, e.g., one
+  /// per pixel of the widget that draws them.
+  int levelFor(int peakCount) {
+    for (int level = levels.length - 1; level > 0; --level) {
+      if (levels[level].peakCount >= peakCount) {
+        return level;
+      }
+    }
+    return 0;
+  }
+
+  /// Up to [count] peaks of the given [level], starting with peak [start],
+  /// as pairs of min and max sample from -32768 to 32767.
+  Future<Int32List> peaks({int level = 0, int start = 0, int count}) async {
+    return await channel.invokeMethod('audiowaveform/peaks', {
+      'url': url,
+      'level': level,
+      'start': start,
+      'count': count ?? levels[level].peakCount - start,
+    });
+  }
+}
+
+class WaveformLevel {
+  /// Number of audio frames that each peak covers.
+  final int framesPerPeak;
+
+  final int peakCount;
+
+  /// Stretch of audio that each peak covers.
+  final Duration peakDuration;
+
+  WaveformLevel._fromMap(Map map, int sampleRate)
+      : framesPerPeak = map['framesPerPeak'],
+        peakCount = map['peakCount'],
+        peakDuration = new Duration(microseconds: map['framesPerPeak'] * 1000000 ~/ sampleRate);
+}